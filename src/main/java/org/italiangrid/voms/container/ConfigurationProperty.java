@@ -15,9 +15,211 @@ public enum ConfigurationProperty {
 	TRUST_ANCHORS_REFRESH_PERIOD("trust_anchors.refresh_period", "21600"), // in
 																																					// seconds
 
+	// the directory holding the VO temp directories
+	TMP_DIR("tmp_dir", "/var/tmp"),
+
 	MAX_CONNECTIONS("max_connections", "100"),
 
-	MAX_REQUEST_QUEUE_SIZE("max_request_queue_size", "200");
+	MAX_REQUEST_QUEUE_SIZE("max_request_queue_size", "200"),
+
+	// in seconds, 0 disables draining, VO contexts are still stopped in parallel
+	GRACEFUL_SHUTDOWN_TIMEOUT("graceful_shutdown.timeout", "0"),
+
+	// comma separated paths, relative to the VO context, requested during
+	// warm-up. Empty disables warm-up
+	WARMUP_REQUESTS("warmup.requests", ""),
+
+	WARMUP_TIMEOUT("warmup.timeout", "60"), // in seconds
+
+	// percentage of deployed VOs that must be active for /health/ready
+	HEALTH_READY_MIN_ACTIVE_PERCENT("health.ready_min_active_percent", "100"),
+
+	// 0 disables retries
+	VO_START_RETRY_MAX_ATTEMPTS("vo_start_retry.max_attempts", "0"),
+
+	VO_START_RETRY_INITIAL_DELAY("vo_start_retry.initial_delay", "10"), // in seconds
+
+	VO_START_RETRY_MAX_DELAY("vo_start_retry.max_delay", "600"), // in seconds
+
+	DIAGNOSTICS_CONTINUOUS_RECORDING("diagnostics.continuous_recording", "false"),
+
+	// how much history the continuous recording keeps, in jcmd JFR.start format
+	DIAGNOSTICS_RECORDING_MAX_AGE("diagnostics.recording_max_age", "6h"),
+
+	RESOURCE_ACCOUNTING("resource_accounting.enabled", "false"),
+
+	CONCURRENCY_LIMIT_ENABLED("concurrency_limit.enabled", "false"),
+
+	CONCURRENCY_LIMIT_INITIAL("concurrency_limit.initial", "20"),
+
+	CONCURRENCY_LIMIT_MIN("concurrency_limit.min", "5"),
+
+	CONCURRENCY_LIMIT_MAX("concurrency_limit.max", "100"),
+
+	MICRO_CACHE_ENABLED("micro_cache.enabled", "false"),
+
+	// rules separated by ';', each as "<vo|*> <path regex> <ttl seconds> [shared]"
+	MICRO_CACHE_RULES("micro_cache.rules", ""),
+
+	// in bytes
+	MICRO_CACHE_MAX_SIZE("micro_cache.max_size", "16777216"),
+
+	// in bytes, larger responses are not cached
+	MICRO_CACHE_MAX_ENTRY_SIZE("micro_cache.max_entry_size", "262144"),
+
+	// how many VOs are upgraded to a new web archive at the same time
+	ROLLING_UPGRADE_BATCH_SIZE("rolling_upgrade.batch_size", "1"),
+
+	// in seconds, the max time the old version of a VO serves in-flight
+	// requests after the new one has taken over
+	ROLLING_UPGRADE_RETIRE_DELAY("rolling_upgrade.retire_delay", "30"),
+
+	// in seconds, 0 disables watching the web archive for changes
+	ROLLING_UPGRADE_WAR_SCAN_INTERVAL("rolling_upgrade.war_scan_interval", "0"),
+
+	// exposes POST /upgrade on the status connector, authenticated with the
+	// control token
+	ROLLING_UPGRADE_ENDPOINT_ENABLED("rolling_upgrade.endpoint_enabled", "false"),
+
+	// file holding the secret that authenticates control requests, private to
+	// the container user; empty means container-control.token in the
+	// configuration directory
+	CONTROL_TOKEN_FILE("control.token_file", ""),
+
+	// number of shards in sharded mode
+	SHARD_COUNT("shard.count", "1"),
+
+	// comma separated <vo>:<shard> pins, other VOs are assigned by name hash
+	SHARD_ASSIGNMENTS("shard.assignments", ""),
+
+	// shard i receives forwarded requests on loopback port base_port + i
+	SHARD_BASE_PORT("shard.base_port", "15000"),
+
+	// shard i serves the local status connector on port status_base_port + i
+	SHARD_STATUS_BASE_PORT("shard.status_base_port", "15100"),
+
+	// authenticates the router to the shards, required in sharded mode
+	SHARD_SECRET("shard.secret", ""),
+
+	// lets a successor started with --handover take over from this container,
+	// authenticated with the control token
+	HANDOVER_ENABLED("handover.enabled", "false"),
+
+	// status connector port of a container booting to take over from a running
+	// one, until the running one exits
+	HANDOVER_STATUS_PORT("handover.status_port", "8089"),
+
+	// in seconds, how long a successor waits for its VOs and for the running
+	// container to release its ports
+	HANDOVER_TIMEOUT("handover.timeout", "600"),
+
+	// comma separated CIDR blocks, connections from other addresses are
+	// rejected before the TLS handshake; empty allows all addresses
+	CONNECTION_FILTER_ALLOW("connection_filter.allow", ""),
+
+	// comma separated CIDR blocks whose connections are rejected before the TLS
+	// handshake
+	CONNECTION_FILTER_DENY("connection_filter.deny", ""),
+
+	// 0 disables the limit
+	CONNECTION_FILTER_MAX_CONNECTIONS_PER_IP(
+		"connection_filter.max_connections_per_ip", "0"),
+
+	// new connections per second, 0 disables the limit
+	CONNECTION_FILTER_MAX_RATE_PER_IP("connection_filter.max_rate_per_ip", "0"),
+
+	// in microseconds, used to estimate the CPU time saved by rejections
+	CONNECTION_FILTER_HANDSHAKE_COST("connection_filter.handshake_cost", "5000"),
+
+	COMPRESSION_ENABLED("compression.enabled", "false"),
+
+	// in bytes, smaller bodies are sent uncompressed
+	COMPRESSION_MIN_SIZE("compression.min_size", "1024"),
+
+	// comma separated, entries ending with '/' match a whole top level type
+	COMPRESSION_MIME_TYPES("compression.mime_types",
+		"text/,application/json,application/xml,application/soap+xml,application/javascript"),
+
+	// deflate level, from 1 (fastest) to 9 (smallest)
+	COMPRESSION_LEVEL("compression.level", "6"),
+
+	REQUEST_WATCHDOG_ENABLED("request_watchdog.enabled", "false"),
+
+	// in seconds, slower requests are counted and their stack sampled
+	REQUEST_WATCHDOG_SLOW_THRESHOLD("request_watchdog.slow_threshold", "30"),
+
+	// in seconds, slower requests are aborted by closing the client
+	// connection; 0 disables the deadline
+	REQUEST_WATCHDOG_DEADLINE("request_watchdog.deadline", "0"),
+
+	// in seconds, at most one stack sample per VO is logged in this interval
+	REQUEST_WATCHDOG_STACK_SAMPLE_INTERVAL(
+		"request_watchdog.stack_sample_interval", "60"),
+
+	OCSP_ENABLED("ocsp.enabled", "false"),
+
+	// used for all certificates instead of the one in their authority
+	// information access extension, e.g. a local responder
+	OCSP_RESPONDER_URL("ocsp.responder_url", ""),
+
+	// in seconds, for both connecting and reading
+	OCSP_TIMEOUT("ocsp.timeout", "5"),
+
+	// accept certificates whose status cannot be verified
+	OCSP_SOFT_FAIL("ocsp.soft_fail", "true"),
+
+	// in seconds, for responses without a nextUpdate time
+	OCSP_DEFAULT_CACHE_TTL("ocsp.default_cache_ttl", "300"),
+
+	// in seconds, how long responder failures are remembered
+	OCSP_ERROR_CACHE_TTL("ocsp.error_cache_ttl", "30"),
+
+	OCSP_MAX_CACHE_ENTRIES("ocsp.max_cache_entries", "10000"),
+
+	STARTUP_HISTORY_ENABLED("startup.history_enabled", "false"),
+
+	// comma separated list of vo:priority entries, higher priorities start first
+	STARTUP_PRIORITIES("startup.priorities", ""),
+
+	STARTUP_PARALLELISM("startup.parallelism", "1"),
+
+	CAPTURE_ENABLED("capture.enabled", "false"),
+
+	// empty for a file in a directory private to the container user, under
+	// tmp_dir
+	CAPTURE_FILE("capture.file", ""),
+
+	// comma separated list of VO names, all VOs if empty
+	CAPTURE_VOS("capture.vos", ""),
+
+	CAPTURE_MAX_BODY_SIZE("capture.max_body_size", "65536"),
+
+	// in megabytes, at most 2047
+	CAPTURE_MAX_SIZE("capture.max_size", "1024"),
+
+	PRIORITY_ENABLED("priority.enabled", "false"),
+
+	// comma separated list of class:weight entries
+	PRIORITY_CLASSES("priority.classes", "admin:8,interactive:4,default:2,bulk:1"),
+
+	PRIORITY_DEFAULT_CLASS("priority.default_class", "default"),
+
+	// rules separated by ';', each as "<class> <vo|*> <path regex> [dn regex]"
+	PRIORITY_RULES("priority.rules", "bulk * /services/.*"),
+
+	// 0 means three quarters of max_connections
+	PRIORITY_MAX_ACTIVE("priority.max_active", "0"),
+
+	PRIORITY_MAX_QUEUE_SIZE("priority.max_queue_size", "200"),
+
+	// in seconds
+	PRIORITY_MAX_WAIT("priority.max_wait", "30"),
+
+	CLIENT_IDENTITY_CACHE_ENABLED("client_identity.cache_enabled", "false"),
+
+	CLIENT_IDENTITY_CACHE_TTL("client_identity.cache_ttl", "3600"),
+
+	CLIENT_IDENTITY_MAX_CACHE_ENTRIES("client_identity.max_cache_entries", "10000");
 
 	private ConfigurationProperty(String propertyName, String defaultValue) {
 
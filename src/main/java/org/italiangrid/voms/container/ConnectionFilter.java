@@ -0,0 +1,316 @@
+package org.italiangrid.voms.container;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.italiangrid.voms.container.metrics.MetricsSource;
+
+/**
+ * Decides whether a newly accepted connection is served, before any TLS
+ * processing takes place. Connections are rejected when the source address
+ * is not in the allow list (if any) or is in the deny list, when the source
+ * already has too many open connections, or when it opens connections too
+ * fast.
+ * 
+ * Per-source state is kept only while a source has open connections or is
+ * within its rate window, and swept periodically.
+ */
+public class ConnectionFilter implements MetricsSource {
+
+	public static final long RATE_WINDOW_IN_MSEC = TimeUnit.SECONDS.toMillis(1);
+
+	/**
+	 * The per-source table is swept every this many admitted connections.
+	 */
+	public static final int SWEEP_INTERVAL = 1024;
+
+	/**
+	 * A network address block in CIDR notation.
+	 */
+	public static class CidrBlock {
+
+		private final byte[] network;
+		private final int prefixLength;
+
+		public CidrBlock(byte[] network, int prefixLength) {
+
+			if (prefixLength < 0 || prefixLength > network.length * 8)
+				throw new IllegalArgumentException("Invalid prefix length: "
+					+ prefixLength);
+
+			this.network = network;
+			this.prefixLength = prefixLength;
+		}
+
+		public static CidrBlock parse(String cidr) {
+
+			String[] parts = cidr.trim().split("/");
+
+			if (parts.length > 2)
+				throw new IllegalArgumentException("Invalid CIDR block: " + cidr);
+
+			try {
+
+				// Literal addresses only, no name resolution
+				if (!parts[0].matches("[0-9a-fA-F:.]+"))
+					throw new IllegalArgumentException("Invalid CIDR block: " + cidr);
+
+				byte[] address = InetAddress.getByName(parts[0]).getAddress();
+				int prefix = (parts.length == 2) ? Integer.parseInt(parts[1])
+					: address.length * 8;
+
+				return new CidrBlock(address, prefix);
+
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException("Invalid CIDR block: " + cidr, e);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid CIDR block: " + cidr, e);
+			}
+		}
+
+		public static List<CidrBlock> parseList(String blocks) {
+
+			List<CidrBlock> result = new ArrayList<CidrBlock>();
+
+			for (String b : blocks.split(",")) {
+				if (b.trim().length() > 0)
+					result.add(parse(b));
+			}
+
+			return result;
+		}
+
+		public boolean matches(byte[] address) {
+
+			if (address.length != network.length)
+				return false;
+
+			int fullBytes = prefixLength / 8;
+
+			for (int i = 0; i < fullBytes; i++)
+				if (address[i] != network[i])
+					return false;
+
+			int remainingBits = prefixLength % 8;
+
+			if (remainingBits == 0)
+				return true;
+
+			int mask = (0xff << (8 - remainingBits)) & 0xff;
+			return (address[fullBytes] & mask) == (network[fullBytes] & mask);
+		}
+	}
+
+	private static class SourceState {
+
+		// All guarded by this
+		int openConnections = 0;
+		long windowStart = 0;
+		int windowConnections = 0;
+		boolean removed = false;
+	}
+
+	private final List<CidrBlock> allowed;
+	private final List<CidrBlock> denied;
+	private final int maxConnectionsPerSource;
+	private final int maxConnectionRatePerSource;
+	private final long handshakeCostInUsec;
+
+	private final ConcurrentMap<String, SourceState> sources = new ConcurrentHashMap<String, SourceState>();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejectedNotAllowed = new AtomicLong();
+	private final AtomicLong rejectedDenied = new AtomicLong();
+	private final AtomicLong rejectedConnectionCap = new AtomicLong();
+	private final AtomicLong rejectedRate = new AtomicLong();
+
+	/**
+	 * @param allowed
+	 *          the blocks connections are accepted from, all if empty
+	 * @param denied
+	 *          the blocks connections are rejected from
+	 * @param maxConnectionsPerSource
+	 *          the maximum number of open connections per source address, 0
+	 *          for no limit
+	 * @param maxConnectionRatePerSource
+	 *          the maximum number of connections per second per source
+	 *          address, 0 for no limit
+	 * @param handshakeCostInUsec
+	 *          the estimated CPU cost of a TLS handshake, used to report the
+	 *          CPU time saved by rejections
+	 */
+	public ConnectionFilter(List<CidrBlock> allowed, List<CidrBlock> denied,
+		int maxConnectionsPerSource, int maxConnectionRatePerSource,
+		long handshakeCostInUsec) {
+
+		this.allowed = Collections.unmodifiableList(allowed);
+		this.denied = Collections.unmodifiableList(denied);
+		this.maxConnectionsPerSource = maxConnectionsPerSource;
+		this.maxConnectionRatePerSource = maxConnectionRatePerSource;
+		this.handshakeCostInUsec = handshakeCostInUsec;
+	}
+
+	private boolean tracksSources() {
+
+		return maxConnectionsPerSource > 0 || maxConnectionRatePerSource > 0;
+	}
+
+	private static boolean matchesAny(List<CidrBlock> blocks, byte[] address) {
+
+		for (CidrBlock b : blocks)
+			if (b.matches(address))
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Checks a new connection. An admitted connection must be reported with
+	 * {@link #connectionClosed(String)} when it is closed.
+	 * 
+	 * @return whether the connection is admitted
+	 */
+	public boolean admit(InetAddress source) {
+
+		byte[] address = source.getAddress();
+
+		if (!allowed.isEmpty() && !matchesAny(allowed, address)) {
+			rejectedNotAllowed.incrementAndGet();
+			return false;
+		}
+
+		if (matchesAny(denied, address)) {
+			rejectedDenied.incrementAndGet();
+			return false;
+		}
+
+		if (tracksSources() && !admitSource(source.getHostAddress()))
+			return false;
+
+		if ((admitted.incrementAndGet() % SWEEP_INTERVAL) == 0)
+			sweep();
+
+		return true;
+	}
+
+	private boolean admitSource(String source) {
+
+		long now = System.currentTimeMillis();
+
+		while (true) {
+
+			SourceState state = sources.get(source);
+
+			if (state == null) {
+				state = new SourceState();
+				SourceState previous = sources.putIfAbsent(source, state);
+				if (previous != null)
+					state = previous;
+			}
+
+			synchronized (state) {
+
+				// Lost a race with the sweeper, start over with a new entry
+				if (state.removed)
+					continue;
+
+				if (now - state.windowStart >= RATE_WINDOW_IN_MSEC) {
+					state.windowStart = now;
+					state.windowConnections = 0;
+				}
+
+				state.windowConnections++;
+
+				if (maxConnectionRatePerSource > 0
+					&& state.windowConnections > maxConnectionRatePerSource) {
+					rejectedRate.incrementAndGet();
+					return false;
+				}
+
+				if (maxConnectionsPerSource > 0
+					&& state.openConnections >= maxConnectionsPerSource) {
+					rejectedConnectionCap.incrementAndGet();
+					return false;
+				}
+
+				state.openConnections++;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reports that an admitted connection from a source address was closed.
+	 */
+	public void connectionClosed(String source) {
+
+		if (!tracksSources() || source == null)
+			return;
+
+		SourceState state = sources.get(source);
+
+		if (state == null)
+			return;
+
+		synchronized (state) {
+			if (state.openConnections > 0)
+				state.openConnections--;
+		}
+	}
+
+	private void sweep() {
+
+		long now = System.currentTimeMillis();
+		Iterator<SourceState> it = sources.values().iterator();
+
+		while (it.hasNext()) {
+
+			SourceState state = it.next();
+
+			synchronized (state) {
+
+				if (state.openConnections == 0
+					&& now - state.windowStart >= RATE_WINDOW_IN_MSEC) {
+					state.removed = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "connection_filter";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		long rejected = rejectedNotAllowed.get() + rejectedDenied.get()
+			+ rejectedConnectionCap.get() + rejectedRate.get();
+
+		metrics.put("admitted", admitted.get());
+		metrics.put("rejected_not_allowed", rejectedNotAllowed.get());
+		metrics.put("rejected_denied", rejectedDenied.get());
+		metrics.put("rejected_connection_cap", rejectedConnectionCap.get());
+		metrics.put("rejected_rate", rejectedRate.get());
+		metrics.put("tracked_sources", sources.size());
+		metrics.put("estimated_handshake_cpu_saved_msec", rejected
+			* handshakeCostInUsec / 1000);
+
+		return metrics;
+	}
+}
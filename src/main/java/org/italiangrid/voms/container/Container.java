@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
@@ -22,23 +23,62 @@ import org.apache.commons.cli.ParseException;
 import org.eclipse.jetty.deploy.DeploymentManager;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.LocalConnector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.italiangrid.utils.https.JettyRunThread;
 import org.italiangrid.utils.https.SSLOptions;
 import org.italiangrid.utils.https.ServerFactory;
 import org.italiangrid.utils.https.impl.canl.CANLListener;
+import org.italiangrid.voms.container.capture.CaptureWriter;
+import org.italiangrid.voms.container.diagnostics.DiagnosticCommands;
+import org.italiangrid.voms.container.diagnostics.DiagnosticCommands.DiagnosticCommandException;
+import org.italiangrid.voms.container.diagnostics.VOEventLog;
+import org.italiangrid.voms.container.handlers.ClientIdentityHandler;
+import org.italiangrid.voms.container.handlers.CompressionHandler;
+import org.italiangrid.voms.container.handlers.ConcurrencyLimitHandler;
+import org.italiangrid.voms.container.handlers.HealthHandler;
+import org.italiangrid.voms.container.handlers.MicroCacheHandler;
+import org.italiangrid.voms.container.handlers.MicroCacheRule;
+import org.italiangrid.voms.container.handlers.OcspRevocationHandler;
+import org.italiangrid.voms.container.handlers.PriorityRule;
+import org.italiangrid.voms.container.handlers.PrioritySchedulingHandler;
+import org.italiangrid.voms.container.handlers.RequestCaptureHandler;
+import org.italiangrid.voms.container.handlers.RequestTrackingHandler;
+import org.italiangrid.voms.container.handlers.RequestWatchdogHandler;
+import org.italiangrid.voms.container.handlers.ResourceAccountingHandler;
+import org.italiangrid.voms.container.handlers.VOLogContextHandler;
+import org.italiangrid.voms.container.handlers.VORouterBinding;
+import org.italiangrid.voms.container.handlers.VORouterHandler;
+import org.italiangrid.voms.container.handlers.WarmupGateHandler;
+import org.italiangrid.voms.container.identity.ClientIdentityCache;
+import org.italiangrid.voms.container.listeners.GracefulShutdownListener;
 import org.italiangrid.voms.container.listeners.ServerListener;
+import org.italiangrid.voms.container.logging.AsyncLogAppender;
+import org.italiangrid.voms.container.metrics.MetricsRegistry;
+import org.italiangrid.voms.container.metrics.VOResourceAccounting;
+import org.italiangrid.voms.container.ocsp.OcspChecker;
+import org.italiangrid.voms.container.ocsp.TrustedIssuers;
+import org.italiangrid.voms.container.shard.ShardAssignment;
+import org.italiangrid.voms.container.shard.ShardBackendConnector;
+import org.italiangrid.voms.container.shard.ShardRouterHandler;
+import org.italiangrid.voms.status.VOStatusRegistry;
 import org.italiangrid.voms.util.CertificateValidatorBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ch.qos.logback.classic.AsyncAppender;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.joran.spi.JoranException;
 import eu.emi.security.authn.x509.X509CertChainValidatorExt;
 
@@ -50,6 +90,8 @@ public class Container {
 
 	public static final String CONF_FILE_NAME = "voms-admin-server.properties";
 
+	public static final String CONTROL_TOKEN_FILE_NAME = "container-control.token";
+
 	public static final String DEFAULT_WAR = "/usr/share/webapps/voms-admin.war";
 
 	public static final String DEFAULT_TMP_PREFIX = "/var/tmp";
@@ -57,12 +99,18 @@ public class Container {
 	
 	public static final String HTTP_CONNECTOR_NAME = "voms-http";
 	public static final String HTTPS_CONNECTOR_NAME = "voms-https";
+	public static final String WARMUP_CONNECTOR_NAME = "voms-warmup";
 	
 	public static final String HTTP_CONNECTOR_PORT = "8088";
 
+	public static final String CONTINUOUS_RECORDING_NAME = "voms-continuous";
+
 	private static final String ARG_WAR = "war";
 	private static final String ARG_CONFDIR = "confdir";
 	private static final String ARG_DEPLOYDIR = "deploydir";
+	private static final String ARG_SHARD = "shard";
+	private static final String ARG_ROUTER = "router";
+	private static final String ARG_HANDOVER = "handover";
 
 	private Options cliOptions;
 	private CommandLineParser parser = new GnuParser();
@@ -82,10 +130,24 @@ public class Container {
 	private String trustDir;
 	private long trustDirRefreshIntervalInMsec;
 
+	private int shardIndex = -1;
+	private boolean routerMode = false;
+	private ShardAssignment shardAssignment;
+
+	private boolean handover = false;
+	private VOMSSslConnector httpsConnector;
+	private Connector statusConnector;
+	private HandoverCoordinator handoverCoordinator;
+
 	private Server server;
 	private DeploymentManager deploymentManager;
+	private VOMSAppProvider provider;
 	private HandlerCollection handlers = new HandlerCollection();
 	private ContextHandlerCollection contexts = new ContextHandlerCollection();
+	private VORouterHandler router = new VORouterHandler();
+	private RequestTrackingHandler requestTracker = new RequestTrackingHandler();
+	private WarmupGateHandler warmupGate;
+	private X509CertChainValidatorExt validator;
 
 	protected SSLOptions getSSLOptions() {
 
@@ -142,17 +204,71 @@ public class Container {
 
 		deploymentManager = new DeploymentManager();
 		
-		VOMSAppProvider provider = new VOMSAppProvider();
+		provider = new VOMSAppProvider();
 		
 		provider.setConfigurationDir(confDir);
 		provider.setDeploymentDir(deployDir);
 		provider.setHostname(host);
 		provider.setPort(port);
 		provider.setWarFile(war);
+		provider.setTmpPrefix(getConfigurationProperty(ConfigurationProperty.TMP_DIR));
+
+		if (isShard()) {
+			provider.setShardAssignment(shardAssignment);
+			provider.setShardIndex(shardIndex);
+		}
 		
+		long gracefulShutdownTimeout = Long
+			.parseLong(getConfigurationProperty(ConfigurationProperty.GRACEFUL_SHUTDOWN_TIMEOUT));
+
+		provider.setDrainer(new VODrainer(requestTracker, TimeUnit.SECONDS
+			.toMillis(gracefulShutdownTimeout)));
+
+		int retryMaxAttempts = Integer
+			.parseInt(getConfigurationProperty(ConfigurationProperty.VO_START_RETRY_MAX_ATTEMPTS));
+
+		long retryInitialDelay = Long
+			.parseLong(getConfigurationProperty(ConfigurationProperty.VO_START_RETRY_INITIAL_DELAY));
+
+		long retryMaxDelay = Long
+			.parseLong(getConfigurationProperty(ConfigurationProperty.VO_START_RETRY_MAX_DELAY));
+
+		provider.setResourceAccountingEnabled(isResourceAccountingEnabled());
+
+		provider.setRetryScheduler(new VORetryScheduler(provider, retryMaxAttempts,
+			TimeUnit.SECONDS.toMillis(retryInitialDelay), TimeUnit.SECONDS
+				.toMillis(retryMaxDelay)));
+
+
+		VOUpgrader upgrader = new VOUpgrader(provider,
+			getIntConfigurationProperty(ConfigurationProperty.ROLLING_UPGRADE_BATCH_SIZE),
+			TimeUnit.SECONDS
+				.toMillis(getIntConfigurationProperty(ConfigurationProperty.ROLLING_UPGRADE_RETIRE_DELAY)));
+
+		int warScanInterval = getIntConfigurationProperty(ConfigurationProperty.ROLLING_UPGRADE_WAR_SCAN_INTERVAL);
+
+		if (warScanInterval > 0)
+			upgrader.watch(TimeUnit.SECONDS.toMillis(warScanInterval));
+
+		provider.setUpgrader(upgrader);
+		provider.setControlToken(getControlToken());
+		provider.setUpgradeEndpointEnabled(getBooleanConfigurationProperty(ConfigurationProperty.ROLLING_UPGRADE_ENDPOINT_ENABLED));
+		MetricsRegistry.INSTANCE.register(upgrader);
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.STARTUP_HISTORY_ENABLED)) {
+			VOStartupHistory startupHistory = new VOStartupHistory(requestTracker);
+			provider.setStartupHistory(startupHistory);
+			MetricsRegistry.INSTANCE.register(startupHistory);
+		}
+
+		provider.setStartupPriorities(VOStartupPlanner
+			.parsePriorities(getConfigurationProperty(ConfigurationProperty.STARTUP_PRIORITIES)));
+		provider.setStartupParallelism(getIntConfigurationProperty(ConfigurationProperty.STARTUP_PARALLELISM));
 
 		deploymentManager.addAppProvider(provider);
 		deploymentManager.setContexts(contexts);
+		deploymentManager.addLifeCycleBinding(new VORouterBinding(router));
+		provider.setRouter(router);
 
 	}
 
@@ -166,13 +282,226 @@ public class Container {
 		}
 		
 	}
+
+	/**
+	 * Replaces the TLS connector built by the server factory with a
+	 * {@link VOMSSslConnector} with the same settings. The port is shared with
+	 * a handover peer only when handovers are enabled.
+	 */
+	protected void replaceHTTPSConnector() {
+
+		for (Connector c : server.getConnectors()) {
+			if (HTTPS_CONNECTOR_NAME.equals(c.getName())) {
+				httpsConnector = VOMSSslConnector.copyOf(
+					(SslSelectChannelConnector) c, isHandoverEnabled());
+				server.removeConnector(c);
+				server.addConnector(httpsConnector);
+			}
+		}
+	}
+
+	/**
+	 * Screens the connections to the TLS port before the handshake, if any
+	 * filtering rule is configured.
+	 */
+	protected void configureConnectionFilter() {
+
+		List<ConnectionFilter.CidrBlock> allowed = ConnectionFilter.CidrBlock
+			.parseList(getConfigurationProperty(ConfigurationProperty.CONNECTION_FILTER_ALLOW));
+
+		List<ConnectionFilter.CidrBlock> denied = ConnectionFilter.CidrBlock
+			.parseList(getConfigurationProperty(ConfigurationProperty.CONNECTION_FILTER_DENY));
+
+		int maxConnectionsPerIP = getIntConfigurationProperty(ConfigurationProperty.CONNECTION_FILTER_MAX_CONNECTIONS_PER_IP);
+		int maxRatePerIP = getIntConfigurationProperty(ConfigurationProperty.CONNECTION_FILTER_MAX_RATE_PER_IP);
+
+		if (allowed.isEmpty() && denied.isEmpty() && maxConnectionsPerIP <= 0
+			&& maxRatePerIP <= 0)
+			return;
+
+		ConnectionFilter filter = new ConnectionFilter(allowed, denied,
+			maxConnectionsPerIP, maxRatePerIP,
+			getIntConfigurationProperty(ConfigurationProperty.CONNECTION_FILTER_HANDSHAKE_COST));
+
+		httpsConnector.setConnectionFilter(filter);
+		MetricsRegistry.INSTANCE.register(filter);
+	}
+
+	protected ControlToken getControlToken() {
+
+		String tokenFile = getConfigurationProperty(ConfigurationProperty.CONTROL_TOKEN_FILE);
+
+		if (tokenFile.trim().isEmpty())
+			return new ControlToken(new File(confDir, CONTROL_TOKEN_FILE_NAME));
+
+		return new ControlToken(new File(tokenFile.trim()));
+	}
+
+	/**
+	 * Sets up the handover endpoint, when handovers are enabled or when booting
+	 * as a successor. In the latter case the opening of the TLS port is deferred
+	 * to the handover, which starts once the server is up.
+	 */
+	protected void configureHandover() {
+
+		handoverCoordinator = new HandoverCoordinator(server, httpsConnector,
+			Integer.parseInt(statusPort), handover, getControlToken());
+
+		provider.setHandoverCoordinator(handoverCoordinator);
+		MetricsRegistry.INSTANCE.register(handoverCoordinator);
+
+		if (!handover)
+			return;
+
+		server.removeConnector(httpsConnector);
+
+		final long timeout = TimeUnit.SECONDS
+			.toMillis(getIntConfigurationProperty(ConfigurationProperty.HANDOVER_TIMEOUT));
+
+		server.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+
+			@Override
+			public void lifeCycleStarted(LifeCycle event) {
+
+				new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+
+						handoverCoordinator.takeOver(statusConnector, timeout);
+					}
+				}, "handover").start();
+			}
+		});
+	}
 	
+	private boolean isShard() {
+
+		return shardIndex >= 0;
+	}
+
+	private boolean isHandoverEnabled() {
+
+		return !routerMode
+			&& !isShard()
+			&& (handover || getBooleanConfigurationProperty(ConfigurationProperty.HANDOVER_ENABLED));
+	}
+
+	/**
+	 * Replaces the TLS connector of a shard with the loopback connector that
+	 * receives the requests forwarded by the router. The connector takes the
+	 * TLS connector name, so that the VO contexts are bound to it.
+	 */
+	protected void configureShardBackendConnector() {
+
+		for (Connector c : server.getConnectors()) {
+			if (HTTPS_CONNECTOR_NAME.equals(c.getName()))
+				server.removeConnector(c);
+		}
+
+		ShardBackendConnector conn = new ShardBackendConnector(
+			getIntConfigurationProperty(ConfigurationProperty.SHARD_BASE_PORT)
+				+ shardIndex, getConfigurationProperty(ConfigurationProperty.SHARD_SECRET));
+
+		conn.setName(HTTPS_CONNECTOR_NAME);
+		server.addConnector(conn);
+	}
+
+	protected void configureRouter() {
+
+		String secret = getConfigurationProperty(ConfigurationProperty.SHARD_SECRET)
+			.trim();
+
+		if (secret.length() == 0)
+			throw new IllegalArgumentException("A shard secret is required "
+				+ "in sharded mode");
+
+		ShardRouterHandler routerHandler = new ShardRouterHandler(
+			shardAssignment,
+			getIntConfigurationProperty(ConfigurationProperty.SHARD_BASE_PORT),
+			secret, HTTPS_CONNECTOR_NAME, getConfiguredVONames(), host, port);
+
+		MetricsRegistry.INSTANCE.register(routerHandler);
+
+		handlers.setHandlers(new Handler[] { routerHandler, new DefaultHandler() });
+		server.setHandler(handlers);
+	}
+
+	protected void configureWarmup() {
+
+		String requests = getConfigurationProperty(ConfigurationProperty.WARMUP_REQUESTS)
+			.trim();
+
+		if (requests.length() == 0)
+			return;
+
+		List<String> requestPaths = new ArrayList<String>();
+
+		for (String path : requests.split(",")) {
+			if (path.trim().length() > 0)
+				requestPaths.add(path.trim());
+		}
+
+		long timeout = Long
+			.parseLong(getConfigurationProperty(ConfigurationProperty.WARMUP_TIMEOUT));
+
+		LocalConnector conn = new LocalConnector();
+		conn.setName(WARMUP_CONNECTOR_NAME);
+		server.addConnector(conn);
+
+		provider.setWarmer(new VOWarmer(conn, requestPaths, TimeUnit.SECONDS
+			.toMillis(timeout)));
+		router.setStagingConnectorName(WARMUP_CONNECTOR_NAME);
+
+		warmupGate = new WarmupGateHandler(WARMUP_CONNECTOR_NAME);
+	}
+
+	protected void configureDiagnostics() {
+
+		VOStatusRegistry.INSTANCE.addListener(VOEventLog.INSTANCE);
+
+		if (!Boolean
+			.parseBoolean(getConfigurationProperty(ConfigurationProperty.DIAGNOSTICS_CONTINUOUS_RECORDING)))
+			return;
+
+		try {
+
+			DiagnosticCommands.startRecording(CONTINUOUS_RECORDING_NAME,
+				getConfigurationProperty(ConfigurationProperty.DIAGNOSTICS_RECORDING_MAX_AGE));
+
+			provider.setRecordingName(CONTINUOUS_RECORDING_NAME);
+			log.info("Continuous flight recording started.");
+
+		} catch (DiagnosticCommandException e) {
+			log.warn("Continuous flight recording not available: {}",
+				e.getMessage());
+		}
+	}
+
+	private boolean isResourceAccountingEnabled() {
+
+		return getBooleanConfigurationProperty(ConfigurationProperty.RESOURCE_ACCOUNTING);
+	}
+
+	private Handler wrap(HandlerWrapper wrapper, Handler handler) {
+
+		wrapper.setHandler(handler);
+		return wrapper;
+	}
+
 	protected void configureLocalHTTPConnector(){
 		SelectChannelConnector conn = new SelectChannelConnector();
 		conn.setHost("localhost");
-		conn.setPort(Integer.parseInt(statusPort));
+
+		// A successor moves to the standard port once the running container exits
+		if (handover)
+			conn.setPort(getIntConfigurationProperty(ConfigurationProperty.HANDOVER_STATUS_PORT));
+		else
+			conn.setPort(Integer.parseInt(statusPort));
+
 		conn.setName(HTTP_CONNECTOR_NAME);
 		server.addConnector(conn);
+		statusConnector = conn;
 	}
 	
 	
@@ -182,7 +511,7 @@ public class Container {
 
 		CANLListener l = new CANLListener();
 
-		X509CertChainValidatorExt validator = CertificateValidatorBuilder
+		validator = CertificateValidatorBuilder
 			.buildCertificateValidator(options.getTrustStoreDirectory(), l, l,
 				options.getTrustStoreRefreshIntervalInMsec());
 
@@ -196,24 +525,201 @@ public class Container {
 			getSSLOptions(), validator, maxConnections, maxRequestQueueSize);
 		
 		addNameToHTTPSConnector();
+		replaceHTTPSConnector();
+
+		if (isShard())
+			configureShardBackendConnector();
+		else
+			configureConnectionFilter();
+
 		configureLocalHTTPConnector();
 		
 		server.addLifeCycleListener(new ServerListener());
 
-		configureDeploymentManager();
-		
-		// Setup handlers structure
-		handlers.setHandlers(new Handler[] { contexts,
-				new DefaultHandler() });
+		if (routerMode) {
 
-		server.setHandler(handlers);
+			configureRouter();
+
+		} else {
+
+			configureDeploymentManager();
+			configureWarmup();
+			configureDiagnostics();
+
+			server.addLifeCycleListener(new GracefulShutdownListener(provider));
+
+			if (isHandoverEnabled())
+				configureHandover();
+
+			configureHandlers();
+			server.addBean(deploymentManager);
+		}
 
 		server.setDumpAfterStart(false);
 		server.setDumpBeforeStop(false);
-		server.setStopAtShutdown(true);
 
-		server.addBean(deploymentManager);
+	}
+
+	private Handler configureRequestCapture(Handler handler) {
+
+		String captureFileName = getConfigurationProperty(ConfigurationProperty.CAPTURE_FILE);
+		File captureFile = new File(captureFileName);
+
+		try {
+
+			if (captureFileName.trim().isEmpty())
+				captureFile = CaptureWriter.getDefaultFile(new File(
+					getConfigurationProperty(ConfigurationProperty.TMP_DIR)));
 
+			CaptureWriter writer = new CaptureWriter(captureFile,
+				getIntConfigurationProperty(ConfigurationProperty.CAPTURE_MAX_SIZE) * 1024L * 1024L);
+
+			RequestCaptureHandler capture = new RequestCaptureHandler(writer,
+				RequestCaptureHandler
+					.parseVONames(getConfigurationProperty(ConfigurationProperty.CAPTURE_VOS)),
+				getIntConfigurationProperty(ConfigurationProperty.CAPTURE_MAX_BODY_SIZE));
+
+			MetricsRegistry.INSTANCE.register(capture);
+			log.info("Capturing requests to {}", captureFile.getAbsolutePath());
+
+			return wrap(capture, handler);
+
+		} catch (IOException e) {
+			log.error("Error creating request capture {}, requests will not be "
+				+ "captured: {}", captureFile, e.getMessage());
+			return handler;
+		}
+	}
+
+	protected void configureHandlers() {
+
+		// Setup handlers structure, from the innermost to the outermost
+		Handler voHandler = wrap(router, contexts);
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.REQUEST_WATCHDOG_ENABLED)) {
+
+			RequestWatchdogHandler watchdog = new RequestWatchdogHandler(
+				TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.REQUEST_WATCHDOG_SLOW_THRESHOLD)),
+				TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.REQUEST_WATCHDOG_DEADLINE)),
+				TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.REQUEST_WATCHDOG_STACK_SAMPLE_INTERVAL)));
+
+			voHandler = wrap(watchdog, voHandler);
+			MetricsRegistry.INSTANCE.register(watchdog);
+		}
+
+		if (warmupGate != null)
+			voHandler = wrap(warmupGate, voHandler);
+
+		if (isResourceAccountingEnabled()) {
+			voHandler = wrap(new ResourceAccountingHandler(), voHandler);
+			MetricsRegistry.INSTANCE.register(VOResourceAccounting.INSTANCE);
+		}
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.CONCURRENCY_LIMIT_ENABLED)) {
+
+			ConcurrencyLimitHandler limiter = new ConcurrencyLimitHandler(
+				getIntConfigurationProperty(ConfigurationProperty.CONCURRENCY_LIMIT_INITIAL),
+				getIntConfigurationProperty(ConfigurationProperty.CONCURRENCY_LIMIT_MIN),
+				getIntConfigurationProperty(ConfigurationProperty.CONCURRENCY_LIMIT_MAX));
+
+			voHandler = wrap(limiter, voHandler);
+			MetricsRegistry.INSTANCE.register(limiter);
+		}
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.MICRO_CACHE_ENABLED)) {
+
+			MicroCacheHandler microCache = new MicroCacheHandler(
+				MicroCacheRule
+					.parseRules(getConfigurationProperty(ConfigurationProperty.MICRO_CACHE_RULES)),
+				Long.parseLong(getConfigurationProperty(ConfigurationProperty.MICRO_CACHE_MAX_SIZE)),
+				getIntConfigurationProperty(ConfigurationProperty.MICRO_CACHE_MAX_ENTRY_SIZE));
+
+			voHandler = wrap(microCache, voHandler);
+			MetricsRegistry.INSTANCE.register(microCache);
+		}
+
+		voHandler = wrap(requestTracker, voHandler);
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.CAPTURE_ENABLED))
+			voHandler = configureRequestCapture(voHandler);
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.OCSP_ENABLED)) {
+
+			OcspChecker ocspChecker = new OcspChecker(
+				getConfigurationProperty(ConfigurationProperty.OCSP_RESPONDER_URL),
+				(int) TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.OCSP_TIMEOUT)),
+				TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.OCSP_DEFAULT_CACHE_TTL)),
+				TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.OCSP_ERROR_CACHE_TTL)),
+				getIntConfigurationProperty(ConfigurationProperty.OCSP_MAX_CACHE_ENTRIES));
+
+			voHandler = wrap(new OcspRevocationHandler(ocspChecker,
+				new TrustedIssuers(validator, trustDirRefreshIntervalInMsec),
+				getBooleanConfigurationProperty(ConfigurationProperty.OCSP_SOFT_FAIL)),
+				voHandler);
+
+			MetricsRegistry.INSTANCE.register(ocspChecker);
+		}
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.PRIORITY_ENABLED)) {
+
+			int maxActive = getIntConfigurationProperty(ConfigurationProperty.PRIORITY_MAX_ACTIVE);
+
+			// Leave threads to accept and queue the requests waiting for a slot
+			if (maxActive <= 0)
+				maxActive = Math.max(1,
+					getIntConfigurationProperty(ConfigurationProperty.MAX_CONNECTIONS) * 3 / 4);
+
+			PrioritySchedulingHandler scheduler = new PrioritySchedulingHandler(
+				PrioritySchedulingHandler
+					.parseClasses(getConfigurationProperty(ConfigurationProperty.PRIORITY_CLASSES)),
+				getConfigurationProperty(ConfigurationProperty.PRIORITY_DEFAULT_CLASS),
+				PriorityRule
+					.parseRules(getConfigurationProperty(ConfigurationProperty.PRIORITY_RULES)),
+				maxActive,
+				getIntConfigurationProperty(ConfigurationProperty.PRIORITY_MAX_QUEUE_SIZE),
+				TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.PRIORITY_MAX_WAIT)));
+
+			voHandler = wrap(scheduler, voHandler);
+			MetricsRegistry.INSTANCE.register(scheduler);
+		}
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.CLIENT_IDENTITY_CACHE_ENABLED)) {
+
+			// Outside the scheduler, which classifies requests by client DN
+			ClientIdentityCache identityCache = new ClientIdentityCache(
+				TimeUnit.SECONDS.toMillis(getIntConfigurationProperty(ConfigurationProperty.CLIENT_IDENTITY_CACHE_TTL)),
+				getIntConfigurationProperty(ConfigurationProperty.CLIENT_IDENTITY_MAX_CACHE_ENTRIES));
+
+			voHandler = wrap(new ClientIdentityHandler(identityCache), voHandler);
+			MetricsRegistry.INSTANCE.register(identityCache);
+		}
+
+		voHandler = wrap(new VOLogContextHandler(), voHandler);
+
+		int minActivePercent = Integer
+			.parseInt(getConfigurationProperty(ConfigurationProperty.HEALTH_READY_MIN_ACTIVE_PERCENT));
+
+		voHandler = wrap(new HealthHandler(HTTP_CONNECTOR_NAME, minActivePercent),
+			voHandler);
+
+		handlers.setHandlers(new Handler[] { voHandler,
+				new DefaultHandler() });
+
+		if (getBooleanConfigurationProperty(ConfigurationProperty.COMPRESSION_ENABLED)) {
+
+			// Outermost, so that status responses are compressed too
+			CompressionHandler compression = new CompressionHandler(
+				getIntConfigurationProperty(ConfigurationProperty.COMPRESSION_MIN_SIZE),
+				CompressionHandler
+					.parseMimeTypes(getConfigurationProperty(ConfigurationProperty.COMPRESSION_MIME_TYPES)),
+				getIntConfigurationProperty(ConfigurationProperty.COMPRESSION_LEVEL));
+
+			MetricsRegistry.INSTANCE.register(compression);
+			server.setHandler(wrap(compression, handlers));
+			return;
+		}
+
+		server.setHandler(handlers);
 	}
 
 	private void start() {
@@ -234,6 +740,15 @@ public class Container {
 		cliOptions.addOption(ARG_CONFDIR, true,
 			"The configuration directory where " + "VOMS configuration is stored.");
 
+		cliOptions.addOption(ARG_SHARD, true,
+			"Run as the shard with the given index, hosting a subset of the VOs.");
+
+		cliOptions.addOption(ARG_ROUTER, false,
+			"Run as the front router of a sharded deployment.");
+
+		cliOptions.addOption(ARG_HANDOVER, false,
+			"Boot and warm up the VOs, then take over from the running server.");
+
 	}
 
 	private void failAndExit(String errorMessage, Throwable t) {
@@ -272,6 +787,21 @@ public class Container {
 				confDir = sysconfigProperties
 					.getProperty(SysconfigUtil.SYSCONFIG_CONF_DIR);
 
+			if (cmdLine.hasOption(ARG_SHARD))
+				shardIndex = Integer.parseInt(cmdLine.getOptionValue(ARG_SHARD));
+
+			routerMode = cmdLine.hasOption(ARG_ROUTER);
+
+			if (routerMode && isShard())
+				failAndExit("The " + ARG_SHARD + " and " + ARG_ROUTER
+					+ " options are mutually exclusive", null);
+
+			handover = cmdLine.hasOption(ARG_HANDOVER);
+
+			if (handover && (routerMode || isShard()))
+				failAndExit("The " + ARG_HANDOVER
+					+ " option is not supported in sharded mode", null);
+
 		} catch (ParseException e) {
 
 			failAndExit("Error parsing command line arguments", e);
@@ -285,6 +815,16 @@ public class Container {
 			prop.getDefaultValue());
 	}
 
+	private int getIntConfigurationProperty(ConfigurationProperty prop) {
+
+		return Integer.parseInt(getConfigurationProperty(prop).trim());
+	}
+
+	private boolean getBooleanConfigurationProperty(ConfigurationProperty prop) {
+
+		return Boolean.parseBoolean(getConfigurationProperty(prop).trim());
+	}
+
 	private void loadServerConfiguration(String configurationDir) {
 
 		try {
@@ -335,6 +875,22 @@ public class Container {
 		deployDir = String.format("%s/%s", SysconfigUtil.getInstallationPrefix(),
 			DEFAULT_DEPLOY_DIR).replaceAll("/+", "/");
 
+		if (isShard() || routerMode) {
+
+			shardAssignment = ShardAssignment.parse(
+				getIntConfigurationProperty(ConfigurationProperty.SHARD_COUNT),
+				getConfigurationProperty(ConfigurationProperty.SHARD_ASSIGNMENTS));
+
+			if (shardIndex >= shardAssignment.getShardCount())
+				throw new IllegalArgumentException("Invalid shard index: "
+					+ shardIndex);
+		}
+
+		// Shards on the same host need distinct status ports
+		if (isShard())
+			statusPort = Integer.toString(getIntConfigurationProperty(ConfigurationProperty.SHARD_STATUS_BASE_PORT)
+				+ shardIndex);
+
 	}
 
 	// Without this trick JSP page rendering on VOMS admin does not work
@@ -381,6 +937,17 @@ public class Container {
 
 	public Container(String[] args) {
 
+		// Stops the server and then the logging system on any exit, in this
+		// order, so that no log event is lost
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				shutdown();
+			}
+		}, "container-shutdown"));
+
 		// Leave this here and first
 		forceTaglibsLoading();
 
@@ -413,8 +980,20 @@ public class Container {
 	private void logStartupConfiguration() {
 
 		log.info("VOMS Admin version {}.", Version.version());
+		if (isShard())
+			log.info("Running as shard {} of {}.", shardIndex,
+				shardAssignment.getShardCount());
+		else if (routerMode)
+			log.info("Running as router for {} shards.",
+				shardAssignment.getShardCount());
+
 		log.info("Binding on: {}:{}", host, port);
 		log.info("HTTP status handler listening on: {}", statusPort);
+
+		if (handover)
+			log.info("Taking over from the running server, status handler "
+				+ "on port {} until then.",
+				getConfigurationProperty(ConfigurationProperty.HANDOVER_STATUS_PORT));
 		log.info("Service credentials: {}, {}", certFile, keyFile);
 		log.info("Trust anchors directory: {}", trustDir);
 		log.info("Trust anchors directory refresh interval (in minutes): {}",
@@ -429,6 +1008,15 @@ public class Container {
 		log.info("Max request queue size: {}",
 			getConfigurationProperty(ConfigurationProperty.MAX_REQUEST_QUEUE_SIZE));
 
+		log.info("Graceful shutdown timeout (in seconds): {}",
+			getConfigurationProperty(ConfigurationProperty.GRACEFUL_SHUTDOWN_TIMEOUT));
+
+		log.info("Max # of VO start retries: {}",
+			getConfigurationProperty(ConfigurationProperty.VO_START_RETRY_MAX_ATTEMPTS));
+
+		log.info("VO warm-up requests: {}",
+			getConfigurationProperty(ConfigurationProperty.WARMUP_REQUESTS));
+
 	}
 
 	private void configureLogging() {
@@ -438,13 +1026,15 @@ public class Container {
 
 		File f = new File(loggingConf);
 
+		LoggerContext lc = (LoggerContext) LoggerFactory.getILoggerFactory();
+
 		if (!f.exists() || !f.canRead()) {
 			log.error("Error loading logging configuration: "
 				+ "{} does not exist or is not readable.");
+			checkAsyncLogging(lc);
 			return;
 		}
 
-		LoggerContext lc = (LoggerContext) LoggerFactory.getILoggerFactory();
 		JoranConfigurator configurator = new JoranConfigurator();
 
 		configurator.setContext(lc);
@@ -458,6 +1048,38 @@ public class Container {
 			failAndExit("Error setting up the logging system", e);
 
 		}
+
+		checkAsyncLogging(lc);
+	}
+
+	private void checkAsyncLogging(LoggerContext lc) {
+
+		Iterator<Appender<ILoggingEvent>> it = lc.getLogger(
+			Logger.ROOT_LOGGER_NAME).iteratorForAppenders();
+
+		while (it.hasNext())
+			if (it.next() instanceof AsyncAppender)
+				return;
+
+		// Configurations written before the asynchronous pipeline existed log
+		// synchronously from the request threads. They are left untouched.
+		log.warn("The root logger appenders log synchronously, consider "
+			+ "attaching them to a {}.", AsyncLogAppender.class.getName());
+	}
+
+	private void shutdown() {
+
+		if (server != null && server.isStarted()) {
+			try {
+				server.stop();
+			} catch (Exception e) {
+				log.error("Error stopping voms-admin server: {}", e.getMessage(), e);
+			}
+		}
+
+		// Flushes the asynchronous appenders, which would lose the queued events
+		// when the JVM exits
+		((LoggerContext) LoggerFactory.getILoggerFactory()).stop();
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,112 @@
+package org.italiangrid.voms.container;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The secret that authenticates requests to the container control endpoints,
+ * like upgrades and handovers. It is read from a file that must belong to the
+ * user running the container and must not be accessible to other users, so
+ * that only that user, and root, can use the endpoints.
+ * 
+ * Clients send the token in an <code>Authorization: Bearer</code> header.
+ */
+public class ControlToken {
+
+	public static final String AUTHORIZATION_HEADER = "Authorization";
+	public static final String BEARER_PREFIX = "Bearer ";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Set<PosixFilePermission> FORBIDDEN_PERMISSIONS = EnumSet
+		.of(PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE,
+			PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_READ,
+			PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE);
+
+	private final File tokenFile;
+
+	public ControlToken(File tokenFile) {
+
+		this.tokenFile = tokenFile;
+	}
+
+	public File getTokenFile() {
+
+		return tokenFile;
+	}
+
+	/**
+	 * Reads the token, checking the token file ownership and permissions. The
+	 * file is read each time, so that the token can be rotated without
+	 * restarting the container.
+	 * 
+	 * @throws IOException
+	 *           if the file cannot be read, is not private to the container
+	 *           user or is empty
+	 */
+	public String read() throws IOException {
+
+		Path path = tokenFile.toPath();
+
+		if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+			throw new IOException("Control token file is not a regular file: "
+				+ tokenFile);
+
+		String owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+
+		if (!owner.equals(System.getProperty("user.name")))
+			throw new IOException("Control token file " + tokenFile
+				+ " is owned by " + owner + ", not by the container user");
+
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path,
+			LinkOption.NOFOLLOW_LINKS);
+		permissions.retainAll(FORBIDDEN_PERMISSIONS);
+
+		if (!permissions.isEmpty())
+			throw new IOException("Control token file " + tokenFile
+				+ " is accessible to other users");
+
+		String token = new String(Files.readAllBytes(path), UTF8).trim();
+
+		if (token.isEmpty())
+			throw new IOException("Control token file is empty: " + tokenFile);
+
+		return token;
+	}
+
+	/**
+	 * Checks, in constant time, the value of an <code>Authorization</code>
+	 * header against the token.
+	 * 
+	 * @return <code>false</code> if the header is missing or wrong
+	 * @throws IOException
+	 *           if the token cannot be read
+	 */
+	public boolean authorizes(String authorizationHeader) throws IOException {
+
+		String token = read();
+
+		if (authorizationHeader == null
+			|| !authorizationHeader.startsWith(BEARER_PREFIX))
+			return false;
+
+		return MessageDigest.isEqual(token.getBytes(UTF8), authorizationHeader
+			.substring(BEARER_PREFIX.length()).trim().getBytes(UTF8));
+	}
+
+	/**
+	 * @return the <code>Authorization</code> header value for the token
+	 */
+	public String authorizationHeader() throws IOException {
+
+		return BEARER_PREFIX + read();
+	}
+}
@@ -0,0 +1,338 @@
+package org.italiangrid.voms.container;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the service over from a running container to a successor, so that
+ * the JVM can be restarted without taking the VOs down.
+ * 
+ * The successor boots with its TLS connector closed and its status connector
+ * on a temporary port, and waits for its VOs to start and warm up. It then
+ * opens the TLS port, alongside the running container if
+ * <code>SO_REUSEPORT</code> is available, and asks the running container to
+ * release it through its status connector. The running container closes its
+ * TLS listener, drains its VOs and exits, after which the successor moves its
+ * status connector to the standard port. Both sides report the handover
+ * state on <code>/handover</code> and <code>/metrics/handover</code>.
+ * 
+ * The release request is authenticated with the container control token,
+ * which both containers read from the same file.
+ */
+public class HandoverCoordinator implements MetricsSource {
+
+	public static final Logger log = LoggerFactory.getLogger("Handover");
+
+	public static final String RELEASE_PATH = "/handover/release";
+
+	public static final long POLL_INTERVAL_IN_MSEC = 500;
+	public static final long BIND_RETRY_INTERVAL_IN_MSEC = 50;
+
+	/**
+	 * Leaves time to answer the release request before stopping.
+	 */
+	public static final long RELEASE_STOP_DELAY_IN_MSEC = TimeUnit.SECONDS
+		.toMillis(1);
+
+	public enum HandoverState {
+		SERVING, WARMING_UP, TAKING_OVER, COMPLETED, FAILED, RELEASED;
+
+		@Override
+		public String toString() {
+
+			return name().toLowerCase();
+		}
+	}
+
+	private final Server server;
+	private final VOMSSslConnector httpsConnector;
+	private final int statusPort;
+	private final ControlToken controlToken;
+
+	// Guarded by this
+	private HandoverState state = HandoverState.SERVING;
+	private boolean successor;
+	private long startTime;
+	private long endTime;
+	private boolean sharedPort;
+	private String error;
+
+	/**
+	 * @param server
+	 *          the container server
+	 * @param httpsConnector
+	 *          the container TLS connector
+	 * @param statusPort
+	 *          the standard port of the status connector
+	 * @param successor
+	 *          whether the container boots to take over from a running one
+	 * @param controlToken
+	 *          the token authenticating the release request
+	 */
+	public HandoverCoordinator(Server server, VOMSSslConnector httpsConnector,
+		int statusPort, boolean successor, ControlToken controlToken) {
+
+		this.server = server;
+		this.httpsConnector = httpsConnector;
+		this.statusPort = statusPort;
+		this.successor = successor;
+		this.controlToken = controlToken;
+
+		if (successor)
+			state = HandoverState.WARMING_UP;
+	}
+
+	private synchronized void setState(HandoverState state) {
+
+		log.info("Handover {}.", state);
+		this.state = state;
+
+		if (HandoverState.COMPLETED.equals(state)
+			|| HandoverState.FAILED.equals(state))
+			endTime = System.currentTimeMillis();
+	}
+
+	public synchronized HandoverState getState() {
+
+		return state;
+	}
+
+	public ControlToken getControlToken() {
+
+		return controlToken;
+	}
+
+	/**
+	 * Called on the running container when a successor is ready: closes the
+	 * TLS listener, then stops the server, draining the VOs, and exits.
+	 * 
+	 * @return <code>false</code> if the container is not serving
+	 */
+	public synchronized boolean release() {
+
+		if (!HandoverState.SERVING.equals(state)
+			&& !HandoverState.COMPLETED.equals(state))
+			return false;
+
+		startTime = System.currentTimeMillis();
+		setState(HandoverState.RELEASED);
+
+		try {
+
+			httpsConnector.close();
+
+		} catch (IOException e) {
+			log.warn("Error closing TLS listener: {}", e.getMessage());
+		}
+
+		Thread stopper = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					Thread.sleep(RELEASE_STOP_DELAY_IN_MSEC);
+					server.stop();
+
+				} catch (Exception e) {
+					log.error("Error stopping server after handover: {}",
+						e.getMessage(), e);
+				}
+
+				log.info("Handover complete, exiting.");
+				System.exit(0);
+			}
+		}, "handover-release");
+
+		stopper.start();
+		return true;
+	}
+
+	/**
+	 * Called on the successor once its server has started: waits for the VOs,
+	 * takes over the TLS port from the running container and moves the status
+	 * connector to the standard port.
+	 * 
+	 * @param temporaryStatusConnector
+	 *          the status connector used while booting
+	 * @param timeoutInMsec
+	 *          the maximum duration of the handover
+	 */
+	public void takeOver(Connector temporaryStatusConnector, long timeoutInMsec) {
+
+		long deadline = System.currentTimeMillis() + timeoutInMsec;
+
+		synchronized (this) {
+			startTime = System.currentTimeMillis();
+			sharedPort = httpsConnector.isReusePort();
+		}
+
+		waitForVOs(deadline);
+
+		setState(HandoverState.TAKING_OVER);
+
+		boolean released = false;
+
+		try {
+
+			if (sharedPort)
+				openWithRetry(httpsConnector, deadline);
+
+			if (!requestRelease())
+				throw new IOException("Running container refused to release");
+
+			released = true;
+
+			if (!sharedPort)
+				openWithRetry(httpsConnector, deadline);
+
+			SelectChannelConnector statusConnector = new SelectChannelConnector();
+			statusConnector.setHost("localhost");
+			statusConnector.setPort(statusPort);
+			statusConnector.setName(Container.HTTP_CONNECTOR_NAME);
+
+			// The running container holds the port until it exits
+			openWithRetry(statusConnector, deadline);
+
+			temporaryStatusConnector.stop();
+			server.removeConnector(temporaryStatusConnector);
+
+			setState(HandoverState.COMPLETED);
+
+		} catch (Exception e) {
+
+			synchronized (this) {
+				error = e.getMessage();
+			}
+
+			log.error("Handover failed: {}", e.getMessage());
+			setState(HandoverState.FAILED);
+
+			// Leave the running container in charge
+			if (!released && httpsConnector.isStarted()) {
+				try {
+					httpsConnector.stop();
+					server.removeConnector(httpsConnector);
+				} catch (Exception se) {
+					log.warn("Error closing TLS connector: {}", se.getMessage());
+				}
+			}
+		}
+	}
+
+	private void waitForVOs(long deadline) {
+
+		VOStatusRegistry registry = VOStatusRegistry.INSTANCE;
+
+		try {
+
+			while (System.currentTimeMillis() < deadline
+				&& registry.countVOs(VOState.STARTING)
+					+ registry.countVOs(VOState.WARMING_UP) > 0)
+				Thread.sleep(POLL_INTERVAL_IN_MSEC);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		log.info("{} of {} VOs active before taking over.",
+			registry.countVOs(VOState.ACTIVE), registry.countDeployedVOs());
+	}
+
+	private void openWithRetry(Connector connector, long deadline)
+		throws Exception {
+
+		server.addConnector(connector);
+
+		while (true) {
+
+			try {
+
+				connector.open();
+				break;
+
+			} catch (IOException e) {
+
+				if (System.currentTimeMillis() > deadline) {
+					server.removeConnector(connector);
+					throw new IOException("Could not bind " + connector.getName()
+						+ " on port " + connector.getPort() + ": " + e.getMessage(), e);
+				}
+
+				Thread.sleep(BIND_RETRY_INTERVAL_IN_MSEC);
+			}
+		}
+
+		connector.start();
+	}
+
+	/**
+	 * Asks the running container to release the TLS port.
+	 * 
+	 * @return <code>true</code> if the container released the port or if no
+	 *         container is running
+	 */
+	private boolean requestRelease() throws IOException {
+
+		HttpURLConnection conn = (HttpURLConnection) new URL("http", "localhost",
+			statusPort, RELEASE_PATH).openConnection();
+
+		try {
+
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty(ControlToken.AUTHORIZATION_HEADER,
+				controlToken.authorizationHeader());
+			conn.setConnectTimeout((int) POLL_INTERVAL_IN_MSEC * 10);
+			conn.setReadTimeout((int) POLL_INTERVAL_IN_MSEC * 10);
+
+			return conn.getResponseCode() == HttpURLConnection.HTTP_OK;
+
+		} catch (ConnectException e) {
+			log.info("No running container found, nothing to take over.");
+			return true;
+
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "handover";
+	}
+
+	@Override
+	public synchronized Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		metrics.put("role", successor ? "successor" : "running");
+		metrics.put("state", state.toString());
+		metrics.put("reuse_port", httpsConnector.isReusePort());
+
+		if (startTime > 0)
+			metrics.put("elapsed_msec",
+				(endTime > 0 ? endTime : System.currentTimeMillis()) - startTime);
+
+		if (error != null)
+			metrics.put("error", error);
+
+		return metrics;
+	}
+}
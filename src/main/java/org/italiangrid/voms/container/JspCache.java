@@ -0,0 +1,292 @@
+package org.italiangrid.voms.container;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of the JSP classes compiled for a given version of the
+ * VOMS Admin web archive, shared by all VOs.
+ * 
+ * Each VO compiles JSPs in its own scratch directory, which is seeded from the
+ * cache before the VO starts. Compiled classes are published back to the cache
+ * when the VO stops and periodically while it runs, so concurrent compilations
+ * never write to the shared directory. The cache is keyed by the WAR checksum,
+ * so a new WAR starts from an empty cache.
+ * 
+ * The cache lives in a hidden directory, which no VO temp directory can be
+ * named after. Cleanup only removes the cache entries and temp directories
+ * prepared by this instance, since the same directories may be in use by a
+ * handover successor or another container sharing the temp prefix.
+ */
+public class JspCache {
+
+	public static final Logger log = LoggerFactory.getLogger(JspCache.class);
+
+	public static final String CACHE_DIR_NAME = ".jsp-cache";
+	public static final String VO_SCRATCH_DIR_NAME = "jsp";
+	public static final String CHECKSUM_FILE_NAME = ".war-checksum";
+	public static final String OVERRIDE_DESCRIPTOR_NAME = "jsp-override-web.xml";
+
+	/**
+	 * Suffix of the alternate temp directory used by a VO while a new version
+	 * runs side by side with the current one.
+	 */
+	public static final String UPGRADE_TMP_DIR_SUFFIX = ".upgrade";
+
+	/**
+	 * Compiled classes younger than this are not published from a running VO,
+	 * as Jasper could still be writing them.
+	 */
+	public static final long MIN_PUBLISH_AGE_IN_MSEC = 60000;
+
+	private static final String OVERRIDE_DESCRIPTOR_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		+ "<web-app xmlns=\"http://java.sun.com/xml/ns/javaee\" version=\"3.0\">\n"
+		+ "  <servlet>\n"
+		+ "    <servlet-name>jsp</servlet-name>\n"
+		+ "    <init-param>\n"
+		+ "      <param-name>scratchdir</param-name>\n"
+		+ "      <param-value>%s</param-value>\n"
+		+ "    </init-param>\n"
+		+ "  </servlet>\n"
+		+ "</web-app>\n";
+
+	private final File baseDir;
+	private File war;
+
+	private String checksum;
+	private long warLastModified;
+	private long warLength;
+
+	private final Set<String> usedChecksums = new HashSet<String>();
+	private final Set<File> preparedTmpDirs = Collections
+		.synchronizedSet(new HashSet<File>());
+
+	/**
+	 * @param baseDir
+	 *          the directory holding the VO temp directories
+	 * @param war
+	 *          the web archive used by the VOs
+	 */
+	public JspCache(File baseDir, File war) {
+
+		this.baseDir = baseDir;
+		this.war = war;
+	}
+
+	/**
+	 * Switches the cache to a new web archive.
+	 */
+	public synchronized void setWar(File war) {
+
+		this.war = war;
+		checksum = null;
+	}
+
+	public synchronized String getChecksum() throws IOException {
+
+		if (checksum == null || war.lastModified() != warLastModified
+			|| war.length() != warLength) {
+
+			warLastModified = war.lastModified();
+			warLength = war.length();
+			checksum = WarChecksum.compute(war);
+			usedChecksums.add(checksum);
+
+			log.debug("Web archive {} checksum: {}", war.getAbsolutePath(), checksum);
+		}
+
+		return checksum;
+	}
+
+	private File getCacheRoot() {
+
+		return new File(baseDir, CACHE_DIR_NAME);
+	}
+
+	private File getCacheDir() throws IOException {
+
+		return new File(getCacheRoot(), getChecksum());
+	}
+
+	/**
+	 * Prepares the temp directory of a VO before its context is started. The
+	 * directory is wiped if it was populated from a different web archive.
+	 * 
+	 * @return the path of the override descriptor that points the JSP servlet
+	 *         to the VO scratch directory
+	 */
+	public String prepare(String voName, File voTmpDir) throws IOException {
+
+		String currentChecksum = getChecksum();
+		File checksumFile = new File(voTmpDir, CHECKSUM_FILE_NAME);
+
+		String previousChecksum = null;
+
+		if (checksumFile.exists())
+			previousChecksum = FileUtils.readFileToString(checksumFile).trim();
+
+		if (!currentChecksum.equals(previousChecksum)) {
+
+			if (previousChecksum != null)
+				log.info("Web archive changed, cleaning temp directory for VO {}.",
+					voName);
+
+			FileUtils.cleanDirectory(voTmpDir);
+			FileUtils.writeStringToFile(checksumFile, currentChecksum);
+		}
+
+		preparedTmpDirs.add(voTmpDir);
+
+		File scratchDir = new File(voTmpDir, VO_SCRATCH_DIR_NAME);
+		scratchDir.mkdirs();
+
+		File cacheDir = getCacheDir();
+
+		if (cacheDir.isDirectory())
+			copyNewer(cacheDir, scratchDir, 0);
+
+		File descriptor = new File(voTmpDir, OVERRIDE_DESCRIPTOR_NAME);
+		FileUtils.writeStringToFile(descriptor,
+			String.format(OVERRIDE_DESCRIPTOR_TEMPLATE, scratchDir.getAbsolutePath()));
+
+		return descriptor.getAbsolutePath();
+	}
+
+	/**
+	 * Publishes the JSP classes compiled by a VO to the shared cache.
+	 * 
+	 * @param minAgeInMsec
+	 *          files modified more recently than this are skipped
+	 */
+	public void publish(File voTmpDir, long minAgeInMsec) {
+
+		File scratchDir = new File(voTmpDir, VO_SCRATCH_DIR_NAME);
+
+		if (!scratchDir.isDirectory())
+			return;
+
+		try {
+
+			copyNewer(scratchDir, getCacheDir(), minAgeInMsec);
+
+		} catch (IOException e) {
+			log.warn("Error publishing compiled JSPs from {}: {}",
+				scratchDir.getAbsolutePath(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Copies the files missing or older in the target directory. Each file is
+	 * first copied to a temporary name and then renamed, so that readers never
+	 * see partially written files.
+	 */
+	private void copyNewer(File sourceDir, File targetDir, long minAgeInMsec)
+		throws IOException {
+
+		String sourcePath = sourceDir.getAbsolutePath();
+		long maxLastModified = System.currentTimeMillis() - minAgeInMsec;
+
+		for (File source : FileUtils.listFiles(sourceDir, null, true)) {
+
+			if (source.lastModified() > maxLastModified)
+				continue;
+
+			File target = new File(targetDir, source.getAbsolutePath().substring(
+				sourcePath.length()));
+
+			if (target.exists() && target.lastModified() >= source.lastModified())
+				continue;
+
+			File tmp = new File(target.getParentFile(), "." + target.getName()
+				+ ".tmp");
+
+			FileUtils.copyFile(source, tmp, true);
+
+			if (!tmp.renameTo(target)) {
+				FileUtils.deleteQuietly(tmp);
+				log.debug("Could not rename {} to {}", tmp, target);
+			}
+		}
+	}
+
+	/**
+	 * Publishes compiled classes from the running VOs and removes the cache
+	 * entries for other web archives, the temp directories of VOs no longer
+	 * configured and the upgrade temp directories no longer in use. Only entries
+	 * created by this instance are removed.
+	 * 
+	 * @param activeTmpDirs
+	 *          the temp directories of the running VOs
+	 */
+	public void cleanup(Collection<String> configuredVOs,
+		Collection<File> activeTmpDirs) {
+
+		for (File voTmpDir : activeTmpDirs)
+			publish(voTmpDir, MIN_PUBLISH_AGE_IN_MSEC);
+
+		try {
+
+			for (String staleChecksum : getStaleChecksums()) {
+
+				File d = new File(getCacheRoot(), staleChecksum);
+				log.info("Removing stale JSP cache {}.", d.getAbsolutePath());
+				FileUtils.deleteQuietly(d);
+			}
+
+		} catch (IOException e) {
+			log.warn("Error computing web archive checksum: {}", e.getMessage());
+		}
+
+		List<File> voDirs;
+
+		synchronized (preparedTmpDirs) {
+			voDirs = new ArrayList<File>(preparedTmpDirs);
+		}
+
+		for (File d : voDirs) {
+
+			boolean upgradeDir = d.getName().endsWith(UPGRADE_TMP_DIR_SUFFIX);
+			String voName = upgradeDir ? d.getName().substring(0,
+				d.getName().length() - UPGRADE_TMP_DIR_SUFFIX.length()) : d.getName();
+
+			if (!configuredVOs.contains(voName)) {
+				log.info("Removing temp directory of unconfigured VO {}.", voName);
+				preparedTmpDirs.remove(d);
+				FileUtils.deleteQuietly(d);
+
+			} else if (upgradeDir && !activeTmpDirs.contains(d)) {
+				log.info("Removing unused upgrade temp directory {}.",
+					d.getAbsolutePath());
+				preparedTmpDirs.remove(d);
+				FileUtils.deleteQuietly(d);
+			}
+		}
+	}
+
+	/**
+	 * @return the checksums of the web archives previously used by this
+	 *         instance, which are forgotten
+	 */
+	private synchronized List<String> getStaleChecksums() throws IOException {
+
+		String currentChecksum = getChecksum();
+		List<String> stale = new ArrayList<String>();
+
+		for (String c : usedChecksums)
+			if (!c.equals(currentChecksum))
+				stale.add(c);
+
+		usedChecksums.removeAll(stale);
+		return stale;
+	}
+}
@@ -0,0 +1,35 @@
+package org.italiangrid.voms.container;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.webapp.WebAppClassLoader;
+import org.italiangrid.voms.container.metrics.VOResourceAccounting;
+
+/**
+ * A VO webapp classloader that counts the classes it defines.
+ */
+public class VOClassLoader extends WebAppClassLoader implements
+	VOResourceAccounting.ClassCounter {
+
+	private final AtomicInteger loadedClasses = new AtomicInteger();
+
+	public VOClassLoader(Context context) throws IOException {
+
+		super(context);
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+
+		Class<?> clazz = super.findClass(name);
+		loadedClasses.incrementAndGet();
+		return clazz;
+	}
+
+	@Override
+	public int getLoadedClassCount() {
+
+		return loadedClasses.get();
+	}
+}
@@ -0,0 +1,184 @@
+package org.italiangrid.voms.container;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.italiangrid.voms.container.handlers.RequestTrackingHandler;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gracefully stops VO contexts: new requests are rejected with a 503, in-flight
+ * requests are given time to complete until a deadline and then the context is
+ * stopped.
+ * 
+ * The 503 is sent by the {@link RequestTrackingHandler} as soon as the VO is
+ * reported as draining: the context shutdown flag alone would let new requests
+ * fall through to the other contexts with a 404.
+ * 
+ * With graceful shutdown disabled, i.e. a zero timeout, contexts are stopped
+ * right away, still in parallel on container shutdown.
+ */
+public class VODrainer {
+
+	public static final Logger log = LoggerFactory.getLogger("Drain");
+
+	public static final int MAX_PARALLEL_STOPS = 8;
+
+	private final RequestTrackingHandler requestTracker;
+	private final long timeoutInMsec;
+
+	public VODrainer(RequestTrackingHandler requestTracker, long timeoutInMsec) {
+
+		this.requestTracker = requestTracker;
+		this.timeoutInMsec = timeoutInMsec;
+	}
+
+	public boolean isEnabled() {
+
+		return timeoutInMsec > 0;
+	}
+
+	/**
+	 * Drains and stops the context of a single VO.
+	 * 
+	 * @return the number of requests aborted at the deadline
+	 */
+	public int drain(String voName, ContextHandler context) {
+
+		VOStatusRegistry.INSTANCE.setState(voName, VOState.DRAINING);
+		context.setShutdown(true);
+		return awaitAndStop(voName, context, System.currentTimeMillis()
+			+ timeoutInMsec);
+	}
+
+	/**
+	 * Waits for the requests a VO is serving to complete, while new ones keep
+	 * being served, e.g. by a new version of the VO that just took over.
+	 * 
+	 * @return the number of those requests still in flight after the given
+	 *         time
+	 */
+	public int awaitInFlight(String voName, long maxWaitInMsec) {
+
+		long mark = requestTracker.mark(voName);
+
+		try {
+
+			return requestTracker.awaitMarked(voName, mark, maxWaitInMsec);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return requestTracker.getInFlightRequests(voName);
+		}
+	}
+
+	/**
+	 * Drains and stops the given VO contexts in parallel, all sharing the same
+	 * deadline. If graceful shutdown is disabled, the contexts are just stopped
+	 * in parallel.
+	 */
+	public void drainAll(Map<String, ContextHandler> contexts) {
+
+		if (contexts.isEmpty())
+			return;
+
+		if (isEnabled()) {
+
+			log.info("Draining {} VOs (timeout: {} msecs)...", contexts.size(),
+				timeoutInMsec);
+
+			// Stop accepting new requests for all VOs before waiting on any of them
+			for (Map.Entry<String, ContextHandler> e : contexts.entrySet()) {
+				VOStatusRegistry.INSTANCE.setState(e.getKey(), VOState.DRAINING);
+				e.getValue().setShutdown(true);
+			}
+
+		} else {
+			log.info("Stopping {} VOs...", contexts.size());
+		}
+
+		final long deadline = System.currentTimeMillis() + timeoutInMsec;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+			contexts.size(), MAX_PARALLEL_STOPS));
+
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+		for (final Map.Entry<String, ContextHandler> e : contexts.entrySet()) {
+			results.add(executor.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws Exception {
+
+					return awaitAndStop(e.getKey(), e.getValue(), deadline);
+				}
+			}));
+		}
+
+		executor.shutdown();
+
+		int abortedRequests = 0;
+
+		for (Future<Integer> r : results) {
+			try {
+				abortedRequests += r.get();
+			} catch (Exception e) {
+				log.error("Error draining VO: {}", e.getMessage(), e);
+			}
+		}
+
+		if (isEnabled())
+			log.info("{} VOs drained. Requests aborted at deadline: {}",
+				contexts.size(), abortedRequests);
+		else
+			log.info("{} VOs stopped.", contexts.size());
+	}
+
+	private int awaitAndStop(String voName, ContextHandler context, long deadline) {
+
+		int abortedRequests = 0;
+
+		if (isEnabled()) {
+
+			long startTime = System.currentTimeMillis();
+
+			try {
+
+				abortedRequests = requestTracker.awaitIdle(voName,
+					Math.max(deadline - startTime, 0));
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				abortedRequests = requestTracker.getInFlightRequests(voName);
+			}
+
+			long drainTime = System.currentTimeMillis() - startTime;
+
+			if (abortedRequests > 0)
+				log.warn("VO {} not drained after {} msecs, aborting {} requests.",
+					new Object[] { voName, drainTime, abortedRequests });
+			else
+				log.info("VO {} drained in {} msecs.", voName, drainTime);
+		}
+
+		try {
+
+			context.stop();
+
+		} catch (Exception e) {
+			log.error("Error stopping VO {}: {}",
+				new Object[] { voName, e.getMessage(), e });
+		}
+
+		return abortedRequests;
+	}
+}
@@ -2,26 +2,55 @@ package org.italiangrid.voms.container;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.DispatcherType;
 
+import org.apache.commons.io.FileUtils;
 import org.eclipse.jetty.deploy.App;
 import org.eclipse.jetty.deploy.AppProvider;
 import org.eclipse.jetty.deploy.DeploymentManager;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.Scanner;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.italiangrid.voms.container.handlers.VOPaths;
+import org.italiangrid.voms.container.handlers.VORouterHandler;
 import org.italiangrid.voms.container.listeners.VOListener;
+import org.italiangrid.voms.container.metrics.VOResourceAccounting;
 import org.italiangrid.voms.container.listeners.VOMSESListener;
+import org.italiangrid.voms.container.pool.DataSourceRegistry;
+import org.italiangrid.voms.container.pool.PooledDataSource;
+import org.italiangrid.voms.container.shard.ShardAssignment;
+import org.italiangrid.voms.status.ControlTokenFilter;
+import org.italiangrid.voms.status.DiagnosticsServlet;
+import org.italiangrid.voms.status.HandoverServlet;
+import org.italiangrid.voms.status.LocalConnectorFilter;
+import org.italiangrid.voms.status.MetricsServlet;
 import org.italiangrid.voms.status.VOMSStatusFilter;
+import org.italiangrid.voms.status.UpgradeServlet;
+import org.italiangrid.voms.status.VOStatusStreamServlet;
+import org.italiangrid.voms.status.VOStatusRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,15 +59,24 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 	public static final String VOMSES_APP_KEY = "__vomses__";
 
 	public static final String DEFAULT_TMP_PREFIX = "/var/tmp";
+	public static final String WEBAPP_TMP_DIR_NAME = "voms-webapp";
+	public static final long JSP_CACHE_CLEANUP_INTERVAL_IN_MINUTES = 30;
 	public static final int DEFAULT_SCAN_INTERVAL_IN_SECONDS = 10;
 	public static final String ORACLE_JAR_NAME = "ojdbc6.jar";
 
+	/**
+	 * The servlet context attribute under which the container-managed
+	 * {@link javax.sql.DataSource} is published to a VO webapp.
+	 */
+	public static final String DATASOURCE_ATTRIBUTE = "org.italiangrid.voms.container.DataSource";
+
 	private static final Logger log = LoggerFactory
 		.getLogger(VOMSAppProvider.class);
 
 	private String configurationDir;
-	private String warFile;
+	private volatile String warFile;
 	private String deploymentDir;
+	private String tmpPrefix = DEFAULT_TMP_PREFIX;
 	private String hostname;
 	private String port;
 
@@ -70,13 +108,78 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		@Override
 		public void fileAdded(String filename) throws Exception {
 
+			// VOs found by the initial scan are started in planned order
+			if (booting) {
+				bootVOs.add(getBasename(filename));
+				return;
+			}
+
 			VOMSAppProvider.this.startVO(getBasename(filename));
 		}
 	};
 
 	private DeploymentManager deploymentManager;
 
-	private Map<String, App> vomsApps = new HashMap<String, App>();
+	private Map<String, App> vomsApps = new ConcurrentHashMap<String, App>();
+
+	private VODrainer drainer;
+
+	private DataSourceRegistry dataSources;
+
+	private VOWarmer warmer;
+
+	private VORouterHandler router;
+
+	private JspCache jspCache;
+
+	private VORetryScheduler retryScheduler;
+
+	private VOUpgrader upgrader;
+
+	private HandoverCoordinator handoverCoordinator;
+
+	private boolean upgradeEndpointEnabled = false;
+
+	private ControlToken controlToken;
+
+	/**
+	 * The temp directories of VOs that have been upgraded, which alternate
+	 * between the default one and the upgrade one at each upgrade.
+	 */
+	private final ConcurrentMap<String, File> voTmpDirs = new ConcurrentHashMap<String, File>();
+
+	/**
+	 * The temp directories of the new versions of VOs being upgraded. A VO
+	 * context is created in staging mode while its VO is in this map.
+	 */
+	private final ConcurrentMap<String, File> stagingTmpDirs = new ConcurrentHashMap<String, File>();
+
+	private String recordingName;
+
+	private boolean resourceAccountingEnabled = false;
+
+	private ShardAssignment shardAssignment;
+
+	private int shardIndex;
+
+	private VOStartupHistory startupHistory;
+
+	private Map<String, Integer> startupPriorities = Collections.emptyMap();
+
+	private int startupParallelism = 1;
+
+	private volatile boolean booting = false;
+
+	private final List<String> bootVOs = Collections
+		.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Serializes deployment manager updates coming from the scanner, the boot
+	 * starter and the retry scheduler.
+	 */
+	private final Lock deploymentLock = new ReentrantLock();
+
+	private ScheduledExecutorService jspCacheCleaner;
 
 	public VOMSAppProvider() {
 
@@ -119,6 +222,26 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		return voNames;
 	}
 
+	private void addApp(App app) {
+
+		deploymentLock.lock();
+		try {
+			deploymentManager.addApp(app);
+		} finally {
+			deploymentLock.unlock();
+		}
+	}
+
+	private void removeApp(App app) {
+
+		deploymentLock.lock();
+		try {
+			deploymentManager.removeApp(app);
+		} finally {
+			deploymentLock.unlock();
+		}
+	}
+
 	protected App createApp(String voName) {
 
 		return new App(deploymentManager, this, voName);
@@ -142,27 +265,155 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		if (a != null) {
 
 			vomsApps.put(VOMSES_APP_KEY, a);
-			deploymentManager.addApp(a);
+			addApp(a);
 		}
 
 	}
 
+	private boolean canStartVO(String voName) {
+
+		if (!voNameIsValid(voName)) {
+			log.error("VO {} is not configured on this host!", voName);
+			return false;
+		}
+
+		if (!isLocalVO(voName)) {
+			log.debug("VO {} is hosted by another shard, not starting it.", voName);
+			return false;
+		}
+
+		return true;
+	}
+
 	public void startVO(String voName) {
 
 		log.debug("Request to start vo {}", voName);
 
-		if (!voNameIsValid(voName)) {
-			log.error("VO {} is not configured on this host!", voName);
+		if (!canStartVO(voName))
 			return;
-		}
+
 		App a = createApp(voName);
 		if (a != null) {
 			vomsApps.put(voName, a);
-			deploymentManager.addApp(a);
+			addApp(a);
 		}
 
 	}
 
+	/**
+	 * Starts the VOs found at boot in the order suggested by the startup
+	 * planner, using up to {@link #getStartupParallelism()} threads.
+	 */
+	protected void startBootVOs(Collection<String> voNames) {
+
+		List<String> order = new VOStartupPlanner(startupHistory,
+			startupPriorities).plan(voNames, startupParallelism);
+
+		log.info("Starting VOs in order: {}", order);
+
+		if (startupParallelism <= 1 || order.size() <= 1) {
+			for (String voName : order)
+				startVO(voName);
+			return;
+		}
+
+		// The context handlers are created one at a time...
+		final List<App> apps = new ArrayList<App>();
+		final List<ContextHandler> contexts = new ArrayList<ContextHandler>();
+
+		for (String voName : order) {
+
+			if (!canStartVO(voName))
+				continue;
+
+			App a = createApp(voName);
+
+			try {
+
+				ContextHandler context = a.getContextHandler();
+				context.setServer(deploymentManager.getServer());
+
+				vomsApps.put(voName, a);
+				apps.add(a);
+				contexts.add(context);
+
+			} catch (Exception e) {
+				log.error("Error configuring VO {}: {}", voName, e.getMessage(), e);
+			}
+		}
+
+		// ...then started in parallel, in planned order, outside of the
+		// deployment manager, which is not thread safe...
+		ExecutorService starter = Executors.newFixedThreadPool(Math.min(
+			startupParallelism, Math.max(1, contexts.size())));
+
+		try {
+
+			List<Future<Void>> starts = new ArrayList<Future<Void>>();
+
+			for (final ContextHandler context : contexts) {
+
+				starts.add(starter.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+
+						context.start();
+						return null;
+					}
+				}));
+			}
+
+			for (int i = 0; i < starts.size(); i++) {
+				try {
+
+					starts.get(i).get();
+
+				} catch (ExecutionException e) {
+					log.error("Error starting VO {}: {}", apps.get(i).getOriginId(), e
+						.getCause().getMessage());
+				}
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			starter.shutdownNow();
+		}
+
+		// ...and finally handed to the deployment manager one at a time, which
+		// finds them already started. VOs that failed to start are left to the
+		// retry scheduler, as well as VOs it already restarted.
+		for (int i = 0; i < apps.size(); i++) {
+
+			App a = apps.get(i);
+
+			if (contexts.get(i).isStarted() && vomsApps.get(a.getOriginId()) == a)
+				addApp(a);
+		}
+	}
+
+	/**
+	 * Undeploys and deploys again a VO that is currently deployed, e.g. after
+	 * a start failure. Does nothing if the VO has been undeployed in the
+	 * meantime.
+	 */
+	public void restartVO(String voName) {
+
+		App a = vomsApps.remove(voName);
+
+		if (a == null) {
+			log.debug("VO {} no longer deployed, not restarting it.", voName);
+			return;
+		}
+
+		log.info("Restarting VO {}.", voName);
+
+		removeApp(a);
+
+		startVO(voName);
+	}
+
 	public void stopVO(String voName) {
 
 		log.debug("Request to stop vo {}", voName);
@@ -170,9 +421,217 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 			log.error("VO {} is not configured on this host!");
 			return;
 		}
+		if (retryScheduler != null)
+			retryScheduler.cancel(voName);
+
 		App a = vomsApps.remove(voName);
-		if (a != null)
-			deploymentManager.removeApp(a);
+		if (a != null) {
+			ContextHandler context = getStartedContextHandler(a);
+
+			if (drainer != null && drainer.isEnabled() && context != null)
+				drainer.drain(voName, context);
+
+			removeApp(a);
+			jspCache.publish(getJettyTmpDirForVO(voName), 0);
+		}
+	}
+
+	private ContextHandler getStartedContextHandler(App app) {
+
+		try {
+
+			ContextHandler context = app.getContextHandler();
+			if (context != null && context.isStarted())
+				return context;
+
+		} catch (Exception e) {
+			log.warn("Error getting context for app {}: {}", app.getOriginId(),
+				e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Stops all the started VO contexts in parallel, gracefully draining them
+	 * first if graceful shutdown is enabled.
+	 */
+	public void drainVOs() {
+
+		if (drainer == null)
+			return;
+
+		Map<String, ContextHandler> contexts = new HashMap<String, ContextHandler>();
+
+		for (Map.Entry<String, App> e : vomsApps.entrySet()) {
+
+			if (e.getKey().equals(VOMSES_APP_KEY))
+				continue;
+
+			ContextHandler context = getStartedContextHandler(e.getValue());
+			if (context != null)
+				contexts.put(e.getKey(), context);
+		}
+
+		drainer.drainAll(contexts);
+	}
+
+	/**
+	 * Upgrades a VO to the current web archive. The new version is started
+	 * side by side with the running one, in a separate temp directory and
+	 * without reporting its lifecycle to the status registry, and warmed up
+	 * while staged in the router. It then takes over the VO requests, and the
+	 * old version is stopped once the requests it was serving complete, or
+	 * after the retire delay at the latest. A VO which is not serving requests
+	 * is simply restarted.
+	 * 
+	 * @return <code>true</code> if the new version has taken over,
+	 *         <code>false</code> if it failed to start and the old version is
+	 *         still in place
+	 */
+	public boolean upgradeVO(String voName, long retireDelayInMsec) {
+
+		App oldApp = vomsApps.get(voName);
+
+		if (oldApp == null) {
+			log.debug("VO {} no longer deployed, not upgrading it.", voName);
+			return true;
+		}
+
+		ContextHandler oldContext = getStartedContextHandler(oldApp);
+
+		if (oldContext == null || !oldContext.isAvailable()) {
+			restartVO(voName);
+			return true;
+		}
+
+		File oldTmpDir = getJettyTmpDirForVO(voName);
+		File newTmpDir = new File(getWebappTmpDir(), oldTmpDir.getName().equals(
+			voName) ? voName + JspCache.UPGRADE_TMP_DIR_SUFFIX : voName);
+
+		newTmpDir.mkdirs();
+
+		log.info("Starting new version of VO {}.", voName);
+		long startTime = System.currentTimeMillis();
+
+		App newApp = createApp(voName);
+		ContextHandler newContext = null;
+
+		stagingTmpDirs.put(voName, newTmpDir);
+
+		try {
+
+			// Started outside of the deployment manager, so that the router keeps
+			// sending the VO requests to the running version
+			newContext = newApp.getContextHandler();
+			newContext.setServer(deploymentManager.getServer());
+			newContext.start();
+
+		} catch (Exception e) {
+			log.error("Error starting new version of VO {}: {}", voName,
+				e.getMessage());
+		}
+
+		if (newContext != null && newContext.isAvailable() && warmer != null
+			&& router != null) {
+
+			router.stageVO(voName, newContext);
+
+			try {
+				warmer.warmupStagedVersion(voName);
+			} finally {
+				router.unstageVO(voName, newContext);
+			}
+		}
+
+		if (newContext == null || !newContext.isAvailable()
+			|| !vomsApps.replace(voName, oldApp, newApp)) {
+
+			log.error("New version of VO {} did not start, keeping the "
+				+ "running one.", voName);
+
+			stopQuietly(voName, newContext);
+			stagingTmpDirs.remove(voName);
+			FileUtils.deleteQuietly(newTmpDir);
+			return false;
+		}
+
+		voTmpDirs.put(voName, newTmpDir);
+		stagingTmpDirs.remove(voName);
+
+		// The new version now owns the VO status and resource accounting
+		oldContext.removeLifeCycleListener(VOListener.INSTANCE);
+		newContext.addLifeCycleListener(VOListener.INSTANCE);
+
+		if (newContext.getClassLoader() instanceof VOResourceAccounting.ClassCounter)
+			VOResourceAccounting.INSTANCE.setClassCounter(voName,
+				(VOResourceAccounting.ClassCounter) newContext.getClassLoader());
+
+		// The deployment manager finds the new version started, and routes the
+		// VO requests to it
+		addApp(newApp);
+
+		log.info("New version of VO {} took over in {} msecs.", voName,
+			System.currentTimeMillis() - startTime);
+
+		int pendingRequests = (drainer == null) ? 0 : drainer.awaitInFlight(
+			voName, retireDelayInMsec);
+
+		if (pendingRequests > 0)
+			log.warn("Old version of VO {} still serving {} requests after {} "
+				+ "msecs, retiring it anyway.", new Object[] { voName,
+				pendingRequests, retireDelayInMsec });
+
+		removeApp(oldApp);
+
+		FileUtils.deleteQuietly(oldTmpDir);
+		log.info("Old version of VO {} retired.", voName);
+
+		return true;
+	}
+
+	private void stopQuietly(String voName, ContextHandler context) {
+
+		if (context == null)
+			return;
+
+		try {
+
+			context.stop();
+
+		} catch (Exception e) {
+			log.warn("Error stopping new version of VO {}: {}", voName,
+				e.getMessage());
+		}
+	}
+
+	/**
+	 * Points the provider to a new web archive, used by the VOs started from
+	 * now on.
+	 */
+	public void switchWarFile(String warFile) {
+
+		this.warFile = warFile;
+
+		if (jspCache != null)
+			jspCache.setWar(new File(warFile));
+	}
+
+	public Collection<String> getDeployedVONames() {
+
+		List<String> voNames = new ArrayList<String>(vomsApps.keySet());
+		voNames.remove(VOMSES_APP_KEY);
+		return voNames;
+	}
+
+	private Collection<File> getActiveTmpDirs() {
+
+		List<File> dirs = new ArrayList<File>(stagingTmpDirs.values());
+
+		for (String voName : getDeployedVONames())
+			dirs.add(getJettyTmpDirForVO(voName));
+
+		return dirs;
 	}
 
 	@Override
@@ -182,6 +641,26 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 
 	}
 
+	/**
+	 * @return whether the VO is hosted by this container, which is always the
+	 *         case unless running as a shard
+	 */
+	public boolean isLocalVO(String voName) {
+
+		return shardAssignment == null
+			|| shardAssignment.isAssigned(voName, shardIndex);
+	}
+
+	protected File getWebappTmpDir() {
+
+		// Shards on the same host keep their temp directories apart
+		String dirName = (shardAssignment == null) ? WEBAPP_TMP_DIR_NAME
+			: String.format("%s-shard-%d", WEBAPP_TMP_DIR_NAME, shardIndex);
+
+		return new File(String.format("%s/%s", tmpPrefix, dirName)
+			.replaceAll("/+", "/"));
+	}
+
 	/**
 	 * Initializes the Jetty temp directory as the default directory created by
 	 * Jetty confuses xwork which has a bug and doesn't find classes when the WAR
@@ -191,10 +670,13 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 	 */
 	protected File getJettyTmpDirForVO(String vo) {
 
-		String baseDirPath = String.format("%s/%s/%s", DEFAULT_TMP_PREFIX,
-			"voms-webapp", vo).replaceAll("/+", "/");
+		File basePath = stagingTmpDirs.get(vo);
 
-		File basePath = new File(baseDirPath);
+		if (basePath == null)
+			basePath = voTmpDirs.get(vo);
+
+		if (basePath == null)
+			basePath = new File(getWebappTmpDir(), vo);
 
 		if (!basePath.exists()) {
 			basePath.mkdirs();
@@ -203,15 +685,55 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		return basePath;
 	}
 
+	private PooledDataSource getDataSourceForVO(String vo) {
+
+		try {
+
+			return dataSources.getDataSource(vo);
+
+		} catch (IllegalArgumentException e) {
+			log.error("Error setting up connection pool for VO {}: {}", vo,
+				e.getMessage());
+			return null;
+		}
+	}
+
 	protected ContextHandler configureWebApp(String vo) {
 
-		String contextPath = String.format("/voms/%s", vo);
+		String contextPath = VOPaths.contextPathForVO(vo);
 		WebAppContext vomsWebappContext = new WebAppContext();
 		vomsWebappContext.setContextPath(contextPath);
-		vomsWebappContext.setTempDirectory(getJettyTmpDirForVO(vo));
+		File tmpDir = getJettyTmpDirForVO(vo);
+		vomsWebappContext.setTempDirectory(tmpDir);
+
+		try {
+
+			// Compile JSPs in the VO scratch dir, seeded from the shared cache
+			vomsWebappContext.setOverrideDescriptor(jspCache.prepare(vo, tmpDir));
+
+		} catch (IOException e) {
+			log.warn("Error setting up JSP cache for VO {}: {}", vo, e.getMessage());
+		}
 
 		vomsWebappContext.setParentLoaderPriority(false);
 
+		if (resourceAccountingEnabled) {
+			try {
+
+				VOClassLoader classLoader = new VOClassLoader(vomsWebappContext);
+				vomsWebappContext.setClassLoader(classLoader);
+
+				// A new version started during an upgrade is accounted for once
+				// it takes over
+				if (!stagingTmpDirs.containsKey(vo))
+					VOResourceAccounting.INSTANCE.setClassCounter(vo, classLoader);
+
+			} catch (IOException e) {
+				log.warn("Error creating classloader for VO {}: {}", vo,
+					e.getMessage());
+			}
+		}
+
 		File webArchive = new File(warFile);
 
 		if (webArchive.isDirectory()) {
@@ -232,15 +754,36 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		
 		vomsWebappContext.addSystemClass("oracle.");
 
+		// The client identity published by the container must be the same class
+		// the webapp sees
+		vomsWebappContext.addSystemClass("org.italiangrid.voms.container.identity.");
+
 		vomsWebappContext.setInitParameter("VO_NAME", vo);
 		vomsWebappContext.setInitParameter("CONF_DIR", configurationDir);
 		vomsWebappContext.setInitParameter("HOST", hostname);
 		vomsWebappContext.setInitParameter("PORT", port);
 
-		vomsWebappContext.setConnectorNames(
-			new String[]{Container.HTTPS_CONNECTOR_NAME});
+		if (warmer != null)
+			vomsWebappContext.setConnectorNames(new String[] {
+				Container.HTTPS_CONNECTOR_NAME, Container.WARMUP_CONNECTOR_NAME });
+		else
+			vomsWebappContext.setConnectorNames(
+				new String[]{Container.HTTPS_CONNECTOR_NAME});
+
+		PooledDataSource dataSource = getDataSourceForVO(vo);
+
+		if (dataSource != null)
+			vomsWebappContext.setAttribute(DATASOURCE_ATTRIBUTE, dataSource);
 		
-		vomsWebappContext.addLifeCycleListener(VOListener.INSTANCE);
+		// A new version started during an upgrade is not reported until it
+		// takes over from the running one
+		if (!stagingTmpDirs.containsKey(vo))
+			vomsWebappContext.addLifeCycleListener(VOListener.INSTANCE);
+
+		// With retries enabled, report start failures to the listener instead of
+		// leaving the context started but unavailable
+		if (retryScheduler != null && retryScheduler.isEnabled())
+			vomsWebappContext.setThrowUnavailableOnStartupException(true);
 
 		return vomsWebappContext;
 	}
@@ -262,12 +805,47 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		statusContext.setConnectorNames(new String[]{ Container.HTTP_CONNECTOR_NAME, 
 			Container.HTTPS_CONNECTOR_NAME});
 		
-		VOMSStatusFilter f = new VOMSStatusFilter(deploymentManager, hostname, port);
+		VOMSStatusFilter f = new VOMSStatusFilter(deploymentManager, hostname,
+			port, this);
 		FilterHolder fh = new FilterHolder(f);
+		fh.setAsyncSupported(true);
 		
 		statusContext.addFilter(fh, "/*", EnumSet.of(DispatcherType.FORWARD, 
 			DispatcherType.REQUEST));
 
+		statusContext.addFilter(new FilterHolder(new LocalConnectorFilter()),
+			"/metrics/*", EnumSet.of(DispatcherType.REQUEST));
+		statusContext.addServlet(new ServletHolder(new MetricsServlet()),
+			"/metrics/*");
+
+		statusContext.addFilter(new FilterHolder(new LocalConnectorFilter()),
+			"/diagnostics/*", EnumSet.of(DispatcherType.REQUEST));
+		statusContext.addServlet(new ServletHolder(new DiagnosticsServlet(
+			recordingName)), "/diagnostics/*");
+
+		if (upgrader != null && upgradeEndpointEnabled) {
+			statusContext.addFilter(new FilterHolder(new LocalConnectorFilter()),
+				"/upgrade", EnumSet.of(DispatcherType.REQUEST));
+			statusContext.addFilter(new FilterHolder(new ControlTokenFilter(
+				controlToken)), "/upgrade", EnumSet.of(DispatcherType.REQUEST));
+			statusContext.addServlet(new ServletHolder(new UpgradeServlet(upgrader,
+				this)), "/upgrade");
+		}
+
+		if (handoverCoordinator != null) {
+			statusContext.addFilter(new FilterHolder(new LocalConnectorFilter()),
+				"/handover/*", EnumSet.of(DispatcherType.REQUEST));
+			statusContext.addFilter(new FilterHolder(new ControlTokenFilter(
+				handoverCoordinator.getControlToken())), "/handover/*", EnumSet
+				.of(DispatcherType.REQUEST));
+			statusContext.addServlet(new ServletHolder(new HandoverServlet(
+				handoverCoordinator)), "/handover/*");
+		}
+
+		ServletHolder streamHolder = new ServletHolder(new VOStatusStreamServlet());
+		streamHolder.setAsyncSupported(true);
+		statusContext.addServlet(streamHolder, "/status/stream");
+
 		statusContext.setThrowUnavailableOnStartupException(true);
 		statusContext.addLifeCycleListener(new VOMSESListener());
 		
@@ -307,6 +885,34 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 				+ "does not exist or is not a directory: " + scanDir.getAbsolutePath());
 		}
 
+		dataSources = new DataSourceRegistry(configurationDir);
+
+		jspCache = new JspCache(getWebappTmpDir(), new File(warFile));
+		jspCacheCleaner = Executors.newSingleThreadScheduledExecutor();
+		jspCacheCleaner.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					jspCache.cleanup(getConfiguredVONames(), getActiveTmpDirs());
+
+				} catch (RuntimeException e) {
+					log.warn("Error cleaning up JSP cache: {}", e.getMessage(), e);
+				}
+			}
+		}, JSP_CACHE_CLEANUP_INTERVAL_IN_MINUTES,
+			JSP_CACHE_CLEANUP_INTERVAL_IN_MINUTES, TimeUnit.MINUTES);
+
+		if (warmer != null) {
+			VOStatusRegistry.INSTANCE.setWarmupEnabled(true);
+			VOStatusRegistry.INSTANCE.addListener(warmer);
+		}
+
+		if (retryScheduler != null && retryScheduler.isEnabled())
+			VOStatusRegistry.INSTANCE.addListener(retryScheduler);
+
 		scanner = new Scanner();
 		scanner.setScanDirs(Collections.singletonList(scanDir));
 		scanner.setScanInterval(scanIntervalInSeconds);
@@ -314,9 +920,23 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		scanner.setReportDirs(false);
 		scanner.addListener(scannerListener);
 
+		if (startupHistory != null)
+			startupHistory.open(new File(getWebappTmpDir(),
+				VOStartupHistory.FILE_NAME));
+
 		startVOMSES();
 
-		scanner.start();
+		bootVOs.clear();
+		booting = true;
+
+		try {
+			scanner.start();
+		} finally {
+			booting = false;
+		}
+
+		startBootVOs(new ArrayList<String>(bootVOs));
+		bootVOs.clear();
 	}
 
 	@Override
@@ -328,6 +948,32 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 			scanner.removeListener(scannerListener);
 			scanner = null;
 		}
+
+		if (jspCacheCleaner != null) {
+			jspCacheCleaner.shutdownNow();
+			jspCacheCleaner = null;
+		}
+
+		if (dataSources != null) {
+			dataSources.closeAll();
+			dataSources = null;
+		}
+
+		if (warmer != null) {
+			VOStatusRegistry.INSTANCE.removeListener(warmer);
+			warmer.shutdown();
+		}
+
+		if (retryScheduler != null) {
+			VOStatusRegistry.INSTANCE.removeListener(retryScheduler);
+			retryScheduler.shutdown();
+		}
+
+		if (upgrader != null)
+			upgrader.shutdown();
+
+		if (startupHistory != null)
+			startupHistory.close();
 	}
 
 	
@@ -366,6 +1012,22 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		this.warFile = warFile;
 	}
 
+	/**
+	 * @return the directory holding the VO temp directories
+	 */
+	public String getTmpPrefix() {
+
+		return tmpPrefix;
+	}
+
+	/**
+	 * @param tmpPrefix the directory holding the VO temp directories
+	 */
+	public void setTmpPrefix(String tmpPrefix) {
+
+		this.tmpPrefix = tmpPrefix;
+	}
+
 	
 	/**
 	 * @return the deploymentDir
@@ -420,4 +1082,270 @@ public class VOMSAppProvider extends AbstractLifeCycle implements AppProvider {
 		this.port = port;
 	}
 
+
+	/**
+	 * @return the drainer
+	 */
+	public VODrainer getDrainer() {
+
+		return drainer;
+	}
+
+	/**
+	 * @param drainer the drainer used to gracefully stop VO contexts
+	 */
+	public void setDrainer(VODrainer drainer) {
+
+		this.drainer = drainer;
+	}
+
+
+	/**
+	 * @return the warmer
+	 */
+	public VOWarmer getWarmer() {
+
+		return warmer;
+	}
+
+	/**
+	 * @param warmer the warmer used to warm up VOs after start, or
+	 *          <code>null</code> to make VOs active as soon as they start
+	 */
+	public void setWarmer(VOWarmer warmer) {
+
+		this.warmer = warmer;
+	}
+
+
+	/**
+	 * @return the router
+	 */
+	public VORouterHandler getRouter() {
+
+		return router;
+	}
+
+	/**
+	 * @param router the router where new VO versions are staged during upgrades
+	 */
+	public void setRouter(VORouterHandler router) {
+
+		this.router = router;
+	}
+
+
+	/**
+	 * @return the retryScheduler
+	 */
+	public VORetryScheduler getRetryScheduler() {
+
+		return retryScheduler;
+	}
+
+	/**
+	 * @param retryScheduler the scheduler used to retry failed VO starts
+	 */
+	public void setRetryScheduler(VORetryScheduler retryScheduler) {
+
+		this.retryScheduler = retryScheduler;
+	}
+
+
+	/**
+	 * @return the upgrader
+	 */
+	public VOUpgrader getUpgrader() {
+
+		return upgrader;
+	}
+
+	/**
+	 * @param upgrader the upgrader exposed by the upgrade control endpoint,
+	 *          when enabled
+	 */
+	public void setUpgrader(VOUpgrader upgrader) {
+
+		this.upgrader = upgrader;
+	}
+
+
+	/**
+	 * @return whether the upgrade control endpoint is enabled
+	 */
+	public boolean isUpgradeEndpointEnabled() {
+
+		return upgradeEndpointEnabled;
+	}
+
+	/**
+	 * @param upgradeEndpointEnabled whether the upgrader is exposed on the
+	 *          upgrade control endpoint, which also requires a control token
+	 */
+	public void setUpgradeEndpointEnabled(boolean upgradeEndpointEnabled) {
+
+		this.upgradeEndpointEnabled = upgradeEndpointEnabled;
+	}
+
+
+	/**
+	 * @return the controlToken
+	 */
+	public ControlToken getControlToken() {
+
+		return controlToken;
+	}
+
+	/**
+	 * @param controlToken the token authenticating requests to the control
+	 *          endpoints
+	 */
+	public void setControlToken(ControlToken controlToken) {
+
+		this.controlToken = controlToken;
+	}
+
+
+	/**
+	 * @return the handoverCoordinator
+	 */
+	public HandoverCoordinator getHandoverCoordinator() {
+
+		return handoverCoordinator;
+	}
+
+	/**
+	 * @param handoverCoordinator the coordinator exposed by the handover
+	 *          endpoint, or <code>null</code> if handovers are not enabled
+	 */
+	public void setHandoverCoordinator(HandoverCoordinator handoverCoordinator) {
+
+		this.handoverCoordinator = handoverCoordinator;
+	}
+
+
+	/**
+	 * @return the shard assignment, or <code>null</code> if not running as a
+	 *         shard
+	 */
+	public ShardAssignment getShardAssignment() {
+
+		return shardAssignment;
+	}
+
+	/**
+	 * @param shardAssignment the VO to shard mapping, set when running as a
+	 *          shard
+	 */
+	public void setShardAssignment(ShardAssignment shardAssignment) {
+
+		this.shardAssignment = shardAssignment;
+	}
+
+
+	/**
+	 * @return the shardIndex
+	 */
+	public int getShardIndex() {
+
+		return shardIndex;
+	}
+
+	/**
+	 * @param shardIndex the index of the shard run by this container
+	 */
+	public void setShardIndex(int shardIndex) {
+
+		this.shardIndex = shardIndex;
+	}
+
+
+	/**
+	 * @return the recordingName
+	 */
+	public String getRecordingName() {
+
+		return recordingName;
+	}
+
+	/**
+	 * @param recordingName the name of the continuous flight recording served
+	 *          by the diagnostics endpoint, or <code>null</code> if none
+	 */
+	public void setRecordingName(String recordingName) {
+
+		this.recordingName = recordingName;
+	}
+
+
+	/**
+	 * @return whether per-VO resource accounting is enabled
+	 */
+	public boolean isResourceAccountingEnabled() {
+
+		return resourceAccountingEnabled;
+	}
+
+	/**
+	 * @param resourceAccountingEnabled whether VO webapps get a classloader
+	 *          that counts the classes it loads
+	 */
+	public void setResourceAccountingEnabled(boolean resourceAccountingEnabled) {
+
+		this.resourceAccountingEnabled = resourceAccountingEnabled;
+	}
+
+
+	/**
+	 * @return the startupHistory
+	 */
+	public VOStartupHistory getStartupHistory() {
+
+		return startupHistory;
+	}
+
+	/**
+	 * @param startupHistory the deployment history used to order VO starts at
+	 *          boot, or <code>null</code> to not keep one
+	 */
+	public void setStartupHistory(VOStartupHistory startupHistory) {
+
+		this.startupHistory = startupHistory;
+	}
+
+
+	/**
+	 * @return the startupPriorities
+	 */
+	public Map<String, Integer> getStartupPriorities() {
+
+		return startupPriorities;
+	}
+
+	/**
+	 * @param startupPriorities the VO start priorities, higher first
+	 */
+	public void setStartupPriorities(Map<String, Integer> startupPriorities) {
+
+		this.startupPriorities = startupPriorities;
+	}
+
+
+	/**
+	 * @return the startupParallelism
+	 */
+	public int getStartupParallelism() {
+
+		return startupParallelism;
+	}
+
+	/**
+	 * @param startupParallelism the number of VOs started at the same time at
+	 *          boot
+	 */
+	public void setStartupParallelism(int startupParallelism) {
+
+		this.startupParallelism = startupParallelism;
+	}
+
 }
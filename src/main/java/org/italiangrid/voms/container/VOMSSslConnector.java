@@ -0,0 +1,247 @@
+package org.italiangrid.voms.container;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.eclipse.jetty.io.AbstractConnection;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.nio.SelectChannelEndPoint;
+import org.eclipse.jetty.io.nio.SelectorManager.SelectSet;
+import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The TLS connector of the container. When handovers are enabled, it binds
+ * its listening socket with <code>SO_REUSEPORT</code> if the JVM supports it
+ * (Java 9 or later), so that a successor container can listen on the same
+ * port while this one is still serving, and takes over without refusing
+ * connections. Otherwise the port is bound exclusively, and a second
+ * container on the same port fails to start.
+ * 
+ * Accepted connections can be screened by a {@link ConnectionFilter}:
+ * rejected connections are closed before being registered with the
+ * selector, and so never reach the TLS handshake.
+ */
+public class VOMSSslConnector extends SslSelectChannelConnector {
+
+	public static final Logger log = LoggerFactory
+		.getLogger(VOMSSslConnector.class);
+
+	private static final Object SO_REUSEPORT = lookupReusePortOption();
+
+	private final boolean reusePort;
+
+	private volatile ConnectionFilter connectionFilter;
+
+	/**
+	 * @param sslContextFactory
+	 *          the TLS settings
+	 * @param reusePort
+	 *          whether the listening socket is shared with a handover peer
+	 */
+	public VOMSSslConnector(SslContextFactory sslContextFactory,
+		boolean reusePort) {
+
+		super(sslContextFactory);
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * Creates a connector with the settings of a connector built by the
+	 * https-utils server factory.
+	 */
+	public static VOMSSslConnector copyOf(SslSelectChannelConnector c,
+		boolean reusePort) {
+
+		VOMSSslConnector conn = new VOMSSslConnector(c.getSslContextFactory(),
+			reusePort);
+
+		conn.setName(c.getName());
+		conn.setHost(c.getHost());
+		conn.setPort(c.getPort());
+		conn.setMaxIdleTime(c.getMaxIdleTime());
+		conn.setLowResourcesMaxIdleTime(c.getLowResourcesMaxIdleTime());
+		conn.setLowResourcesConnections(c.getLowResourcesConnections());
+		conn.setSoLingerTime(c.getSoLingerTime());
+		conn.setAcceptors(c.getAcceptors());
+		conn.setAcceptQueueSize(c.getAcceptQueueSize());
+		conn.setReuseAddress(c.getReuseAddress());
+		conn.setRequestHeaderSize(c.getRequestHeaderSize());
+		conn.setRequestBufferSize(c.getRequestBufferSize());
+		conn.setResponseHeaderSize(c.getResponseHeaderSize());
+		conn.setResponseBufferSize(c.getResponseBufferSize());
+		conn.setStatsOn(c.getStatsOn());
+
+		return conn;
+	}
+
+	private static Object lookupReusePortOption() {
+
+		try {
+
+			return Class.forName("java.net.StandardSocketOptions")
+				.getField("SO_REUSEPORT").get(null);
+
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public static boolean isReusePortSupported() {
+
+		return SO_REUSEPORT != null;
+	}
+
+	/**
+	 * @return <code>true</code> if the listening socket is bound with
+	 *         <code>SO_REUSEPORT</code>
+	 */
+	public boolean isReusePort() {
+
+		return reusePort && isReusePortSupported();
+	}
+
+	private void enableReusePort(ServerSocketChannel channel) {
+
+		if (!isReusePort())
+			return;
+
+		try {
+
+			Method setOption = Class.forName("java.nio.channels.NetworkChannel")
+				.getMethod("setOption", Class.forName("java.net.SocketOption"),
+					Object.class);
+
+			setOption.invoke(channel, SO_REUSEPORT, Boolean.TRUE);
+
+		} catch (Exception e) {
+			log.warn("Could not enable SO_REUSEPORT on {}: {}", getName(),
+				e.getMessage());
+		}
+	}
+
+	@Override
+	public void open() throws IOException {
+
+		synchronized (this) {
+
+			if (_acceptChannel == null) {
+
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.configureBlocking(true);
+				channel.socket().setReuseAddress(getReuseAddress());
+				enableReusePort(channel);
+
+				InetSocketAddress addr = (getHost() == null) ? new InetSocketAddress(
+					getPort()) : new InetSocketAddress(getHost(), getPort());
+
+				try {
+
+					channel.socket().bind(addr, getAcceptQueueSize());
+
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+
+				_acceptChannel = channel;
+				addBean(_acceptChannel);
+			}
+		}
+	}
+
+	@Override
+	protected void configure(Socket socket) throws IOException {
+
+		ConnectionFilter filter = connectionFilter;
+
+		if (filter != null && !filter.admit(socket.getInetAddress())) {
+			socket.close();
+			// Aborts the registration of the connection
+			throw new IOException("Connection from "
+				+ socket.getInetAddress().getHostAddress() + " rejected");
+		}
+
+		boolean configured = false;
+
+		try {
+
+			super.configure(socket);
+			configured = true;
+
+		} finally {
+			// No connection will be reported closed for this socket
+			if (filter != null && !configured)
+				filter.connectionClosed(socket.getInetAddress().getHostAddress());
+		}
+	}
+
+	@Override
+	protected SelectChannelEndPoint newEndPoint(SocketChannel channel,
+		SelectSet selectSet, SelectionKey key) throws IOException {
+
+		ConnectionFilter filter = connectionFilter;
+		SelectChannelEndPoint endPoint = null;
+
+		try {
+
+			endPoint = super.newEndPoint(channel, selectSet, key);
+
+		} finally {
+			// The selector closes the channel without reporting a connection
+			if (filter != null && endPoint == null)
+				filter.connectionClosed(channel.socket().getInetAddress()
+					.getHostAddress());
+		}
+
+		return endPoint;
+	}
+
+	@Override
+	protected void connectionClosed(Connection connection) {
+
+		ConnectionFilter filter = connectionFilter;
+
+		if (filter != null && connection instanceof AbstractConnection)
+			filter.connectionClosed(((AbstractConnection) connection).getEndPoint()
+				.getRemoteAddr());
+
+		super.connectionClosed(connection);
+	}
+
+	/**
+	 * @return the connectionFilter
+	 */
+	public ConnectionFilter getConnectionFilter() {
+
+		return connectionFilter;
+	}
+
+	/**
+	 * @param connectionFilter the filter screening accepted connections, or
+	 *          <code>null</code> to accept all connections
+	 */
+	public void setConnectionFilter(ConnectionFilter connectionFilter) {
+
+		this.connectionFilter = connectionFilter;
+	}
+
+	@Override
+	public int getLocalPort() {
+
+		synchronized (this) {
+
+			if (_acceptChannel == null || !_acceptChannel.isOpen())
+				return -1;
+
+			return _acceptChannel.socket().getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package org.italiangrid.voms.container;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.italiangrid.voms.status.VOFailure;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries the start of VOs that failed to start, with exponential backoff and
+ * jitter, up to a maximum number of attempts. Retries run on a dedicated
+ * thread, not on the deployment scanner thread.
+ */
+public class VORetryScheduler implements VOStatusRegistry.Listener {
+
+	public static final Logger log = LoggerFactory.getLogger("Retry");
+
+	private final VOMSAppProvider provider;
+
+	private final int maxAttempts;
+	private final long initialDelayInMsec;
+	private final long maxDelayInMsec;
+
+	private final Random random = new Random();
+
+	private final ScheduledExecutorService executor = Executors
+		.newSingleThreadScheduledExecutor();
+
+	private final ConcurrentMap<String, ScheduledFuture<?>> pendingRetries = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+
+	/**
+	 * @param provider
+	 *          the provider used to restart the VOs
+	 * @param maxAttempts
+	 *          the maximum number of retries for a VO, 0 disables retries
+	 * @param initialDelayInMsec
+	 *          the delay before the first retry
+	 * @param maxDelayInMsec
+	 *          the upper bound of the delay between retries
+	 */
+	public VORetryScheduler(VOMSAppProvider provider, int maxAttempts,
+		long initialDelayInMsec, long maxDelayInMsec) {
+
+		this.provider = provider;
+		this.maxAttempts = maxAttempts;
+		this.initialDelayInMsec = initialDelayInMsec;
+		this.maxDelayInMsec = maxDelayInMsec;
+	}
+
+	public boolean isEnabled() {
+
+		return maxAttempts > 0;
+	}
+
+	@Override
+	public void stateChanged(String voName, VOState previousState,
+		VOState currentState) {
+
+		if (VOState.FAILED.equals(currentState))
+			scheduleRetry(voName);
+	}
+
+	/**
+	 * Computes the delay before a retry: the delay doubles at each attempt, and
+	 * is then randomized in the [delay/2, delay] interval so that VOs failing
+	 * together do not retry together.
+	 */
+	protected long computeDelay(int attempt) {
+
+		long delay = initialDelayInMsec;
+
+		for (int i = 1; i < attempt && delay < maxDelayInMsec; i++)
+			delay *= 2;
+
+		delay = Math.min(delay, maxDelayInMsec);
+
+		long halfDelay = delay / 2;
+
+		synchronized (random) {
+			return halfDelay + (long) (random.nextDouble() * (delay - halfDelay));
+		}
+	}
+
+	private void scheduleRetry(final String voName) {
+
+		VOStatusRegistry registry = VOStatusRegistry.INSTANCE;
+		VOFailure failure = registry.getFailure(voName);
+
+		int attempts = (failure == null) ? 1 : failure.getAttempts();
+		String cause = (failure == null) ? null : failure.getCause();
+
+		if (attempts > maxAttempts) {
+			log.error("VO {} failed to start {} times, giving up.", voName, attempts);
+			registry.setFailure(voName, new VOFailure(cause, attempts, maxAttempts,
+				0));
+			return;
+		}
+
+		long delay = computeDelay(attempts);
+
+		registry.setFailure(voName, new VOFailure(cause, attempts, maxAttempts,
+			System.currentTimeMillis() + delay));
+
+		log.info("VO {} failed to start, retry {} of {} in {} msecs.",
+			new Object[] { voName, attempts, maxAttempts, delay });
+
+		ScheduledFuture<?> retry = executor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+
+				pendingRetries.remove(voName);
+
+				try {
+
+					provider.restartVO(voName);
+
+				} catch (RuntimeException e) {
+					log.error("Error restarting VO {}: {}",
+						new Object[] { voName, e.getMessage(), e });
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+		ScheduledFuture<?> previousRetry = pendingRetries.put(voName, retry);
+
+		if (previousRetry != null)
+			previousRetry.cancel(false);
+	}
+
+	/**
+	 * Cancels the pending retry for a VO, if any, and forgets its failures.
+	 */
+	public void cancel(String voName) {
+
+		ScheduledFuture<?> retry = pendingRetries.remove(voName);
+
+		if (retry != null)
+			retry.cancel(false);
+
+		VOStatusRegistry.INSTANCE.clearFailure(voName);
+	}
+
+	public void shutdown() {
+
+		executor.shutdownNow();
+		pendingRetries.clear();
+	}
+}
@@ -0,0 +1,337 @@
+package org.italiangrid.voms.container;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.italiangrid.voms.container.handlers.RequestTrackingHandler;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small deployment history, persisted across restarts, recording for each
+ * VO how long it took to become active, when its start last failed and how
+ * much traffic it served recently. The {@link VOStartupPlanner} uses it to
+ * order VO starts.
+ */
+public class VOStartupHistory implements VOStatusRegistry.Listener,
+	MetricsSource {
+
+	public static final Logger log = LoggerFactory.getLogger("StartupHistory");
+
+	public static final String FILE_NAME = "startup-history.properties";
+
+	public static final long UPDATE_INTERVAL_IN_MINUTES = 5;
+
+	// Recent traffic halves every day
+	public static final long TRAFFIC_HALF_LIFE_IN_MINUTES = TimeUnit.DAYS
+		.toMinutes(1);
+
+	private static final double TRAFFIC_DECAY = Math.pow(0.5,
+		(double) UPDATE_INTERVAL_IN_MINUTES / TRAFFIC_HALF_LIFE_IN_MINUTES);
+
+	private static final String STARTUP_TIME_KEY = "startup_msec";
+	private static final String LAST_SUCCESS_KEY = "last_success";
+	private static final String LAST_FAILURE_KEY = "last_failure";
+	private static final String TRAFFIC_KEY = "traffic";
+
+	/**
+	 * What is known about a VO.
+	 */
+	public static class Entry {
+
+		// -1 when the VO never started successfully
+		volatile long startupTimeInMsec = -1;
+		volatile long lastSuccessTime = 0;
+		volatile long lastFailureTime = 0;
+
+		// Exponentially decayed count of the requests served
+		volatile double traffic = 0;
+
+		/**
+		 * @return the time the VO took to become active the last time, or -1
+		 */
+		public long getStartupTimeInMsec() {
+
+			return startupTimeInMsec;
+		}
+
+		/**
+		 * @return whether the last start of the VO failed
+		 */
+		public boolean isLastStartFailed() {
+
+			return lastFailureTime > lastSuccessTime;
+		}
+
+		/**
+		 * @return the recent traffic of the VO, in requests
+		 */
+		public double getTraffic() {
+
+			return traffic;
+		}
+	}
+
+	private final RequestTrackingHandler requestTracker;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, Long> startingSince = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Long> lastCompletedRequests = new ConcurrentHashMap<String, Long>();
+
+	private File file;
+	private ScheduledExecutorService updater;
+
+	public VOStartupHistory(RequestTrackingHandler requestTracker) {
+
+		this.requestTracker = requestTracker;
+	}
+
+	private Entry getEntry(String voName) {
+
+		Entry e = entries.get(voName);
+
+		if (e == null) {
+			Entry newEntry = new Entry();
+			e = entries.putIfAbsent(voName, newEntry);
+
+			if (e == null)
+				e = newEntry;
+		}
+
+		return e;
+	}
+
+	/**
+	 * @return what is known about the VO, or <code>null</code> if the VO has no
+	 *         history
+	 */
+	public Entry get(String voName) {
+
+		return entries.get(voName);
+	}
+
+	/**
+	 * Loads the history from the given file, starts recording VO state changes
+	 * and saves the history periodically.
+	 */
+	public synchronized void open(File historyFile) {
+
+		file = historyFile;
+		load();
+
+		VOStatusRegistry.INSTANCE.addListener(this);
+
+		updater = Executors.newSingleThreadScheduledExecutor();
+		updater.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					updateTraffic();
+					save();
+				} catch (RuntimeException e) {
+					log.warn("Error updating the startup history: {}", e.getMessage(), e);
+				}
+			}
+		}, UPDATE_INTERVAL_IN_MINUTES, UPDATE_INTERVAL_IN_MINUTES,
+			TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stops recording and saves the history.
+	 */
+	public synchronized void close() {
+
+		VOStatusRegistry.INSTANCE.removeListener(this);
+
+		if (updater != null) {
+			updater.shutdownNow();
+			updater = null;
+		}
+
+		if (file != null)
+			save();
+	}
+
+	private void load() {
+
+		if (!file.exists())
+			return;
+
+		Properties props = new Properties();
+
+		try {
+
+			InputStream is = new FileInputStream(file);
+
+			try {
+				props.load(is);
+			} finally {
+				is.close();
+			}
+
+		} catch (IOException e) {
+			log.warn("Error loading the startup history from {}: {}", file,
+				e.getMessage());
+			return;
+		}
+
+		for (String key : props.stringPropertyNames()) {
+
+			int separator = key.lastIndexOf('.');
+
+			if (separator <= 0)
+				continue;
+
+			String voName = key.substring(0, separator);
+			String field = key.substring(separator + 1);
+			String value = props.getProperty(key).trim();
+
+			try {
+
+				Entry e = getEntry(voName);
+
+				if (field.equals(STARTUP_TIME_KEY))
+					e.startupTimeInMsec = Long.parseLong(value);
+				else if (field.equals(LAST_SUCCESS_KEY))
+					e.lastSuccessTime = Long.parseLong(value);
+				else if (field.equals(LAST_FAILURE_KEY))
+					e.lastFailureTime = Long.parseLong(value);
+				else if (field.equals(TRAFFIC_KEY))
+					e.traffic = Double.parseDouble(value);
+
+			} catch (NumberFormatException ex) {
+				log.warn("Ignoring invalid startup history entry {}={}", key, value);
+			}
+		}
+
+		log.debug("Loaded the startup history of {} VOs from {}", entries.size(),
+			file);
+	}
+
+	synchronized void save() {
+
+		Properties props = new Properties();
+
+		for (Map.Entry<String, Entry> me : entries.entrySet()) {
+
+			String vo = me.getKey();
+			Entry e = me.getValue();
+
+			props.setProperty(vo + "." + STARTUP_TIME_KEY,
+				Long.toString(e.startupTimeInMsec));
+			props.setProperty(vo + "." + LAST_SUCCESS_KEY,
+				Long.toString(e.lastSuccessTime));
+			props.setProperty(vo + "." + LAST_FAILURE_KEY,
+				Long.toString(e.lastFailureTime));
+			props.setProperty(vo + "." + TRAFFIC_KEY, Double.toString(e.traffic));
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+
+		try {
+
+			file.getParentFile().mkdirs();
+
+			OutputStream os = new FileOutputStream(tmp);
+
+			try {
+				props.store(os, "VO startup history, maintained by the container");
+			} finally {
+				os.close();
+			}
+
+			if (!tmp.renameTo(file))
+				throw new IOException("cannot rename " + tmp + " to " + file);
+
+		} catch (IOException e) {
+			log.warn("Error saving the startup history to {}: {}", file,
+				e.getMessage());
+		}
+	}
+
+	void updateTraffic() {
+
+		for (String vo : VOStatusRegistry.INSTANCE.getStates().keySet()) {
+
+			long completed = requestTracker.getCompletedRequests(vo);
+			Long last = lastCompletedRequests.put(vo, completed);
+
+			long delta = (last == null || last > completed) ? completed : completed
+				- last;
+
+			Entry e = getEntry(vo);
+			e.traffic = e.traffic * TRAFFIC_DECAY + delta;
+		}
+	}
+
+	@Override
+	public void stateChanged(String voName, VOState previousState,
+		VOState currentState) {
+
+		long now = System.currentTimeMillis();
+
+		if (currentState == VOState.STARTING) {
+
+			startingSince.put(voName, now);
+
+		} else if (currentState == VOState.ACTIVE) {
+
+			Long since = startingSince.remove(voName);
+
+			if (since != null) {
+				Entry e = getEntry(voName);
+				e.startupTimeInMsec = now - since;
+				e.lastSuccessTime = now;
+			}
+
+		} else if (currentState == VOState.FAILED) {
+
+			startingSince.remove(voName);
+			getEntry(voName).lastFailureTime = now;
+		}
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "startup_history";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new TreeMap<String, Object>();
+
+		for (Map.Entry<String, Entry> me : entries.entrySet()) {
+
+			Entry e = me.getValue();
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+
+			m.put("startup_msec", e.startupTimeInMsec);
+			m.put("last_start_failed", e.isLastStartFailed());
+			m.put("recent_traffic", Math.round(e.traffic));
+
+			metrics.put(me.getKey(), m);
+		}
+
+		return metrics;
+	}
+}
@@ -0,0 +1,220 @@
+package org.italiangrid.voms.container;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders VO starts so as to minimize the downtime seen by users, summed over
+ * all VOs.
+ * 
+ * VOs are started by decreasing configured priority. Within the same priority
+ * VOs are ordered by recent traffic per second of startup time, so that the
+ * busiest VOs, for the time it takes to start them, come first; VOs whose last
+ * start failed come last. When VOs are started in parallel, the slowest known
+ * VOs are started first on all but one of the workers, so that they do not
+ * delay the end of the startup, while the remaining worker starts the busy
+ * ones.
+ */
+public class VOStartupPlanner {
+
+	/**
+	 * VOs taking this many times the median startup time are considered slow.
+	 */
+	public static final int SLOW_STARTUP_FACTOR = 2;
+
+	// Assumed when there is no history at all
+	public static final long DEFAULT_STARTUP_TIME_IN_MSEC = 10000;
+
+	private final VOStartupHistory history;
+	private final Map<String, Integer> priorities;
+
+	/**
+	 * @param history
+	 *          the startup history, <code>null</code> if not available
+	 * @param priorities
+	 *          the configured VO priorities, higher first; VOs not listed have
+	 *          priority 0
+	 */
+	public VOStartupPlanner(VOStartupHistory history,
+		Map<String, Integer> priorities) {
+
+		this.history = history;
+		this.priorities = priorities;
+	}
+
+	/**
+	 * Parses a comma separated list of <code>vo:priority</code> entries.
+	 */
+	public static Map<String, Integer> parsePriorities(String priorities) {
+
+		Map<String, Integer> result = new HashMap<String, Integer>();
+
+		if (priorities == null || priorities.trim().isEmpty())
+			return result;
+
+		for (String entry : priorities.split(",")) {
+
+			String[] parts = entry.trim().split(":");
+
+			if (parts.length != 2)
+				throw new IllegalArgumentException("Invalid VO priority: " + entry);
+
+			try {
+				result.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid VO priority: " + entry);
+			}
+		}
+
+		return result;
+	}
+
+	private int priority(String vo) {
+
+		Integer p = priorities.get(vo);
+		return p == null ? 0 : p;
+	}
+
+	private VOStartupHistory.Entry entry(String vo) {
+
+		return history == null ? null : history.get(vo);
+	}
+
+	private long medianStartupTime(Collection<String> vos) {
+
+		List<Long> times = new ArrayList<Long>();
+
+		for (String vo : vos) {
+			VOStartupHistory.Entry e = entry(vo);
+
+			if (e != null && e.getStartupTimeInMsec() > 0)
+				times.add(e.getStartupTimeInMsec());
+		}
+
+		if (times.isEmpty())
+			return DEFAULT_STARTUP_TIME_IN_MSEC;
+
+		Collections.sort(times);
+		return times.get(times.size() / 2);
+	}
+
+	/**
+	 * @param parallelism
+	 *          the number of VOs started at the same time
+	 * @return the VOs in the order they should be started
+	 */
+	public List<String> plan(Collection<String> vos, int parallelism) {
+
+		final long median = medianStartupTime(vos);
+
+		final Map<String, Long> startupTimes = new HashMap<String, Long>();
+
+		for (String vo : vos) {
+			VOStartupHistory.Entry e = entry(vo);
+			startupTimes.put(vo, (e != null && e.getStartupTimeInMsec() > 0) ? e
+				.getStartupTimeInMsec() : median);
+		}
+
+		List<String> order = new ArrayList<String>(vos);
+
+		Collections.sort(order, new Comparator<String>() {
+
+			@Override
+			public int compare(String a, String b) {
+
+				int p = priority(b) - priority(a);
+
+				if (p != 0)
+					return p;
+
+				boolean aFailed = isLastStartFailed(a);
+				boolean bFailed = isLastStartFailed(b);
+
+				if (aFailed != bFailed)
+					return aFailed ? 1 : -1;
+
+				int r = Double.compare(ratio(b, startupTimes),
+					ratio(a, startupTimes));
+
+				return r != 0 ? r : a.compareTo(b);
+			}
+		});
+
+		if (parallelism > 1)
+			startSlowOnesFirst(order, startupTimes, median, parallelism - 1);
+
+		return order;
+	}
+
+	private boolean isLastStartFailed(String vo) {
+
+		VOStartupHistory.Entry e = entry(vo);
+		return e != null && e.isLastStartFailed();
+	}
+
+	private double ratio(String vo, Map<String, Long> startupTimes) {
+
+		VOStartupHistory.Entry e = entry(vo);
+
+		// Unknown traffic counts as a single request, so that startup time
+		// still matters
+		double traffic = (e == null ? 0 : e.getTraffic()) + 1;
+
+		return traffic / startupTimes.get(vo);
+	}
+
+	/**
+	 * Moves up to <code>lanes</code> slow VOs to the front of their priority
+	 * class.
+	 */
+	private void startSlowOnesFirst(List<String> order,
+		final Map<String, Long> startupTimes, long median, int lanes) {
+
+		int classStart = 0;
+
+		while (classStart < order.size()) {
+
+			int priority = priority(order.get(classStart));
+			int classEnd = classStart;
+
+			while (classEnd < order.size() && priority(order.get(classEnd)) == priority)
+				classEnd++;
+
+			List<String> slow = new ArrayList<String>();
+
+			for (String vo : order.subList(classStart, classEnd)) {
+				if (startupTimes.get(vo) >= SLOW_STARTUP_FACTOR * median
+					&& !isLastStartFailed(vo))
+					slow.add(vo);
+			}
+
+			Collections.sort(slow, new Comparator<String>() {
+
+				@Override
+				public int compare(String a, String b) {
+
+					return startupTimes.get(b).compareTo(startupTimes.get(a));
+				}
+			});
+
+			slow = slow.subList(0, Math.min(lanes, slow.size()));
+
+			List<String> reordered = new ArrayList<String>(slow);
+
+			for (String vo : order.subList(classStart, classEnd)) {
+				if (!slow.contains(vo))
+					reordered.add(vo);
+			}
+
+			for (int i = 0; i < reordered.size(); i++)
+				order.set(classStart + i, reordered.get(i));
+
+			classStart = classEnd;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.italiangrid.voms.container;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the deployed VOs to a new web archive without restarting the
+ * container. VOs are upgraded in batches of bounded size: each VO of a batch
+ * starts the new version side by side with the running one, which keeps
+ * serving requests until the new version is started and takes over. A batch
+ * failure stops the rollout, leaving the remaining VOs on the old version.
+ * 
+ * Upgrades are requested explicitly, or triggered when the web archive
+ * changes on disk if watching is enabled.
+ */
+public class VOUpgrader implements MetricsSource {
+
+	public static final Logger log = LoggerFactory.getLogger("Upgrade");
+
+	public enum UpgradeState {
+		IDLE, RUNNING, COMPLETED, FAILED;
+
+		@Override
+		public String toString() {
+
+			return name().toLowerCase();
+		}
+	}
+
+	private final VOMSAppProvider provider;
+	private final int batchSize;
+	private final long retireDelayInMsec;
+
+	private final ExecutorService upgradeExecutor = Executors
+		.newSingleThreadExecutor();
+
+	private final ExecutorService batchExecutor;
+
+	private ScheduledExecutorService warWatcher;
+
+	// Guarded by this
+	private UpgradeState state = UpgradeState.IDLE;
+	private String upgradeWar;
+	private long startTime;
+	private long endTime;
+	private int totalVOs;
+	private int upgradedVOs;
+	private final List<String> failedVOs = new ArrayList<String>();
+
+	/**
+	 * @param provider
+	 *          the provider holding the VOs to upgrade
+	 * @param batchSize
+	 *          how many VOs are upgraded concurrently
+	 * @param retireDelayInMsec
+	 *          the max time the old version of a VO is kept after the new one
+	 *          has taken over, so that in-flight requests can complete
+	 */
+	public VOUpgrader(VOMSAppProvider provider, int batchSize,
+		long retireDelayInMsec) {
+
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Invalid upgrade batch size: "
+				+ batchSize);
+
+		this.provider = provider;
+		this.batchSize = batchSize;
+		this.retireDelayInMsec = retireDelayInMsec;
+		this.batchExecutor = Executors.newFixedThreadPool(batchSize);
+	}
+
+	/**
+	 * Requests the upgrade of all the deployed VOs to a web archive.
+	 * 
+	 * @return <code>false</code> if an upgrade is already in progress
+	 * @throws IllegalArgumentException
+	 *           if the web archive does not exist
+	 */
+	public synchronized boolean requestUpgrade(final String war) {
+
+		if (!new File(war).exists())
+			throw new IllegalArgumentException("Web archive does not exist: " + war);
+
+		if (UpgradeState.RUNNING.equals(state))
+			return false;
+
+		state = UpgradeState.RUNNING;
+		upgradeWar = war;
+		startTime = System.currentTimeMillis();
+		endTime = 0;
+		totalVOs = 0;
+		upgradedVOs = 0;
+		failedVOs.clear();
+
+		upgradeExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				upgrade(war);
+			}
+		});
+
+		return true;
+	}
+
+	private void upgrade(String war) {
+
+		log.info("Upgrading VOs to web archive {}.", war);
+
+		provider.switchWarFile(war);
+
+		List<String> voNames = new ArrayList<String>(provider.getDeployedVONames());
+		Collections.sort(voNames);
+
+		synchronized (this) {
+			totalVOs = voNames.size();
+		}
+
+		boolean failed = false;
+
+		for (int i = 0; i < voNames.size() && !failed; i += batchSize) {
+
+			List<String> batch = voNames.subList(i,
+				Math.min(i + batchSize, voNames.size()));
+
+			failed = !upgradeBatch(batch);
+		}
+
+		synchronized (this) {
+
+			state = failed ? UpgradeState.FAILED : UpgradeState.COMPLETED;
+			endTime = System.currentTimeMillis();
+
+			if (failed)
+				log.error("Upgrade to {} stopped after {} of {} VOs, failed VOs: {}.",
+					new Object[] { war, upgradedVOs, totalVOs, failedVOs });
+			else
+				log.info("Upgraded {} VOs to {} in {} msecs.", new Object[] {
+					upgradedVOs, war, endTime - startTime });
+		}
+	}
+
+	private boolean upgradeBatch(List<String> batch) {
+
+		Map<String, Future<Boolean>> results = new LinkedHashMap<String, Future<Boolean>>();
+
+		for (final String voName : batch) {
+
+			results.put(voName, batchExecutor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+
+					return provider.upgradeVO(voName, retireDelayInMsec);
+				}
+			}));
+		}
+
+		boolean success = true;
+
+		for (Map.Entry<String, Future<Boolean>> e : results.entrySet()) {
+
+			boolean upgraded = false;
+
+			try {
+
+				upgraded = e.getValue().get();
+
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+
+			} catch (ExecutionException ex) {
+				log.error("Error upgrading VO {}: {}", e.getKey(), ex.getCause()
+					.getMessage(), ex.getCause());
+			}
+
+			synchronized (this) {
+				if (upgraded)
+					upgradedVOs++;
+				else
+					failedVOs.add(e.getKey());
+			}
+
+			success &= upgraded;
+		}
+
+		return success;
+	}
+
+	/**
+	 * Starts watching the current web archive, upgrading the VOs when its
+	 * checksum changes. A change is acted upon only once the archive has been
+	 * stable for a whole scan interval, so that partially copied archives are
+	 * ignored.
+	 */
+	public synchronized void watch(long scanIntervalInMsec) {
+
+		if (warWatcher != null)
+			return;
+
+		warWatcher = Executors.newSingleThreadScheduledExecutor();
+		warWatcher.scheduleWithFixedDelay(new Runnable() {
+
+			private String deployedChecksum;
+			private String lastChecksum;
+
+			@Override
+			public void run() {
+
+				String war = provider.getWarFile();
+
+				try {
+
+					String checksum = WarChecksum.compute(new File(war));
+
+					if (deployedChecksum == null)
+						deployedChecksum = checksum;
+
+					if (!checksum.equals(deployedChecksum)
+						&& checksum.equals(lastChecksum) && requestUpgrade(war)) {
+
+						log.info("Web archive {} changed, starting upgrade.", war);
+						deployedChecksum = checksum;
+					}
+
+					lastChecksum = checksum;
+
+				} catch (IOException e) {
+					log.debug("Error computing checksum of {}: {}", war, e.getMessage());
+				} catch (RuntimeException e) {
+					log.warn("Error watching web archive {}: {}", war, e.getMessage(), e);
+				}
+			}
+		}, 0, scanIntervalInMsec, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+
+		synchronized (this) {
+			if (warWatcher != null)
+				warWatcher.shutdownNow();
+		}
+
+		upgradeExecutor.shutdownNow();
+		batchExecutor.shutdownNow();
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "upgrade";
+	}
+
+	@Override
+	public synchronized Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		metrics.put("state", state.toString());
+		metrics.put("war", upgradeWar);
+		metrics.put("batch_size", batchSize);
+		metrics.put("total_vos", totalVOs);
+		metrics.put("upgraded_vos", upgradedVOs);
+		metrics.put("failed_vos", new ArrayList<String>(failedVOs));
+
+		if (startTime > 0)
+			metrics.put("elapsed_msec",
+				(endTime > 0 ? endTime : System.currentTimeMillis()) - startTime);
+
+		return metrics;
+	}
+}
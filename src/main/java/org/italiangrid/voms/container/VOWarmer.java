@@ -0,0 +1,192 @@
+package org.italiangrid.voms.container;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.italiangrid.voms.container.handlers.VOPaths;
+import org.italiangrid.voms.container.handlers.VORouterHandler;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up freshly started VOs by replaying a set of synthetic requests
+ * against them through an in-process connector. A VO is marked active once
+ * its warm-up completes or times out.
+ */
+public class VOWarmer implements VOStatusRegistry.Listener {
+
+	public static final Logger log = LoggerFactory.getLogger("Warmup");
+
+	public static final int MAX_PARALLEL_WARMUPS = 4;
+
+	private final LocalConnector connector;
+	private final List<String> requestPaths;
+	private final long timeoutInMsec;
+
+	private final ExecutorService warmupExecutor = Executors
+		.newFixedThreadPool(MAX_PARALLEL_WARMUPS);
+
+	private final ScheduledExecutorService timeoutExecutor = Executors
+		.newSingleThreadScheduledExecutor();
+
+	/**
+	 * @param connector
+	 *          the in-process connector used to issue warm-up requests
+	 * @param requestPaths
+	 *          the paths, relative to the VO context, requested during warm-up
+	 * @param timeoutInMsec
+	 *          the maximum time a VO is kept in the warm-up stage
+	 */
+	public VOWarmer(LocalConnector connector, List<String> requestPaths,
+		long timeoutInMsec) {
+
+		this.connector = connector;
+		this.requestPaths = requestPaths;
+		this.timeoutInMsec = timeoutInMsec;
+	}
+
+	@Override
+	public void stateChanged(final String voName, VOState previousState,
+		VOState currentState) {
+
+		if (!VOState.WARMING_UP.equals(currentState))
+			return;
+
+		final long startTime = System.currentTimeMillis();
+
+		timeoutExecutor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+
+				if (activate(voName))
+					log.warn("VO {} warm-up timed out after {} msecs.", voName,
+						timeoutInMsec);
+			}
+		}, timeoutInMsec, TimeUnit.MILLISECONDS);
+
+		warmupExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				int errors = warmup(voName, startTime + timeoutInMsec, false);
+
+				if (activate(voName))
+					log.info("VO {} warmed up in {} msecs ({} requests, {} errors).",
+						new Object[] { voName, System.currentTimeMillis() - startTime,
+							requestPaths.size(), errors });
+			}
+		});
+	}
+
+	/**
+	 * Warms up the new version of a VO staged next to the running one, within
+	 * the warm-up timeout.
+	 * 
+	 * @return the number of warm-up requests that failed
+	 */
+	public int warmupStagedVersion(String voName) {
+
+		long startTime = System.currentTimeMillis();
+
+		int errors = warmup(voName, startTime + timeoutInMsec, true);
+
+		log.info("New version of VO {} warmed up in {} msecs ({} requests, {} "
+			+ "errors).", new Object[] { voName,
+			System.currentTimeMillis() - startTime, requestPaths.size(), errors });
+
+		return errors;
+	}
+
+	private synchronized boolean activate(String voName) {
+
+		VOStatusRegistry registry = VOStatusRegistry.INSTANCE;
+
+		if (!VOState.WARMING_UP.equals(registry.getState(voName)))
+			return false;
+
+		registry.setState(voName, VOState.ACTIVE);
+		return true;
+	}
+
+	private int warmup(String voName, long deadline, boolean stagedVersion) {
+
+		int errors = 0;
+
+		for (String path : requestPaths) {
+
+			if (System.currentTimeMillis() > deadline)
+				break;
+
+			if (!stagedVersion
+				&& !VOState.WARMING_UP.equals(VOStatusRegistry.INSTANCE
+					.getState(voName)))
+				break;
+
+			try {
+
+				String response = connector.getResponses(buildRequest(voName, path,
+					stagedVersion));
+
+				if (isServerError(response)) {
+					errors++;
+					log.debug("VO {} warm-up request {} failed: {}", new Object[] {
+						voName, path, statusLine(response) });
+				}
+
+			} catch (Exception e) {
+				errors++;
+				log.debug("VO {} warm-up request {} failed: {}", new Object[] {
+					voName, path, e.getMessage() });
+			}
+		}
+
+		return errors;
+	}
+
+	private String buildRequest(String voName, String path,
+		boolean stagedVersion) {
+
+		String uri = String.format("%s/%s", VOPaths.contextPathForVO(voName),
+			path).replaceAll("/+", "/");
+
+		String stagedHeader = stagedVersion ? VORouterHandler.STAGED_VERSION_HEADER
+			+ ": true\r\n" : "";
+
+		return String.format("GET %s HTTP/1.1\r\nHost: localhost\r\n%s"
+			+ "Connection: close\r\n\r\n", uri, stagedHeader);
+	}
+
+	private String statusLine(String response) {
+
+		if (response == null)
+			return null;
+
+		int eol = response.indexOf('\r');
+		return eol < 0 ? response : response.substring(0, eol);
+	}
+
+	private boolean isServerError(String response) {
+
+		String statusLine = statusLine(response);
+
+		if (statusLine == null)
+			return true;
+
+		String[] parts = statusLine.split(" ");
+		return parts.length < 2 || parts[1].startsWith("5");
+	}
+
+	public void shutdown() {
+
+		warmupExecutor.shutdownNow();
+		timeoutExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,88 @@
+package org.italiangrid.voms.container;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Computes a checksum identifying a version of the VOMS Admin web archive.
+ * For an expanded archive the checksum is computed over the relative path,
+ * size and modification time of each file.
+ */
+public class WarChecksum {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private WarChecksum() {
+
+	}
+
+	public static String compute(File war) throws IOException {
+
+		MessageDigest md = newDigest();
+
+		if (war.isDirectory()) {
+
+			String basePath = war.getAbsolutePath();
+			List<String> entries = new ArrayList<String>();
+
+			for (File f : FileUtils.listFiles(war, null, true)) {
+				entries.add(String.format("%s:%d:%d", f.getAbsolutePath()
+					.substring(basePath.length()), f.length(), f.lastModified()));
+			}
+
+			Collections.sort(entries);
+
+			for (String e : entries)
+				md.update(e.getBytes("UTF-8"));
+
+		} else {
+
+			InputStream is = new FileInputStream(war);
+
+			try {
+
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+
+				while ((n = is.read(buffer)) > 0)
+					md.update(buffer, 0, n);
+
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+		}
+
+		return toHex(md.digest());
+	}
+
+	private static MessageDigest newDigest() {
+
+		try {
+
+			return MessageDigest.getInstance("SHA-1");
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+
+		StringBuilder sb = new StringBuilder();
+
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+
+		return sb.toString();
+	}
+}
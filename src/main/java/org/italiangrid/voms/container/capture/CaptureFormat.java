@@ -0,0 +1,90 @@
+package org.italiangrid.voms.container.capture;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * The capture file layout. A capture starts with a header:
+ * 
+ * <pre>
+ * magic "VOMSCAP" | version (byte) | capture start, epoch msecs (long)
+ * </pre>
+ * 
+ * followed by the records, in arrival order:
+ * 
+ * <pre>
+ * offset from the start, usecs (varint)
+ * vo | method | uri (string)
+ * header count (varint), then name | value (string) for each
+ * original body length (varint) | captured body length (varint) | body
+ * status (varint) | duration, usecs (varint)
+ * </pre>
+ * 
+ * Short strings, like VO names, methods and header names, are interned per
+ * file: a string seen before is written as its index plus two, a new one as 0
+ * followed by its modified UTF-8 encoding. Other strings, like most URIs, are
+ * written as 1 followed by their encoding, without being interned.
+ */
+class CaptureFormat {
+
+	static final byte[] MAGIC = { 'V', 'O', 'M', 'S', 'C', 'A', 'P' };
+
+	static final int VERSION = 1;
+
+	static final int NEW_STRING = 0;
+	static final int LITERAL_STRING = 1;
+	static final int FIRST_STRING_REFERENCE = 2;
+
+	static final int MAX_INTERNED_STRING_LENGTH = 256;
+	static final int MAX_INTERNED_STRINGS = 65536;
+
+	// Keeps the modified UTF-8 encoding within 64KB
+	static final int MAX_STRING_LENGTH = 16384;
+
+	private CaptureFormat() {
+
+	}
+
+	static void writeVarint(DataOutput out, long value) throws IOException {
+
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		out.writeByte((int) value);
+	}
+
+	static long readVarint(DataInput in) throws IOException {
+
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varint in capture");
+	}
+
+	/**
+	 * Reads the first varint of a record, returning -1 at the end of the
+	 * capture.
+	 */
+	static long readVarintOrEnd(DataInput in) throws IOException {
+
+		try {
+
+			return readVarint(in);
+
+		} catch (EOFException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.italiangrid.voms.container.capture;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the records of a capture file written by {@link CaptureWriter}.
+ */
+public class CaptureReader implements Closeable {
+
+	private final DataInputStream in;
+	private final long startTimeInMsec;
+	private final List<String> strings = new ArrayList<String>();
+
+	public CaptureReader(File file) throws IOException {
+
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+
+			byte[] magic = new byte[CaptureFormat.MAGIC.length];
+			in.readFully(magic);
+
+			if (!Arrays.equals(magic, CaptureFormat.MAGIC))
+				throw new IOException("Not a capture file: " + file);
+
+			int version = in.readUnsignedByte();
+
+			if (version != CaptureFormat.VERSION)
+				throw new IOException("Unsupported capture version " + version + ": "
+					+ file);
+
+			startTimeInMsec = in.readLong();
+
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return when the capture started, in epoch msecs
+	 */
+	public long getStartTimeInMsec() {
+
+		return startTimeInMsec;
+	}
+
+	private String readString() throws IOException {
+
+		int tag = (int) CaptureFormat.readVarint(in);
+
+		if (tag >= CaptureFormat.FIRST_STRING_REFERENCE) {
+
+			int index = tag - CaptureFormat.FIRST_STRING_REFERENCE;
+
+			if (index >= strings.size())
+				throw new IOException("Invalid string reference in capture");
+
+			return strings.get(index);
+		}
+
+		String s = in.readUTF();
+
+		if (tag == CaptureFormat.NEW_STRING)
+			strings.add(s);
+
+		return s;
+	}
+
+	/**
+	 * @return the next record, or <code>null</code> at the end of the capture
+	 */
+	public CaptureRecord next() throws IOException {
+
+		long offset = CaptureFormat.readVarintOrEnd(in);
+
+		if (offset < 0)
+			return null;
+
+		String voName = readString();
+		String method = readString();
+		String uri = readString();
+
+		int headerCount = (int) CaptureFormat.readVarint(in);
+		List<String[]> headers = new ArrayList<String[]>(headerCount);
+
+		for (int i = 0; i < headerCount; i++)
+			headers.add(new String[] { readString(), readString() });
+
+		long bodyLength = CaptureFormat.readVarint(in);
+		byte[] body = new byte[(int) CaptureFormat.readVarint(in)];
+		in.readFully(body);
+
+		int status = (int) CaptureFormat.readVarint(in);
+		long duration = CaptureFormat.readVarint(in);
+
+		return new CaptureRecord(offset, voName, method, uri, headers,
+			bodyLength, body, status, duration);
+	}
+
+	/**
+	 * Reads all the remaining records.
+	 */
+	public List<CaptureRecord> readAll() throws IOException {
+
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+		CaptureRecord r;
+
+		while ((r = next()) != null)
+			records.add(r);
+
+		return records;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		in.close();
+	}
+}
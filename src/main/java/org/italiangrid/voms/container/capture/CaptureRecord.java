@@ -0,0 +1,101 @@
+package org.italiangrid.voms.container.capture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A captured request, with the status and duration of its response.
+ */
+public class CaptureRecord {
+
+	private final long offsetInUsec;
+	private final String voName;
+	private final String method;
+	private final String uri;
+	private final List<String[]> headers;
+	private final long bodyLength;
+	private final byte[] body;
+	private final int status;
+	private final long durationInUsec;
+
+	/**
+	 * @param offsetInUsec
+	 *          the arrival time of the request from the start of the capture
+	 * @param uri
+	 *          the request URI, with the query string if any
+	 * @param headers
+	 *          the captured headers, as name and value pairs
+	 * @param bodyLength
+	 *          the length of the original body, which may be longer than the
+	 *          captured one
+	 */
+	public CaptureRecord(long offsetInUsec, String voName, String method,
+		String uri, List<String[]> headers, long bodyLength, byte[] body,
+		int status, long durationInUsec) {
+
+		this.offsetInUsec = offsetInUsec;
+		this.voName = voName;
+		this.method = method;
+		this.uri = uri;
+		this.headers = Collections.unmodifiableList(new ArrayList<String[]>(
+			headers));
+		this.bodyLength = bodyLength;
+		this.body = body;
+		this.status = status;
+		this.durationInUsec = durationInUsec;
+	}
+
+	public long getOffsetInUsec() {
+
+		return offsetInUsec;
+	}
+
+	public String getVoName() {
+
+		return voName;
+	}
+
+	public String getMethod() {
+
+		return method;
+	}
+
+	public String getUri() {
+
+		return uri;
+	}
+
+	public List<String[]> getHeaders() {
+
+		return headers;
+	}
+
+	public long getBodyLength() {
+
+		return bodyLength;
+	}
+
+	public byte[] getBody() {
+
+		return body;
+	}
+
+	/**
+	 * @return whether the body was longer than the capture size limit
+	 */
+	public boolean isBodyTruncated() {
+
+		return body.length < bodyLength;
+	}
+
+	public int getStatus() {
+
+		return status;
+	}
+
+	public long getDurationInUsec() {
+
+		return durationInUsec;
+	}
+}
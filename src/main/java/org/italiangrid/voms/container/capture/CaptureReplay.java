@@ -0,0 +1,521 @@
+package org.italiangrid.voms.container.capture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.italiangrid.voms.container.metrics.JsonUtil;
+
+/**
+ * Replays a capture against a test container and reports, for each VO and
+ * overall, the latency distribution of the replayed requests side by side
+ * with the one recorded in the capture.
+ * 
+ * Requests are sent in capture order, at their original pace scaled by the
+ * speed factor, or back to back with a speed of 0. At most the given number
+ * of requests are in flight at any time; when the limit is reached, later
+ * requests wait and the delay is reported as schedule lag, so that runs with
+ * the same capture and settings are comparable.
+ * 
+ * The client credential, when needed, is read from a PKCS12 keystore. The
+ * server certificate is not checked, as the target is a test container.
+ */
+public class CaptureReplay {
+
+	private static final String ARG_CAPTURE = "capture";
+	private static final String ARG_TARGET = "target";
+	private static final String ARG_SPEED = "speed";
+	private static final String ARG_CONCURRENCY = "concurrency";
+	private static final String ARG_KEYSTORE = "keystore";
+	private static final String ARG_STOREPASS = "storepass";
+	private static final String ARG_VOS = "vos";
+	private static final String ARG_OUTPUT = "out";
+	private static final String ARG_TIMEOUT = "timeout";
+
+	private static final int[] PERCENTILES = { 50, 90, 99 };
+
+	private static final String ALL_VOS_KEY = "_all";
+
+	private String capture;
+	private String target;
+	private double speed = 1.0;
+	private int concurrency = 16;
+	private String keystore;
+	private String storePassword = "";
+	private final Set<String> voNames = new HashSet<String>();
+	private String output;
+	private int timeoutInMsec = 30000;
+
+	private SSLSocketFactory socketFactory;
+
+	private static class Samples {
+
+		final List<Long> original = Collections
+			.synchronizedList(new ArrayList<Long>());
+		final List<Long> replayed = Collections
+			.synchronizedList(new ArrayList<Long>());
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong statusMismatches = new AtomicLong();
+	}
+
+	private final Map<String, Samples> samples = new TreeMap<String, Samples>();
+
+	private final AtomicLong truncatedBodies = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong maxLagInUsec = new AtomicLong();
+	private final AtomicLong totalLagInUsec = new AtomicLong();
+
+	private CaptureReplay(String[] args) {
+
+		Options options = new Options();
+
+		options.addOption(ARG_CAPTURE, true, "The capture file to replay.");
+		options.addOption(ARG_TARGET, true,
+			"The base URL of the test container, e.g. https://localhost:8443.");
+		options.addOption(ARG_SPEED, true,
+			"Pace relative to the capture, default 1. 0 replays back to back.");
+		options.addOption(ARG_CONCURRENCY, true,
+			"Maximum requests in flight, default 16.");
+		options.addOption(ARG_KEYSTORE, true,
+			"A PKCS12 keystore with the client credential.");
+		options.addOption(ARG_STOREPASS, true, "The keystore password.");
+		options.addOption(ARG_VOS, true,
+			"Comma separated VOs to replay, default all.");
+		options.addOption(ARG_OUTPUT, true,
+			"The JSON report file, default the standard output.");
+		options.addOption(ARG_TIMEOUT, true,
+			"Request timeout in seconds, default 30.");
+
+		CommandLineParser parser = new GnuParser();
+
+		try {
+
+			CommandLine cmdLine = parser.parse(options, args);
+
+			if (!cmdLine.hasOption(ARG_CAPTURE) || !cmdLine.hasOption(ARG_TARGET))
+				failAndExit("The -capture and -target options are required", null);
+
+			capture = cmdLine.getOptionValue(ARG_CAPTURE);
+			target = cmdLine.getOptionValue(ARG_TARGET).replaceAll("/+$", "");
+
+			if (cmdLine.hasOption(ARG_SPEED))
+				speed = Double.parseDouble(cmdLine.getOptionValue(ARG_SPEED));
+
+			if (cmdLine.hasOption(ARG_CONCURRENCY))
+				concurrency = Integer.parseInt(cmdLine.getOptionValue(ARG_CONCURRENCY));
+
+			if (cmdLine.hasOption(ARG_TIMEOUT))
+				timeoutInMsec = (int) TimeUnit.SECONDS.toMillis(Long
+					.parseLong(cmdLine.getOptionValue(ARG_TIMEOUT)));
+
+			if (cmdLine.hasOption(ARG_VOS)) {
+				for (String vo : cmdLine.getOptionValue(ARG_VOS).split(","))
+					if (!vo.trim().isEmpty())
+						voNames.add(vo.trim());
+			}
+
+			keystore = cmdLine.getOptionValue(ARG_KEYSTORE);
+			storePassword = cmdLine.getOptionValue(ARG_STOREPASS, "");
+			output = cmdLine.getOptionValue(ARG_OUTPUT);
+
+		} catch (ParseException e) {
+			failAndExit("Error parsing command line arguments", e);
+		} catch (NumberFormatException e) {
+			failAndExit("Invalid number in command line arguments", e);
+		}
+
+		if (speed < 0 || concurrency < 1)
+			failAndExit("The speed must not be negative and the concurrency must "
+				+ "be positive", null);
+	}
+
+	private static void failAndExit(String errorMessage, Throwable t) {
+
+		if (t != null)
+			System.err.format("%s: %s\n", errorMessage, t.getMessage());
+		else
+			System.err.println(errorMessage);
+
+		System.exit(1);
+	}
+
+	private void initSocketFactory() throws Exception {
+
+		KeyManager[] keyManagers = null;
+
+		if (keystore != null) {
+
+			KeyStore ks = KeyStore.getInstance("PKCS12");
+			InputStream is = new FileInputStream(keystore);
+
+			try {
+				ks.load(is, storePassword.toCharArray());
+			} finally {
+				is.close();
+			}
+
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+			kmf.init(ks, storePassword.toCharArray());
+			keyManagers = kmf.getKeyManagers();
+		}
+
+		TrustManager trustAll = new X509TrustManager() {
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+
+				return new X509Certificate[0];
+			}
+		};
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers, new TrustManager[] { trustAll },
+			new SecureRandom());
+
+		socketFactory = context.getSocketFactory();
+	}
+
+	private synchronized Samples samplesFor(String key) {
+
+		Samples s = samples.get(key);
+
+		if (s == null) {
+			s = new Samples();
+			samples.put(key, s);
+		}
+
+		return s;
+	}
+
+	private void run() throws Exception {
+
+		initSocketFactory();
+
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+		long captureStartTime;
+
+		CaptureReader reader = new CaptureReader(new File(capture));
+
+		try {
+
+			captureStartTime = reader.getStartTimeInMsec();
+			CaptureRecord r;
+
+			while ((r = reader.next()) != null) {
+				if (voNames.isEmpty() || voNames.contains(r.getVoName()))
+					records.add(r);
+			}
+
+		} finally {
+			reader.close();
+		}
+
+		System.err.format("Replaying %d requests against %s...\n",
+			records.size(), target);
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		final Semaphore slots = new Semaphore(concurrency);
+
+		long replayStart = System.nanoTime();
+		long firstOffset = records.isEmpty() ? 0 : records.get(0)
+			.getOffsetInUsec();
+
+		try {
+
+			for (final CaptureRecord r : records) {
+
+				if (speed > 0) {
+
+					long dueNanos = replayStart
+						+ (long) ((r.getOffsetInUsec() - firstOffset) * 1000 / speed);
+					long waitNanos = dueNanos - System.nanoTime();
+
+					if (waitNanos > 0)
+						TimeUnit.NANOSECONDS.sleep(waitNanos);
+
+					slots.acquire();
+
+					long lag = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+						- dueNanos);
+
+					if (lag > 0) {
+						totalLagInUsec.addAndGet(lag);
+
+						if (lag > maxLagInUsec.get())
+							maxLagInUsec.set(lag);
+					}
+
+				} else {
+					slots.acquire();
+				}
+
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+
+						try {
+							replay(r);
+						} finally {
+							slots.release();
+						}
+					}
+				});
+			}
+
+			slots.acquire(concurrency);
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long replayTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+			- replayStart);
+
+		report(captureStartTime, records, replayTime);
+	}
+
+	private void replay(CaptureRecord r) {
+
+		Samples vo = samplesFor(r.getVoName());
+		Samples all = samplesFor(ALL_VOS_KEY);
+
+		if (r.isBodyTruncated())
+			truncatedBodies.incrementAndGet();
+
+		try {
+
+			HttpURLConnection c = (HttpURLConnection) new URL(target + r.getUri())
+				.openConnection();
+
+			if (c instanceof HttpsURLConnection) {
+				HttpsURLConnection https = (HttpsURLConnection) c;
+				https.setSSLSocketFactory(socketFactory);
+				https.setHostnameVerifier(new HostnameVerifier() {
+
+					@Override
+					public boolean verify(String hostname, SSLSession session) {
+
+						return true;
+					}
+				});
+			}
+
+			try {
+
+				c.setRequestMethod(r.getMethod());
+
+			} catch (ProtocolException e) {
+				skipped.incrementAndGet();
+				return;
+			}
+
+			c.setConnectTimeout(timeoutInMsec);
+			c.setReadTimeout(timeoutInMsec);
+			c.setInstanceFollowRedirects(false);
+
+			for (String[] h : r.getHeaders())
+				c.addRequestProperty(h[0], h[1]);
+
+			long start = System.nanoTime();
+
+			try {
+
+				if (r.getBody().length > 0) {
+					c.setDoOutput(true);
+					c.setFixedLengthStreamingMode(r.getBody().length);
+
+					OutputStream os = c.getOutputStream();
+					os.write(r.getBody());
+					os.close();
+				}
+
+				int status = c.getResponseCode();
+
+				InputStream is = status >= 400 ? c.getErrorStream() : c
+					.getInputStream();
+
+				if (is != null) {
+					byte[] buffer = new byte[8192];
+
+					while (is.read(buffer) >= 0)
+						;
+
+					is.close();
+				}
+
+				long elapsed = TimeUnit.NANOSECONDS
+					.toMicros(System.nanoTime() - start);
+
+				for (Samples s : new Samples[] { vo, all }) {
+					s.original.add(r.getDurationInUsec());
+					s.replayed.add(elapsed);
+
+					if (status != r.getStatus())
+						s.statusMismatches.incrementAndGet();
+				}
+
+			} finally {
+				c.disconnect();
+			}
+
+		} catch (IOException e) {
+			vo.errors.incrementAndGet();
+			all.errors.incrementAndGet();
+		}
+	}
+
+	private static Map<String, Object> distribution(List<Long> values) {
+
+		List<Long> sorted;
+
+		synchronized (values) {
+			sorted = new ArrayList<Long>(values);
+		}
+
+		Collections.sort(sorted);
+
+		Map<String, Object> d = new LinkedHashMap<String, Object>();
+
+		if (sorted.isEmpty())
+			return d;
+
+		long sum = 0;
+
+		for (long v : sorted)
+			sum += v;
+
+		d.put("mean_usec", sum / sorted.size());
+
+		for (int p : PERCENTILES)
+			d.put("p" + p + "_usec", percentile(sorted, p));
+
+		d.put("max_usec", sorted.get(sorted.size() - 1));
+
+		return d;
+	}
+
+	private static long percentile(List<Long> sorted, int percentile) {
+
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(index, 0));
+	}
+
+	private void report(long captureStartTime, List<CaptureRecord> records,
+		long replayTimeInMsec) throws IOException {
+
+		Map<String, Object> results = new LinkedHashMap<String, Object>();
+
+		results.put("benchmark", "replay");
+		results.put("date", String.format("%tFT%<tTZ", new Date()));
+		results.put("capture", capture);
+		results.put("capture_start", String.format("%tFT%<tTZ", new Date(
+			captureStartTime)));
+		results.put("target", target);
+		results.put("speed", speed);
+		results.put("concurrency", concurrency);
+		results.put("requests", records.size());
+		results.put("skipped_requests", skipped.get());
+		results.put("truncated_bodies", truncatedBodies.get());
+		results.put("replay_time_msec", replayTimeInMsec);
+		results.put("max_schedule_lag_usec", maxLagInUsec.get());
+		results.put("total_schedule_lag_usec", totalLagInUsec.get());
+
+		Map<String, Object> latencies = new LinkedHashMap<String, Object>();
+
+		for (Map.Entry<String, Samples> e : samples.entrySet()) {
+
+			Samples s = e.getValue();
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+
+			m.put("completed", s.replayed.size());
+			m.put("errors", s.errors.get());
+			m.put("status_mismatches", s.statusMismatches.get());
+			m.put("original", distribution(s.original));
+			m.put("replayed", distribution(s.replayed));
+
+			latencies.put(e.getKey(), m);
+		}
+
+		results.put("latencies", latencies);
+
+		String json = JsonUtil.toJson(results);
+
+		if (output == null) {
+			System.out.println(json);
+		} else {
+			Writer w = new FileWriter(output);
+			try {
+				w.write(json);
+				w.write("\n");
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+
+		try {
+
+			new CaptureReplay(args).run();
+
+		} catch (Throwable t) {
+			System.err.println("Replay failed: " + t.getMessage());
+			t.printStackTrace(System.err);
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,350 @@
+package org.italiangrid.voms.container.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends records to a capture file. Records are queued by the request
+ * threads and written by a single background thread; when the queue is full,
+ * or once the file has reached its maximum size, records are dropped and
+ * counted.
+ */
+public class CaptureWriter implements Closeable {
+
+	public static final Logger log = LoggerFactory.getLogger("Capture");
+
+	public static final int QUEUE_SIZE = 4096;
+
+	public static final String PRIVATE_DIR_NAME = "voms-container-capture";
+
+	public static final String DEFAULT_FILE_NAME = "capture.bin";
+
+	private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions
+		.fromString("rw-------");
+
+	private static final Set<PosixFilePermission> OWNER_ONLY_DIR = PosixFilePermissions
+		.fromString("rwx------");
+
+	private static final Set<PosixFilePermission> GROUP_AND_OTHERS = EnumSet.of(
+		PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE,
+		PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_READ,
+		PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE);
+
+	private static final long CLOSE_TIMEOUT_IN_MSEC = 5000;
+
+	private final File file;
+	private final long maxSizeInBytes;
+	private final long startTimeInMsec;
+	private final long startNanos;
+
+	private final DataOutputStream out;
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+	private final BlockingQueue<CaptureRecord> queue = new ArrayBlockingQueue<CaptureRecord>(
+		QUEUE_SIZE);
+
+	private final Thread worker;
+
+	private volatile boolean closed = false;
+	private volatile boolean full = false;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong droppedQueueFull = new AtomicLong();
+	private final AtomicLong droppedFileFull = new AtomicLong();
+	private final AtomicLong droppedTooLong = new AtomicLong();
+
+	/**
+	 * Creates a new capture, overwriting the file if it exists. The file is
+	 * created readable by the container user only, since captures hold client
+	 * identities and request bodies. An existing file is overwritten only if it
+	 * is a regular file owned by the container user.
+	 * 
+	 * @param maxSizeInBytes
+	 *          the size after which records are no longer written
+	 */
+	public CaptureWriter(File file, long maxSizeInBytes) throws IOException {
+
+		this.file = file;
+		this.maxSizeInBytes = maxSizeInBytes;
+
+		startTimeInMsec = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+
+		out = new DataOutputStream(new BufferedOutputStream(open(file.toPath())));
+
+		out.write(CaptureFormat.MAGIC);
+		out.writeByte(CaptureFormat.VERSION);
+		out.writeLong(startTimeInMsec);
+
+		worker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				drain();
+			}
+		}, "capture-writer");
+
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * @return the default capture file, in a directory under
+	 *         <code>baseDir</code> private to the container user, created if
+	 *         needed
+	 * @throws IOException
+	 *           if the directory exists but is not private to the container user
+	 */
+	public static File getDefaultFile(File baseDir) throws IOException {
+
+		Path dir = new File(baseDir, PRIVATE_DIR_NAME).toPath();
+
+		if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS))
+			Files.createDirectories(dir,
+				PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIR));
+
+		if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+			throw new IOException(dir + " is not a directory");
+
+		checkOwner(dir);
+
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(dir,
+			LinkOption.NOFOLLOW_LINKS);
+		permissions.retainAll(GROUP_AND_OTHERS);
+
+		if (!permissions.isEmpty())
+			throw new IOException(dir + " is accessible to other users");
+
+		return new File(dir.toFile(), DEFAULT_FILE_NAME);
+	}
+
+	private static void checkOwner(Path path) throws IOException {
+
+		String owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+
+		if (!owner.equals(System.getProperty("user.name")))
+			throw new IOException(path + " is owned by " + owner
+				+ ", not by the container user");
+	}
+
+	private static OutputStream open(Path path) throws IOException {
+
+		if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+
+			if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+				throw new IOException(path + " is not a regular file");
+
+			checkOwner(path);
+			Files.setPosixFilePermissions(path, OWNER_ONLY_FILE);
+
+		} else {
+			Files.createFile(path, PosixFilePermissions
+				.asFileAttribute(OWNER_ONLY_FILE));
+		}
+
+		// Never follow a link swapped in after the checks
+		return Files.newOutputStream(path, LinkOption.NOFOLLOW_LINKS,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * @return the time elapsed since the capture started, in usecs
+	 */
+	public long elapsedUsec(long nanoTime) {
+
+		return TimeUnit.NANOSECONDS.toMicros(nanoTime - startNanos);
+	}
+
+	private static boolean isWritable(CaptureRecord r) {
+
+		if (r.getUri().length() > CaptureFormat.MAX_STRING_LENGTH)
+			return false;
+
+		for (String[] h : r.getHeaders()) {
+			if (h[0].length() > CaptureFormat.MAX_STRING_LENGTH
+				|| h[1].length() > CaptureFormat.MAX_STRING_LENGTH)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Queues a record for writing, without blocking. Records with strings too
+	 * long for the capture format are dropped.
+	 */
+	public void append(CaptureRecord record) {
+
+		if (closed)
+			return;
+
+		if (!isWritable(record)) {
+			droppedTooLong.incrementAndGet();
+			return;
+		}
+
+		if (full) {
+			droppedFileFull.incrementAndGet();
+			return;
+		}
+
+		if (!queue.offer(record))
+			droppedQueueFull.incrementAndGet();
+	}
+
+	private void drain() {
+
+		try {
+
+			while (!closed || !queue.isEmpty()) {
+
+				CaptureRecord r = queue.poll(100, TimeUnit.MILLISECONDS);
+
+				if (r == null) {
+					out.flush();
+					continue;
+				}
+
+				if (out.size() >= maxSizeInBytes) {
+
+					if (!full)
+						log.warn("Capture {} reached its maximum size, dropping further "
+							+ "requests.", file);
+
+					full = true;
+					droppedFileFull.incrementAndGet();
+					continue;
+				}
+
+				write(r);
+				written.incrementAndGet();
+			}
+
+			out.flush();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.error("Error writing capture {}, capture stopped: {}", file,
+				e.getMessage());
+			closed = true;
+		}
+	}
+
+	private void writeString(String s) throws IOException {
+
+		Integer index = strings.get(s);
+
+		if (index != null) {
+			CaptureFormat.writeVarint(out, index
+				+ CaptureFormat.FIRST_STRING_REFERENCE);
+			return;
+		}
+
+		if (s.length() <= CaptureFormat.MAX_INTERNED_STRING_LENGTH
+			&& strings.size() < CaptureFormat.MAX_INTERNED_STRINGS) {
+
+			strings.put(s, strings.size());
+			CaptureFormat.writeVarint(out, CaptureFormat.NEW_STRING);
+
+		} else {
+			CaptureFormat.writeVarint(out, CaptureFormat.LITERAL_STRING);
+		}
+
+		out.writeUTF(s);
+	}
+
+	private void write(CaptureRecord r) throws IOException {
+
+		CaptureFormat.writeVarint(out, r.getOffsetInUsec());
+
+		writeString(r.getVoName());
+		writeString(r.getMethod());
+		writeString(r.getUri());
+
+		CaptureFormat.writeVarint(out, r.getHeaders().size());
+
+		for (String[] h : r.getHeaders()) {
+			writeString(h[0]);
+			writeString(h[1]);
+		}
+
+		CaptureFormat.writeVarint(out, r.getBodyLength());
+		CaptureFormat.writeVarint(out, r.getBody().length);
+		out.write(r.getBody());
+
+		CaptureFormat.writeVarint(out, r.getStatus());
+		CaptureFormat.writeVarint(out, r.getDurationInUsec());
+	}
+
+	/**
+	 * Writes the queued records and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		closed = true;
+
+		try {
+
+			worker.join(CLOSE_TIMEOUT_IN_MSEC);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (worker.isAlive())
+			log.warn("Capture writer did not terminate, {} records lost.",
+				queue.size());
+
+		out.close();
+	}
+
+	public File getFile() {
+
+		return file;
+	}
+
+	public long getStartTimeInMsec() {
+
+		return startTimeInMsec;
+	}
+
+	public long getWrittenRecords() {
+
+		return written.get();
+	}
+
+	public long getDroppedRecords() {
+
+		return droppedQueueFull.get() + droppedFileFull.get()
+			+ droppedTooLong.get();
+	}
+
+	public long getSizeInBytes() {
+
+		return out.size();
+	}
+}
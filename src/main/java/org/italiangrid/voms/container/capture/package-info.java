@@ -0,0 +1,5 @@
+/**
+ * Capture of VO requests to a compact binary log, and deterministic replay of
+ * captures against a test container.
+ */
+package org.italiangrid.voms.container.capture;
@@ -0,0 +1,84 @@
+package org.italiangrid.voms.container.diagnostics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runs HotSpot diagnostic commands, the same available through jcmd, via the
+ * DiagnosticCommand MBean.
+ */
+public class DiagnosticCommands {
+
+	public static final String DIAGNOSTIC_COMMAND_MBEAN = "com.sun.management:type=DiagnosticCommand";
+
+	private DiagnosticCommands() {
+
+	}
+
+	/**
+	 * Invokes a diagnostic command.
+	 * 
+	 * @param operation
+	 *          the MBean operation name, e.g. <code>threadPrint</code> for the
+	 *          <code>Thread.print</code> jcmd command
+	 * @param args
+	 *          the command arguments
+	 * @return the command output
+	 * @throws DiagnosticCommandException
+	 *           if the command is not supported by this JVM or fails
+	 */
+	public static String invoke(String operation, String... args) {
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+
+			Object result = server.invoke(new ObjectName(DIAGNOSTIC_COMMAND_MBEAN),
+				operation, new Object[] { args },
+				new String[] { String[].class.getName() });
+
+			return result == null ? "" : result.toString();
+
+		} catch (JMException e) {
+			throw new DiagnosticCommandException("Error running diagnostic "
+				+ "command " + operation + ": " + e.getMessage(), e);
+		}
+	}
+
+	public static String threadDump() {
+
+		return invoke("threadPrint", "-l");
+	}
+
+	public static String classHistogram(boolean allObjects) {
+
+		if (allObjects)
+			return invoke("gcClassHistogram", "-all");
+
+		return invoke("gcClassHistogram");
+	}
+
+	public static String startRecording(String name, String maxAge) {
+
+		return invoke("jfrStart", "name=" + name, "maxage=" + maxAge,
+			"disk=true", "settings=default");
+	}
+
+	public static String dumpRecording(String name, String filename) {
+
+		return invoke("jfrDump", "name=" + name, "filename=" + filename);
+	}
+
+	public static class DiagnosticCommandException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public DiagnosticCommandException(String message, Throwable cause) {
+
+			super(message, cause);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.italiangrid.voms.container.diagnostics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Keeps the most recent VO lifecycle transitions, so that they can be
+ * correlated with a recording after a performance incident.
+ */
+public enum VOEventLog implements VOStatusRegistry.Listener {
+
+	INSTANCE;
+
+	public static final int MAX_EVENTS = 1000;
+
+	private final LinkedList<Map<String, Object>> events = new LinkedList<Map<String, Object>>();
+
+	@Override
+	public void stateChanged(String voName, VOState previousState,
+		VOState currentState) {
+
+		Map<String, Object> event = new LinkedHashMap<String, Object>();
+
+		event.put("timestamp", System.currentTimeMillis());
+		event.put("vo", voName);
+		event.put("previous", previousState);
+		event.put("state", currentState);
+
+		synchronized (events) {
+			events.addLast(event);
+
+			if (events.size() > MAX_EVENTS)
+				events.removeFirst();
+		}
+	}
+
+	public List<Map<String, Object>> getEvents() {
+
+		synchronized (events) {
+			return new ArrayList<Map<String, Object>>(events);
+		}
+	}
+}
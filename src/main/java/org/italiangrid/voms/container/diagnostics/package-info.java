@@ -0,0 +1,4 @@
+/**
+ * JVM diagnostics exposed on the local status connector.
+ */
+package org.italiangrid.voms.container.diagnostics;
@@ -0,0 +1,276 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.http.HttpFields;
+
+/**
+ * Buffers a response body, up to a maximum size, so that it can be cached.
+ * Headers go straight to the wrapped response and are also recorded. Bodies
+ * larger than the maximum size, error responses and responses setting cookies
+ * are not cacheable; in the first case the buffered data is flushed and the
+ * rest of the body streamed through.
+ */
+class CachingResponseWrapper extends HttpServletResponseWrapper {
+
+	private final int maxBufferSize;
+
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private boolean passThrough = false;
+	private boolean cacheable = true;
+	private int status = SC_OK;
+
+	private final List<String[]> headers = new ArrayList<String[]>();
+
+	private ServletOutputStream outputStream;
+	private PrintWriter writer;
+
+	CachingResponseWrapper(HttpServletResponse response, int maxBufferSize) {
+
+		super(response);
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	private void switchToPassThrough() throws IOException {
+
+		if (passThrough)
+			return;
+
+		passThrough = true;
+		cacheable = false;
+
+		byte[] buffered = buffer.toByteArray();
+		buffer = null;
+
+		if (buffered.length > 0)
+			getResponse().getOutputStream().write(buffered);
+	}
+
+	private void recordHeader(String name, String value, boolean replace) {
+
+		if (name.equalsIgnoreCase("Set-Cookie"))
+			cacheable = false;
+
+		if (replace) {
+			Iterator<String[]> it = headers.iterator();
+			while (it.hasNext())
+				if (it.next()[0].equalsIgnoreCase(name))
+					it.remove();
+		}
+
+		headers.add(new String[] { name, value });
+	}
+
+	@Override
+	public void setStatus(int sc) {
+
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(int sc, String sm) {
+
+		status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+
+		switchToPassThrough();
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+
+		switchToPassThrough();
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+
+		switchToPassThrough();
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+
+		cacheable = false;
+		super.addCookie(cookie);
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+
+		recordHeader(name, value, true);
+		super.setHeader(name, value);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+
+		recordHeader(name, value, false);
+		super.addHeader(name, value);
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+
+		recordHeader(name, Integer.toString(value), true);
+		super.setIntHeader(name, value);
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+
+		recordHeader(name, Integer.toString(value), false);
+		super.addIntHeader(name, value);
+	}
+
+	@Override
+	public void setDateHeader(String name, long date) {
+
+		recordHeader(name, HttpFields.formatDate(date), true);
+		super.setDateHeader(name, date);
+	}
+
+	@Override
+	public void addDateHeader(String name, long date) {
+
+		recordHeader(name, HttpFields.formatDate(date), false);
+		super.addDateHeader(name, date);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+
+		if (writer != null)
+			throw new IllegalStateException("getWriter() already called");
+
+		return getBufferingOutputStream();
+	}
+
+	private ServletOutputStream getBufferingOutputStream() {
+
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+
+					if (!passThrough && buffer.size() + len > maxBufferSize)
+						switchToPassThrough();
+
+					if (passThrough)
+						getResponse().getOutputStream().write(b, off, len);
+					else
+						buffer.write(b, off, len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+
+					if (passThrough)
+						getResponse().getOutputStream().flush();
+				}
+			};
+		}
+
+		return outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+
+		if (writer == null) {
+
+			if (outputStream != null)
+				throw new IllegalStateException("getOutputStream() already called");
+
+			writer = new PrintWriter(new OutputStreamWriter(
+				getBufferingOutputStream(), getCharacterEncoding()));
+		}
+
+		return writer;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+
+		if (writer != null)
+			writer.flush();
+
+		// A buffered response is committed when the request completes
+		if (passThrough)
+			super.flushBuffer();
+	}
+
+	@Override
+	public void resetBuffer() {
+
+		if (!passThrough)
+			buffer.reset();
+
+		super.resetBuffer();
+	}
+
+	@Override
+	public void reset() {
+
+		if (!passThrough)
+			buffer.reset();
+
+		headers.clear();
+		status = SC_OK;
+		super.reset();
+	}
+
+	/**
+	 * Writes the buffered body to the wrapped response.
+	 */
+	void finish() throws IOException {
+
+		if (writer != null)
+			writer.flush();
+
+		if (!passThrough && buffer.size() > 0) {
+			getResponse().setContentLength(buffer.size());
+			buffer.writeTo(getResponse().getOutputStream());
+		}
+	}
+
+	/**
+	 * @return the response as a cache entry, or <code>null</code> if the
+	 *         response is not cacheable
+	 */
+	MicroCacheHandler.CachedResponse toCachedResponse(long expirationTime) {
+
+		if (!cacheable || passThrough || status != SC_OK)
+			return null;
+
+		return new MicroCacheHandler.CachedResponse(getResponse().getContentType(),
+			new ArrayList<String[]>(headers), buffer.toByteArray(), expirationTime);
+	}
+}
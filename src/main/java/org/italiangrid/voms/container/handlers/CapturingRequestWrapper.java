@@ -0,0 +1,131 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Keeps a copy of the first bytes of the request body, as they are read by
+ * the application.
+ */
+class CapturingRequestWrapper extends HttpServletRequestWrapper {
+
+	private final int maxBodySize;
+
+	private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+	private long bodyLength = 0;
+
+	private ServletInputStream inputStream;
+	private BufferedReader reader;
+
+	CapturingRequestWrapper(HttpServletRequest request, int maxBodySize) {
+
+		super(request);
+		this.maxBodySize = maxBodySize;
+	}
+
+	private void capture(byte[] b, int off, int len) {
+
+		bodyLength += len;
+
+		int room = maxBodySize - captured.size();
+
+		if (room > 0)
+			captured.write(b, off, Math.min(room, len));
+	}
+
+	@Override
+	public ServletInputStream getInputStream() throws IOException {
+
+		if (inputStream != null)
+			return inputStream;
+
+		final ServletInputStream in = super.getInputStream();
+
+		inputStream = new ServletInputStream() {
+
+			@Override
+			public int read() throws IOException {
+
+				int b = in.read();
+
+				if (b >= 0)
+					capture(new byte[] { (byte) b }, 0, 1);
+
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+
+				int n = in.read(b, off, len);
+
+				if (n > 0)
+					capture(b, off, n);
+
+				return n;
+			}
+
+			@Override
+			public int available() throws IOException {
+
+				return in.available();
+			}
+
+			@Override
+			public void close() throws IOException {
+
+				in.close();
+			}
+		};
+
+		return inputStream;
+	}
+
+	@Override
+	public BufferedReader getReader() throws IOException {
+
+		if (reader != null)
+			return reader;
+
+		String encoding = getCharacterEncoding();
+
+		if (encoding == null)
+			encoding = "ISO-8859-1";
+
+		try {
+
+			reader = new BufferedReader(new InputStreamReader(getInputStream(),
+				encoding));
+
+		} catch (UnsupportedEncodingException e) {
+			reader = new BufferedReader(new InputStreamReader(getInputStream(),
+				"ISO-8859-1"));
+		}
+
+		return reader;
+	}
+
+	/**
+	 * @return the number of body bytes read by the application
+	 */
+	long getBodyLength() {
+
+		return bodyLength;
+	}
+
+	/**
+	 * @return the captured body bytes, at most the maximum body size
+	 */
+	byte[] getCapturedBody() {
+
+		return captured.toByteArray();
+	}
+}
@@ -0,0 +1,53 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.identity.ClientIdentity;
+import org.italiangrid.voms.container.identity.ClientIdentityCache;
+
+/**
+ * Publishes the {@link ClientIdentity} of the client to the VO requests, taking
+ * it from the cache of the TLS session when the session has been seen before.
+ */
+public class ClientIdentityHandler extends HandlerWrapper {
+
+	public static final String SSL_SESSION_ID_ATTRIBUTE = "javax.servlet.request.ssl_session_id";
+
+	private final ClientIdentityCache cache;
+
+	public ClientIdentityHandler(ClientIdentityCache cache) {
+
+		this.cache = cache;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		if (VOPaths.voNameFromPath(target) != null
+			&& request.getAttribute(ClientIdentity.ATTRIBUTE) == null) {
+
+			X509Certificate[] chain = (X509Certificate[]) request
+				.getAttribute(ClientIdentity.X509_CERTIFICATE_ATTRIBUTE);
+
+			if (chain != null && chain.length > 0) {
+
+				ClientIdentity identity = cache.get(
+					(String) request.getAttribute(SSL_SESSION_ID_ATTRIBUTE), chain);
+
+				if (identity != null)
+					request.setAttribute(ClientIdentity.ATTRIBUTE, identity);
+			}
+		}
+
+		super.handle(target, baseRequest, request, response);
+	}
+}
@@ -0,0 +1,432 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses a response body on the fly. The first bytes are held back until
+ * the minimum size is reached, or the response is flushed or completed, to
+ * decide whether the body is worth compressing; from then on data is
+ * streamed, compressed or not, without further buffering.
+ */
+class CompressingResponseWrapper extends HttpServletResponseWrapper {
+
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+		Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private enum Mode {
+		UNDECIDED, PASS_THROUGH, COMPRESSING
+	}
+
+	private final CompressionHandler handler;
+	private final String encoding;
+	private final String statsKey;
+
+	private Mode mode = Mode.UNDECIDED;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private long pendingContentLength = -1;
+	private int status = SC_OK;
+
+	private Deflater deflater;
+	private CRC32 crc;
+	private byte[] outputBuffer;
+	private long bytesIn = 0;
+	private long bytesOut = 0;
+	private long cpuTime = 0;
+
+	private ServletOutputStream outputStream;
+	private PrintWriter writer;
+
+	/**
+	 * @param encoding
+	 *          <code>gzip</code> or <code>deflate</code>
+	 * @param statsKey
+	 *          the key the compression statistics are recorded under
+	 */
+	CompressingResponseWrapper(HttpServletResponse response,
+		CompressionHandler handler, String encoding, String statsKey) {
+
+		super(response);
+		this.handler = handler;
+		this.encoding = encoding;
+		this.statsKey = statsKey;
+	}
+
+	private boolean isGzip() {
+
+		return CompressionHandler.GZIP.equals(encoding);
+	}
+
+	private boolean isCompressible() {
+
+		return status == SC_OK && getResponse().getContentType() != null
+			&& handler.isCompressibleType(getResponse().getContentType())
+			&& !((HttpServletResponse) getResponse())
+				.containsHeader("Content-Encoding");
+	}
+
+	/**
+	 * Decides whether the body is compressed and writes out the data held back
+	 * so far.
+	 */
+	private void decide(boolean compress) throws IOException {
+
+		if (mode != Mode.UNDECIDED)
+			return;
+
+		byte[] held = buffer.toByteArray();
+		buffer = null;
+
+		HttpServletResponse response = (HttpServletResponse) getResponse();
+
+		if (compress && isCompressible() && !response.isCommitted()) {
+
+			mode = Mode.COMPRESSING;
+
+			response.setHeader("Content-Encoding", encoding);
+			response.addHeader("Vary", "Accept-Encoding");
+
+			deflater = handler.acquireDeflater(encoding);
+			outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+
+			if (isGzip()) {
+				crc = new CRC32();
+				writeOut(GZIP_HEADER, GZIP_HEADER.length);
+			}
+
+			if (held.length > 0)
+				compress(held, 0, held.length);
+
+		} else {
+
+			mode = Mode.PASS_THROUGH;
+
+			if (pendingContentLength >= 0 && !response.isCommitted())
+				response.setHeader("Content-Length",
+					Long.toString(pendingContentLength));
+
+			if (held.length > 0)
+				response.getOutputStream().write(held);
+		}
+	}
+
+	/**
+	 * Streams the rest of the body uncompressed, e.g. when the request goes
+	 * asynchronous.
+	 */
+	void disableCompression() throws IOException {
+
+		decide(false);
+	}
+
+	private void writeOut(byte[] b, int len) throws IOException {
+
+		getResponse().getOutputStream().write(b, 0, len);
+		bytesOut += len;
+	}
+
+	private void deflate(int flushMode) throws IOException {
+
+		int n;
+
+		while ((n = deflater.deflate(outputBuffer, 0, outputBuffer.length,
+			flushMode)) > 0)
+			writeOut(outputBuffer, n);
+	}
+
+	private void compress(byte[] b, int off, int len) throws IOException {
+
+		long start = handler.currentThreadCpuTime();
+
+		if (crc != null)
+			crc.update(b, off, len);
+
+		deflater.setInput(b, off, len);
+
+		while (!deflater.needsInput())
+			deflate(Deflater.NO_FLUSH);
+
+		bytesIn += len;
+		cpuTime += handler.currentThreadCpuTime() - start;
+	}
+
+	private void writeBody(byte[] b, int off, int len) throws IOException {
+
+		if (mode == Mode.UNDECIDED) {
+
+			if (buffer.size() + len < handler.getMinSize()) {
+				buffer.write(b, off, len);
+				return;
+			}
+
+			decide(true);
+		}
+
+		if (mode == Mode.COMPRESSING)
+			compress(b, off, len);
+		else
+			getResponse().getOutputStream().write(b, off, len);
+	}
+
+	private void flushBody() throws IOException {
+
+		if (mode == Mode.UNDECIDED)
+			decide(buffer.size() >= handler.getMinSize());
+
+		if (mode == Mode.COMPRESSING) {
+			long start = handler.currentThreadCpuTime();
+			deflate(Deflater.SYNC_FLUSH);
+			cpuTime += handler.currentThreadCpuTime() - start;
+		}
+
+		getResponse().getOutputStream().flush();
+	}
+
+	/**
+	 * Completes the body, writing the compressed data still pending and the
+	 * gzip trailer.
+	 */
+	void finish() throws IOException {
+
+		if (writer != null)
+			writer.flush();
+
+		if (mode == Mode.UNDECIDED)
+			decide(buffer.size() >= handler.getMinSize());
+
+		if (mode != Mode.COMPRESSING)
+			return;
+
+		try {
+
+			long start = handler.currentThreadCpuTime();
+
+			deflater.finish();
+
+			while (!deflater.finished())
+				deflate(Deflater.NO_FLUSH);
+
+			cpuTime += handler.currentThreadCpuTime() - start;
+
+			if (crc != null) {
+				byte[] trailer = new byte[8];
+				writeInt(trailer, 0, (int) crc.getValue());
+				writeInt(trailer, 4, (int) bytesIn);
+				writeOut(trailer, trailer.length);
+			}
+
+			handler.recordCompression(statsKey, bytesIn, bytesOut, cpuTime);
+
+		} finally {
+			handler.releaseDeflater(encoding, deflater);
+			deflater = null;
+		}
+	}
+
+	/**
+	 * Releases the resources of a response that did not complete normally.
+	 */
+	void abort() {
+
+		if (deflater != null) {
+			handler.releaseDeflater(encoding, deflater);
+			deflater = null;
+		}
+	}
+
+	private static void writeInt(byte[] b, int off, int value) {
+
+		// Little endian, as mandated by RFC 1952
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+		b[off + 2] = (byte) (value >> 16);
+		b[off + 3] = (byte) (value >> 24);
+	}
+
+	@Override
+	public void setStatus(int sc) {
+
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(int sc, String sm) {
+
+		status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+
+		status = sc;
+		decide(false);
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+
+		status = sc;
+		decide(false);
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+
+		status = SC_FOUND;
+		decide(false);
+		super.sendRedirect(location);
+	}
+
+	private boolean interceptContentLength(long length) throws IOException {
+
+		if (mode == Mode.PASS_THROUGH)
+			return false;
+
+		if (mode == Mode.COMPRESSING)
+			return true;
+
+		pendingContentLength = length;
+
+		// Too small to be worth compressing
+		if (length < handler.getMinSize())
+			decide(false);
+
+		return true;
+	}
+
+	@Override
+	public void setContentLength(int len) {
+
+		try {
+
+			if (!interceptContentLength(len))
+				super.setContentLength(len);
+
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+
+		if ("Content-Length".equalsIgnoreCase(name)) {
+			try {
+				if (interceptContentLength(Long.parseLong(value.trim())))
+					return;
+			} catch (NumberFormatException e) {
+				// Let the wrapped response deal with it
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		super.setHeader(name, value);
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+
+		if ("Content-Length".equalsIgnoreCase(name))
+			setContentLength(value);
+		else
+			super.setIntHeader(name, value);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+
+		if (writer != null)
+			throw new IllegalStateException("getWriter() already called");
+
+		return getCompressingOutputStream();
+	}
+
+	private ServletOutputStream getCompressingOutputStream() {
+
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+
+					writeBody(b, off, len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+
+					flushBody();
+				}
+			};
+		}
+
+		return outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+
+		if (writer == null) {
+
+			if (outputStream != null)
+				throw new IllegalStateException("getOutputStream() already called");
+
+			writer = new PrintWriter(new OutputStreamWriter(
+				getCompressingOutputStream(), getCharacterEncoding()));
+		}
+
+		return writer;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+
+		if (writer != null)
+			writer.flush();
+
+		flushBody();
+	}
+
+	@Override
+	public void resetBuffer() {
+
+		if (mode == Mode.UNDECIDED)
+			buffer.reset();
+
+		super.resetBuffer();
+	}
+
+	@Override
+	public void reset() {
+
+		if (mode == Mode.UNDECIDED) {
+			buffer.reset();
+			pendingContentLength = -1;
+		}
+
+		status = SC_OK;
+		super.reset();
+	}
+}
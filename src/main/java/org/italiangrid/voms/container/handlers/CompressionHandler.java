@@ -0,0 +1,340 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Compresses responses with gzip or deflate, as negotiated with the client.
+ * Bodies are compressed as they are written: only the first bytes, up to the
+ * minimum size, are held back to decide whether compression pays off. Only
+ * successful responses whose content type matches one of the configured MIME
+ * types are compressed.
+ * 
+ * The compression ratio and the CPU time spent compressing are accounted per
+ * VO; responses not belonging to a VO, like the status ones, are accounted
+ * together.
+ */
+public class CompressionHandler extends HandlerWrapper implements
+	MetricsSource {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	public static final String NON_VO_STATS_KEY = "_other";
+
+	private static final int DEFLATER_POOL_SIZE = 64;
+
+	// Event streams are never compressed, as they must reach clients as soon
+	// as they are written
+	private static final String EVENT_STREAM_TYPE = "text/event-stream";
+
+	private static class CompressionStats {
+
+		final AtomicLong responses = new AtomicLong();
+		final AtomicLong bytesIn = new AtomicLong();
+		final AtomicLong bytesOut = new AtomicLong();
+		final AtomicLong cpuTime = new AtomicLong();
+	}
+
+	private final int minSize;
+	private final List<String> mimeTypes;
+
+	private final DeflaterPool gzipDeflaters;
+	private final DeflaterPool deflateDeflaters;
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final boolean cpuTimeSupported;
+
+	private final ConcurrentMap<String, CompressionStats> stats = new ConcurrentHashMap<String, CompressionStats>();
+
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * @param minSize
+	 *          the size in bytes under which bodies are not compressed
+	 * @param mimeTypes
+	 *          the compressible MIME types; entries ending with '/', like
+	 *          <code>text/</code>, match a whole top level type
+	 * @param level
+	 *          the deflate compression level, from 1 to 9
+	 */
+	public CompressionHandler(int minSize, List<String> mimeTypes, int level) {
+
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: "
+				+ level);
+
+		this.minSize = Math.max(minSize, 0);
+
+		List<String> types = new ArrayList<String>();
+
+		for (String t : mimeTypes)
+			types.add(t.trim().toLowerCase(Locale.ENGLISH));
+
+		this.mimeTypes = Collections.unmodifiableList(types);
+
+		gzipDeflaters = new DeflaterPool(level, true, DEFLATER_POOL_SIZE);
+		deflateDeflaters = new DeflaterPool(level, false, DEFLATER_POOL_SIZE);
+
+		cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+
+		if (cpuTimeSupported && !threadBean.isThreadCpuTimeEnabled())
+			threadBean.setThreadCpuTimeEnabled(true);
+	}
+
+	/**
+	 * Parses a comma separated list of MIME types.
+	 */
+	public static List<String> parseMimeTypes(String types) {
+
+		List<String> result = new ArrayList<String>();
+
+		if (types == null)
+			return result;
+
+		for (String t : types.split(",")) {
+			if (!t.trim().isEmpty())
+				result.add(t.trim());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Selects the encoding for a request from its Accept-Encoding header,
+	 * preferring gzip.
+	 * 
+	 * @return the encoding, or <code>null</code> if the client accepts neither
+	 *         gzip nor deflate
+	 */
+	static String negotiateEncoding(String acceptEncoding) {
+
+		if (acceptEncoding == null)
+			return null;
+
+		boolean gzip = false;
+		boolean deflate = false;
+
+		for (String element : acceptEncoding.split(",")) {
+
+			String[] parts = element.split(";");
+			String coding = parts[0].trim().toLowerCase(Locale.ENGLISH);
+
+			boolean acceptable = true;
+
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+
+				if (param.startsWith("q=")) {
+					try {
+						acceptable = Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						acceptable = false;
+					}
+				}
+			}
+
+			if (!acceptable)
+				continue;
+
+			if (coding.equals(GZIP) || coding.equals("x-gzip")
+				|| coding.equals("*"))
+				gzip = true;
+			else if (coding.equals(DEFLATE))
+				deflate = true;
+		}
+
+		if (gzip)
+			return GZIP;
+
+		return deflate ? DEFLATE : null;
+	}
+
+	boolean isCompressibleType(String contentType) {
+
+		String type = contentType.toLowerCase(Locale.ENGLISH);
+
+		int paramsIndex = type.indexOf(';');
+
+		if (paramsIndex >= 0)
+			type = type.substring(0, paramsIndex);
+
+		type = type.trim();
+
+		if (type.equals(EVENT_STREAM_TYPE))
+			return false;
+
+		for (String t : mimeTypes) {
+			if (t.endsWith("/") ? type.startsWith(t) : type.equals(t))
+				return true;
+		}
+
+		return false;
+	}
+
+	int getMinSize() {
+
+		return minSize;
+	}
+
+	long currentThreadCpuTime() {
+
+		return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+	}
+
+	Deflater acquireDeflater(String encoding) {
+
+		return GZIP.equals(encoding) ? gzipDeflaters.acquire() : deflateDeflaters
+			.acquire();
+	}
+
+	void releaseDeflater(String encoding, Deflater deflater) {
+
+		if (GZIP.equals(encoding))
+			gzipDeflaters.release(deflater);
+		else
+			deflateDeflaters.release(deflater);
+	}
+
+	void recordCompression(String key, long bytesIn, long bytesOut,
+		long cpuTime) {
+
+		CompressionStats s = stats.get(key);
+
+		if (s == null) {
+			CompressionStats newStats = new CompressionStats();
+			s = stats.putIfAbsent(key, newStats);
+
+			if (s == null)
+				s = newStats;
+		}
+
+		s.responses.incrementAndGet();
+		s.bytesIn.addAndGet(bytesIn);
+		s.bytesOut.addAndGet(bytesOut);
+		s.cpuTime.addAndGet(cpuTime);
+	}
+
+	private String statsKey(String target) {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		if (voName == null || VOStatusRegistry.INSTANCE.getState(voName) == null)
+			return NON_VO_STATS_KEY;
+
+		return voName;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String encoding = negotiateEncoding(request.getHeader("Accept-Encoding"));
+
+		if (encoding == null || "HEAD".equals(request.getMethod())
+			|| request.getHeader("Range") != null) {
+			skipped.incrementAndGet();
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		CompressingResponseWrapper wrapper = new CompressingResponseWrapper(
+			response, this, encoding, statsKey(target));
+
+		boolean completed = false;
+
+		try {
+
+			super.handle(target, baseRequest, request, wrapper);
+
+			if (request.isAsyncStarted())
+				wrapper.disableCompression();
+			else
+				wrapper.finish();
+
+			completed = true;
+
+		} finally {
+
+			if (!completed)
+				wrapper.abort();
+		}
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+
+		super.doStop();
+
+		gzipDeflaters.close();
+		deflateDeflaters.close();
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "compression";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		Map<String, Object> perVO = new TreeMap<String, Object>();
+
+		long totalIn = 0;
+		long totalOut = 0;
+
+		for (Map.Entry<String, CompressionStats> e : stats.entrySet()) {
+
+			CompressionStats s = e.getValue();
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+
+			long in = s.bytesIn.get();
+			long out = s.bytesOut.get();
+
+			m.put("responses", s.responses.get());
+			m.put("bytes_in", in);
+			m.put("bytes_out", out);
+			m.put("ratio", in == 0 ? 0.0 : (double) out / in);
+			m.put("cpu_time_msec", s.cpuTime.get() / 1000000);
+
+			totalIn += in;
+			totalOut += out;
+
+			perVO.put(e.getKey(), m);
+		}
+
+		metrics.put("min_size", minSize);
+		metrics.put("skipped_not_accepted", skipped.get());
+		metrics.put("bytes_in", totalIn);
+		metrics.put("bytes_out", totalOut);
+		metrics.put("ratio", totalIn == 0 ? 0.0 : (double) totalOut / totalIn);
+		metrics.put("cpu_time_supported", cpuTimeSupported);
+		metrics.put("vos", perVO);
+
+		return metrics;
+	}
+}
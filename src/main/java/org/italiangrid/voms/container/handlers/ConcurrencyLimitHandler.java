@@ -0,0 +1,182 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+
+/**
+ * Limits the number of VO requests served concurrently, rejecting the excess
+ * with a 503. The limit adapts to the observed latency with a gradient
+ * algorithm: at the end of each sampling window the average latency of the
+ * window is compared with a long term average. When latency grows the limit
+ * shrinks proportionally, otherwise it grows by roughly the square root of
+ * the current limit.
+ */
+public class ConcurrencyLimitHandler extends HandlerWrapper implements
+	MetricsSource {
+
+	public static final String RETRY_AFTER_IN_SECONDS = "1";
+
+	public static final long WINDOW_IN_NSEC = TimeUnit.SECONDS.toNanos(1);
+	public static final int MIN_WINDOW_SAMPLES = 10;
+
+	/**
+	 * How much the short term latency may exceed the long term one before the
+	 * limit is reduced.
+	 */
+	public static final double RTT_TOLERANCE = 2.0;
+
+	public static final double LONG_RTT_ALPHA = 0.05;
+	public static final double LIMIT_SMOOTHING = 0.2;
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile int limit;
+
+	// Guarded by this
+	private double estimatedLimit;
+	private double longRtt = 0;
+	private double lastShortRtt = 0;
+	private long windowStart = System.nanoTime();
+	private long windowRttSum = 0;
+	private int windowSamples = 0;
+	private int windowMaxInFlight = 0;
+
+	public ConcurrencyLimitHandler(int initialLimit, int minLimit, int maxLimit) {
+
+		if (minLimit <= 0 || minLimit > maxLimit)
+			throw new IllegalArgumentException("Invalid concurrency limit bounds: ["
+				+ minLimit + "," + maxLimit + "]");
+
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.estimatedLimit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+		this.limit = (int) estimatedLimit;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		if (VOPaths.voNameFromPath(target) == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		int currentInFlight = inFlight.incrementAndGet();
+
+		if (currentInFlight > limit) {
+			inFlight.decrementAndGet();
+			rejected.incrementAndGet();
+
+			baseRequest.setHandled(true);
+			response.setHeader("Retry-After", RETRY_AFTER_IN_SECONDS);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		long startTime = System.nanoTime();
+
+		try {
+
+			super.handle(target, baseRequest, request, response);
+
+		} finally {
+			inFlight.decrementAndGet();
+			addSample(System.nanoTime() - startTime, currentInFlight);
+		}
+	}
+
+	private synchronized void addSample(long rtt, int currentInFlight) {
+
+		windowRttSum += rtt;
+		windowSamples++;
+		windowMaxInFlight = Math.max(windowMaxInFlight, currentInFlight);
+
+		long now = System.nanoTime();
+
+		if (now - windowStart < WINDOW_IN_NSEC
+			|| windowSamples < MIN_WINDOW_SAMPLES)
+			return;
+
+		updateLimit((double) windowRttSum / windowSamples, windowMaxInFlight);
+
+		windowStart = now;
+		windowRttSum = 0;
+		windowSamples = 0;
+		windowMaxInFlight = 0;
+	}
+
+	private void updateLimit(double shortRtt, int maxInFlight) {
+
+		lastShortRtt = shortRtt;
+
+		if (longRtt == 0)
+			longRtt = shortRtt;
+		else
+			longRtt = longRtt * (1 - LONG_RTT_ALPHA) + shortRtt * LONG_RTT_ALPHA;
+
+		// Let the long term average catch up quickly when latency drops
+		if (longRtt / shortRtt > RTT_TOLERANCE)
+			longRtt *= 0.95;
+
+		// The limit is not the bottleneck, no evidence to change it
+		if (maxInFlight < estimatedLimit / 2)
+			return;
+
+		double gradient = Math.max(0.5,
+			Math.min(1.0, RTT_TOLERANCE * longRtt / shortRtt));
+
+		double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+
+		estimatedLimit = estimatedLimit * (1 - LIMIT_SMOOTHING) + newLimit
+			* LIMIT_SMOOTHING;
+
+		estimatedLimit = Math.max(minLimit, Math.min(estimatedLimit, maxLimit));
+		limit = (int) estimatedLimit;
+	}
+
+	public int getLimit() {
+
+		return limit;
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "concurrency_limit";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		metrics.put("limit", limit);
+		metrics.put("in_flight", inFlight.get());
+		metrics.put("rejected", rejected.get());
+
+		synchronized (this) {
+			metrics.put("short_rtt_msec", lastShortRtt / 1000000);
+			metrics.put("long_rtt_msec", longRtt / 1000000);
+		}
+
+		return metrics;
+	}
+}
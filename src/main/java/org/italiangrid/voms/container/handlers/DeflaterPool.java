@@ -0,0 +1,50 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of deflaters, which are expensive to create and hold native
+ * memory until explicitly ended.
+ */
+class DeflaterPool {
+
+	private final int level;
+	private final boolean nowrap;
+	private final BlockingQueue<Deflater> pool;
+
+	/**
+	 * @param nowrap
+	 *          whether the deflaters produce raw deflate data, as needed for
+	 *          gzip, instead of zlib data
+	 */
+	DeflaterPool(int level, boolean nowrap, int size) {
+
+		this.level = level;
+		this.nowrap = nowrap;
+		this.pool = new ArrayBlockingQueue<Deflater>(size);
+	}
+
+	Deflater acquire() {
+
+		Deflater d = pool.poll();
+		return (d != null) ? d : new Deflater(level, nowrap);
+	}
+
+	void release(Deflater d) {
+
+		d.reset();
+
+		if (!pool.offer(d))
+			d.end();
+	}
+
+	void close() {
+
+		Deflater d;
+
+		while ((d = pool.poll()) != null)
+			d.end();
+	}
+}
@@ -0,0 +1,122 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Answers load balancer health checks from in-memory state, on the local
+ * status connector only:
+ * 
+ * <ul>
+ * <li><code>/health/live</code>: the JVM is up and serving requests;
+ * <li><code>/health/ready</code>: the server is started, not stopping, and at
+ * least the configured percentage of the deployed VOs is active;
+ * <li><code>/health/ready/&lt;vo&gt;</code>: the given VO is active.
+ * </ul>
+ * 
+ * Ready checks answer 200 when ready, 503 otherwise.
+ */
+public class HealthHandler extends HandlerWrapper {
+
+	public static final String HEALTH_PREFIX = "/health/";
+	public static final String LIVE_PATH = "/health/live";
+	public static final String READY_PATH = "/health/ready";
+
+	private final String connectorName;
+	private final int minActivePercent;
+
+	/**
+	 * @param connectorName
+	 *          the connector where health checks are answered
+	 * @param minActivePercent
+	 *          the percentage of deployed VOs that must be active for the
+	 *          container to be ready
+	 */
+	public HealthHandler(String connectorName, int minActivePercent) {
+
+		this.connectorName = connectorName;
+		this.minActivePercent = minActivePercent;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		if (!target.startsWith(HEALTH_PREFIX)
+			|| !connectorName.equals(baseRequest.getConnection().getConnector()
+				.getName())) {
+
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		baseRequest.setHandled(true);
+
+		if (target.equals(LIVE_PATH)) {
+			respond(response, HttpServletResponse.SC_OK, "{\"status\":\"live\"}");
+
+		} else if (target.equals(READY_PATH)) {
+			checkServerReadiness(response);
+
+		} else if (target.startsWith(READY_PATH + "/")) {
+			checkVOReadiness(target.substring(READY_PATH.length() + 1), response);
+
+		} else {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	private void checkServerReadiness(HttpServletResponse response)
+		throws IOException {
+
+		Server server = getServer();
+		VOStatusRegistry registry = VOStatusRegistry.INSTANCE;
+
+		int activeVOs = registry.countVOs(VOState.ACTIVE);
+		int deployedVOs = registry.countDeployedVOs();
+
+		boolean ready = server.isStarted() && !server.isStopping()
+			&& activeVOs * 100 >= deployedVOs * minActivePercent;
+
+		respond(response, ready ? HttpServletResponse.SC_OK
+			: HttpServletResponse.SC_SERVICE_UNAVAILABLE, String.format(
+			"{\"status\":\"%s\",\"active_vos\":%d,\"deployed_vos\":%d}",
+			ready ? "ready" : "not_ready", activeVOs, deployedVOs));
+	}
+
+	private void checkVOReadiness(String voName, HttpServletResponse response)
+		throws IOException {
+
+		VOState state = VOStatusRegistry.INSTANCE.getState(voName);
+
+		if (state == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		boolean ready = VOState.ACTIVE.equals(state) && !getServer().isStopping();
+
+		respond(response, ready ? HttpServletResponse.SC_OK
+			: HttpServletResponse.SC_SERVICE_UNAVAILABLE, String.format(
+			"{\"vo\":\"%s\",\"state\":\"%s\"}", voName, state));
+	}
+
+	private void respond(HttpServletResponse response, int status, String body)
+		throws IOException {
+
+		response.setStatus(status);
+		response.setContentType("application/json");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(body);
+	}
+}
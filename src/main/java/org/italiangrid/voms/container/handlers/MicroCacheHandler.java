@@ -0,0 +1,333 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.identity.ClientIdentity;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+
+/**
+ * Serves bursts of identical idempotent VO requests with a single execution.
+ * GET requests matching a {@link MicroCacheRule} are coalesced: while one
+ * request is being served the identical ones wait for its result instead of
+ * hitting the VO application. Cacheable results are then kept for the short
+ * TTL of the rule in a LRU cache bounded in bytes. Only handled responses
+ * with a 200 status are cached and shared, in any other case the waiting
+ * requests are served by the VO application themselves.
+ * 
+ * VO applications are assumed to serve requests synchronously.
+ */
+public class MicroCacheHandler extends HandlerWrapper implements MetricsSource {
+
+	public static final long MAX_LEADER_WAIT_IN_MSEC = TimeUnit.SECONDS
+		.toMillis(30);
+
+	static class CachedResponse {
+
+		final String contentType;
+		final List<String[]> headers;
+		final byte[] body;
+		final long expirationTime;
+
+		CachedResponse(String contentType, List<String[]> headers, byte[] body,
+			long expirationTime) {
+
+			this.contentType = contentType;
+			this.headers = headers;
+			this.body = body;
+			this.expirationTime = expirationTime;
+		}
+
+		boolean isExpired(long now) {
+
+			return now >= expirationTime;
+		}
+
+		long size() {
+
+			long size = body.length;
+
+			for (String[] h : headers)
+				size += h[0].length() + h[1].length();
+
+			return size;
+		}
+
+		void writeTo(HttpServletResponse response) throws IOException {
+
+			response.setStatus(HttpServletResponse.SC_OK);
+
+			for (String[] h : headers) {
+				if (!h[0].equalsIgnoreCase("Content-Length")
+					&& !h[0].equalsIgnoreCase("Content-Type"))
+					response.addHeader(h[0], h[1]);
+			}
+
+			if (contentType != null)
+				response.setContentType(contentType);
+
+			response.setContentLength(body.length);
+			response.getOutputStream().write(body);
+		}
+	}
+
+	/**
+	 * A request being served on behalf of all the identical ones arriving
+	 * meanwhile.
+	 */
+	private static class Flight {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile CachedResponse result;
+
+		void complete(CachedResponse result) {
+
+			this.result = result;
+			done.countDown();
+		}
+
+		CachedResponse await(long timeoutInMsec) {
+
+			try {
+				if (done.await(timeoutInMsec, TimeUnit.MILLISECONDS))
+					return result;
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			return null;
+		}
+	}
+
+	private final List<MicroCacheRule> rules;
+	private final long maxSize;
+	private final int maxEntrySize;
+
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	// Guarded by itself
+	private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<String, CachedResponse>(
+		16, 0.75f, true);
+	private long cacheSize = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong uncacheable = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public MicroCacheHandler(List<MicroCacheRule> rules, long maxSize,
+		int maxEntrySize) {
+
+		if (maxEntrySize <= 0 || maxEntrySize > maxSize)
+			throw new IllegalArgumentException("Invalid micro cache sizes: entry "
+				+ maxEntrySize + ", total " + maxSize);
+
+		this.rules = rules;
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		MicroCacheRule rule = null;
+		String path = null;
+
+		// Requests for a staged version must reach it
+		if (voName != null && "GET".equals(request.getMethod())
+			&& request.getHeader(VORouterHandler.STAGED_VERSION_HEADER) == null) {
+			path = target.substring(VOPaths.contextPathForVO(voName).length());
+			rule = findRule(voName, path);
+		}
+
+		if (rule == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		String key = cacheKey(voName, path, request, rule);
+
+		CachedResponse cached = lookup(key);
+
+		if (cached != null) {
+			hits.incrementAndGet();
+			baseRequest.setHandled(true);
+			cached.writeTo(response);
+			return;
+		}
+
+		Flight flight = new Flight();
+		Flight leader = flights.putIfAbsent(key, flight);
+
+		if (leader != null) {
+
+			coalesced.incrementAndGet();
+			CachedResponse result = leader.await(MAX_LEADER_WAIT_IN_MSEC);
+
+			if (result != null) {
+				baseRequest.setHandled(true);
+				result.writeTo(response);
+			} else
+				super.handle(target, baseRequest, request, response);
+
+			return;
+		}
+
+		misses.incrementAndGet();
+		CachedResponse result = null;
+
+		try {
+
+			CachingResponseWrapper wrapper = new CachingResponseWrapper(response,
+				maxEntrySize);
+
+			super.handle(target, baseRequest, request, wrapper);
+			wrapper.finish();
+
+			// Requests not handled by the VO application, e.g. left to the
+			// default handler, are never cached nor shared: the waiting requests
+			// are released and served on their own
+			if (baseRequest.isHandled())
+				result = wrapper.toCachedResponse(System.currentTimeMillis()
+					+ rule.getTtlInMsec());
+
+			if (result != null)
+				store(key, result);
+			else
+				uncacheable.incrementAndGet();
+
+		} finally {
+			flights.remove(key, flight);
+			flight.complete(result);
+		}
+	}
+
+	private MicroCacheRule findRule(String voName, String path) {
+
+		for (MicroCacheRule r : rules)
+			if (r.matches(voName, path))
+				return r;
+
+		return null;
+	}
+
+	private String cacheKey(String voName, String path,
+		HttpServletRequest request, MicroCacheRule rule) {
+
+		StringBuilder key = new StringBuilder(voName).append(path);
+
+		if (request.getQueryString() != null)
+			key.append('?').append(request.getQueryString());
+
+		if (!rule.isShared()) {
+
+			X509Certificate[] chain = (X509Certificate[]) request
+				.getAttribute(ClientIdentity.X509_CERTIFICATE_ATTRIBUTE);
+
+			key.append('|');
+			if (chain != null && chain.length > 0)
+				key.append(chain[0].getSubjectX500Principal().getName());
+
+			key.append('|');
+			if (request.getRequestedSessionId() != null)
+				key.append(request.getRequestedSessionId());
+		}
+
+		return key.toString();
+	}
+
+	private CachedResponse lookup(String key) {
+
+		synchronized (cache) {
+
+			CachedResponse entry = cache.get(key);
+
+			if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+				cache.remove(key);
+				cacheSize -= entry.size();
+				return null;
+			}
+
+			return entry;
+		}
+	}
+
+	private void store(String key, CachedResponse entry) {
+
+		synchronized (cache) {
+
+			CachedResponse previous = cache.put(key, entry);
+
+			if (previous != null)
+				cacheSize -= previous.size();
+
+			cacheSize += entry.size();
+
+			long now = System.currentTimeMillis();
+			Iterator<CachedResponse> it = cache.values().iterator();
+
+			while (cacheSize > maxSize && it.hasNext()) {
+
+				CachedResponse eldest = it.next();
+				it.remove();
+				cacheSize -= eldest.size();
+
+				if (!eldest.isExpired(now))
+					evictions.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "micro_cache";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		long hitCount = hits.get();
+		long lookups = hitCount + misses.get() + coalesced.get();
+
+		metrics.put("hits", hitCount);
+		metrics.put("misses", misses.get());
+		metrics.put("coalesced", coalesced.get());
+		metrics.put("uncacheable", uncacheable.get());
+		metrics.put("evictions", evictions.get());
+		metrics.put("hit_rate", lookups == 0 ? 0.0 : (double) (hitCount + coalesced
+			.get()) / lookups);
+
+		synchronized (cache) {
+			metrics.put("entries", cache.size());
+			metrics.put("size_bytes", cacheSize);
+		}
+
+		metrics.put("max_size_bytes", maxSize);
+
+		return metrics;
+	}
+}
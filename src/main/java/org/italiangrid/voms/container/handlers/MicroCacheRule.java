@@ -0,0 +1,92 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects the VO requests whose responses can be cached by the
+ * {@link MicroCacheHandler}, and for how long.
+ * 
+ * Rules are written as <code>&lt;vo&gt; &lt;path regex&gt; &lt;ttl&gt;
+ * [shared]</code>, where <code>vo</code> is a VO name or <code>*</code> for
+ * any VO, the path regex is matched against the path within the VO context and
+ * the TTL is in seconds. Responses of a <code>shared</code> rule do not depend
+ * on the client identity and are served to all clients; otherwise they are
+ * cached per client certificate subject and session.
+ */
+public class MicroCacheRule {
+
+	public static final String ANY_VO = "*";
+	public static final String SHARED_FLAG = "shared";
+
+	private final String voName;
+	private final Pattern pathPattern;
+	private final long ttlInMsec;
+	private final boolean shared;
+
+	public MicroCacheRule(String voName, Pattern pathPattern, long ttlInMsec,
+		boolean shared) {
+
+		this.voName = voName;
+		this.pathPattern = pathPattern;
+		this.ttlInMsec = ttlInMsec;
+		this.shared = shared;
+	}
+
+	/**
+	 * Parses a list of rules separated by <code>;</code>.
+	 */
+	public static List<MicroCacheRule> parseRules(String rules) {
+
+		List<MicroCacheRule> result = new ArrayList<MicroCacheRule>();
+
+		for (String rule : rules.split(";")) {
+
+			rule = rule.trim();
+
+			if (rule.length() == 0)
+				continue;
+
+			String[] fields = rule.split("\\s+");
+
+			if (fields.length < 3 || fields.length > 4
+				|| (fields.length == 4 && !fields[3].equals(SHARED_FLAG)))
+				throw new IllegalArgumentException("Invalid micro cache rule: " + rule);
+
+			try {
+
+				result.add(new MicroCacheRule(fields[0], Pattern.compile(fields[1]),
+					TimeUnit.SECONDS.toMillis(Long.parseLong(fields[2])),
+					fields.length == 4));
+
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid path pattern in micro "
+					+ "cache rule: " + rule, e);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid TTL in micro cache rule: "
+					+ rule, e);
+			}
+		}
+
+		return result;
+	}
+
+	public boolean matches(String voName, String path) {
+
+		return (this.voName.equals(ANY_VO) || this.voName.equals(voName))
+			&& pathPattern.matcher(path).matches();
+	}
+
+	public long getTtlInMsec() {
+
+		return ttlInMsec;
+	}
+
+	public boolean isShared() {
+
+		return shared;
+	}
+}
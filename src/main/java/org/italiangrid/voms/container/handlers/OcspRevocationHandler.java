@@ -0,0 +1,103 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.identity.ClientIdentity;
+import org.italiangrid.voms.container.ocsp.OcspChecker;
+import org.italiangrid.voms.container.ocsp.OcspChecker.Status;
+import org.italiangrid.voms.container.ocsp.TrustedIssuers;
+
+/**
+ * Rejects requests authenticated with a certificate that its CA OCSP
+ * responder reports as revoked. Each certificate of the client chain issued by
+ * a CA is checked, while proxy certificates, issued by end entities, are not.
+ * 
+ * With the soft fail policy, certificates whose status cannot be obtained,
+ * or is unknown to the responder, are accepted; otherwise they are rejected
+ * as well.
+ * 
+ * Responders are queried by the checker threads, request threads only wait
+ * for their answers up to the checker timeouts.
+ */
+public class OcspRevocationHandler extends HandlerWrapper {
+
+	private final OcspChecker checker;
+	private final TrustedIssuers trustedIssuers;
+	private final boolean softFail;
+
+	public OcspRevocationHandler(OcspChecker checker,
+		TrustedIssuers trustedIssuers, boolean softFail) {
+
+		this.checker = checker;
+		this.trustedIssuers = trustedIssuers;
+		this.softFail = softFail;
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+
+		super.doStop();
+		checker.shutdown();
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		X509Certificate[] chain = (X509Certificate[]) request
+			.getAttribute(ClientIdentity.X509_CERTIFICATE_ATTRIBUTE);
+
+		if (chain != null && !isAccepted(chain)) {
+			baseRequest.setHandled(true);
+			response.sendError(HttpServletResponse.SC_FORBIDDEN,
+				"Client certificate revoked or its status could not be verified");
+			return;
+		}
+
+		super.handle(target, baseRequest, request, response);
+	}
+
+	private boolean isAccepted(X509Certificate[] chain) {
+
+		for (int i = 0; i < chain.length; i++) {
+
+			X509Certificate cert = chain[i];
+
+			// Trust anchors sent along with the chain
+			if (cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal()))
+				continue;
+
+			X509Certificate issuer = null;
+
+			if (i + 1 < chain.length
+				&& chain[i + 1].getSubjectX500Principal().equals(
+					cert.getIssuerX500Principal()))
+				issuer = chain[i + 1];
+			else
+				issuer = trustedIssuers.findIssuer(cert);
+
+			// Proxies are issued by end entity certificates, not by CAs
+			if (issuer == null || issuer.getBasicConstraints() < 0)
+				continue;
+
+			Status status = checker.check(cert, issuer);
+
+			if (status == Status.REVOKED)
+				return false;
+
+			if (!softFail
+				&& (status == Status.UNKNOWN || status == Status.UNAVAILABLE))
+				return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,90 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Assigns VO requests to a priority class of the
+ * {@link PrioritySchedulingHandler}.
+ * 
+ * Rules are written as <code>&lt;class&gt; &lt;vo&gt; &lt;path regex&gt;
+ * [&lt;dn regex&gt;]</code>, where <code>vo</code> is a VO name or
+ * <code>*</code> for any VO, the path regex is matched against the path within
+ * the VO context and the optional DN regex against the client certificate
+ * subject, in OpenSSL slash format. The first matching rule wins.
+ */
+public class PriorityRule {
+
+	public static final String ANY_VO = "*";
+
+	private final String className;
+	private final String voName;
+	private final Pattern pathPattern;
+	private final Pattern dnPattern;
+
+	public PriorityRule(String className, String voName, Pattern pathPattern,
+		Pattern dnPattern) {
+
+		this.className = className;
+		this.voName = voName;
+		this.pathPattern = pathPattern;
+		this.dnPattern = dnPattern;
+	}
+
+	/**
+	 * Parses a list of rules separated by <code>;</code>.
+	 */
+	public static List<PriorityRule> parseRules(String rules) {
+
+		List<PriorityRule> result = new ArrayList<PriorityRule>();
+
+		for (String rule : rules.split(";")) {
+
+			rule = rule.trim();
+
+			if (rule.length() == 0)
+				continue;
+
+			String[] fields = rule.split("\\s+", 4);
+
+			if (fields.length < 3)
+				throw new IllegalArgumentException("Invalid priority rule: " + rule);
+
+			try {
+
+				result.add(new PriorityRule(fields[0], fields[1], Pattern
+					.compile(fields[2]), fields.length == 4 ? Pattern.compile(fields[3])
+					: null));
+
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid pattern in priority rule: "
+					+ rule, e);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param dn
+	 *          the client certificate subject, <code>null</code> if the client
+	 *          did not authenticate
+	 */
+	public boolean matches(String voName, String path, String dn) {
+
+		if (!this.voName.equals(ANY_VO) && !this.voName.equals(voName))
+			return false;
+
+		if (!pathPattern.matcher(path).matches())
+			return false;
+
+		return dnPattern == null || (dn != null && dnPattern.matcher(dn).matches());
+	}
+
+	public String getClassName() {
+
+		return className;
+	}
+}
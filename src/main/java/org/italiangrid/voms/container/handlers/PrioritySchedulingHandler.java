@@ -0,0 +1,498 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.identity.ClientIdentity;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+import eu.emi.security.authn.x509.impl.OpensslNameUtils;
+import eu.emi.security.authn.x509.proxy.ProxyUtils;
+
+/**
+ * Schedules VO requests by priority class. At most a fixed number of VO
+ * requests are served at the same time; the others are suspended, without
+ * holding a thread, in a queue per class. When a request completes, the next
+ * one is taken from the class queues with weighted fair queuing, so that each
+ * class with waiting requests gets a share of the service proportional to its
+ * weight and a flood of requests in one class cannot starve the others.
+ * 
+ * Requests are assigned to classes by {@link PriorityRule}s. Requests that
+ * wait longer than the maximum wait time, or find the queue of their class
+ * full, are rejected with a 503. Queue wait times are reported per class.
+ */
+public class PrioritySchedulingHandler extends HandlerWrapper implements
+	MetricsSource {
+
+	public static final String RETRY_AFTER_IN_SECONDS = "5";
+
+	private static final String TICKET_ATTRIBUTE = PrioritySchedulingHandler.class
+		.getName() + ".ticket";
+
+	// Wait times kept per class to compute percentiles
+	private static final int WAIT_SAMPLES = 1024;
+
+	private static class PriorityClass {
+
+		final String name;
+		final int weight;
+
+		final Queue<Ticket> queue = new ArrayDeque<Ticket>();
+		double lastFinishTag = 0;
+
+		long admitted = 0;
+		long queued = 0;
+		long rejected = 0;
+		long expired = 0;
+
+		long totalWaitInNsec = 0;
+		long maxWaitInNsec = 0;
+		final long[] waits = new long[WAIT_SAMPLES];
+		long waitCount = 0;
+
+		PriorityClass(String name, int weight) {
+
+			this.name = name;
+			this.weight = weight;
+		}
+
+		void addWait(long waitInNsec) {
+
+			totalWaitInNsec += waitInNsec;
+			maxWaitInNsec = Math.max(maxWaitInNsec, waitInNsec);
+			waits[(int) (waitCount++ % WAIT_SAMPLES)] = waitInNsec;
+		}
+	}
+
+	static class Ticket {
+
+		final PriorityClass priorityClass;
+		final AsyncContinuation continuation;
+		final long enqueueTime = System.nanoTime();
+
+		double finishTag;
+		boolean granted = false;
+		boolean released = false;
+
+		Ticket(PriorityClass priorityClass, AsyncContinuation continuation) {
+
+			this.priorityClass = priorityClass;
+			this.continuation = continuation;
+		}
+	}
+
+	private final Map<String, PriorityClass> classes = new LinkedHashMap<String, PriorityClass>();
+	private final PriorityClass defaultClass;
+	private final List<PriorityRule> rules;
+
+	private final int maxActive;
+	private final int maxQueueSize;
+	private final long maxWaitInMsec;
+
+	// Guarded by this
+	private int active = 0;
+	private int waiting = 0;
+	private double virtualTime = 0;
+
+	/**
+	 * @param classWeights
+	 *          the weight of each priority class
+	 * @param defaultClassName
+	 *          the class of the requests not matching any rule
+	 * @param maxActive
+	 *          the number of VO requests served at the same time
+	 * @param maxQueueSize
+	 *          the number of requests waiting in each class
+	 */
+	public PrioritySchedulingHandler(Map<String, Integer> classWeights,
+		String defaultClassName, List<PriorityRule> rules, int maxActive,
+		int maxQueueSize, long maxWaitInMsec) {
+
+		for (Map.Entry<String, Integer> e : classWeights.entrySet()) {
+
+			if (e.getValue() <= 0)
+				throw new IllegalArgumentException("Invalid weight for priority class "
+					+ e.getKey() + ": " + e.getValue());
+
+			classes.put(e.getKey(), new PriorityClass(e.getKey(), e.getValue()));
+		}
+
+		defaultClass = classes.get(defaultClassName);
+
+		if (defaultClass == null)
+			throw new IllegalArgumentException("Unknown default priority class: "
+				+ defaultClassName);
+
+		for (PriorityRule r : rules) {
+			if (!classes.containsKey(r.getClassName()))
+				throw new IllegalArgumentException("Unknown priority class in rule: "
+					+ r.getClassName());
+		}
+
+		if (maxActive <= 0)
+			throw new IllegalArgumentException("Invalid maximum active requests: "
+				+ maxActive);
+
+		this.rules = rules;
+		this.maxActive = maxActive;
+		this.maxQueueSize = maxQueueSize;
+		this.maxWaitInMsec = maxWaitInMsec;
+	}
+
+	/**
+	 * Parses a comma separated list of <code>class:weight</code> entries,
+	 * keeping their order.
+	 */
+	public static Map<String, Integer> parseClasses(String classes) {
+
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+
+		for (String entry : classes.split(",")) {
+
+			if (entry.trim().isEmpty())
+				continue;
+
+			String[] parts = entry.trim().split(":");
+
+			if (parts.length != 2)
+				throw new IllegalArgumentException("Invalid priority class: " + entry);
+
+			try {
+				result.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid priority class: " + entry);
+			}
+		}
+
+		return result;
+	}
+
+	private static String clientDN(HttpServletRequest request) {
+
+		ClientIdentity identity = (ClientIdentity) request
+			.getAttribute(ClientIdentity.ATTRIBUTE);
+
+		if (identity != null)
+			return identity.getSubject();
+
+		X509Certificate[] chain = (X509Certificate[]) request
+			.getAttribute(ClientIdentity.X509_CERTIFICATE_ATTRIBUTE);
+
+		if (chain == null || chain.length == 0)
+			return null;
+
+		X509Certificate eec = ProxyUtils.getEndUserCertificate(chain);
+
+		if (eec == null)
+			return null;
+
+		return OpensslNameUtils.convertFromRfc2253(eec.getSubjectX500Principal()
+			.getName(), false);
+	}
+
+	/**
+	 * @return a ticket for a request of a priority class, resumed through the
+	 *         given continuation when granted
+	 */
+	Ticket newTicket(String className, AsyncContinuation continuation) {
+
+		PriorityClass c = classes.get(className);
+
+		if (c == null)
+			throw new IllegalArgumentException("Unknown priority class: "
+				+ className);
+
+		return new Ticket(c, continuation);
+	}
+
+	private PriorityClass classify(String voName, String target,
+		HttpServletRequest request) {
+
+		if (rules.isEmpty())
+			return defaultClass;
+
+		String path = target.substring(VOPaths.contextPathForVO(voName).length());
+		String dn = clientDN(request);
+
+		for (PriorityRule r : rules) {
+			if (r.matches(voName, path, dn))
+				return classes.get(r.getClassName());
+		}
+
+		return defaultClass;
+	}
+
+	private void reject(Request baseRequest, HttpServletResponse response)
+		throws IOException {
+
+		baseRequest.setHandled(true);
+		response.setHeader("Retry-After", RETRY_AFTER_IN_SECONDS);
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		if (voName == null || VOStatusRegistry.INSTANCE.getState(voName) == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		Ticket ticket = (Ticket) request.getAttribute(TICKET_ATTRIBUTE);
+
+		if (ticket == null) {
+
+			AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+			ticket = new Ticket(classify(voName, target, request), continuation);
+			request.setAttribute(TICKET_ATTRIBUTE, ticket);
+
+			Boolean admitted = tryAdmit(ticket);
+
+			if (admitted == null) {
+				reject(baseRequest, response);
+				return;
+			}
+
+			if (!admitted) {
+
+				// Suspend before queueing, so that the request can be resumed as
+				// soon as it is in the queue
+				continuation.setTimeout(maxWaitInMsec);
+				continuation.suspend();
+				enqueue(ticket);
+				return;
+			}
+
+		} else if (ticket.released) {
+
+			// An asynchronous redispatch from the application, which gave back its
+			// slot when it first returned
+			super.handle(target, baseRequest, request, response);
+			return;
+
+		} else if (!isGranted(ticket)) {
+
+			// Timed out waiting in the queue
+			reject(baseRequest, response);
+			return;
+		}
+
+		try {
+
+			super.handle(target, baseRequest, request, response);
+
+		} finally {
+			release(ticket);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the request can be served right away,
+	 *         <code>false</code> if it has to wait, <code>null</code> if the
+	 *         queue of its class is full
+	 */
+	synchronized Boolean tryAdmit(Ticket ticket) {
+
+		PriorityClass c = ticket.priorityClass;
+
+		if (active < maxActive && waiting == 0) {
+			active++;
+			ticket.granted = true;
+			c.admitted++;
+			c.addWait(0);
+			return true;
+		}
+
+		if (c.queue.size() >= maxQueueSize) {
+			c.rejected++;
+			return null;
+		}
+
+		return false;
+	}
+
+	void enqueue(Ticket ticket) {
+
+		List<Ticket> resumed;
+
+		synchronized (this) {
+
+			PriorityClass c = ticket.priorityClass;
+
+			ticket.finishTag = Math.max(virtualTime, c.lastFinishTag) + 1.0
+				/ c.weight;
+			c.lastFinishTag = ticket.finishTag;
+
+			c.queue.add(ticket);
+			c.queued++;
+			waiting++;
+
+			// A slot may have been freed while the request was being suspended
+			resumed = grantWaiting();
+		}
+
+		resume(resumed);
+	}
+
+	private synchronized boolean isGranted(Ticket ticket) {
+
+		if (ticket.granted)
+			return true;
+
+		if (ticket.priorityClass.queue.remove(ticket)) {
+			waiting--;
+			ticket.priorityClass.expired++;
+		}
+
+		// Not to be released
+		ticket.released = true;
+		return false;
+	}
+
+	void release(Ticket ticket) {
+
+		List<Ticket> resumed;
+
+		synchronized (this) {
+
+			if (ticket.released)
+				return;
+
+			ticket.released = true;
+			active--;
+			resumed = grantWaiting();
+		}
+
+		resume(resumed);
+	}
+
+	/**
+	 * Grants the free slots to the waiting requests with the earliest finish
+	 * tags.
+	 * 
+	 * @return the granted requests, to be resumed out of the lock
+	 */
+	private List<Ticket> grantWaiting() {
+
+		List<Ticket> granted = new ArrayList<Ticket>();
+
+		while (active < maxActive && waiting > 0) {
+
+			PriorityClass next = null;
+
+			for (PriorityClass c : classes.values()) {
+
+				Ticket head = c.queue.peek();
+
+				if (head != null
+					&& (next == null || head.finishTag < next.queue.peek().finishTag))
+					next = c;
+			}
+
+			Ticket t = next.queue.poll();
+			waiting--;
+			active++;
+
+			virtualTime = t.finishTag;
+
+			t.granted = true;
+			next.admitted++;
+			next.addWait(System.nanoTime() - t.enqueueTime);
+
+			granted.add(t);
+		}
+
+		return granted;
+	}
+
+	private static void resume(List<Ticket> tickets) {
+
+		for (Ticket t : tickets) {
+			try {
+
+				t.continuation.resume();
+
+			} catch (IllegalStateException e) {
+				// Already expired, it will find the slot granted on redispatch
+			}
+		}
+	}
+
+	public int getMaxActive() {
+
+		return maxActive;
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(index, 0)];
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "priority_scheduler";
+	}
+
+	@Override
+	public synchronized Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		metrics.put("max_active", maxActive);
+		metrics.put("active", active);
+		metrics.put("waiting", waiting);
+
+		Map<String, Object> perClass = new LinkedHashMap<String, Object>();
+
+		for (PriorityClass c : classes.values()) {
+
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+
+			m.put("weight", c.weight);
+			m.put("waiting", c.queue.size());
+			m.put("admitted", c.admitted);
+			m.put("queued", c.queued);
+			m.put("rejected", c.rejected);
+			m.put("expired", c.expired);
+
+			if (c.admitted > 0) {
+
+				long[] waits = Arrays.copyOf(c.waits,
+					(int) Math.min(c.waitCount, WAIT_SAMPLES));
+				Arrays.sort(waits);
+
+				m.put("mean_wait_msec", c.totalWaitInNsec / c.admitted / 1000000.0);
+				m.put("p50_wait_msec", percentile(waits, 50) / 1000000.0);
+				m.put("p99_wait_msec", percentile(waits, 99) / 1000000.0);
+				m.put("max_wait_msec", c.maxWaitInNsec / 1000000.0);
+			}
+
+			perClass.put(c.name, m);
+		}
+
+		metrics.put("classes", perClass);
+
+		return metrics;
+	}
+}
@@ -0,0 +1,253 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.capture.CaptureRecord;
+import org.italiangrid.voms.container.capture.CaptureWriter;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Records the requests served by the chosen VOs to a capture, for later
+ * replay. Request bodies are captured up to the maximum body size.
+ * 
+ * Credentials and connection level headers are not captured. Form posts are
+ * parsed by Jetty without going through the application, so their body is
+ * rebuilt from the request parameters.
+ */
+public class RequestCaptureHandler extends HandlerWrapper implements
+	MetricsSource {
+
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+	private static final Set<String> EXCLUDED_HEADERS = new HashSet<String>(
+		Arrays.asList("authorization", "proxy-authorization", "cookie", "host",
+			"content-length", "transfer-encoding", "connection", "keep-alive",
+			"te", "upgrade"));
+
+	private final CaptureWriter writer;
+	private final Set<String> voNames;
+	private final int maxBodySize;
+
+	/**
+	 * @param voNames
+	 *          the VOs whose requests are captured, all if empty
+	 */
+	public RequestCaptureHandler(CaptureWriter writer, Set<String> voNames,
+		int maxBodySize) {
+
+		this.writer = writer;
+		this.voNames = voNames;
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Parses a comma separated list of VO names.
+	 */
+	public static Set<String> parseVONames(String voNames) {
+
+		Set<String> names = new HashSet<String>();
+
+		for (String n : voNames.split(",")) {
+			if (!n.trim().isEmpty())
+				names.add(n.trim());
+		}
+
+		return names;
+	}
+
+	private boolean isCaptured(String voName) {
+
+		return voName != null && VOStatusRegistry.INSTANCE.getState(voName) != null
+			&& (voNames.isEmpty() || voNames.contains(voName));
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		if (!isCaptured(voName)) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		long startNanos = System.nanoTime();
+
+		CapturingRequestWrapper wrapper = new CapturingRequestWrapper(request,
+			maxBodySize);
+
+		try {
+
+			super.handle(target, baseRequest, wrapper, response);
+
+		} finally {
+
+			long endNanos = System.nanoTime();
+
+			try {
+
+				writer.append(toRecord(voName, baseRequest, wrapper,
+					writer.elapsedUsec(startNanos), (endNanos - startNanos) / 1000));
+
+			} catch (RuntimeException e) {
+				CaptureWriter.log.debug("Error capturing request {}: {}",
+					request.getRequestURI(), e.getMessage());
+			}
+		}
+	}
+
+	private CaptureRecord toRecord(String voName, Request baseRequest,
+		CapturingRequestWrapper wrapper, long offsetInUsec, long durationInUsec) {
+
+		String uri = baseRequest.getRequestURI();
+
+		if (baseRequest.getQueryString() != null)
+			uri = uri + "?" + baseRequest.getQueryString();
+
+		List<String[]> headers = new ArrayList<String[]>();
+
+		for (Enumeration<String> names = baseRequest.getHeaderNames(); names
+			.hasMoreElements();) {
+
+			String name = names.nextElement();
+
+			if (EXCLUDED_HEADERS.contains(name.toLowerCase(Locale.ENGLISH)))
+				continue;
+
+			for (Enumeration<String> values = baseRequest.getHeaders(name); values
+				.hasMoreElements();)
+				headers.add(new String[] { name, values.nextElement() });
+		}
+
+		byte[] body = wrapper.getCapturedBody();
+		long bodyLength = wrapper.getBodyLength();
+
+		if (bodyLength == 0 && isForm(baseRequest)) {
+
+			byte[] form = rebuildFormBody(baseRequest);
+			bodyLength = form.length;
+			body = form.length > maxBodySize ? Arrays.copyOf(form, maxBodySize)
+				: form;
+		}
+
+		return new CaptureRecord(offsetInUsec, voName, baseRequest.getMethod(),
+			uri, headers, bodyLength, body, baseRequest.getResponse().getStatus(),
+			durationInUsec);
+	}
+
+	private static boolean isForm(Request baseRequest) {
+
+		String contentType = baseRequest.getContentType();
+
+		return contentType != null
+			&& contentType.toLowerCase(Locale.ENGLISH).startsWith(FORM_CONTENT_TYPE)
+			&& baseRequest.getContentLength() != 0;
+	}
+
+	/**
+	 * Jetty puts the query string parameters first in the parameter values,
+	 * followed by those in the body.
+	 */
+	static byte[] rebuildFormBody(HttpServletRequest request) {
+
+		try {
+
+			Map<String, Integer> queryCounts = new HashMap<String, Integer>();
+
+			if (request.getQueryString() != null) {
+
+				for (String pair : request.getQueryString().split("&")) {
+
+					if (pair.isEmpty())
+						continue;
+
+					int eq = pair.indexOf('=');
+					String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0,
+						eq), "UTF-8");
+
+					Integer count = queryCounts.get(name);
+					queryCounts.put(name, count == null ? 1 : count + 1);
+				}
+			}
+
+			Map<String, String[]> parameters = request.getParameterMap();
+
+			List<String> names = new ArrayList<String>(parameters.keySet());
+			Collections.sort(names);
+
+			StringBuilder body = new StringBuilder();
+
+			for (String name : names) {
+
+				Integer skip = queryCounts.get(name);
+				String[] values = parameters.get(name);
+
+				for (int i = (skip == null ? 0 : skip); i < values.length; i++) {
+
+					if (body.length() > 0)
+						body.append('&');
+
+					body.append(URLEncoder.encode(name, "UTF-8")).append('=')
+						.append(URLEncoder.encode(values[i], "UTF-8"));
+				}
+			}
+
+			return body.toString().getBytes("UTF-8");
+
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+
+		super.doStop();
+		writer.close();
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "capture";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		metrics.put("file", writer.getFile().getAbsolutePath());
+		metrics.put("start_time", writer.getStartTimeInMsec());
+		metrics.put("vos", voNames.isEmpty() ? "all" : new ArrayList<String>(
+			voNames));
+		metrics.put("captured_requests", writer.getWrittenRecords());
+		metrics.put("dropped_requests", writer.getDroppedRecords());
+		metrics.put("size_bytes", writer.getSizeInBytes());
+
+		return metrics;
+	}
+}
@@ -0,0 +1,233 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Keeps track of the requests currently being served by each VO context.
+ * 
+ * New requests for a VO that is draining or stopping are rejected with a 503,
+ * so that clients can retry them, rather than falling through to the other
+ * handlers once the VO context stops accepting them.
+ */
+public class RequestTrackingHandler extends HandlerWrapper {
+
+	public static final String RETRY_AFTER_IN_SECONDS = "5";
+
+	private final ConcurrentMap<String, InFlightCounter> counters = new ConcurrentHashMap<String, InFlightCounter>();
+
+	protected InFlightCounter getCounter(String voName) {
+
+		InFlightCounter counter = counters.get(voName);
+
+		if (counter == null) {
+			counter = new InFlightCounter();
+			InFlightCounter existing = counters.putIfAbsent(voName, counter);
+			if (existing != null)
+				counter = existing;
+		}
+
+		return counter;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		VOState state = (voName == null) ? null : VOStatusRegistry.INSTANCE
+			.getState(voName);
+
+		// Do not create counters for arbitrary names in request paths
+		if (state == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		// Only new requests, asynchronous redispatches belong to in-flight ones
+		if ((VOState.DRAINING.equals(state) || VOState.STOPPING.equals(state))
+			&& baseRequest.getAsyncContinuation().isInitial()) {
+
+			baseRequest.setHandled(true);
+			response.setHeader("Retry-After", RETRY_AFTER_IN_SECONDS);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		InFlightCounter counter = getCounter(voName);
+		long mark = counter.increment();
+
+		try {
+
+			super.handle(target, baseRequest, request, response);
+
+		} finally {
+			counter.decrement(mark);
+		}
+	}
+
+	public int getInFlightRequests(String voName) {
+
+		InFlightCounter counter = counters.get(voName);
+
+		if (counter == null)
+			return 0;
+
+		return counter.get();
+	}
+
+	/**
+	 * @return the number of requests served by the given VO since the server
+	 *         started
+	 */
+	public long getCompletedRequests(String voName) {
+
+		InFlightCounter counter = counters.get(voName);
+
+		if (counter == null)
+			return 0;
+
+		return counter.getCompleted();
+	}
+
+	/**
+	 * Waits until no request is in flight for the given VO, or until the timeout
+	 * expires.
+	 * 
+	 * @return the number of requests still in flight when this method returns
+	 */
+	public int awaitIdle(String voName, long timeoutInMsec)
+		throws InterruptedException {
+
+		return getCounter(voName).awaitZero(timeoutInMsec);
+	}
+
+	/**
+	 * Marks the requests currently in flight for the given VO, so that they can
+	 * be waited for while new ones keep coming.
+	 * 
+	 * @return the mark to pass to {@link #awaitMarked(String, long, long)}
+	 */
+	public long mark(String voName) {
+
+		return getCounter(voName).mark();
+	}
+
+	/**
+	 * Waits until the requests in flight for the given VO when the mark was
+	 * taken complete, or until the timeout expires.
+	 * 
+	 * @return the number of those requests still in flight when this method
+	 *         returns
+	 */
+	public int awaitMarked(String voName, long mark, long timeoutInMsec)
+		throws InterruptedException {
+
+		return getCounter(voName).awaitMarked(mark, timeoutInMsec);
+	}
+
+	static class InFlightCounter {
+
+		private int count = 0;
+		private long completed = 0;
+
+		// In flight requests by the mark current when they arrived
+		private long currentMark = 0;
+		private final SortedMap<Long, Integer> countByMark = new TreeMap<Long, Integer>();
+
+		synchronized long increment() {
+
+			count++;
+
+			Integer c = countByMark.get(currentMark);
+			countByMark.put(currentMark, c == null ? 1 : c + 1);
+
+			return currentMark;
+		}
+
+		synchronized void decrement(long mark) {
+
+			count--;
+			completed++;
+
+			Integer c = countByMark.get(mark);
+
+			if (c == null || c <= 1)
+				countByMark.remove(mark);
+			else
+				countByMark.put(mark, c - 1);
+
+			notifyAll();
+		}
+
+		synchronized long mark() {
+
+			return currentMark++;
+		}
+
+		private int countUpTo(long mark) {
+
+			int c = 0;
+
+			for (int n : countByMark.headMap(mark + 1).values())
+				c += n;
+
+			return c;
+		}
+
+		synchronized int awaitMarked(long mark, long timeoutInMsec)
+			throws InterruptedException {
+
+			long deadline = System.currentTimeMillis() + timeoutInMsec;
+
+			int c;
+
+			while ((c = countUpTo(mark)) > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				wait(remaining);
+			}
+
+			return c;
+		}
+
+		synchronized int get() {
+
+			return count;
+		}
+
+		synchronized long getCompleted() {
+
+			return completed;
+		}
+
+		synchronized int awaitZero(long timeoutInMsec) throws InterruptedException {
+
+			long deadline = System.currentTimeMillis() + timeoutInMsec;
+
+			while (count > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				wait(remaining);
+			}
+
+			return count;
+		}
+	}
+}
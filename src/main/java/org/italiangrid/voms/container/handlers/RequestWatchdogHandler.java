@@ -0,0 +1,350 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.italiangrid.voms.status.VOStatusRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the requests being served by the VO applications, so that requests
+ * stuck e.g. on a database lock are noticed before they exhaust the shared
+ * thread pool.
+ * 
+ * Requests running longer than the slow threshold are counted and a sample of
+ * their stack is logged, at most once per sample interval for each VO. When a
+ * deadline is configured, requests running past it are aborted by failing
+ * their response: the client connection is closed, so that the client does
+ * not wait any longer, and whatever the application writes afterwards is
+ * discarded.
+ * 
+ * Serving threads are never interrupted: an interruption would close the NIO
+ * channels and the pooled database connections the application is using.
+ */
+public class RequestWatchdogHandler extends HandlerWrapper implements
+	MetricsSource {
+
+	public static final Logger log = LoggerFactory.getLogger("Watchdog");
+
+	private static final long MAX_CHECK_PERIOD_IN_MSEC = 1000;
+
+	private static final long NO_DEADLINE = 0;
+
+	private static class InFlightRequest {
+
+		final String voName;
+		final String uri;
+		final Thread thread;
+		final Request baseRequest;
+		final long startTime = System.currentTimeMillis();
+
+		boolean done = false;
+		boolean slow = false;
+		boolean aborted = false;
+
+		InFlightRequest(String voName, String uri, Request baseRequest) {
+
+			this.voName = voName;
+			this.uri = uri;
+			this.baseRequest = baseRequest;
+			this.thread = Thread.currentThread();
+		}
+	}
+
+	private static class VOWatchStats {
+
+		final AtomicLong slow = new AtomicLong();
+		final AtomicLong aborted = new AtomicLong();
+
+		// Only accessed by the watchdog thread
+		long lastStackSampleTime = 0;
+	}
+
+	private final long slowThresholdInMsec;
+	private final long deadlineInMsec;
+	private final long stackSampleIntervalInMsec;
+
+	private final ConcurrentMap<InFlightRequest, Boolean> inFlight = new ConcurrentHashMap<InFlightRequest, Boolean>();
+	private final ConcurrentMap<String, VOWatchStats> stats = new ConcurrentHashMap<String, VOWatchStats>();
+
+	private final AtomicLong stackSamplesLogged = new AtomicLong();
+	private final AtomicLong stackSamplesSuppressed = new AtomicLong();
+
+	private ScheduledExecutorService watchdog;
+
+	/**
+	 * @param deadlineInMsec
+	 *          the time after which requests are aborted, 0 to never abort
+	 *          requests
+	 */
+	public RequestWatchdogHandler(long slowThresholdInMsec, long deadlineInMsec,
+		long stackSampleIntervalInMsec) {
+
+		if (slowThresholdInMsec <= 0)
+			throw new IllegalArgumentException("Invalid slow request threshold: "
+				+ slowThresholdInMsec);
+
+		if (deadlineInMsec < 0)
+			throw new IllegalArgumentException("Invalid request deadline: "
+				+ deadlineInMsec);
+
+		this.slowThresholdInMsec = slowThresholdInMsec;
+		this.deadlineInMsec = deadlineInMsec;
+		this.stackSampleIntervalInMsec = stackSampleIntervalInMsec;
+	}
+
+	private VOWatchStats getStats(String voName) {
+
+		VOWatchStats s = stats.get(voName);
+
+		if (s == null) {
+			VOWatchStats newStats = new VOWatchStats();
+			s = stats.putIfAbsent(voName, newStats);
+
+			if (s == null)
+				s = newStats;
+		}
+
+		return s;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+
+		long period = Math.min(MAX_CHECK_PERIOD_IN_MSEC,
+			Math.max(slowThresholdInMsec / 4, 1));
+
+		watchdog = Executors.newSingleThreadScheduledExecutor();
+		watchdog.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					check();
+				} catch (Throwable t) {
+					log.error("Error checking in-flight requests: {}", t.getMessage(), t);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+
+		super.doStop();
+
+		if (watchdog != null)
+			watchdog.shutdownNow();
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		if (voName == null || VOStatusRegistry.INSTANCE.getState(voName) == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		InFlightRequest r = new InFlightRequest(voName, request.getRequestURI(),
+			baseRequest);
+		inFlight.put(r, Boolean.TRUE);
+
+		boolean aborted;
+
+		try {
+
+			super.handle(target, baseRequest, request, response);
+
+		} catch (IOException e) {
+
+			if (!isAborted(r))
+				throw e;
+
+		} catch (ServletException e) {
+
+			if (!isAborted(r))
+				throw e;
+
+		} catch (RuntimeException e) {
+
+			if (!isAborted(r))
+				throw e;
+
+		} finally {
+
+			inFlight.remove(r);
+
+			synchronized (r) {
+				r.done = true;
+				aborted = r.aborted;
+			}
+		}
+
+		if (aborted)
+			baseRequest.setHandled(true);
+	}
+
+	private boolean isAborted(InFlightRequest r) {
+
+		synchronized (r) {
+			return r.aborted;
+		}
+	}
+
+	private void check() {
+
+		long now = System.currentTimeMillis();
+
+		for (InFlightRequest r : inFlight.keySet()) {
+
+			long elapsed = now - r.startTime;
+
+			if (elapsed >= slowThresholdInMsec && !r.slow) {
+				r.slow = true;
+				getStats(r.voName).slow.incrementAndGet();
+				logSlowRequest(r, elapsed, now);
+			}
+
+			if (deadlineInMsec != NO_DEADLINE && elapsed >= deadlineInMsec
+				&& !r.aborted)
+				abort(r, elapsed);
+		}
+	}
+
+	private void logSlowRequest(InFlightRequest r, long elapsed, long now) {
+
+		VOWatchStats s = getStats(r.voName);
+
+		if (now - s.lastStackSampleTime < stackSampleIntervalInMsec) {
+			stackSamplesSuppressed.incrementAndGet();
+			log.warn("VO {} request {} running for {} msec", new Object[] {
+				r.voName, r.uri, elapsed });
+			return;
+		}
+
+		s.lastStackSampleTime = now;
+		stackSamplesLogged.incrementAndGet();
+
+		StringBuilder stack = new StringBuilder();
+
+		for (StackTraceElement e : r.thread.getStackTrace())
+			stack.append("\n\tat ").append(e);
+
+		log.warn("VO {} request {} running for {} msec on thread {}:{}",
+			new Object[] { r.voName, r.uri, elapsed, r.thread.getName(), stack });
+	}
+
+	private void abort(InFlightRequest r, long elapsed) {
+
+		synchronized (r) {
+
+			if (r.done)
+				return;
+
+			r.aborted = true;
+		}
+
+		getStats(r.voName).aborted.incrementAndGet();
+
+		log.warn("VO {} request {} aborted after {} msec, closing the client "
+			+ "connection. Thread {} is still busy.", new Object[] { r.voName,
+			r.uri, elapsed, r.thread.getName() });
+
+		try {
+
+			r.baseRequest.getConnection().getEndPoint().close();
+
+		} catch (IOException e) {
+			log.debug("Error closing connection: {}", e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "request_watchdog";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		Map<String, Map<String, Object>> perVO = new TreeMap<String, Map<String, Object>>();
+
+		long now = System.currentTimeMillis();
+		long slowNow = 0;
+
+		for (InFlightRequest r : inFlight.keySet()) {
+
+			Map<String, Object> m = getVOMetrics(perVO, r.voName);
+
+			long elapsed = now - r.startTime;
+
+			m.put("in_flight", ((Long) m.get("in_flight")) + 1);
+
+			if (elapsed > (Long) m.get("oldest_in_flight_msec"))
+				m.put("oldest_in_flight_msec", elapsed);
+
+			if (elapsed >= slowThresholdInMsec)
+				slowNow++;
+		}
+
+		for (Map.Entry<String, VOWatchStats> e : stats.entrySet()) {
+
+			Map<String, Object> m = getVOMetrics(perVO, e.getKey());
+
+			m.put("slow", e.getValue().slow.get());
+			m.put("aborted", e.getValue().aborted.get());
+		}
+
+		metrics.put("in_flight", inFlight.size());
+		metrics.put("slow_in_flight", slowNow);
+		metrics.put("slow_threshold_msec", slowThresholdInMsec);
+		metrics.put("deadline_msec", deadlineInMsec);
+		metrics.put("stack_samples_logged", stackSamplesLogged.get());
+		metrics.put("stack_samples_suppressed", stackSamplesSuppressed.get());
+		metrics.put("vos", perVO);
+
+		return metrics;
+	}
+
+	private Map<String, Object> getVOMetrics(
+		Map<String, Map<String, Object>> perVO, String voName) {
+
+		Map<String, Object> m = perVO.get(voName);
+
+		if (m == null) {
+			m = new TreeMap<String, Object>();
+			m.put("in_flight", 0L);
+			m.put("oldest_in_flight_msec", 0L);
+			m.put("slow", 0L);
+			m.put("aborted", 0L);
+			perVO.put(voName, m);
+		}
+
+		return m;
+	}
+}
@@ -0,0 +1,88 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.metrics.VOResourceAccounting;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Attributes the CPU time and the memory allocated by the thread serving a
+ * request to the VO that owns the request.
+ */
+public class ResourceAccountingHandler extends HandlerWrapper {
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private final com.sun.management.ThreadMXBean allocationBean;
+
+	private final boolean cpuTimeSupported;
+
+	public ResourceAccountingHandler() {
+
+		cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+
+		if (cpuTimeSupported && !threadBean.isThreadCpuTimeEnabled())
+			threadBean.setThreadCpuTimeEnabled(true);
+
+		com.sun.management.ThreadMXBean bean = null;
+
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			bean = (com.sun.management.ThreadMXBean) threadBean;
+
+			if (bean.isThreadAllocatedMemorySupported())
+				bean.setThreadAllocatedMemoryEnabled(true);
+			else
+				bean = null;
+		}
+
+		allocationBean = bean;
+	}
+
+	private long currentThreadCpuTime() {
+
+		return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+	}
+
+	private long currentThreadAllocatedBytes() {
+
+		if (allocationBean == null)
+			return 0;
+
+		return allocationBean.getThreadAllocatedBytes(Thread.currentThread()
+			.getId());
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		if (voName == null || VOStatusRegistry.INSTANCE.getState(voName) == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		long startCpuTime = currentThreadCpuTime();
+		long startAllocatedBytes = currentThreadAllocatedBytes();
+
+		try {
+
+			super.handle(target, baseRequest, request, response);
+
+		} finally {
+			VOResourceAccounting.INSTANCE.recordRequest(voName,
+				currentThreadCpuTime() - startCpuTime, currentThreadAllocatedBytes()
+					- startAllocatedBytes);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.container.logging.VOLogContext;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Tags the log events produced while serving a VO request with the VO name.
+ */
+public class VOLogContextHandler extends HandlerWrapper {
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		if (voName == null || VOStatusRegistry.INSTANCE.getState(voName) == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		VOLogContext.set(voName);
+
+		try {
+
+			super.handle(target, baseRequest, request, response);
+
+		} finally {
+			VOLogContext.clear();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.italiangrid.voms.container.handlers;
+
+/**
+ * Helpers to map request paths to the VO contexts deployed by the container.
+ */
+public class VOPaths {
+
+	public static final String VO_CONTEXT_PREFIX = "/voms/";
+
+	private VOPaths() {
+
+	}
+
+	public static String contextPathForVO(String voName) {
+
+		return VO_CONTEXT_PREFIX + voName;
+	}
+
+	/**
+	 * Extracts the VO name from a request path of the form /voms/&lt;vo&gt;/...
+	 * 
+	 * @return the VO name, or <code>null</code> if the path does not target a VO
+	 *         context
+	 */
+	public static String voNameFromPath(String path) {
+
+		if (path == null || !path.startsWith(VO_CONTEXT_PREFIX))
+			return null;
+
+		int start = VO_CONTEXT_PREFIX.length();
+		int end = path.indexOf('/', start);
+
+		String voName = (end < 0) ? path.substring(start) : path.substring(start,
+			end);
+
+		if (voName.length() == 0)
+			return null;
+
+		return voName;
+	}
+}
@@ -0,0 +1,43 @@
+package org.italiangrid.voms.container.handlers;
+
+import org.eclipse.jetty.deploy.App;
+import org.eclipse.jetty.deploy.AppLifeCycle;
+import org.eclipse.jetty.deploy.graph.Node;
+import org.eclipse.jetty.server.handler.ContextHandler;
+
+/**
+ * Keeps the {@link VORouterHandler} index in sync with the VO contexts started
+ * and stopped by the deployment manager. A context is routed to only once
+ * started, so that a new version of a VO deployed side by side with the
+ * running one takes over only when it is ready.
+ */
+public class VORouterBinding implements AppLifeCycle.Binding {
+
+	private final VORouterHandler router;
+
+	public VORouterBinding(VORouterHandler router) {
+
+		this.router = router;
+	}
+
+	@Override
+	public String[] getBindingTargets() {
+
+		return new String[] { AppLifeCycle.STARTED, AppLifeCycle.STOPPING };
+	}
+
+	@Override
+	public void processBinding(Node node, App app) throws Exception {
+
+		ContextHandler handler = app.getContextHandler();
+		String voName = VOPaths.voNameFromPath(handler.getContextPath());
+
+		if (voName == null)
+			return;
+
+		if (AppLifeCycle.STARTED.equals(node.getName()))
+			router.addVO(voName, handler);
+		else
+			router.removeVO(voName, handler);
+	}
+}
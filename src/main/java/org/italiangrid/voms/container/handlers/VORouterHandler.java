@@ -0,0 +1,111 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Dispatches requests for /voms/&lt;vo&gt; straight to the VO context through
+ * a hash index, instead of matching the request path against every deployed
+ * context. Other requests, and the ones the VO context does not handle, go to
+ * the wrapped handler.
+ * 
+ * A new version of a VO can be staged next to the running one: requests
+ * carrying the {@link #STAGED_VERSION_HEADER} and coming from the staging
+ * connector, e.g. warm-up requests, are dispatched to it.
+ */
+public class VORouterHandler extends HandlerWrapper {
+
+	public static final String STAGED_VERSION_HEADER = "X-VOMS-Staged-Version";
+
+	private final ConcurrentMap<String, Handler> voHandlers = new ConcurrentHashMap<String, Handler>();
+
+	private final ConcurrentMap<String, Handler> stagedHandlers = new ConcurrentHashMap<String, Handler>();
+
+	private volatile String stagingConnectorName;
+
+	public void addVO(String voName, Handler handler) {
+
+		voHandlers.put(voName, handler);
+	}
+
+	public void removeVO(String voName, Handler handler) {
+
+		voHandlers.remove(voName, handler);
+	}
+
+	public void stageVO(String voName, Handler handler) {
+
+		stagedHandlers.put(voName, handler);
+	}
+
+	public void unstageVO(String voName, Handler handler) {
+
+		stagedHandlers.remove(voName, handler);
+	}
+
+	/**
+	 * @param stagingConnectorName
+	 *          the name of the connector allowed to reach staged VO versions
+	 */
+	public void setStagingConnectorName(String stagingConnectorName) {
+
+		this.stagingConnectorName = stagingConnectorName;
+	}
+
+	private boolean isStagedVersionRequest(HttpServletRequest request) {
+
+		if (stagingConnectorName == null || stagedHandlers.isEmpty()
+			|| request.getHeader(STAGED_VERSION_HEADER) == null)
+			return false;
+
+		AbstractHttpConnection conn = AbstractHttpConnection.getCurrentConnection();
+
+		return conn != null
+			&& stagingConnectorName.equals(conn.getConnector().getName());
+	}
+
+	public int getRoutedVOCount() {
+
+		return voHandlers.size();
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		// Async redispatches are routed by the context collection, which knows
+		// the context the request was suspended in
+		if (!baseRequest.getAsyncContinuation().isAsync()) {
+
+			String voName = VOPaths.voNameFromPath(target);
+			Handler handler = null;
+
+			if (voName != null)
+				handler = isStagedVersionRequest(request) ? stagedHandlers.get(voName)
+					: voHandlers.get(voName);
+
+			if (handler != null) {
+
+				handler.handle(target, baseRequest, request, response);
+
+				// A stopped context or one bound to other connectors does not handle
+				// the request, which goes on to the status webapp like before
+				if (baseRequest.isHandled())
+					return;
+			}
+		}
+
+		super.handle(target, baseRequest, request, response);
+	}
+}
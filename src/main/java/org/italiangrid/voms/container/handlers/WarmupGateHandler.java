@@ -0,0 +1,49 @@
+package org.italiangrid.voms.container.handlers;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
+
+/**
+ * Rejects with a 503 the requests for VOs that are still warming up, unless
+ * they come from the in-process warm-up connector.
+ */
+public class WarmupGateHandler extends HandlerWrapper {
+
+	public static final String RETRY_AFTER_IN_SECONDS = "5";
+
+	private final String warmupConnectorName;
+
+	public WarmupGateHandler(String warmupConnectorName) {
+
+		this.warmupConnectorName = warmupConnectorName;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		String voName = VOPaths.voNameFromPath(target);
+
+		if (voName != null
+			&& VOState.WARMING_UP.equals(VOStatusRegistry.INSTANCE.getState(voName))
+			&& !warmupConnectorName.equals(baseRequest.getConnection().getConnector()
+				.getName())) {
+
+			baseRequest.setHandled(true);
+			response.setHeader("Retry-After", RETRY_AFTER_IN_SECONDS);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		super.handle(target, baseRequest, request, response);
+	}
+}
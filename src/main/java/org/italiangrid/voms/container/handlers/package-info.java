@@ -0,0 +1,4 @@
+/**
+ * Jetty handlers installed by the container in front of the VO contexts.
+ */
+package org.italiangrid.voms.container.handlers;
@@ -0,0 +1,162 @@
+package org.italiangrid.voms.container.identity;
+
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import eu.emi.security.authn.x509.impl.OpensslNameUtils;
+import eu.emi.security.authn.x509.proxy.ProxyUtils;
+
+/**
+ * The identity of a client, derived from the certificate chain it presented.
+ * The container publishes it to the VO webapps under the
+ * {@link #ATTRIBUTE} request attribute, so that they need not parse the chain
+ * again on each request.
+ */
+public class ClientIdentity {
+
+	/**
+	 * The request attribute under which the identity of the client is
+	 * published to a VO webapp.
+	 */
+	public static final String ATTRIBUTE = "org.italiangrid.voms.container.ClientIdentity";
+
+	/**
+	 * The request attribute holding the certificate chain presented by the
+	 * client, as set by the servlet container.
+	 */
+	public static final String X509_CERTIFICATE_ATTRIBUTE = "javax.servlet.request.X509Certificate";
+
+	private final X509Certificate[] certificateChain;
+	private final X509Certificate endEntityCertificate;
+	private final String subject;
+	private final String issuer;
+	private final boolean proxy;
+	private final int proxyDepth;
+	private final Date notAfter;
+
+	private ClientIdentity(X509Certificate[] certificateChain,
+		X509Certificate endEntityCertificate, String subject, String issuer,
+		boolean proxy, int proxyDepth, Date notAfter) {
+
+		this.certificateChain = certificateChain;
+		this.endEntityCertificate = endEntityCertificate;
+		this.subject = subject;
+		this.issuer = issuer;
+		this.proxy = proxy;
+		this.proxyDepth = proxyDepth;
+		this.notAfter = notAfter;
+	}
+
+	/**
+	 * Derives the identity of a client from its certificate chain.
+	 * 
+	 * @return the identity, or <code>null</code> if the chain is empty or has no
+	 *         end entity certificate
+	 */
+	public static ClientIdentity fromCertificateChain(X509Certificate[] chain) {
+
+		if (chain == null || chain.length == 0)
+			return null;
+
+		X509Certificate eec = ProxyUtils.getEndUserCertificate(chain);
+
+		if (eec == null)
+			return null;
+
+		int depth = 0;
+
+		while (depth < chain.length && chain[depth] != eec)
+			depth++;
+
+		Date notAfter = chain[0].getNotAfter();
+
+		for (X509Certificate c : chain) {
+			if (c.getNotAfter().before(notAfter))
+				notAfter = c.getNotAfter();
+		}
+
+		return new ClientIdentity(chain, eec,
+			OpensslNameUtils.convertFromRfc2253(eec.getSubjectX500Principal()
+				.getName(), false), OpensslNameUtils.convertFromRfc2253(eec
+				.getIssuerX500Principal().getName(), false), depth > 0, depth,
+			notAfter);
+	}
+
+	/**
+	 * @return the chain presented by the client, starting from its own
+	 *         certificate
+	 */
+	public X509Certificate[] getCertificateChain() {
+
+		return certificateChain.clone();
+	}
+
+	/**
+	 * @return the end entity certificate, which is the first one of the chain
+	 *         unless the client used a proxy
+	 */
+	public X509Certificate getEndEntityCertificate() {
+
+		return endEntityCertificate;
+	}
+
+	/**
+	 * @return the subject of the end entity certificate, in OpenSSL slash
+	 *         format
+	 */
+	public String getSubject() {
+
+		return subject;
+	}
+
+	/**
+	 * @return the issuer of the end entity certificate, in OpenSSL slash format
+	 */
+	public String getIssuer() {
+
+		return issuer;
+	}
+
+	/**
+	 * @return whether the client authenticated with a proxy certificate
+	 */
+	public boolean isProxy() {
+
+		return proxy;
+	}
+
+	/**
+	 * @return the number of proxy certificates in front of the end entity one
+	 */
+	public int getProxyDepth() {
+
+		return proxyDepth;
+	}
+
+	/**
+	 * @return when the first certificate of the chain expires
+	 */
+	public Date getNotAfter() {
+
+		return (Date) notAfter.clone();
+	}
+
+	/**
+	 * @return whether the given chain starts with the same certificate as the
+	 *         one this identity was derived from
+	 */
+	boolean isDerivedFrom(X509Certificate[] chain) {
+
+		if (chain == certificateChain)
+			return true;
+
+		return chain != null && chain.length == certificateChain.length
+			&& chain[0].equals(certificateChain[0]);
+	}
+
+	@Override
+	public String toString() {
+
+		return proxy ? subject + " (proxy)" : subject;
+	}
+}
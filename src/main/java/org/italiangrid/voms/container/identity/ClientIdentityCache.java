@@ -0,0 +1,168 @@
+package org.italiangrid.voms.container.identity;
+
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.italiangrid.voms.container.metrics.MetricsSource;
+
+/**
+ * Caches client identities by TLS session, so that the certificate chain of a
+ * client is parsed once per session instead of once per request. Entries last
+ * until the TTL expires or the chain expires, whichever comes first.
+ */
+public class ClientIdentityCache implements MetricsSource {
+
+	private static class CachedIdentity {
+
+		final ClientIdentity identity;
+		final long expirationTime;
+
+		CachedIdentity(ClientIdentity identity, long expirationTime) {
+
+			this.identity = identity;
+			this.expirationTime = expirationTime;
+		}
+	}
+
+	private final long ttlInMsec;
+	private final int maxEntries;
+
+	private final ConcurrentMap<String, CachedIdentity> cache = new ConcurrentHashMap<String, CachedIdentity>();
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong withoutSession = new AtomicLong();
+	private final AtomicLong parses = new AtomicLong();
+	private final AtomicLong parseTimeTotal = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ClientIdentityCache(long ttlInMsec, int maxEntries) {
+
+		this.ttlInMsec = ttlInMsec;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the identity of the client that presented the given chain.
+	 * 
+	 * @param sessionId
+	 *          the TLS session the chain was presented in, <code>null</code> if
+	 *          not known, in which case the chain is always parsed
+	 * @return the identity, or <code>null</code> if the chain does not carry
+	 *         one
+	 */
+	public ClientIdentity get(String sessionId, X509Certificate[] chain) {
+
+		lookups.incrementAndGet();
+
+		if (sessionId == null) {
+			withoutSession.incrementAndGet();
+			return parse(chain);
+		}
+
+		long now = System.currentTimeMillis();
+
+		CachedIdentity cached = cache.get(sessionId);
+
+		// The chain check guards against session id reuse
+		if (cached != null && cached.expirationTime > now
+			&& cached.identity.isDerivedFrom(chain)) {
+			hits.incrementAndGet();
+			return cached.identity;
+		}
+
+		ClientIdentity identity = parse(chain);
+
+		if (identity == null) {
+			cache.remove(sessionId);
+			return null;
+		}
+
+		long expirationTime = Math.min(now + ttlInMsec, identity.getNotAfter()
+			.getTime());
+
+		if (expirationTime > now) {
+
+			if (cache.size() >= maxEntries)
+				evict(now);
+
+			cache.put(sessionId, new CachedIdentity(identity, expirationTime));
+		}
+
+		return identity;
+	}
+
+	private ClientIdentity parse(X509Certificate[] chain) {
+
+		long start = System.nanoTime();
+
+		try {
+
+			return ClientIdentity.fromCertificateChain(chain);
+
+		} finally {
+			parses.incrementAndGet();
+			parseTimeTotal.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private void evict(long now) {
+
+		Iterator<CachedIdentity> it = cache.values().iterator();
+
+		while (it.hasNext()) {
+			if (it.next().expirationTime <= now) {
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		// Still full of live sessions: drop some, they will be parsed again
+		it = cache.values().iterator();
+
+		while (cache.size() >= maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "client_identity";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		long lookupCount = lookups.get();
+		long hitCount = hits.get();
+		long parseCount = parses.get();
+
+		double parseAvgUsec = parseCount == 0 ? 0.0
+			: (double) parseTimeTotal.get() / parseCount / 1000;
+
+		metrics.put("lookups", lookupCount);
+		metrics.put("cache_hits", hitCount);
+		metrics.put("cache_hit_rate", lookupCount == 0 ? 0.0 : (double) hitCount
+			/ lookupCount);
+		metrics.put("without_session", withoutSession.get());
+		metrics.put("cache_entries", cache.size());
+		metrics.put("evictions", evictions.get());
+		metrics.put("parses", parseCount);
+		metrics.put("parse_time_avg_usec", parseAvgUsec);
+
+		// Each hit spares a parse, at the average cost of the actual ones
+		metrics.put("parse_time_saved_msec", hitCount * parseAvgUsec / 1000);
+
+		return metrics;
+	}
+}
@@ -0,0 +1,5 @@
+/**
+ * Client certificate identities, derived once per TLS session and shared with
+ * the VO webapps.
+ */
+package org.italiangrid.voms.container.identity;
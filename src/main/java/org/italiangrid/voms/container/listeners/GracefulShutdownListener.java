@@ -0,0 +1,25 @@
+package org.italiangrid.voms.container.listeners;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle.AbstractLifeCycleListener;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.italiangrid.voms.container.VOMSAppProvider;
+
+/**
+ * Drains, if enabled, and stops the VO contexts in parallel when the server is
+ * stopping, before Jetty closes connectors and stops the handlers one by one.
+ */
+public class GracefulShutdownListener extends AbstractLifeCycleListener {
+
+	private final VOMSAppProvider provider;
+
+	public GracefulShutdownListener(VOMSAppProvider provider) {
+
+		this.provider = provider;
+	}
+
+	@Override
+	public void lifeCycleStopping(LifeCycle event) {
+
+		provider.drainVOs();
+	}
+}
@@ -2,6 +2,9 @@ package org.italiangrid.voms.container.listeners;
 
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.italiangrid.voms.container.logging.VOLogContext;
+import org.italiangrid.voms.status.VOState;
+import org.italiangrid.voms.status.VOStatusRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,7 +19,12 @@ public enum VOListener implements LifeCycle.Listener{
 	public void lifeCycleStarting(LifeCycle event) {
 
 		WebAppContext ctxt = (WebAppContext) event;
+
+		// Tags what the VO logs while starting, on this same thread
+		VOLogContext.set(ctxt.getInitParameter("VO_NAME"));
 		log.info("Starting VO {}...", ctxt.getInitParameter("VO_NAME"));
+		VOStatusRegistry.INSTANCE.setState(ctxt.getInitParameter("VO_NAME"),
+			VOState.STARTING);
 		
 	}
 
@@ -24,6 +32,8 @@ public enum VOListener implements LifeCycle.Listener{
 	public void lifeCycleStarted(LifeCycle event) {
 		WebAppContext ctxt = (WebAppContext) event;
 		log.info("VO {} started.", ctxt.getInitParameter("VO_NAME"));
+		VOStatusRegistry.INSTANCE.contextStarted(ctxt.getInitParameter("VO_NAME"));
+		VOLogContext.clear();
 	}
 
 	@Override
@@ -33,19 +43,28 @@ public enum VOListener implements LifeCycle.Listener{
 		log.error("VO {} encountered a fatal error: "+ cause.getMessage(),
 			ctxt.getInitParameter("VO_NAME"),
 			cause);
+		VOStatusRegistry.INSTANCE.contextFailed(ctxt.getInitParameter("VO_NAME"),
+			cause);
+		VOLogContext.clear();
 		
 	}
 
 	@Override
 	public void lifeCycleStopping(LifeCycle event) {
 		WebAppContext ctxt = (WebAppContext) event;
+		VOLogContext.set(ctxt.getInitParameter("VO_NAME"));
 		log.info("Stopping VO {}...", ctxt.getInitParameter("VO_NAME"));
+		VOStatusRegistry.INSTANCE.setState(ctxt.getInitParameter("VO_NAME"),
+			VOState.STOPPING);
 	}
 
 	@Override
 	public void lifeCycleStopped(LifeCycle event) {
 		WebAppContext ctxt = (WebAppContext) event;
 		log.info("VO {} stopped.", ctxt.getInitParameter("VO_NAME"));
+		VOStatusRegistry.INSTANCE.setState(ctxt.getInitParameter("VO_NAME"),
+			VOState.STOPPED);
+		VOLogContext.clear();
 	}
 
 }
@@ -0,0 +1,242 @@
+package org.italiangrid.voms.container.logging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.italiangrid.voms.container.metrics.MetricsRegistry;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * An {@link AsyncAppender} that deduplicates repeated stack traces before
+ * queueing them, so that a failing VO cannot flood the queue, and that drops
+ * events instead of blocking the logging thread when the queue is full. As for
+ * {@link AsyncAppender}, events below WARN are dropped once the queue is 80%
+ * full, see the <code>discardingThreshold</code> property.
+ * 
+ * Configuration example:
+ * 
+ * <pre>
+ * &lt;appender name="ASYNC" class="org.italiangrid.voms.container.logging.AsyncLogAppender"&gt;
+ *   &lt;queueSize&gt;8192&lt;/queueSize&gt;
+ *   &lt;appender-ref ref="CONSOLE" /&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class AsyncLogAppender extends AsyncAppender implements MetricsSource {
+
+	public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+	public static final long DEFAULT_STACK_TRACE_WINDOW_IN_MSEC = TimeUnit.MINUTES
+		.toMillis(1);
+
+	public static final int DEFAULT_MAX_REPEATED_STACK_TRACES = 5;
+
+	public static final String DEFAULT_APPENDER_NAME = "ASYNC";
+
+	private long stackTraceWindow = DEFAULT_STACK_TRACE_WINDOW_IN_MSEC;
+	private int maxRepeatedStackTraces = DEFAULT_MAX_REPEATED_STACK_TRACES;
+	private boolean blockWhenFull = false;
+
+	private StackTraceDeduplicator deduplicator;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong droppedLowPriority = new AtomicLong();
+	private final AtomicLong droppedQueueFull = new AtomicLong();
+	private final AtomicLong stackTracesSuppressed = new AtomicLong();
+	private final AtomicLong stackTracesDropped = new AtomicLong();
+	private volatile int maxQueueDepth = 0;
+
+	public AsyncLogAppender() {
+
+		setQueueSize(DEFAULT_QUEUE_SIZE);
+	}
+
+	@Override
+	public void start() {
+
+		if (isStarted())
+			return;
+
+		deduplicator = new StackTraceDeduplicator(stackTraceWindow,
+			maxRepeatedStackTraces);
+
+		super.start();
+
+		if (isStarted())
+			MetricsRegistry.INSTANCE.register(this);
+	}
+
+	@Override
+	public void stop() {
+
+		if (!isStarted())
+			return;
+
+		MetricsRegistry.INSTANCE.unregister(this);
+
+		// Waits for the worker to flush the queued events
+		super.stop();
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+
+		if (event.getThrowableProxy() != null) {
+			event = deduplicate(event);
+
+			if (event == null)
+				return;
+		}
+
+		int remainingCapacity = getRemainingCapacity();
+
+		if (remainingCapacity < getDiscardingThreshold() && isDiscardable(event)) {
+			droppedLowPriority.incrementAndGet();
+			return;
+		}
+
+		if (remainingCapacity == 0 && !blockWhenFull) {
+			droppedQueueFull.incrementAndGet();
+			return;
+		}
+
+		super.append(event);
+		enqueued.incrementAndGet();
+
+		int depth = getNumberOfElementsInQueue();
+
+		if (depth > maxQueueDepth)
+			maxQueueDepth = depth;
+	}
+
+	/**
+	 * @return the event to log, possibly without its stack trace, or
+	 *         <code>null</code> if it should be dropped
+	 */
+	private ILoggingEvent deduplicate(ILoggingEvent event) {
+
+		String fingerprint = StackTraceDeduplicator.fingerprint(event);
+
+		switch (deduplicator.decide(fingerprint, System.currentTimeMillis())) {
+
+		case LOG:
+			return event;
+
+		case LOG_WITHOUT_STACK_TRACE:
+			stackTracesSuppressed.incrementAndGet();
+			return withoutStackTrace(event, deduplicator.getCount(fingerprint));
+
+		default:
+			stackTracesDropped.incrementAndGet();
+			return null;
+		}
+	}
+
+	private ILoggingEvent withoutStackTrace(ILoggingEvent event, int occurrences) {
+
+		LoggingEvent copy = new LoggingEvent();
+
+		copy.setLoggerName(event.getLoggerName());
+		copy.setLoggerContextRemoteView(event.getLoggerContextVO());
+		copy.setLevel(event.getLevel());
+		copy.setThreadName(event.getThreadName());
+		copy.setTimeStamp(event.getTimeStamp());
+		copy.setMarker(event.getMarker());
+		copy.setMDCPropertyMap(event.getMDCPropertyMap());
+
+		copy.setMessage(String.format(
+			"%s [%s: %s, stack trace suppressed, seen %d times in the last %d secs]",
+			event.getFormattedMessage(), event.getThrowableProxy().getClassName(),
+			event.getThrowableProxy().getMessage(), occurrences,
+			TimeUnit.MILLISECONDS.toSeconds(deduplicator.getWindowInMsec())));
+
+		return copy;
+	}
+
+	/**
+	 * @return <code>true</code> if logging threads wait for room in a full
+	 *         queue
+	 */
+	public boolean isBlockWhenFull() {
+
+		return blockWhenFull;
+	}
+
+	/**
+	 * @param blockWhenFull
+	 *          whether logging threads wait for room in a full queue instead
+	 *          of dropping the event
+	 */
+	public void setBlockWhenFull(boolean blockWhenFull) {
+
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	/**
+	 * @return the stack trace deduplication window in msec
+	 */
+	public long getStackTraceWindow() {
+
+		return stackTraceWindow;
+	}
+
+	/**
+	 * @param stackTraceWindow
+	 *          the window, in msec, in which repeated stack traces are
+	 *          deduplicated
+	 */
+	public void setStackTraceWindow(long stackTraceWindow) {
+
+		this.stackTraceWindow = stackTraceWindow;
+	}
+
+	/**
+	 * @return the max number of repetitions of a stack trace logged in a window
+	 */
+	public int getMaxRepeatedStackTraces() {
+
+		return maxRepeatedStackTraces;
+	}
+
+	/**
+	 * @param maxRepeatedStackTraces
+	 *          the number of repetitions of a stack trace logged, without the
+	 *          stack trace, in a window before further ones are dropped
+	 */
+	public void setMaxRepeatedStackTraces(int maxRepeatedStackTraces) {
+
+		this.maxRepeatedStackTraces = maxRepeatedStackTraces;
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return DEFAULT_APPENDER_NAME.equals(getName()) ? "logging" : "logging."
+			+ getName();
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		metrics.put("queue_depth", getNumberOfElementsInQueue());
+		metrics.put("queue_capacity", getQueueSize());
+		metrics.put("max_queue_depth", maxQueueDepth);
+		metrics.put("discarding_threshold", getDiscardingThreshold());
+		metrics.put("enqueued", enqueued.get());
+		metrics.put("dropped_low_priority", droppedLowPriority.get());
+		metrics.put("dropped_queue_full", droppedQueueFull.get());
+		metrics.put("stack_traces_suppressed", stackTracesSuppressed.get());
+		metrics.put("stack_traces_dropped", stackTracesDropped.get());
+		metrics.put("tracked_stack_traces", deduplicator.getTrackedCount());
+
+		return metrics;
+	}
+}
@@ -0,0 +1,150 @@
+package org.italiangrid.voms.container.logging;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Recognizes stack traces logged over and over, like those of a VO failing at
+ * each request. Within a time window only the first occurrence of a stack
+ * trace is logged in full, a limited number of repetitions are logged without
+ * the stack trace and further ones are dropped.
+ */
+class StackTraceDeduplicator {
+
+	enum Decision {
+		LOG, LOG_WITHOUT_STACK_TRACE, DROP
+	}
+
+	private static final int FINGERPRINT_FRAMES = 8;
+
+	private static final int MAX_TRACKED_STACK_TRACES = 1024;
+
+	private static class Occurrences {
+
+		long windowStart;
+		int count;
+	}
+
+	private final long windowInMsec;
+	private final int maxRepetitions;
+
+	private final ConcurrentMap<String, Occurrences> seen = new ConcurrentHashMap<String, Occurrences>();
+
+	StackTraceDeduplicator(long windowInMsec, int maxRepetitions) {
+
+		this.windowInMsec = windowInMsec;
+		this.maxRepetitions = maxRepetitions;
+	}
+
+	long getWindowInMsec() {
+
+		return windowInMsec;
+	}
+
+	/**
+	 * The fingerprint of a stack trace is made of the logger name and of the
+	 * class and topmost frames of each throwable in the cause chain, so that
+	 * occurrences differing only in the exception messages match.
+	 */
+	static String fingerprint(ILoggingEvent event) {
+
+		StringBuilder sb = new StringBuilder(event.getLoggerName());
+
+		for (IThrowableProxy t = event.getThrowableProxy(); t != null; t = t
+			.getCause()) {
+
+			sb.append('|').append(t.getClassName());
+
+			StackTraceElementProxy[] frames = t.getStackTraceElementProxyArray();
+
+			for (int i = 0; i < Math.min(frames.length, FINGERPRINT_FRAMES); i++)
+				sb.append(';').append(frames[i].getSTEAsString());
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return how an event with a stack trace should be logged
+	 */
+	Decision decide(String fingerprint, long now) {
+
+		Occurrences o = seen.get(fingerprint);
+
+		if (o == null) {
+
+			if (seen.size() >= MAX_TRACKED_STACK_TRACES)
+				purge(now);
+
+			Occurrences newOccurrences = new Occurrences();
+			newOccurrences.windowStart = now;
+
+			o = seen.putIfAbsent(fingerprint, newOccurrences);
+
+			if (o == null)
+				o = newOccurrences;
+		}
+
+		synchronized (o) {
+
+			if (now - o.windowStart >= windowInMsec) {
+				o.windowStart = now;
+				o.count = 0;
+			}
+
+			o.count++;
+
+			if (o.count == 1)
+				return Decision.LOG;
+
+			if (o.count <= maxRepetitions + 1)
+				return Decision.LOG_WITHOUT_STACK_TRACE;
+
+			return Decision.DROP;
+		}
+	}
+
+	/**
+	 * @return the number of occurrences of the stack trace in the current window
+	 */
+	int getCount(String fingerprint) {
+
+		Occurrences o = seen.get(fingerprint);
+
+		if (o == null)
+			return 0;
+
+		synchronized (o) {
+			return o.count;
+		}
+	}
+
+	private void purge(long now) {
+
+		Iterator<Occurrences> it = seen.values().iterator();
+
+		while (it.hasNext()) {
+
+			Occurrences o = it.next();
+
+			synchronized (o) {
+				if (now - o.windowStart >= windowInMsec)
+					it.remove();
+			}
+		}
+
+		// Too many distinct stack traces in a single window, start over
+		if (seen.size() >= MAX_TRACKED_STACK_TRACES)
+			seen.clear();
+	}
+
+	int getTrackedCount() {
+
+		return seen.size();
+	}
+}
@@ -0,0 +1,28 @@
+package org.italiangrid.voms.container.logging;
+
+import org.slf4j.MDC;
+
+/**
+ * Tags the log events produced on behalf of a VO with the VO name, under the
+ * {@link #MDC_KEY} MDC key. Log configurations can use the key to route VO
+ * events, e.g. with a <code>SiftingAppender</code>, or show it with the
+ * <code>%X{vo}</code> conversion word.
+ */
+public class VOLogContext {
+
+	public static final String MDC_KEY = "vo";
+
+	private VOLogContext() {
+
+	}
+
+	public static void set(String voName) {
+
+		MDC.put(MDC_KEY, voName);
+	}
+
+	public static void clear() {
+
+		MDC.remove(MDC_KEY);
+	}
+}
@@ -0,0 +1,5 @@
+/**
+ * Asynchronous logging pipeline, so that request threads never wait on log
+ * I/O.
+ */
+package org.italiangrid.voms.container.logging;
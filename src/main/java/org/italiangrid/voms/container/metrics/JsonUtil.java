@@ -0,0 +1,100 @@
+package org.italiangrid.voms.container.metrics;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Minimal JSON serialization for the maps, collections, numbers, booleans and
+ * strings published by the container.
+ */
+public class JsonUtil {
+
+	private JsonUtil() {
+
+	}
+
+	public static String toJson(Object o) {
+
+		StringBuilder sb = new StringBuilder();
+		append(sb, o);
+		return sb.toString();
+	}
+
+	private static void append(StringBuilder sb, Object o) {
+
+		if (o == null) {
+
+			sb.append("null");
+
+		} else if (o instanceof Number || o instanceof Boolean) {
+
+			sb.append(o.toString());
+
+		} else if (o instanceof Map) {
+
+			sb.append('{');
+			Iterator<?> it = ((Map<?, ?>) o).entrySet().iterator();
+
+			while (it.hasNext()) {
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) it.next();
+				appendString(sb, String.valueOf(e.getKey()));
+				sb.append(':');
+				append(sb, e.getValue());
+				if (it.hasNext())
+					sb.append(',');
+			}
+
+			sb.append('}');
+
+		} else if (o instanceof Collection) {
+
+			sb.append('[');
+			Iterator<?> it = ((Collection<?>) o).iterator();
+
+			while (it.hasNext()) {
+				append(sb, it.next());
+				if (it.hasNext())
+					sb.append(',');
+			}
+
+			sb.append(']');
+
+		} else {
+			appendString(sb, o.toString());
+		}
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+
+		sb.append('"');
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+
+		sb.append('"');
+	}
+}
@@ -0,0 +1,57 @@
+package org.italiangrid.voms.container.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public enum MetricsRegistry {
+
+	INSTANCE;
+
+	public static final Logger log = LoggerFactory.getLogger("Metrics");
+
+	private final ConcurrentMap<String, MetricsSource> sources = new ConcurrentHashMap<String, MetricsSource>();
+
+	public void register(MetricsSource source) {
+
+		sources.put(source.getMetricsName(), source);
+	}
+
+	public void unregister(MetricsSource source) {
+
+		sources.remove(source.getMetricsName(), source);
+	}
+
+	public SortedMap<String, Object> snapshot() {
+
+		SortedMap<String, Object> snapshot = new TreeMap<String, Object>();
+
+		for (MetricsSource s : sources.values()) {
+			try {
+
+				snapshot.put(s.getMetricsName(), s.getMetrics());
+
+			} catch (RuntimeException e) {
+				log.warn("Error collecting metrics from {}: {}", s.getMetricsName(),
+					e.getMessage());
+			}
+		}
+
+		return snapshot;
+	}
+
+	public Map<String, Object> snapshot(String sourceName) {
+
+		MetricsSource s = sources.get(sourceName);
+
+		if (s == null)
+			return null;
+
+		return s.getMetrics();
+	}
+}
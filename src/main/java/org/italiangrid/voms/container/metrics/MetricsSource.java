@@ -0,0 +1,20 @@
+package org.italiangrid.voms.container.metrics;
+
+import java.util.Map;
+
+/**
+ * A container component that publishes runtime metrics.
+ */
+public interface MetricsSource {
+
+	/**
+	 * @return the name under which the metrics are published
+	 */
+	public String getMetricsName();
+
+	/**
+	 * @return a snapshot of the current metric values, keyed by metric name
+	 */
+	public Map<String, Object> getMetrics();
+
+}
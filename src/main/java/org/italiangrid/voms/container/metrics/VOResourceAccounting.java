@@ -0,0 +1,133 @@
+package org.italiangrid.voms.container.metrics;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the resources used by each VO: CPU time and memory allocated by
+ * the threads serving its requests, and classes loaded by its webapp
+ * classloader.
+ * 
+ * The JVM does not account metaspace per classloader, so the metaspace used
+ * by a VO is estimated as its share of the loaded classes times the metaspace
+ * currently in use.
+ */
+public enum VOResourceAccounting implements MetricsSource {
+
+	INSTANCE;
+
+	public interface ClassCounter {
+
+		public int getLoadedClassCount();
+	}
+
+	static class Usage {
+
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong cpuTimeInNsec = new AtomicLong();
+		final AtomicLong allocatedBytes = new AtomicLong();
+		volatile ClassCounter classCounter;
+	}
+
+	private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+
+	private Usage getUsage(String voName) {
+
+		Usage u = usages.get(voName);
+
+		if (u == null) {
+			u = new Usage();
+			Usage existing = usages.putIfAbsent(voName, u);
+			if (existing != null)
+				u = existing;
+		}
+
+		return u;
+	}
+
+	public void recordRequest(String voName, long cpuTimeInNsec,
+		long allocatedBytes) {
+
+		Usage u = getUsage(voName);
+
+		u.requests.incrementAndGet();
+
+		if (cpuTimeInNsec > 0)
+			u.cpuTimeInNsec.addAndGet(cpuTimeInNsec);
+
+		if (allocatedBytes > 0)
+			u.allocatedBytes.addAndGet(allocatedBytes);
+	}
+
+	/**
+	 * Sets the class counter of the classloader currently serving a VO, which
+	 * replaces the one of a previous deployment.
+	 */
+	public void setClassCounter(String voName, ClassCounter counter) {
+
+		getUsage(voName).classCounter = counter;
+	}
+
+	private long getMetaspaceUsed() {
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			// Metaspace on Java 8+, permanent generation before
+			if (pool.getName().equals("Metaspace")
+				|| pool.getName().endsWith("Perm Gen"))
+				return pool.getUsage().getUsed();
+		}
+
+		return -1;
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "resources";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+		int totalLoadedClasses = classLoading.getLoadedClassCount();
+		long metaspaceUsed = getMetaspaceUsed();
+
+		Map<String, Object> metrics = new TreeMap<String, Object>();
+
+		for (Map.Entry<String, Usage> e : usages.entrySet()) {
+
+			Usage u = e.getValue();
+			Map<String, Object> voMetrics = new LinkedHashMap<String, Object>();
+
+			voMetrics.put("requests", u.requests.get());
+			voMetrics.put("cpu_time_msec",
+				TimeUnit.NANOSECONDS.toMillis(u.cpuTimeInNsec.get()));
+			voMetrics.put("allocated_bytes", u.allocatedBytes.get());
+
+			ClassCounter counter = u.classCounter;
+
+			if (counter != null) {
+				int loadedClasses = counter.getLoadedClassCount();
+				voMetrics.put("loaded_classes", loadedClasses);
+
+				if (metaspaceUsed >= 0 && totalLoadedClasses > 0)
+					voMetrics.put("estimated_metaspace_bytes", metaspaceUsed
+						* loadedClasses / totalLoadedClasses);
+			}
+
+			metrics.put(e.getKey(), voMetrics);
+		}
+
+		return metrics;
+	}
+}
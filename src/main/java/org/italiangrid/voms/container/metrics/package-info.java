@@ -0,0 +1,4 @@
+/**
+ * Runtime metrics published by the container components.
+ */
+package org.italiangrid.voms.container.metrics;
@@ -0,0 +1,214 @@
+package org.italiangrid.voms.container.ocsp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The small subset of DER encoding and decoding needed to talk OCSP. Only
+ * definite lengths and single byte tags are supported, which is all DER
+ * allows for the OCSP structures.
+ */
+final class Der {
+
+	static final int INTEGER = 0x02;
+	static final int BIT_STRING = 0x03;
+	static final int OCTET_STRING = 0x04;
+	static final int NULL = 0x05;
+	static final int OID = 0x06;
+	static final int ENUMERATED = 0x0a;
+	static final int GENERALIZED_TIME = 0x18;
+	static final int SEQUENCE = 0x30;
+
+	private static final int CONTEXT_CLASS = 0x80;
+
+	private Der() {
+
+	}
+
+	/**
+	 * A decoded TLV, pointing into the encoding it was parsed from.
+	 */
+	static class Element {
+
+		final int tag;
+		private final byte[] buffer;
+		private final int start;
+		private final int contentStart;
+		private final int end;
+
+		private Element(int tag, byte[] buffer, int start, int contentStart,
+			int end) {
+
+			this.tag = tag;
+			this.buffer = buffer;
+			this.start = start;
+			this.contentStart = contentStart;
+			this.end = end;
+		}
+
+		/**
+		 * @return the whole encoding of this element, tag and length included
+		 */
+		byte[] getEncoded() {
+
+			return Arrays.copyOfRange(buffer, start, end);
+		}
+
+		byte[] getContent() {
+
+			return Arrays.copyOfRange(buffer, contentStart, end);
+		}
+
+		boolean isContextTag(int number) {
+
+			return (tag & 0xc0) == CONTEXT_CLASS && (tag & 0x1f) == number;
+		}
+
+		/**
+		 * @return the elements contained in this constructed element
+		 */
+		List<Element> getChildren() throws IOException {
+
+			List<Element> children = new ArrayList<Element>();
+
+			int offset = contentStart;
+
+			while (offset < end) {
+				Element child = parse(buffer, offset, end);
+				children.add(child);
+				offset = child.end;
+			}
+
+			return children;
+		}
+
+		Element getChild(int index) throws IOException {
+
+			List<Element> children = getChildren();
+
+			if (index >= children.size())
+				throw new IOException("Malformed DER: missing element " + index);
+
+			return children.get(index);
+		}
+
+		Element expect(int expectedTag) throws IOException {
+
+			if (tag != expectedTag)
+				throw new IOException(String.format(
+					"Malformed DER: expected tag 0x%02x, found 0x%02x", expectedTag,
+					tag));
+
+			return this;
+		}
+	}
+
+	static Element parse(byte[] buffer) throws IOException {
+
+		Element e = parse(buffer, 0, buffer.length);
+
+		if (e.end != buffer.length)
+			throw new IOException("Malformed DER: trailing data");
+
+		return e;
+	}
+
+	static Element parse(byte[] buffer, int offset, int limit)
+		throws IOException {
+
+		if (offset + 2 > limit)
+			throw new IOException("Malformed DER: truncated element");
+
+		int tag = buffer[offset] & 0xff;
+
+		if ((tag & 0x1f) == 0x1f)
+			throw new IOException("Unsupported DER multi byte tag");
+
+		int length = buffer[offset + 1] & 0xff;
+		int contentStart = offset + 2;
+
+		if (length > 0x7f) {
+
+			int lengthBytes = length & 0x7f;
+
+			if (lengthBytes == 0 || lengthBytes > 4
+				|| contentStart + lengthBytes > limit)
+				throw new IOException("Malformed DER: invalid length");
+
+			length = 0;
+
+			for (int i = 0; i < lengthBytes; i++)
+				length = (length << 8) | (buffer[contentStart + i] & 0xff);
+
+			contentStart += lengthBytes;
+		}
+
+		if (length < 0 || contentStart + length > limit)
+			throw new IOException("Malformed DER: element exceeds its container");
+
+		return new Element(tag, buffer, offset, contentStart, contentStart
+			+ length);
+	}
+
+	static byte[] encode(int tag, byte[]... contents) {
+
+		int length = 0;
+
+		for (byte[] c : contents)
+			length += c.length;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+		out.write(tag);
+
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int lengthBytes = (length > 0xffffff) ? 4 : (length > 0xffff) ? 3
+				: (length > 0xff) ? 2 : 1;
+
+			out.write(0x80 | lengthBytes);
+
+			for (int i = lengthBytes - 1; i >= 0; i--)
+				out.write(length >> (8 * i));
+		}
+
+		for (byte[] c : contents)
+			out.write(c, 0, c.length);
+
+		return out.toByteArray();
+	}
+
+	static String decodeOid(byte[] content) throws IOException {
+
+		if (content.length == 0)
+			throw new IOException("Malformed DER: empty OID");
+
+		StringBuilder sb = new StringBuilder();
+
+		long value = 0;
+		boolean first = true;
+
+		for (byte b : content) {
+
+			value = (value << 7) | (b & 0x7f);
+
+			if ((b & 0x80) != 0)
+				continue;
+
+			if (first) {
+				int arc = (int) Math.min(value / 40, 2);
+				sb.append(arc).append('.').append(value - 40 * arc);
+				first = false;
+			} else {
+				sb.append('.').append(value);
+			}
+
+			value = 0;
+		}
+
+		return sb.toString();
+	}
+}
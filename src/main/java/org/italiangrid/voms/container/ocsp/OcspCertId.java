@@ -0,0 +1,123 @@
+package org.italiangrid.voms.container.ocsp;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+/**
+ * Identifies a certificate towards an OCSP responder (RFC 6960 CertID), using
+ * SHA-1 as required by most grid CA responders.
+ */
+final class OcspCertId {
+
+	static final String SHA1_OID = "1.3.14.3.2.26";
+
+	// AlgorithmIdentifier { sha1, NULL }
+	private static final byte[] SHA1_ALGORITHM = { 0x30, 0x09, 0x06, 0x05, 0x2b,
+		0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00 };
+
+	private final byte[] issuerNameHash;
+	private final byte[] issuerKeyHash;
+	private final BigInteger serialNumber;
+
+	private OcspCertId(byte[] issuerNameHash, byte[] issuerKeyHash,
+		BigInteger serialNumber) {
+
+		this.issuerNameHash = issuerNameHash;
+		this.issuerKeyHash = issuerKeyHash;
+		this.serialNumber = serialNumber;
+	}
+
+	static OcspCertId of(X509Certificate cert, X509Certificate issuer)
+		throws IOException {
+
+		return new OcspCertId(sha1(issuer.getSubjectX500Principal().getEncoded()),
+			issuerKeyHash(issuer), cert.getSerialNumber());
+	}
+
+	/**
+	 * @return the SHA-1 hash of the issuer public key bits, as used in CertIDs
+	 *         and in responder IDs by key
+	 */
+	static byte[] issuerKeyHash(X509Certificate issuer) throws IOException {
+
+		// SubjectPublicKeyInfo { algorithm, subjectPublicKey BIT STRING }
+		byte[] keyBits = Der.parse(issuer.getPublicKey().getEncoded()).getChild(1)
+			.expect(Der.BIT_STRING).getContent();
+
+		// Skip the unused bits count
+		return sha1(Arrays.copyOfRange(keyBits, 1, keyBits.length));
+	}
+
+	static OcspCertId parse(Der.Element certId) throws IOException {
+
+		String hashAlgorithm = Der.decodeOid(certId.getChild(0).getChild(0)
+			.expect(Der.OID).getContent());
+
+		if (!SHA1_OID.equals(hashAlgorithm))
+			throw new IOException("Unsupported CertID hash algorithm "
+				+ hashAlgorithm);
+
+		return new OcspCertId(certId.getChild(1).expect(Der.OCTET_STRING)
+			.getContent(), certId.getChild(2).expect(Der.OCTET_STRING).getContent(),
+			new BigInteger(certId.getChild(3).expect(Der.INTEGER).getContent()));
+	}
+
+	static byte[] sha1(byte[] data) {
+
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	byte[] getEncoded() {
+
+		return Der.encode(Der.SEQUENCE, SHA1_ALGORITHM,
+			Der.encode(Der.OCTET_STRING, issuerNameHash),
+			Der.encode(Der.OCTET_STRING, issuerKeyHash),
+			Der.encode(Der.INTEGER, serialNumber.toByteArray()));
+	}
+
+	/**
+	 * @return a DER encoded OCSP request for this certificate, without nonce so
+	 *         that responses can be cached
+	 */
+	byte[] toRequest() {
+
+		// OCSPRequest { TBSRequest { requestList { Request { CertID } } } }
+		return Der.encode(Der.SEQUENCE, Der.encode(Der.SEQUENCE, Der.encode(
+			Der.SEQUENCE, Der.encode(Der.SEQUENCE, getEncoded()))));
+	}
+
+	BigInteger getSerialNumber() {
+
+		return serialNumber;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+
+		if (this == o)
+			return true;
+
+		if (!(o instanceof OcspCertId))
+			return false;
+
+		OcspCertId other = (OcspCertId) o;
+
+		return serialNumber.equals(other.serialNumber)
+			&& Arrays.equals(issuerNameHash, other.issuerNameHash)
+			&& Arrays.equals(issuerKeyHash, other.issuerKeyHash);
+	}
+
+	@Override
+	public int hashCode() {
+
+		return 31 * serialNumber.hashCode() + Arrays.hashCode(issuerKeyHash);
+	}
+}
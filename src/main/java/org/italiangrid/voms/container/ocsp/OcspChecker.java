@@ -0,0 +1,524 @@
+package org.italiangrid.voms.container.ocsp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the revocation status of certificates against OCSP responders.
+ * 
+ * Verified responses are cached until their nextUpdate time, or for a default
+ * TTL when the responder does not provide one. Concurrent checks of the same
+ * certificate share a single request to the responder. Responder failures,
+ * including timeouts, are cached for a short time so that a responder being
+ * down does not slow every request down; whether such failures reject the
+ * certificate is up to the caller's soft fail policy.
+ * 
+ * Responders are queried by a bounded pool of threads rather than by the
+ * checking threads, which only wait for the answer. When too many queries are
+ * pending the status is reported as unavailable right away. Cached statuses
+ * about to expire are refreshed in the background, so that the certificates
+ * of active clients do not wait for the responder.
+ */
+public class OcspChecker implements MetricsSource {
+
+	public static final Logger log = LoggerFactory.getLogger("OCSP");
+
+	public static final String AUTHORITY_INFO_ACCESS_OID = "1.3.6.1.5.5.7.1.1";
+	public static final String OCSP_ACCESS_METHOD_OID = "1.3.6.1.5.5.7.48.1";
+
+	private static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+	public static final int MAX_CONCURRENT_QUERIES = 8;
+
+	public static final int MAX_PENDING_QUERIES = 256;
+
+	/**
+	 * Cached statuses expiring within this time are refreshed in the
+	 * background.
+	 */
+	public static final long REFRESH_AHEAD_IN_MSEC = TimeUnit.MINUTES.toMillis(1);
+
+	// GeneralName uniformResourceIdentifier, [6] IMPLICIT IA5String
+	private static final int URI_GENERAL_NAME_TAG = 0x86;
+
+	public enum Status {
+
+		GOOD,
+
+		REVOKED,
+
+		/**
+		 * The responder does not know the certificate.
+		 */
+		UNKNOWN,
+
+		/**
+		 * No valid answer could be obtained from the responder.
+		 */
+		UNAVAILABLE,
+
+		/**
+		 * No responder is known for the certificate.
+		 */
+		NOT_CHECKED;
+	}
+
+	private static class CachedStatus {
+
+		final Status status;
+		final long expirationTime;
+
+		CachedStatus(Status status, long expirationTime) {
+
+			this.status = status;
+			this.expirationTime = expirationTime;
+		}
+	}
+
+	private final String responderUrl;
+	private final int timeoutInMsec;
+	private final long defaultCacheTtlInMsec;
+	private final long errorCacheTtlInMsec;
+	private final int maxCacheEntries;
+
+	private final ConcurrentMap<OcspCertId, CachedStatus> cache = new ConcurrentHashMap<OcspCertId, CachedStatus>();
+	private final ConcurrentMap<OcspCertId, FutureTask<CachedStatus>> flights = new ConcurrentHashMap<OcspCertId, FutureTask<CachedStatus>>();
+
+	private final ThreadPoolExecutor queryExecutor;
+
+	private final AtomicLong checks = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong responderRequests = new AtomicLong();
+	private final AtomicLong responderErrors = new AtomicLong();
+	private final AtomicLong responderTimeouts = new AtomicLong();
+	private final AtomicLong rejectedQueries = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong responderLatencyTotal = new AtomicLong();
+	private final AtomicLong responderLatencyMax = new AtomicLong();
+	private final AtomicLong revoked = new AtomicLong();
+	private final AtomicLong unknown = new AtomicLong();
+	private final AtomicLong notChecked = new AtomicLong();
+
+	/**
+	 * @param responderUrl
+	 *          the responder used for all certificates, overriding the one in
+	 *          their authority information access extension; <code>null</code>
+	 *          or empty to use the extension
+	 * @param timeoutInMsec
+	 *          the connect and read timeout for responder requests
+	 * @param defaultCacheTtlInMsec
+	 *          how long responses without a nextUpdate time are cached
+	 * @param errorCacheTtlInMsec
+	 *          how long responder failures are cached
+	 */
+	public OcspChecker(String responderUrl, int timeoutInMsec,
+		long defaultCacheTtlInMsec, long errorCacheTtlInMsec, int maxCacheEntries) {
+
+		this.responderUrl = (responderUrl == null || responderUrl.trim()
+			.isEmpty()) ? null : responderUrl.trim();
+		this.timeoutInMsec = timeoutInMsec;
+		this.defaultCacheTtlInMsec = defaultCacheTtlInMsec;
+		this.errorCacheTtlInMsec = errorCacheTtlInMsec;
+		this.maxCacheEntries = maxCacheEntries;
+
+		queryExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_QUERIES,
+			MAX_CONCURRENT_QUERIES, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(MAX_PENDING_QUERIES),
+			new ThreadFactory() {
+
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+
+					Thread t = new Thread(r, "ocsp-query-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+		queryExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Stops querying responders, pending checks report the status as
+	 * unavailable.
+	 */
+	public void shutdown() {
+
+		queryExecutor.shutdownNow();
+	}
+
+	/**
+	 * Checks the status of a certificate.
+	 * 
+	 * @param issuer
+	 *          the certificate of the CA that issued <code>cert</code>
+	 */
+	public Status check(X509Certificate cert, X509Certificate issuer) {
+
+		checks.incrementAndGet();
+
+		final String url = (responderUrl != null) ? responderUrl
+			: getResponderUrl(cert);
+
+		if (url == null) {
+			notChecked.incrementAndGet();
+			return Status.NOT_CHECKED;
+		}
+
+		final OcspCertId certId;
+
+		try {
+			certId = OcspCertId.of(cert, issuer);
+		} catch (IOException e) {
+			log.warn("Cannot build the OCSP certificate ID for {}: {}",
+				cert.getSubjectX500Principal(), e.getMessage());
+			return Status.UNAVAILABLE;
+		}
+
+		long now = System.currentTimeMillis();
+		CachedStatus cached = cache.get(certId);
+
+		if (cached != null && cached.expirationTime > now) {
+			cacheHits.incrementAndGet();
+
+			if (cached.status != Status.UNAVAILABLE
+				&& cached.expirationTime - now < REFRESH_AHEAD_IN_MSEC
+				&& submit(certId, cert, issuer, url) != null)
+				refreshes.incrementAndGet();
+
+			return count(cached.status);
+		}
+
+		return count(query(certId, cert, issuer, url).status);
+	}
+
+	private Status count(Status s) {
+
+		if (s == Status.REVOKED)
+			revoked.incrementAndGet();
+		else if (s == Status.UNKNOWN)
+			unknown.incrementAndGet();
+
+		return s;
+	}
+
+	/**
+	 * Queues a responder query for a certificate, unless one is already
+	 * pending.
+	 * 
+	 * @return the pending query, or <code>null</code> if too many queries are
+	 *         pending
+	 */
+	private FutureTask<CachedStatus> submit(final OcspCertId certId,
+		final X509Certificate cert, final X509Certificate issuer, final String url) {
+
+		final FutureTask<CachedStatus> flight = new FutureTask<CachedStatus>(
+			new Callable<CachedStatus>() {
+
+				@Override
+				public CachedStatus call() {
+
+					try {
+
+						CachedStatus result = fetch(certId, cert, issuer, url);
+						store(certId, result);
+						return result;
+
+					} finally {
+						flights.remove(certId);
+					}
+				}
+			});
+
+		FutureTask<CachedStatus> existing = flights.putIfAbsent(certId, flight);
+
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return existing;
+		}
+
+		try {
+
+			queryExecutor.execute(flight);
+
+		} catch (RejectedExecutionException e) {
+			flights.remove(certId, flight);
+			rejectedQueries.incrementAndGet();
+			return null;
+		}
+
+		return flight;
+	}
+
+	private CachedStatus query(OcspCertId certId, X509Certificate cert,
+		X509Certificate issuer, String url) {
+
+		FutureTask<CachedStatus> flight = submit(certId, cert, issuer, url);
+
+		if (flight == null)
+			return new CachedStatus(Status.UNAVAILABLE, 0);
+
+		try {
+
+			// The query is bound by the responder timeouts
+			return flight.get(2L * timeoutInMsec + 1000, TimeUnit.MILLISECONDS);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.warn("OCSP check failed: {}", e.getCause().getMessage());
+		} catch (TimeoutException e) {
+			responderTimeouts.incrementAndGet();
+		}
+
+		return new CachedStatus(Status.UNAVAILABLE, 0);
+	}
+
+	private CachedStatus fetch(OcspCertId certId, X509Certificate cert,
+		X509Certificate issuer, String url) {
+
+		responderRequests.incrementAndGet();
+		long start = System.nanoTime();
+
+		try {
+
+			byte[] encoded = post(url, certId.toRequest());
+			long now = System.currentTimeMillis();
+
+			OcspResponse response = OcspResponse.parse(encoded, certId, issuer, now);
+
+			Status status = Status.valueOf(response.status.name());
+
+			long expiration = (response.nextUpdate >= 0) ? response.nextUpdate : now
+				+ defaultCacheTtlInMsec;
+
+			if (status == Status.REVOKED)
+				log.info("Certificate {} with serial {} is revoked according to {}",
+					new Object[] { cert.getSubjectX500Principal(),
+						cert.getSerialNumber(), url });
+
+			return new CachedStatus(status, expiration);
+
+		} catch (SocketTimeoutException e) {
+
+			responderTimeouts.incrementAndGet();
+			log.warn("OCSP responder {} timed out", url);
+
+		} catch (IOException e) {
+
+			responderErrors.incrementAndGet();
+			log.warn("OCSP check of {} against {} failed: {}", new Object[] {
+				cert.getSubjectX500Principal(), url, e.getMessage() });
+
+		} catch (RuntimeException e) {
+
+			// Structurally unexpected responses
+			responderErrors.incrementAndGet();
+			log.warn("Invalid OCSP response from {}: {}", url, e.toString());
+
+		} finally {
+
+			long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			responderLatencyTotal.addAndGet(latency);
+
+			long max;
+			while (latency > (max = responderLatencyMax.get())
+				&& !responderLatencyMax.compareAndSet(max, latency))
+				;
+		}
+
+		return new CachedStatus(Status.UNAVAILABLE, System.currentTimeMillis()
+			+ errorCacheTtlInMsec);
+	}
+
+	private void store(OcspCertId certId, CachedStatus status) {
+
+		long now = System.currentTimeMillis();
+
+		if (status.expirationTime <= now)
+			return;
+
+		if (cache.size() >= maxCacheEntries)
+			evict(now);
+
+		cache.put(certId, status);
+	}
+
+	private void evict(long now) {
+
+		Iterator<CachedStatus> it = cache.values().iterator();
+
+		while (it.hasNext()) {
+			if (it.next().expirationTime <= now)
+				it.remove();
+		}
+
+		// Still full of current entries: drop some, the cache is only a shortcut
+		it = cache.values().iterator();
+
+		while (cache.size() >= maxCacheEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private byte[] post(String url, byte[] request) throws IOException {
+
+		HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+
+		try {
+
+			c.setConnectTimeout(timeoutInMsec);
+			c.setReadTimeout(timeoutInMsec);
+			c.setRequestMethod("POST");
+			c.setDoOutput(true);
+			c.setRequestProperty("Content-Type", "application/ocsp-request");
+			c.setRequestProperty("Accept", "application/ocsp-response");
+			c.setFixedLengthStreamingMode(request.length);
+
+			OutputStream os = c.getOutputStream();
+
+			try {
+				os.write(request);
+			} finally {
+				os.close();
+			}
+
+			if (c.getResponseCode() != HttpURLConnection.HTTP_OK)
+				throw new IOException("OCSP responder answered HTTP "
+					+ c.getResponseCode());
+
+			InputStream is = c.getInputStream();
+
+			try {
+
+				ByteArrayOutputStream response = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int n;
+
+				while ((n = is.read(buffer)) >= 0) {
+					response.write(buffer, 0, n);
+
+					if (response.size() > MAX_RESPONSE_SIZE)
+						throw new IOException("OCSP response too large");
+				}
+
+				return response.toByteArray();
+
+			} finally {
+				is.close();
+			}
+
+		} finally {
+			c.disconnect();
+		}
+	}
+
+	/**
+	 * @return the first OCSP responder URL in the authority information access
+	 *         extension of the certificate, or <code>null</code>
+	 */
+	static String getResponderUrl(X509Certificate cert) {
+
+		byte[] extension = cert.getExtensionValue(AUTHORITY_INFO_ACCESS_OID);
+
+		if (extension == null)
+			return null;
+
+		try {
+
+			// The extension value is wrapped in an OCTET STRING
+			Der.Element accessDescriptions = Der.parse(
+				Der.parse(extension).expect(Der.OCTET_STRING).getContent()).expect(
+				Der.SEQUENCE);
+
+			for (Der.Element description : accessDescriptions.getChildren()) {
+
+				String method = Der.decodeOid(description.getChild(0)
+					.expect(Der.OID).getContent());
+
+				Der.Element location = description.getChild(1);
+
+				if (OCSP_ACCESS_METHOD_OID.equals(method)
+					&& location.tag == URI_GENERAL_NAME_TAG) {
+
+					String url = new String(location.getContent(), "US-ASCII");
+
+					if (url.startsWith("http://") || url.startsWith("https://"))
+						return url;
+				}
+			}
+
+		} catch (IOException e) {
+			log.debug("Invalid authority information access in {}: {}",
+				cert.getSubjectX500Principal(), e.getMessage());
+		}
+
+		return null;
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "ocsp";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		long checkCount = checks.get();
+		long requests = responderRequests.get();
+
+		metrics.put("checks", checkCount);
+		metrics.put("cache_hits", cacheHits.get());
+		metrics.put("cache_hit_rate", checkCount == 0 ? 0.0
+			: (double) cacheHits.get() / checkCount);
+		metrics.put("cache_entries", cache.size());
+		metrics.put("coalesced", coalesced.get());
+		metrics.put("refreshes", refreshes.get());
+		metrics.put("pending_queries", queryExecutor.getQueue().size());
+		metrics.put("rejected_queries", rejectedQueries.get());
+		metrics.put("responder_requests", requests);
+		metrics.put("responder_errors", responderErrors.get());
+		metrics.put("responder_timeouts", responderTimeouts.get());
+		metrics.put("responder_latency_avg_msec", requests == 0 ? 0.0
+			: (double) responderLatencyTotal.get() / requests);
+		metrics.put("responder_latency_max_msec", responderLatencyMax.get());
+		metrics.put("revoked", revoked.get());
+		metrics.put("unknown", unknown.get());
+		metrics.put("not_checked", notChecked.get());
+
+		return metrics;
+	}
+}
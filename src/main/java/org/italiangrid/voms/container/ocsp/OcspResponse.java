@@ -0,0 +1,277 @@
+package org.italiangrid.voms.container.ocsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The status of a certificate from a verified OCSP basic response.
+ */
+final class OcspResponse {
+
+	enum CertStatus {
+		GOOD, REVOKED, UNKNOWN
+	}
+
+	static final String BASIC_RESPONSE_OID = "1.3.6.1.5.5.7.48.1.1";
+	static final String OCSP_SIGNING_OID = "1.3.6.1.5.5.7.3.9";
+
+	// Tolerated clock difference with the responder
+	static final long MAX_CLOCK_SKEW_IN_MSEC = TimeUnit.MINUTES.toMillis(5);
+
+	private static final String[] RESPONSE_STATUS_NAMES = { "successful",
+		"malformedRequest", "internalError", "tryLater", "unused", "sigRequired",
+		"unauthorized" };
+
+	private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<String, String>();
+
+	static {
+		SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.5", "SHA1withRSA");
+		SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.11", "SHA256withRSA");
+		SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.12", "SHA384withRSA");
+		SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.13", "SHA512withRSA");
+		SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.1", "SHA1withECDSA");
+		SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.2", "SHA256withECDSA");
+		SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.3", "SHA384withECDSA");
+		SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.4", "SHA512withECDSA");
+	}
+
+	final CertStatus status;
+	final long thisUpdate;
+
+	// -1 when the responder does not tell when newer information is available
+	final long nextUpdate;
+
+	private OcspResponse(CertStatus status, long thisUpdate, long nextUpdate) {
+
+		this.status = status;
+		this.thisUpdate = thisUpdate;
+		this.nextUpdate = nextUpdate;
+	}
+
+	/**
+	 * Parses and verifies a response. The response must be signed by the
+	 * issuer, or by a responder certificate the issuer delegated with the OCSP
+	 * signing extended key usage, and must be current.
+	 * 
+	 * @throws IOException
+	 *           if the response is malformed, not successful, not verified or
+	 *           does not cover the requested certificate
+	 */
+	static OcspResponse parse(byte[] encoded, OcspCertId certId,
+		X509Certificate issuer, long now) throws IOException {
+
+		List<Der.Element> response = Der.parse(encoded).expect(Der.SEQUENCE)
+			.getChildren();
+
+		byte[] responseStatus = response.get(0).expect(Der.ENUMERATED)
+			.getContent();
+
+		if (responseStatus.length != 1 || responseStatus[0] != 0) {
+			int s = responseStatus.length == 1 ? responseStatus[0] : -1;
+			throw new IOException("OCSP responder answered "
+				+ (s >= 0 && s < RESPONSE_STATUS_NAMES.length ? RESPONSE_STATUS_NAMES[s]
+					: "status " + s));
+		}
+
+		if (response.size() < 2 || !response.get(1).isContextTag(0))
+			throw new IOException("OCSP response without response bytes");
+
+		Der.Element responseBytes = response.get(1).getChild(0)
+			.expect(Der.SEQUENCE);
+
+		String responseType = Der.decodeOid(responseBytes.getChild(0)
+			.expect(Der.OID).getContent());
+
+		if (!BASIC_RESPONSE_OID.equals(responseType))
+			throw new IOException("Unsupported OCSP response type " + responseType);
+
+		List<Der.Element> basic = Der
+			.parse(responseBytes.getChild(1).expect(Der.OCTET_STRING).getContent())
+			.expect(Der.SEQUENCE).getChildren();
+
+		Der.Element tbsResponseData = basic.get(0).expect(Der.SEQUENCE);
+
+		String signatureAlgorithm = Der.decodeOid(basic.get(1).getChild(0)
+			.expect(Der.OID).getContent());
+
+		byte[] signatureBits = basic.get(2).expect(Der.BIT_STRING).getContent();
+
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+
+		if (basic.size() > 3 && basic.get(3).isContextTag(0))
+			certs = parseCertificates(basic.get(3).getChild(0));
+
+		verifySignature(tbsResponseData.getEncoded(), signatureAlgorithm,
+			Arrays.copyOfRange(signatureBits, 1, signatureBits.length), issuer,
+			certs, now);
+
+		return findSingleResponse(tbsResponseData, certId, now);
+	}
+
+	private static List<X509Certificate> parseCertificates(Der.Element sequence)
+		throws IOException {
+
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+
+		try {
+
+			CertificateFactory cf = CertificateFactory.getInstance("X.509");
+
+			for (Der.Element e : sequence.getChildren())
+				certs.add((X509Certificate) cf
+					.generateCertificate(new ByteArrayInputStream(e.getEncoded())));
+
+		} catch (CertificateException e) {
+			throw new IOException("Invalid certificate in OCSP response: "
+				+ e.getMessage(), e);
+		}
+
+		return certs;
+	}
+
+	private static boolean isDelegatedResponder(X509Certificate responder,
+		X509Certificate issuer, long now) {
+
+		try {
+
+			if (!responder.getIssuerX500Principal().equals(
+				issuer.getSubjectX500Principal()))
+				return false;
+
+			List<String> extendedKeyUsage = responder.getExtendedKeyUsage();
+
+			if (extendedKeyUsage == null
+				|| !extendedKeyUsage.contains(OCSP_SIGNING_OID))
+				return false;
+
+			responder.checkValidity(new Date(now));
+			responder.verify(issuer.getPublicKey());
+
+			return true;
+
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static void verifySignature(byte[] tbsResponseData,
+		String signatureAlgorithmOid, byte[] signature, X509Certificate issuer,
+		List<X509Certificate> certs, long now) throws IOException {
+
+		String algorithm = SIGNATURE_ALGORITHMS.get(signatureAlgorithmOid);
+
+		if (algorithm == null)
+			throw new IOException("Unsupported OCSP signature algorithm "
+				+ signatureAlgorithmOid);
+
+		List<X509Certificate> signers = new ArrayList<X509Certificate>();
+		signers.add(issuer);
+
+		for (X509Certificate c : certs) {
+			if (isDelegatedResponder(c, issuer, now))
+				signers.add(c);
+		}
+
+		for (X509Certificate signer : signers) {
+			try {
+
+				Signature s = Signature.getInstance(algorithm);
+				s.initVerify(signer.getPublicKey());
+				s.update(tbsResponseData);
+
+				if (s.verify(signature))
+					return;
+
+			} catch (Exception e) {
+				// Try the next candidate
+			}
+		}
+
+		throw new IOException("OCSP response signature verification failed");
+	}
+
+	private static OcspResponse findSingleResponse(Der.Element tbsResponseData,
+		OcspCertId certId, long now) throws IOException {
+
+		List<Der.Element> data = tbsResponseData.getChildren();
+
+		// Skip the optional version, the responder ID and producedAt
+		int index = data.get(0).isContextTag(0) ? 3 : 2;
+
+		if (index >= data.size())
+			throw new IOException("Malformed OCSP response data");
+
+		for (Der.Element single : data.get(index).expect(Der.SEQUENCE)
+			.getChildren()) {
+
+			List<Der.Element> fields = single.getChildren();
+
+			if (!certId.equals(OcspCertId.parse(fields.get(0))))
+				continue;
+
+			Der.Element certStatus = fields.get(1);
+			CertStatus status;
+
+			if (certStatus.isContextTag(0))
+				status = CertStatus.GOOD;
+			else if (certStatus.isContextTag(1))
+				status = CertStatus.REVOKED;
+			else if (certStatus.isContextTag(2))
+				status = CertStatus.UNKNOWN;
+			else
+				throw new IOException("Malformed OCSP certificate status");
+
+			long thisUpdate = parseTime(fields.get(2).expect(Der.GENERALIZED_TIME));
+			long nextUpdate = -1;
+
+			for (int i = 3; i < fields.size(); i++) {
+				if (fields.get(i).isContextTag(0))
+					nextUpdate = parseTime(fields.get(i).getChild(0)
+						.expect(Der.GENERALIZED_TIME));
+			}
+
+			if (thisUpdate > now + MAX_CLOCK_SKEW_IN_MSEC)
+				throw new IOException("OCSP response is not yet valid");
+
+			if (nextUpdate >= 0 && nextUpdate < now - MAX_CLOCK_SKEW_IN_MSEC)
+				throw new IOException("OCSP response is expired");
+
+			return new OcspResponse(status, thisUpdate, nextUpdate);
+		}
+
+		throw new IOException("OCSP response does not cover certificate "
+			+ certId.getSerialNumber());
+	}
+
+	private static long parseTime(Der.Element time) throws IOException {
+
+		// e.g. 20140101120000Z or 20140101120000.123Z
+		String value = new String(time.getContent(), "US-ASCII");
+
+		if (!value.endsWith("Z") || value.length() < 15)
+			throw new IOException("Unsupported OCSP time " + value);
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		try {
+			return format.parse(value.substring(0, 14)).getTime();
+		} catch (ParseException e) {
+			throw new IOException("Invalid OCSP time " + value, e);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.italiangrid.voms.container.ocsp;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import eu.emi.security.authn.x509.X509CertChainValidator;
+
+/**
+ * Finds the issuer of a certificate among the trust anchors of the validator,
+ * since clients usually do not send the CA certificate along with their
+ * chain. The index is rebuilt periodically to follow trust anchor updates.
+ */
+public class TrustedIssuers {
+
+	private final X509CertChainValidator validator;
+	private final long refreshIntervalInMsec;
+
+	private volatile Map<X500Principal, List<X509Certificate>> index = Collections
+		.emptyMap();
+	private volatile long lastRefreshTime = 0;
+
+	public TrustedIssuers(X509CertChainValidator validator,
+		long refreshIntervalInMsec) {
+
+		this.validator = validator;
+		this.refreshIntervalInMsec = refreshIntervalInMsec;
+	}
+
+	private Map<X500Principal, List<X509Certificate>> getIndex() {
+
+		long now = System.currentTimeMillis();
+
+		if (now - lastRefreshTime > refreshIntervalInMsec) {
+
+			Map<X500Principal, List<X509Certificate>> newIndex = new HashMap<X500Principal, List<X509Certificate>>();
+
+			for (X509Certificate ca : validator.getTrustedIssuers()) {
+
+				List<X509Certificate> cas = newIndex.get(ca
+					.getSubjectX500Principal());
+
+				if (cas == null) {
+					cas = new ArrayList<X509Certificate>(1);
+					newIndex.put(ca.getSubjectX500Principal(), cas);
+				}
+
+				cas.add(ca);
+			}
+
+			// Concurrent rebuilds are harmless
+			index = newIndex;
+			lastRefreshTime = now;
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return the trusted CA certificate that signed <code>cert</code>, or
+	 *         <code>null</code>
+	 */
+	public X509Certificate findIssuer(X509Certificate cert) {
+
+		List<X509Certificate> candidates = getIndex().get(
+			cert.getIssuerX500Principal());
+
+		if (candidates == null)
+			return null;
+
+		if (candidates.size() == 1)
+			return candidates.get(0);
+
+		// Several CA certificates with the same subject, e.g. during a rollover
+		for (X509Certificate ca : candidates) {
+			try {
+				cert.verify(ca.getPublicKey());
+				return ca;
+			} catch (Exception e) {
+				// Not this one
+			}
+		}
+
+		return null;
+	}
+}
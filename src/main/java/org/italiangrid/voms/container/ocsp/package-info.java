@@ -0,0 +1,5 @@
+/**
+ * OCSP revocation checking of client certificates, with a local response
+ * cache.
+ */
+package org.italiangrid.voms.container.ocsp;
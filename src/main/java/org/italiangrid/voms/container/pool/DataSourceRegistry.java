@@ -0,0 +1,77 @@
+package org.italiangrid.voms.container.pool;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.italiangrid.voms.container.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the per-VO connection pools. Pools are owned by the container, so they
+ * outlive VO context restarts and connections stay warm across redeployments.
+ */
+public class DataSourceRegistry {
+
+	public static final Logger log = LoggerFactory
+		.getLogger(DataSourceRegistry.class);
+
+	private final String configurationDir;
+
+	private final Map<String, PooledDataSource> dataSources = new ConcurrentHashMap<String, PooledDataSource>();
+
+	public DataSourceRegistry(String configurationDir) {
+
+		this.configurationDir = configurationDir;
+	}
+
+	/**
+	 * Returns the pool for a VO, creating it if needed. A pool whose
+	 * configuration has changed on disk is replaced by a new one.
+	 * 
+	 * @return the pool, or <code>null</code> if pooling is not enabled for the
+	 *         VO
+	 */
+	public synchronized PooledDataSource getDataSource(String voName) {
+
+		PooledDataSource ds = dataSources.get(voName);
+
+		if (ds != null) {
+			if (!ds.getConfiguration().isStale())
+				return ds;
+
+			log.info("Database configuration for VO {} changed, "
+				+ "recreating connection pool.", voName);
+			close(voName);
+		}
+
+		PoolConfiguration conf = PoolConfiguration.load(configurationDir, voName);
+
+		if (conf == null || !conf.isEnabled())
+			return null;
+
+		ds = new PooledDataSource(voName, conf);
+		dataSources.put(voName, ds);
+		MetricsRegistry.INSTANCE.register(ds);
+
+		log.info("Connection pool created for VO {} (max size: {}).", voName,
+			conf.getMaxSize());
+		return ds;
+	}
+
+	public synchronized void close(String voName) {
+
+		PooledDataSource ds = dataSources.remove(voName);
+
+		if (ds != null) {
+			MetricsRegistry.INSTANCE.unregister(ds);
+			ds.close();
+		}
+	}
+
+	public synchronized void closeAll() {
+
+		for (String voName : dataSources.keySet())
+			close(voName);
+	}
+}
@@ -0,0 +1,152 @@
+package org.italiangrid.voms.container.pool;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The connection pool configuration for a VO, read from the VO
+ * database.properties file.
+ */
+public class PoolConfiguration {
+
+	public static final String DATABASE_PROPERTIES_FILE_NAME = "database.properties";
+
+	public static final String DRIVER_CLASS = "hibernate.connection.driver_class";
+	public static final String URL = "hibernate.connection.url";
+	public static final String USERNAME = "hibernate.connection.username";
+	public static final String PASSWORD = "hibernate.connection.password";
+
+	public static final String POOL_ENABLED = "container.pool.enabled";
+	public static final String POOL_MAX_SIZE = "container.pool.max_size";
+	public static final String POOL_MAX_WAIT = "container.pool.max_wait";
+	public static final String POOL_VALIDATION_TIMEOUT = "container.pool.validation_timeout";
+
+	public static final int DEFAULT_MAX_SIZE = 20;
+	public static final long DEFAULT_MAX_WAIT_IN_MSEC = 5000;
+	public static final int DEFAULT_VALIDATION_TIMEOUT_IN_SECONDS = 5;
+
+	private final File source;
+	private final long sourceLastModified;
+
+	private final boolean enabled;
+	private final String driverClass;
+	private final String url;
+	private final String username;
+	private final String password;
+
+	private final int maxSize;
+	private final long maxWaitInMsec;
+	private final int validationTimeoutInSeconds;
+
+	private PoolConfiguration(File source, Properties props) {
+
+		this.source = source;
+		this.sourceLastModified = source.lastModified();
+
+		enabled = Boolean.parseBoolean(props.getProperty(POOL_ENABLED, "false"));
+		driverClass = props.getProperty(DRIVER_CLASS);
+		url = props.getProperty(URL);
+		username = props.getProperty(USERNAME);
+		password = props.getProperty(PASSWORD);
+
+		maxSize = Integer.parseInt(props.getProperty(POOL_MAX_SIZE,
+			Integer.toString(DEFAULT_MAX_SIZE)));
+
+		maxWaitInMsec = Long.parseLong(props.getProperty(POOL_MAX_WAIT,
+			Long.toString(DEFAULT_MAX_WAIT_IN_MSEC)));
+
+		validationTimeoutInSeconds = Integer.parseInt(props.getProperty(
+			POOL_VALIDATION_TIMEOUT,
+			Integer.toString(DEFAULT_VALIDATION_TIMEOUT_IN_SECONDS)));
+
+		if (enabled && url == null)
+			throw new IllegalArgumentException("No " + URL + " property found in "
+				+ source.getAbsolutePath());
+
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Invalid " + POOL_MAX_SIZE
+				+ " value in " + source.getAbsolutePath() + ": " + maxSize);
+	}
+
+	/**
+	 * Loads the pool configuration for a VO.
+	 * 
+	 * @return the configuration, or <code>null</code> if the VO has no
+	 *         database.properties file
+	 */
+	public static PoolConfiguration load(String configurationDir, String voName) {
+
+		File f = new File(String.format("%s/%s/%s", configurationDir, voName,
+			DATABASE_PROPERTIES_FILE_NAME).replaceAll("/+", "/"));
+
+		if (!f.exists() || !f.canRead())
+			return null;
+
+		Properties props = new Properties();
+		FileReader reader = null;
+
+		try {
+
+			reader = new FileReader(f);
+			props.load(reader);
+
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Error loading database "
+				+ "configuration from " + f.getAbsolutePath() + ": " + e.getMessage(),
+				e);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+
+		return new PoolConfiguration(f, props);
+	}
+
+	public boolean isStale() {
+
+		return source.lastModified() != sourceLastModified;
+	}
+
+	public boolean isEnabled() {
+
+		return enabled;
+	}
+
+	public String getDriverClass() {
+
+		return driverClass;
+	}
+
+	public String getUrl() {
+
+		return url;
+	}
+
+	public String getUsername() {
+
+		return username;
+	}
+
+	public String getPassword() {
+
+		return password;
+	}
+
+	public int getMaxSize() {
+
+		return maxSize;
+	}
+
+	public long getMaxWaitInMsec() {
+
+		return maxWaitInMsec;
+	}
+
+	public int getValidationTimeoutInSeconds() {
+
+		return validationTimeoutInSeconds;
+	}
+}
@@ -0,0 +1,400 @@
+package org.italiangrid.voms.container.pool;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded JDBC connection pool. Connections handed out to clients are
+ * proxies that return the underlying connection to the pool when closed.
+ * 
+ * The pool outlives the VO contexts, so that connections stay open across VO
+ * restarts and upgrades. The JDBC driver is therefore loaded once, by the
+ * container class loader, and must be on the container class path (e.g. in
+ * /var/lib/voms-admin/lib) rather than only in the VO web archive: a driver
+ * loaded from a webapp would pin its class loader after the webapp is gone.
+ */
+public class PooledDataSource implements DataSource, MetricsSource {
+
+	public static final Logger log = LoggerFactory
+		.getLogger(PooledDataSource.class);
+
+	private final String name;
+	private final PoolConfiguration configuration;
+
+	private final Semaphore permits;
+	private final BlockingDeque<Connection> idleConnections = new LinkedBlockingDeque<Connection>();
+
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicLong createdConnections = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong totalWaitTimeInNsec = new AtomicLong();
+	private final AtomicLong maxWaitTimeInNsec = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	private Driver driver;
+
+	private PrintWriter logWriter;
+	private int loginTimeout;
+
+	public PooledDataSource(String name, PoolConfiguration configuration) {
+
+		this.name = name;
+		this.configuration = configuration;
+		this.permits = new Semaphore(configuration.getMaxSize(), true);
+	}
+
+	public PoolConfiguration getConfiguration() {
+
+		return configuration;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+
+		if (closed)
+			throw new SQLException("Connection pool " + name + " is closed.");
+
+		long waitStart = System.nanoTime();
+
+		boolean acquired;
+
+		try {
+
+			acquired = permits.tryAcquire(configuration.getMaxWaitInMsec(),
+				TimeUnit.MILLISECONDS);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection from "
+				+ "pool " + name, e);
+		}
+
+		recordWaitTime(System.nanoTime() - waitStart);
+
+		if (!acquired) {
+			timeouts.incrementAndGet();
+			throw new SQLException("Timeout waiting for a connection from pool "
+				+ name + " (" + configuration.getMaxWaitInMsec() + " msecs)");
+		}
+
+		try {
+
+			Connection c = takeIdleConnection();
+
+			if (c == null)
+				c = openConnection();
+
+			activeConnections.incrementAndGet();
+			return wrap(c);
+
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void recordWaitTime(long waitTimeInNsec) {
+
+		waitCount.incrementAndGet();
+		totalWaitTimeInNsec.addAndGet(waitTimeInNsec);
+
+		long max;
+		do {
+			max = maxWaitTimeInNsec.get();
+		} while (waitTimeInNsec > max
+			&& !maxWaitTimeInNsec.compareAndSet(max, waitTimeInNsec));
+	}
+
+	private Connection takeIdleConnection() {
+
+		Connection c;
+
+		while ((c = idleConnections.pollFirst()) != null) {
+			if (isUsable(c))
+				return c;
+
+			closeQuietly(c);
+		}
+
+		return null;
+	}
+
+	private boolean isUsable(Connection c) {
+
+		try {
+
+			return !c.isClosed()
+				&& c.isValid(configuration.getValidationTimeoutInSeconds());
+
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private Connection openConnection() throws SQLException {
+
+		Properties info = new Properties();
+
+		if (configuration.getUsername() != null)
+			info.setProperty("user", configuration.getUsername());
+
+		if (configuration.getPassword() != null)
+			info.setProperty("password", configuration.getPassword());
+
+		Connection c;
+
+		if (configuration.getDriverClass() == null) {
+
+			c = DriverManager.getConnection(configuration.getUrl(), info);
+
+		} else {
+
+			// DriverManager only hands out drivers visible to the caller class
+			// loader, which for a webapp thread is not the one of the driver
+			c = getDriver().connect(configuration.getUrl(), info);
+
+			if (c == null)
+				throw new SQLException("JDBC driver " + configuration.getDriverClass()
+					+ " does not accept URL " + configuration.getUrl());
+		}
+
+		createdConnections.incrementAndGet();
+
+		log.debug("Opened new connection for pool {}.", name);
+		return c;
+	}
+
+	/**
+	 * Returns the configured driver, loaded by the container class loader the
+	 * first time a connection is opened.
+	 */
+	private synchronized Driver getDriver() throws SQLException {
+
+		if (driver != null)
+			return driver;
+
+		try {
+
+			driver = (Driver) Class.forName(configuration.getDriverClass(), true,
+				PooledDataSource.class.getClassLoader()).newInstance();
+
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("JDBC driver class not found in container "
+				+ "classpath: " + configuration.getDriverClass(), e);
+		} catch (InstantiationException e) {
+			throw new SQLException("Error instantiating JDBC driver "
+				+ configuration.getDriverClass(), e);
+		} catch (IllegalAccessException e) {
+			throw new SQLException("Error instantiating JDBC driver "
+				+ configuration.getDriverClass(), e);
+		} catch (ClassCastException e) {
+			throw new SQLException("Not a JDBC driver: "
+				+ configuration.getDriverClass(), e);
+		}
+
+		return driver;
+	}
+
+	private void release(Connection c) {
+
+		activeConnections.decrementAndGet();
+
+		try {
+
+			if (closed || c.isClosed()) {
+				closeQuietly(c);
+				return;
+			}
+
+			if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+
+			idleConnections.offerFirst(c);
+
+		} catch (SQLException e) {
+			log.debug("Discarding broken connection from pool {}: {}", name,
+				e.getMessage());
+			closeQuietly(c);
+
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void closeQuietly(Connection c) {
+
+		try {
+
+			c.close();
+
+		} catch (SQLException e) {
+			log.debug("Error closing connection: {}", e.getMessage());
+		}
+	}
+
+	private Connection wrap(final Connection c) {
+
+		InvocationHandler handler = new InvocationHandler() {
+
+			private final AtomicBoolean released = new AtomicBoolean(false);
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+
+				String methodName = method.getName();
+
+				if (methodName.equals("close")) {
+					if (released.compareAndSet(false, true))
+						release(c);
+					return null;
+				}
+
+				if (methodName.equals("isClosed"))
+					return released.get() || c.isClosed();
+
+				if (released.get())
+					throw new SQLException("Connection has been returned to pool "
+						+ name);
+
+				try {
+
+					return method.invoke(c, args);
+
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		};
+
+		return (Connection) Proxy.newProxyInstance(
+			PooledDataSource.class.getClassLoader(),
+			new Class<?>[] { Connection.class }, handler);
+	}
+
+	/**
+	 * Closes the idle connections and makes the pool unusable. Connections
+	 * currently in use are closed when they are given back to the pool.
+	 */
+	public void close() {
+
+		closed = true;
+
+		Connection c;
+		while ((c = idleConnections.pollFirst()) != null)
+			closeQuietly(c);
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "datasource." + name;
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		long waits = waitCount.get();
+
+		metrics.put("max_size", configuration.getMaxSize());
+		metrics.put("active", activeConnections.get());
+		metrics.put("idle", idleConnections.size());
+		metrics.put("created", createdConnections.get());
+		metrics.put("waits", waits);
+		metrics.put("avg_wait_time_msec", waits == 0 ? 0 : TimeUnit.NANOSECONDS
+			.toMillis(totalWaitTimeInNsec.get() / waits));
+		metrics.put("max_wait_time_msec",
+			TimeUnit.NANOSECONDS.toMillis(maxWaitTimeInNsec.get()));
+		metrics.put("timeouts", timeouts.get());
+
+		return metrics;
+	}
+
+	@Override
+	public Connection getConnection(String username, String password)
+		throws SQLException {
+
+		throw new SQLFeatureNotSupportedException(
+			"Pooled connections use the configured credentials");
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+
+		this.logWriter = out;
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+
+		this.loginTimeout = seconds;
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+
+		return loginTimeout;
+	}
+
+	// Not annotated with @Override as it appeared in JDBC 4.1
+	public java.util.logging.Logger getParentLogger()
+		throws SQLFeatureNotSupportedException {
+
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+
+		if (iface.isInstance(this))
+			return iface.cast(this);
+
+		throw new SQLException("Not a wrapper for " + iface.getName());
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+
+		return iface.isInstance(this);
+	}
+}
@@ -0,0 +1,4 @@
+/**
+ * Container-managed JDBC connection pools shared with the VO webapps.
+ */
+package org.italiangrid.voms.container.pool;
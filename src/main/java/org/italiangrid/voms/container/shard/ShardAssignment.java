@@ -0,0 +1,86 @@
+package org.italiangrid.voms.container.shard;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps VOs to shards. A VO goes to the shard it is pinned to, if any,
+ * otherwise to a shard chosen by hashing its name, so that the router and all
+ * the shards agree on the mapping without talking to each other.
+ */
+public class ShardAssignment {
+
+	private final int shardCount;
+	private final Map<String, Integer> pinnedVOs;
+
+	public ShardAssignment(int shardCount, Map<String, Integer> pinnedVOs) {
+
+		if (shardCount <= 0)
+			throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+
+		for (Map.Entry<String, Integer> e : pinnedVOs.entrySet()) {
+			if (e.getValue() < 0 || e.getValue() >= shardCount)
+				throw new IllegalArgumentException("VO " + e.getKey()
+					+ " pinned to non existing shard " + e.getValue());
+		}
+
+		this.shardCount = shardCount;
+		this.pinnedVOs = Collections.unmodifiableMap(pinnedVOs);
+	}
+
+	/**
+	 * Parses an assignment from a shard count and a comma separated list of
+	 * <code>&lt;vo&gt;:&lt;shard&gt;</code> pins.
+	 */
+	public static ShardAssignment parse(int shardCount, String pins) {
+
+		Map<String, Integer> pinnedVOs = new HashMap<String, Integer>();
+
+		for (String pin : pins.split(",")) {
+
+			pin = pin.trim();
+
+			if (pin.length() == 0)
+				continue;
+
+			int sep = pin.lastIndexOf(':');
+
+			if (sep <= 0)
+				throw new IllegalArgumentException("Invalid shard assignment: " + pin);
+
+			try {
+
+				pinnedVOs.put(pin.substring(0, sep).trim(),
+					Integer.parseInt(pin.substring(sep + 1).trim()));
+
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid shard assignment: " + pin,
+					e);
+			}
+		}
+
+		return new ShardAssignment(shardCount, pinnedVOs);
+	}
+
+	public int getShardCount() {
+
+		return shardCount;
+	}
+
+	public int shardForVO(String voName) {
+
+		Integer shard = pinnedVOs.get(voName);
+
+		if (shard != null)
+			return shard;
+
+		// String.hashCode() is specified, hence stable across JVMs
+		return (voName.hashCode() & Integer.MAX_VALUE) % shardCount;
+	}
+
+	public boolean isAssigned(String voName, int shard) {
+
+		return shardForVO(voName) == shard;
+	}
+}
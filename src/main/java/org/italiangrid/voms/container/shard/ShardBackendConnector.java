@@ -0,0 +1,188 @@
+package org.italiangrid.voms.container.shard;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.eclipse.jetty.http.HttpException;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.italiangrid.voms.container.identity.ClientIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The loopback connector through which a shard receives the requests
+ * forwarded by the router. The router terminates TLS and passes the client
+ * certificate chain, the client address and the original host in request
+ * headers, which are turned back into the request attributes set by the TLS
+ * connector. Requests not carrying the secret shared by the router and the
+ * shards are rejected with a 403.
+ */
+public class ShardBackendConnector extends SelectChannelConnector {
+
+	public static final Logger log = LoggerFactory
+		.getLogger(ShardBackendConnector.class);
+
+	public static final String LOOPBACK_ADDRESS = "127.0.0.1";
+
+	public static final String SECRET_HEADER = "X-VOMS-Shard-Secret";
+	public static final String CLIENT_CERT_CHAIN_HEADER = "X-VOMS-Client-Cert-Chain";
+	public static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+	public static final String FORWARDED_HOST_HEADER = "X-Forwarded-Host";
+
+	private static final String TRUSTED_ATTRIBUTE = "org.italiangrid.voms.container.shard.Trusted";
+
+	/**
+	 * Room for a certificate chain with a few proxies in the request headers.
+	 */
+	public static final int REQUEST_HEADER_SIZE = 64 * 1024;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final String secret;
+
+	public ShardBackendConnector(int port, String secret) {
+
+		if (secret == null || secret.trim().length() == 0)
+			throw new IllegalArgumentException("A shard secret is required "
+				+ "in sharded mode");
+
+		this.secret = secret.trim();
+
+		setHost(LOOPBACK_ADDRESS);
+		setPort(port);
+		setRequestHeaderSize(REQUEST_HEADER_SIZE);
+	}
+
+	/**
+	 * Encodes a certificate chain for the {@link #CLIENT_CERT_CHAIN_HEADER}
+	 * header.
+	 */
+	public static String encodeCertificateChain(X509Certificate[] chain)
+		throws CertificateException {
+
+		StringBuilder sb = new StringBuilder();
+
+		for (X509Certificate c : chain) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(DatatypeConverter.printBase64Binary(c.getEncoded()));
+		}
+
+		return sb.toString();
+	}
+
+	private static X509Certificate[] decodeCertificateChain(String header)
+		throws CertificateException {
+
+		CertificateFactory cf = CertificateFactory.getInstance("X.509");
+		String[] encodedCerts = header.split(",");
+		X509Certificate[] chain = new X509Certificate[encodedCerts.length];
+
+		for (int i = 0; i < encodedCerts.length; i++) {
+			chain[i] = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(
+				DatatypeConverter.parseBase64Binary(encodedCerts[i].trim())));
+		}
+
+		return chain;
+	}
+
+	private boolean isTrusted(Request request) {
+
+		String requestSecret = request.getHeader(SECRET_HEADER);
+
+		if (requestSecret == null)
+			return false;
+
+		// Constant time, not to leak the secret through response times
+		return MessageDigest.isEqual(secret.getBytes(UTF_8),
+			requestSecret.getBytes(UTF_8));
+	}
+
+	private boolean wasTrusted(Request request) {
+
+		return Boolean.TRUE.equals(request.getAttribute(TRUSTED_ATTRIBUTE));
+	}
+
+	@Override
+	public void customize(EndPoint endpoint, Request request) throws IOException {
+
+		super.customize(endpoint, request);
+
+		boolean trusted = isTrusted(request);
+		String chain = request.getHeader(CLIENT_CERT_CHAIN_HEADER);
+
+		// Keep the forwarding headers away from the applications
+		HttpFields fields = request.getConnection().getRequestFields();
+		fields.remove(SECRET_HEADER);
+		fields.remove(CLIENT_CERT_CHAIN_HEADER);
+
+		if (!trusted) {
+			log.warn("Untrusted request from {} on shard backend connector.",
+				request.getRemoteAddr());
+			throw new HttpException(HttpStatus.FORBIDDEN_403);
+		}
+
+		request.setAttribute(TRUSTED_ATTRIBUTE, Boolean.TRUE);
+
+		request.setScheme("https");
+
+		String forwardedFor = request.getHeader(FORWARDED_FOR_HEADER);
+
+		if (forwardedFor != null) {
+			request.setRemoteAddr(forwardedFor);
+			request.setRemoteHost(forwardedFor);
+		}
+
+		String forwardedHost = request.getHeader(FORWARDED_HOST_HEADER);
+
+		if (forwardedHost != null) {
+
+			int sep = forwardedHost.lastIndexOf(':');
+
+			if (sep > 0) {
+				request.setServerName(forwardedHost.substring(0, sep));
+				request.setServerPort(Integer.parseInt(forwardedHost
+					.substring(sep + 1)));
+			} else
+				request.setServerName(forwardedHost);
+		}
+
+		if (chain != null && chain.length() > 0) {
+			try {
+
+				request.setAttribute(ClientIdentity.X509_CERTIFICATE_ATTRIBUTE,
+					decodeCertificateChain(chain));
+
+			} catch (CertificateException e) {
+				log.warn("Error decoding forwarded client certificate chain: {}",
+					e.getMessage());
+			} catch (IllegalArgumentException e) {
+				log.warn("Error decoding forwarded client certificate chain: {}",
+					e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public boolean isConfidential(Request request) {
+
+		return wasTrusted(request);
+	}
+
+	@Override
+	public boolean isIntegral(Request request) {
+
+		return wasTrusted(request);
+	}
+}
@@ -0,0 +1,504 @@
+package org.italiangrid.voms.container.shard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.italiangrid.voms.container.handlers.VOPaths;
+import org.italiangrid.voms.container.identity.ClientIdentity;
+import org.italiangrid.voms.container.metrics.JsonUtil;
+import org.italiangrid.voms.container.metrics.MetricsRegistry;
+import org.italiangrid.voms.container.metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The front router of the sharded mode. Requests received on the TLS
+ * connector for <code>/voms/&lt;vo&gt;</code> are forwarded to the shard
+ * owning the VO, other requests to the first shard. The VO index
+ * (<code>/vomses.json</code>) and the status page (<code>/status</code>) are
+ * aggregated from all the shards, and also served on the local status
+ * connector, together with the router metrics (<code>/metrics</code>).
+ */
+public class ShardRouterHandler extends AbstractHandler implements
+	MetricsSource {
+
+	public static final Logger log = LoggerFactory.getLogger("Router");
+
+	public static final String VOMSES_JSON_PATH = "/vomses.json";
+	public static final String STATUS_PATH = "/status";
+	public static final String METRICS_PATH = "/metrics";
+
+	public static final int CONNECT_TIMEOUT_IN_MSEC = 5000;
+	public static final int READ_TIMEOUT_IN_MSEC = 300000;
+
+	/**
+	 * Status and VO index pages are small and served by the container itself,
+	 * a shard slower than this is reported as down.
+	 */
+	public static final int AGGREGATION_TIMEOUT_IN_MSEC = 2000;
+
+	private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<String>(
+		Arrays.asList("connection", "keep-alive", "proxy-authenticate",
+			"proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade",
+			"host", "content-length"));
+
+	private final ShardAssignment assignment;
+	private final int baseBackendPort;
+	private final String secret;
+	private final String tlsConnectorName;
+	private final List<String> configuredVONames;
+	private final String hostname;
+	private final String port;
+
+	private final AtomicLongArray forwarded;
+	private final AtomicLongArray errors;
+
+	private ExecutorService fetchExecutor;
+
+	/**
+	 * @param assignment
+	 *          the VO to shard mapping
+	 * @param baseBackendPort
+	 *          the backend port of the first shard, shard <i>i</i> listens on
+	 *          this port plus <i>i</i>
+	 * @param secret
+	 *          the secret shared with the shards
+	 * @param tlsConnectorName
+	 *          the name of the connector whose requests are forwarded
+	 * @param configuredVONames
+	 *          the configured VOs, reported as down when their shard is not
+	 *          reachable
+	 * @param hostname
+	 *          the public host name, used in the VO URLs
+	 * @param port
+	 *          the public port, used in the VO URLs
+	 */
+	public ShardRouterHandler(ShardAssignment assignment, int baseBackendPort,
+		String secret, String tlsConnectorName, List<String> configuredVONames,
+		String hostname, String port) {
+
+		this.assignment = assignment;
+		this.baseBackendPort = baseBackendPort;
+		this.secret = secret;
+		this.tlsConnectorName = tlsConnectorName;
+		this.configuredVONames = configuredVONames;
+		this.hostname = hostname;
+		this.port = port;
+
+		forwarded = new AtomicLongArray(assignment.getShardCount());
+		errors = new AtomicLongArray(assignment.getShardCount());
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+
+		// Shards are queried in parallel when aggregating pages
+		fetchExecutor = Executors.newFixedThreadPool(assignment.getShardCount());
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+
+		super.doStop();
+		fetchExecutor.shutdownNow();
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+		HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+
+		if (VOMSES_JSON_PATH.equals(target)) {
+
+			baseRequest.setHandled(true);
+			writeVOMSESIndex(response);
+
+		} else if (STATUS_PATH.equals(target)) {
+
+			baseRequest.setHandled(true);
+			writeStatus(response);
+
+		} else if (!tlsConnectorName.equals(baseRequest.getConnection()
+			.getConnector().getName())) {
+
+			if (METRICS_PATH.equals(target)) {
+				baseRequest.setHandled(true);
+				response.setContentType("application/json; charset=UTF-8");
+				response.setHeader("Cache-Control", "no-cache");
+				response.getWriter().write(
+					JsonUtil.toJson(MetricsRegistry.INSTANCE.snapshot()));
+			}
+
+		} else {
+
+			String voName = VOPaths.voNameFromPath(target);
+			int shard = (voName == null) ? 0 : assignment.shardForVO(voName);
+
+			baseRequest.setHandled(true);
+			forward(shard, request, response);
+		}
+	}
+
+	private URL backendURL(int shard, String uri) throws IOException {
+
+		return new URL("http", ShardBackendConnector.LOOPBACK_ADDRESS,
+			baseBackendPort + shard, uri);
+	}
+
+	private HttpURLConnection openConnection(int shard, String uri,
+		int connectTimeoutInMsec, int readTimeoutInMsec) throws IOException {
+
+		HttpURLConnection conn = (HttpURLConnection) backendURL(shard, uri)
+			.openConnection();
+
+		conn.setInstanceFollowRedirects(false);
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(connectTimeoutInMsec);
+		conn.setReadTimeout(readTimeoutInMsec);
+		conn.setRequestProperty(ShardBackendConnector.SECRET_HEADER, secret);
+
+		return conn;
+	}
+
+	private void forward(int shard, HttpServletRequest request,
+		HttpServletResponse response) throws IOException {
+
+		String uri = request.getRequestURI();
+
+		if (request.getQueryString() != null)
+			uri = uri + "?" + request.getQueryString();
+
+		forwarded.incrementAndGet(shard);
+
+		HttpURLConnection conn = openConnection(shard, uri,
+			CONNECT_TIMEOUT_IN_MSEC, READ_TIMEOUT_IN_MSEC);
+
+		try {
+
+			conn.setRequestMethod(request.getMethod());
+			copyRequestHeaders(request, conn);
+
+			if (request.getContentLength() > 0
+				|| request.getHeader("Transfer-Encoding") != null) {
+
+				conn.setDoOutput(true);
+
+				if (request.getContentLength() > 0)
+					conn.setFixedLengthStreamingMode(request.getContentLength());
+				else
+					conn.setChunkedStreamingMode(8192);
+
+				OutputStream os = conn.getOutputStream();
+
+				try {
+					IOUtils.copy(request.getInputStream(), os);
+				} finally {
+					IOUtils.closeQuietly(os);
+				}
+			}
+
+			int status = conn.getResponseCode();
+
+			response.setStatus(status);
+			copyResponseHeaders(conn, response);
+
+			InputStream is = (status >= 400) ? conn.getErrorStream() : conn
+				.getInputStream();
+
+			if (is != null) {
+				try {
+					IOUtils.copy(is, response.getOutputStream());
+				} finally {
+					IOUtils.closeQuietly(is);
+				}
+			}
+
+		} catch (IOException e) {
+
+			errors.incrementAndGet(shard);
+			log.warn("Error forwarding {} to shard {}: {}", new Object[] { uri,
+				shard, e.getMessage() });
+
+			// Release the connection to the keep-alive cache, where possible
+			IOUtils.closeQuietly(conn.getErrorStream());
+
+			if (!response.isCommitted())
+				response.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+		}
+	}
+
+	private void copyRequestHeaders(HttpServletRequest request,
+		HttpURLConnection conn) {
+
+		Enumeration<?> names = request.getHeaderNames();
+
+		while (names.hasMoreElements()) {
+
+			String name = (String) names.nextElement();
+
+			if (HOP_BY_HOP_HEADERS.contains(name.toLowerCase())
+				|| name.regionMatches(true, 0, "X-VOMS-", 0, 7)
+				|| name.regionMatches(true, 0, "X-Forwarded-", 0, 12))
+				continue;
+
+			Enumeration<?> values = request.getHeaders(name);
+
+			while (values.hasMoreElements())
+				conn.addRequestProperty(name, (String) values.nextElement());
+		}
+
+		conn.setRequestProperty(ShardBackendConnector.FORWARDED_FOR_HEADER,
+			request.getRemoteAddr());
+		conn.setRequestProperty(ShardBackendConnector.FORWARDED_HOST_HEADER,
+			request.getServerName() + ":" + request.getServerPort());
+
+		X509Certificate[] chain = (X509Certificate[]) request
+			.getAttribute(ClientIdentity.X509_CERTIFICATE_ATTRIBUTE);
+
+		if (chain != null && chain.length > 0) {
+			try {
+
+				conn.setRequestProperty(ShardBackendConnector.CLIENT_CERT_CHAIN_HEADER,
+					ShardBackendConnector.encodeCertificateChain(chain));
+
+			} catch (CertificateException e) {
+				log.warn("Error encoding client certificate chain: {}",
+					e.getMessage());
+			}
+		}
+	}
+
+	private void copyResponseHeaders(HttpURLConnection conn,
+		HttpServletResponse response) {
+
+		for (Map.Entry<String, List<String>> h : conn.getHeaderFields()
+			.entrySet()) {
+
+			// The status line has a null name
+			if (h.getKey() == null
+				|| HOP_BY_HOP_HEADERS.contains(h.getKey().toLowerCase()))
+				continue;
+
+			for (String value : h.getValue())
+				response.addHeader(h.getKey(), value);
+		}
+	}
+
+	/**
+	 * Fetches a page from a shard.
+	 * 
+	 * @return the page, or <code>null</code> if the shard did not answer
+	 */
+	private String fetch(int shard, String path) {
+
+		try {
+
+			HttpURLConnection conn = openConnection(shard, path,
+				AGGREGATION_TIMEOUT_IN_MSEC, AGGREGATION_TIMEOUT_IN_MSEC);
+
+			if (conn.getResponseCode() != HttpServletResponse.SC_OK) {
+				errors.incrementAndGet(shard);
+				IOUtils.closeQuietly(conn.getErrorStream());
+				return null;
+			}
+
+			InputStream is = conn.getInputStream();
+
+			try {
+				return IOUtils.toString(is, "UTF-8");
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+
+		} catch (IOException e) {
+			errors.incrementAndGet(shard);
+			log.debug("Error fetching {} from shard {}: {}", new Object[] { path,
+				shard, e.getMessage() });
+			return null;
+		}
+	}
+
+	/**
+	 * Fetches a page from all the shards in parallel.
+	 * 
+	 * @return the pages, by shard, with <code>null</code> entries for the
+	 *         shards that did not answer in time
+	 */
+	private String[] fetchAll(final String path) {
+
+		String[] pages = new String[assignment.getShardCount()];
+		List<Future<String>> results = new ArrayList<Future<String>>();
+
+		for (int shard = 0; shard < pages.length; shard++) {
+
+			final int s = shard;
+
+			results.add(fetchExecutor.submit(new Callable<String>() {
+
+				@Override
+				public String call() throws Exception {
+
+					return fetch(s, path);
+				}
+			}));
+		}
+
+		long deadline = System.currentTimeMillis() + 2
+			* AGGREGATION_TIMEOUT_IN_MSEC;
+
+		for (int shard = 0; shard < pages.length; shard++) {
+			try {
+
+				pages[shard] = results.get(shard).get(
+					Math.max(deadline - System.currentTimeMillis(), 0),
+					TimeUnit.MILLISECONDS);
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				log.debug("Error fetching {} from shard {}: {}", new Object[] { path,
+					shard, e.getCause().getMessage() });
+			} catch (TimeoutException e) {
+				results.get(shard).cancel(true);
+			}
+		}
+
+		return pages;
+	}
+
+	private void writeVOMSESIndex(HttpServletResponse response)
+		throws IOException {
+
+		StringBuilder entries = new StringBuilder();
+		String[] indexes = fetchAll(VOMSES_JSON_PATH);
+
+		for (int shard = 0; shard < indexes.length; shard++) {
+
+			String index = indexes[shard];
+			String shardEntries = null;
+
+			if (index != null) {
+				// Keep the entries of the "vos" array
+				int start = index.indexOf('[');
+				int end = index.lastIndexOf(']');
+
+				if (start >= 0 && end > start)
+					shardEntries = index.substring(start + 1, end).trim();
+
+			} else {
+
+				StringBuilder down = new StringBuilder();
+
+				for (String voName : getShardVONames(shard)) {
+					if (down.length() > 0)
+						down.append(",\n");
+					down.append(String.format("{ \"name\" : \"%s\", \"url\" : "
+						+ "\"https://%s:%s/voms/%s\", \"active\" : \"false\" }", voName,
+						hostname, port, voName));
+				}
+
+				shardEntries = down.toString();
+			}
+
+			if (shardEntries != null && shardEntries.length() > 0) {
+				if (entries.length() > 0)
+					entries.append(",\n");
+				entries.append(shardEntries);
+			}
+		}
+
+		response.setContentType("application/json; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write("{\n  \"vos\": [\n" + entries + "\n  ]\n}");
+	}
+
+	private void writeStatus(HttpServletResponse response) throws IOException {
+
+		StringBuilder status = new StringBuilder();
+		String[] statuses = fetchAll(STATUS_PATH);
+
+		for (int shard = 0; shard < statuses.length; shard++) {
+
+			String shardStatus = statuses[shard];
+
+			if (shardStatus != null) {
+				status.append(shardStatus.trim());
+				if (shardStatus.trim().length() > 0)
+					status.append('\n');
+			} else {
+				for (String voName : getShardVONames(shard))
+					status.append(String.format("%s : down (shard %d unreachable)\n",
+						voName, shard));
+			}
+		}
+
+		response.setContentType("text/plain; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(status.toString());
+	}
+
+	private List<String> getShardVONames(int shard) {
+
+		List<String> voNames = new ArrayList<String>();
+
+		for (String voName : configuredVONames)
+			if (assignment.isAssigned(voName, shard))
+				voNames.add(voName);
+
+		return Collections.unmodifiableList(voNames);
+	}
+
+	@Override
+	public String getMetricsName() {
+
+		return "shard_router";
+	}
+
+	@Override
+	public Map<String, Object> getMetrics() {
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		for (int shard = 0; shard < assignment.getShardCount(); shard++) {
+
+			Map<String, Object> shardMetrics = new LinkedHashMap<String, Object>();
+			shardMetrics.put("forwarded", forwarded.get(shard));
+			shardMetrics.put("errors", errors.get(shard));
+
+			metrics.put(Integer.toString(shard), shardMetrics);
+		}
+
+		return metrics;
+	}
+}
@@ -0,0 +1,5 @@
+/**
+ * Sharded mode, where the VOs are spread over several container JVMs behind a
+ * front router.
+ */
+package org.italiangrid.voms.container.shard;
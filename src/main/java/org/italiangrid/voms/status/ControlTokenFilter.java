@@ -0,0 +1,71 @@
+package org.italiangrid.voms.status;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.italiangrid.voms.container.ControlToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restricts access to the filtered resources to requests carrying the
+ * container control token. Other requests get a 403.
+ */
+public class ControlTokenFilter implements Filter {
+
+	private static final Logger log = LoggerFactory
+		.getLogger(ControlTokenFilter.class);
+
+	private final ControlToken token;
+
+	public ControlTokenFilter(ControlToken token) {
+
+		this.token = token;
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+		FilterChain chain) throws IOException, ServletException {
+
+		HttpServletRequest req = (HttpServletRequest) request;
+		boolean authorized;
+
+		try {
+
+			authorized = token.authorizes(req
+				.getHeader(ControlToken.AUTHORIZATION_HEADER));
+
+		} catch (IOException e) {
+			log.error("Refusing control request to {}: {}", req.getRequestURI(),
+				e.getMessage());
+			authorized = false;
+		}
+
+		if (!authorized) {
+			((HttpServletResponse) response)
+				.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		chain.doFilter(request, response);
+	}
+
+	@Override
+	public void destroy() {
+
+	}
+
+}
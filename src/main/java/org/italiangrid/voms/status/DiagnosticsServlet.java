@@ -0,0 +1,140 @@
+package org.italiangrid.voms.status;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.italiangrid.voms.container.diagnostics.DiagnosticCommands;
+import org.italiangrid.voms.container.diagnostics.DiagnosticCommands.DiagnosticCommandException;
+import org.italiangrid.voms.container.diagnostics.VOEventLog;
+import org.italiangrid.voms.container.metrics.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-demand JVM diagnostics:
+ * 
+ * <ul>
+ * <li><code>/diagnostics/threads</code>: a thread dump;
+ * <li><code>/diagnostics/histogram</code>: a class histogram of live objects,
+ * or of all objects without forcing a GC with <code>?all=true</code>;
+ * <li><code>/diagnostics/recording</code>: a dump of the continuous flight
+ * recording, if enabled;
+ * <li><code>/diagnostics/events</code>: the recent VO lifecycle transitions.
+ * </ul>
+ */
+public class DiagnosticsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final Logger log = LoggerFactory
+		.getLogger(DiagnosticsServlet.class);
+
+	private final String recordingName;
+
+	/**
+	 * @param recordingName
+	 *          the name of the continuous recording, or <code>null</code> if
+	 *          continuous recording is disabled
+	 */
+	public DiagnosticsServlet(String recordingName) {
+
+		this.recordingName = recordingName;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException {
+
+		String command = req.getPathInfo();
+
+		if (command == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		resp.setHeader("Cache-Control", "no-cache");
+
+		try {
+
+			if (command.equals("/threads")) {
+
+				writeText(resp, DiagnosticCommands.threadDump());
+
+			} else if (command.equals("/histogram")) {
+
+				writeText(resp, DiagnosticCommands.classHistogram(Boolean
+					.parseBoolean(req.getParameter("all"))));
+
+			} else if (command.equals("/recording")) {
+
+				dumpRecording(resp);
+
+			} else if (command.equals("/events")) {
+
+				resp.setContentType("application/json; charset=UTF-8");
+				resp.getWriter().write(
+					JsonUtil.toJson(VOEventLog.INSTANCE.getEvents()));
+
+			} else {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			}
+
+		} catch (DiagnosticCommandException e) {
+			log.warn(e.getMessage());
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				e.getMessage());
+		}
+	}
+
+	private void writeText(HttpServletResponse resp, String text)
+		throws IOException {
+
+		resp.setContentType("text/plain; charset=UTF-8");
+		resp.getWriter().write(text);
+	}
+
+	private void dumpRecording(HttpServletResponse resp) throws IOException {
+
+		if (recordingName == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+				"Continuous recording is not enabled");
+			return;
+		}
+
+		File dump = File.createTempFile("voms-", ".jfr");
+
+		try {
+
+			// Only the name is needed, the dump file is created by the JVM
+			FileUtils.deleteQuietly(dump);
+			DiagnosticCommands.dumpRecording(recordingName, dump.getAbsolutePath());
+
+			resp.setContentType("application/octet-stream");
+			resp.setHeader("Content-Disposition", "attachment; filename=\""
+				+ dump.getName() + "\"");
+			resp.setContentLength((int) dump.length());
+
+			InputStream is = new FileInputStream(dump);
+
+			try {
+
+				IOUtils.copy(is, resp.getOutputStream());
+
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+
+		} finally {
+			FileUtils.deleteQuietly(dump);
+		}
+	}
+}
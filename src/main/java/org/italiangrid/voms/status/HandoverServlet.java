@@ -0,0 +1,62 @@
+package org.italiangrid.voms.status;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.italiangrid.voms.container.HandoverCoordinator;
+import org.italiangrid.voms.container.metrics.JsonUtil;
+
+/**
+ * Exposes the container side of a handover. A <code>GET</code> on
+ * <code>/handover</code> returns the handover state, a <code>POST</code> on
+ * <code>/handover/release</code>, sent by a successor once it is ready, makes
+ * this container release the TLS port and exit.
+ */
+public class HandoverServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private final HandoverCoordinator coordinator;
+
+	public HandoverServlet(HandoverCoordinator coordinator) {
+
+		this.coordinator = coordinator;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException {
+
+		if (req.getPathInfo() != null && !req.getPathInfo().equals("/")) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		resp.setContentType("application/json; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.getWriter().write(JsonUtil.toJson(coordinator.getMetrics()));
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException {
+
+		if (!"/release".equals(req.getPathInfo())) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		if (!coordinator.release()) {
+			resp.sendError(HttpServletResponse.SC_CONFLICT, "Not serving, state: "
+				+ coordinator.getState());
+			return;
+		}
+
+		resp.setContentType("text/plain; charset=UTF-8");
+		resp.getWriter().write("released\n");
+	}
+}
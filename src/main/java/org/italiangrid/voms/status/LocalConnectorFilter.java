@@ -0,0 +1,54 @@
+package org.italiangrid.voms.status;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.italiangrid.voms.container.Container;
+
+/**
+ * Restricts access to the filtered resources to requests received on the
+ * local HTTP status connector. Other requests get a 404.
+ */
+public class LocalConnectorFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+
+	}
+
+	public static boolean isLocalConnectorRequest() {
+
+		AbstractHttpConnection conn = AbstractHttpConnection
+			.getCurrentConnection();
+
+		return conn != null
+			&& Container.HTTP_CONNECTOR_NAME.equals(conn.getConnector().getName());
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+		FilterChain chain) throws IOException, ServletException {
+
+		if (!isLocalConnectorRequest()) {
+			((HttpServletResponse) response)
+				.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		chain.doFilter(request, response);
+	}
+
+	@Override
+	public void destroy() {
+
+	}
+
+}
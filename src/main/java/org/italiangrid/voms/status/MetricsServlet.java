@@ -0,0 +1,48 @@
+package org.italiangrid.voms.status;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.italiangrid.voms.container.metrics.JsonUtil;
+import org.italiangrid.voms.container.metrics.MetricsRegistry;
+
+/**
+ * Renders the container metrics as JSON. <code>/metrics</code> returns all
+ * metrics, <code>/metrics/&lt;source&gt;</code> the metrics of a single
+ * source.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException {
+
+		String source = req.getPathInfo();
+		Object metrics;
+
+		if (source == null || source.equals("/")) {
+			metrics = MetricsRegistry.INSTANCE.snapshot();
+		} else {
+			Map<String, Object> sourceMetrics = MetricsRegistry.INSTANCE
+				.snapshot(source.substring(1));
+
+			if (sourceMetrics == null) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			metrics = sourceMetrics;
+		}
+
+		resp.setContentType("application/json; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.getWriter().write(JsonUtil.toJson(metrics));
+	}
+}
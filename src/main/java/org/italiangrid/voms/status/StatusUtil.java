@@ -6,7 +6,6 @@ import java.util.Map;
 
 import org.eclipse.jetty.deploy.App;
 import org.eclipse.jetty.deploy.DeploymentManager;
-import org.eclipse.jetty.util.component.AbstractLifeCycle;
 
 
 public class StatusUtil {
@@ -23,14 +22,9 @@ public class StatusUtil {
 			if (voApp == null){
 				statusMap.put(vo, false);
 			}else{
-				try {
-					
-					statusMap.put(vo, DeploymentManager.getState(
-						voApp.getContextHandler()).equals(AbstractLifeCycle.STARTED));
-					
-				} catch (Exception e1) {
-					statusMap.put(vo, true);
-				}
+				// A VO is active once its context has started and warm-up, if
+				// enabled, has completed
+				statusMap.put(vo, VOStatusRegistry.INSTANCE.isActive(vo));
 			}
 		}
 		return statusMap;
@@ -0,0 +1,68 @@
+package org.italiangrid.voms.status;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.italiangrid.voms.container.VOMSAppProvider;
+import org.italiangrid.voms.container.VOUpgrader;
+import org.italiangrid.voms.container.metrics.JsonUtil;
+
+/**
+ * Controls rolling upgrades of the VOs. A <code>GET</code> returns the
+ * progress of the current or last upgrade, a <code>POST</code> starts an
+ * upgrade to the configured web archive, e.g. after a package update replaced
+ * it.
+ */
+public class UpgradeServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private final VOUpgrader upgrader;
+	private final VOMSAppProvider provider;
+
+	public UpgradeServlet(VOUpgrader upgrader, VOMSAppProvider provider) {
+
+		this.upgrader = upgrader;
+		this.provider = provider;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException {
+
+		writeStatus(resp);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException {
+
+		try {
+
+			// Only the configured archive can be deployed
+			if (!upgrader.requestUpgrade(provider.getWarFile())) {
+				resp.sendError(HttpServletResponse.SC_CONFLICT,
+					"An upgrade is already in progress");
+				return;
+			}
+
+		} catch (IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+		writeStatus(resp);
+	}
+
+	private void writeStatus(HttpServletResponse resp) throws IOException {
+
+		resp.setContentType("application/json; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.getWriter().write(JsonUtil.toJson(upgrader.getMetrics()));
+	}
+}
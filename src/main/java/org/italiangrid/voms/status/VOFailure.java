@@ -0,0 +1,86 @@
+package org.italiangrid.voms.status;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.italiangrid.voms.container.metrics.JsonUtil;
+
+/**
+ * Describes the failed start attempts of a VO and the retry, if any, scheduled
+ * for it.
+ */
+public class VOFailure {
+
+	private final String cause;
+	private final int attempts;
+	private final int maxAttempts;
+	private final long nextRetryTime;
+
+	public VOFailure(String cause, int attempts, int maxAttempts,
+		long nextRetryTime) {
+
+		this.cause = cause;
+		this.attempts = attempts;
+		this.maxAttempts = maxAttempts;
+		this.nextRetryTime = nextRetryTime;
+	}
+
+	public String getCause() {
+
+		return cause;
+	}
+
+	/**
+	 * @return the number of failed start attempts so far
+	 */
+	public int getAttempts() {
+
+		return attempts;
+	}
+
+	/**
+	 * @return the maximum number of start retries
+	 */
+	public int getMaxAttempts() {
+
+		return maxAttempts;
+	}
+
+	/**
+	 * @return the time of the next start retry, or 0 if no retry is scheduled
+	 */
+	public long getNextRetryTime() {
+
+		return nextRetryTime;
+	}
+
+	public boolean isRetryScheduled() {
+
+		return nextRetryTime > 0;
+	}
+
+	public String getSummary() {
+
+		if (!isRetryScheduled())
+			return String.format("start failed %d times, no more retries", attempts);
+
+		long secondsToRetry = TimeUnit.MILLISECONDS.toSeconds(Math.max(
+			nextRetryTime - System.currentTimeMillis(), 0));
+
+		return String.format("start failed %d times, retry %d of %d in %d seconds",
+			attempts, attempts, maxAttempts, secondsToRetry);
+	}
+
+	public String getJson() {
+
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+
+		m.put("cause", cause);
+		m.put("attempts", attempts);
+		m.put("max_attempts", maxAttempts);
+		m.put("next_retry_time", isRetryScheduled() ? nextRetryTime : null);
+
+		return JsonUtil.toJson(m);
+	}
+}
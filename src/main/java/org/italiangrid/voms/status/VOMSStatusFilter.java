@@ -1,6 +1,7 @@
 package org.italiangrid.voms.status;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -13,17 +14,19 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 
 import org.eclipse.jetty.deploy.DeploymentManager;
+import org.italiangrid.voms.container.VOMSAppProvider;
 import org.italiangrid.voms.container.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-public class VOMSStatusFilter implements Filter{
+public class VOMSStatusFilter implements Filter, VOStatusRegistry.Listener{
 
 	public static final Logger log = LoggerFactory.getLogger(VOMSStatusFilter.class);
 	
 	public static final String STATUS_MAP_KEY = "statusMap";
 	public static final String VO_NAMES = "voNames";
+	public static final String FAILURE_MAP_KEY = "failureMap";
 	
 	public static final String HOST_KEY = "host";
 	public static final String PORT_KEY = "port";
@@ -34,16 +37,36 @@ public class VOMSStatusFilter implements Filter{
 	private final DeploymentManager manager;	
 	private final String hostname;
 	private final String port;
+	private final VOMSAppProvider provider;
 	
 	private Map<String, Boolean> statusMap;
 	private List<String> voNames;
 	
-	long statusMapLastUpdateTime = 0;
+	volatile long statusMapLastUpdateTime = 0;
 	
-	public VOMSStatusFilter(DeploymentManager manager, String host, String port) {
+	/**
+	 * @param provider
+	 *          the provider whose VOs are listed, which are a subset of the
+	 *          configured VOs when running as a shard
+	 */
+	public VOMSStatusFilter(DeploymentManager manager, String host, String port,
+		VOMSAppProvider provider) {
 		this.manager = manager;
 		this.hostname = host;
 		this.port = port;
+		this.provider = provider;
+	}
+	
+	private List<String> getLocalVONames() {
+		
+		List<String> names = new ArrayList<String>();
+		
+		for (String vo: ConfiguredVOsUtil.getConfiguredVONames()){
+			if (provider.isLocalVO(vo))
+				names.add(vo);
+		}
+		
+		return names;
 	}
 	
 	
@@ -54,14 +77,23 @@ public class VOMSStatusFilter implements Filter{
 			log.debug("Updating VOs status map");
 			statusMap = StatusUtil.getStatusMap(manager);
 			statusMapLastUpdateTime = System.currentTimeMillis();
-			voNames = ConfiguredVOsUtil.getConfiguredVONames();
+			voNames = getLocalVONames();
 		}
 	}
 	
 	
+	@Override
+	public void stateChanged(String voName, VOState previousState,
+		VOState currentState) {
+
+		// Force a refresh on the next request
+		statusMapLastUpdateTime = 0;
+	}
+	
 	@Override
 	public void init(FilterConfig filterConfig) throws ServletException {
 		
+		VOStatusRegistry.INSTANCE.addListener(this);
 	}
 
 	@Override
@@ -72,6 +104,7 @@ public class VOMSStatusFilter implements Filter{
 		
 		request.setAttribute(STATUS_MAP_KEY, statusMap);
 		request.setAttribute(VO_NAMES, voNames);
+		request.setAttribute(FAILURE_MAP_KEY, VOStatusRegistry.INSTANCE.getFailures());
 		request.setAttribute(HOST_KEY, hostname);
 		request.setAttribute(PORT_KEY, port);
 		request.setAttribute(VERSION_KEY, Version.version());
@@ -82,6 +115,7 @@ public class VOMSStatusFilter implements Filter{
 	@Override
 	public void destroy() {
 		
+		VOStatusRegistry.INSTANCE.removeListener(this);
 	}
 
 }
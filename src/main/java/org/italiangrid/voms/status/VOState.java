@@ -0,0 +1,27 @@
+package org.italiangrid.voms.status;
+
+/**
+ * The lifecycle states of a VO context as reported by the status endpoints.
+ */
+public enum VOState {
+
+	STARTING,
+
+	WARMING_UP,
+
+	ACTIVE,
+
+	FAILED,
+
+	DRAINING,
+
+	STOPPING,
+
+	STOPPED;
+
+	@Override
+	public String toString() {
+
+		return name().toLowerCase();
+	}
+}
@@ -0,0 +1,166 @@
+package org.italiangrid.voms.status;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the current state of each VO context deployed in the container, as
+ * emitted by the VO lifecycle listener.
+ */
+public enum VOStatusRegistry {
+
+	INSTANCE;
+
+	public static final Logger log = LoggerFactory
+		.getLogger(VOStatusRegistry.class);
+
+	public interface Listener {
+
+		public void stateChanged(String voName, VOState previousState,
+			VOState currentState);
+	}
+
+	private final Map<String, VOState> states = new ConcurrentHashMap<String, VOState>();
+
+	private final Map<String, VOFailure> failures = new ConcurrentHashMap<String, VOFailure>();
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private volatile boolean warmupEnabled = false;
+
+	public VOState getState(String voName) {
+
+		return states.get(voName);
+	}
+
+	public boolean isActive(String voName) {
+
+		return VOState.ACTIVE.equals(states.get(voName));
+	}
+
+	/**
+	 * @return the number of VOs in the given state
+	 */
+	public int countVOs(VOState state) {
+
+		int count = 0;
+
+		for (VOState s : states.values())
+			if (s.equals(state))
+				count++;
+
+		return count;
+	}
+
+	/**
+	 * @return the number of VOs that are deployed, i.e. not stopped
+	 */
+	public int countDeployedVOs() {
+
+		return states.size() - countVOs(VOState.STOPPED);
+	}
+
+	public Map<String, VOState> getStates() {
+
+		return Collections.unmodifiableMap(new HashMap<String, VOState>(states));
+	}
+
+	public void setState(String voName, VOState state) {
+
+		if (VOState.ACTIVE.equals(state))
+			failures.remove(voName);
+
+		VOState previousState = states.put(voName, state);
+
+		if (state.equals(previousState))
+			return;
+
+		log.debug("VO {}: {} -> {}", new Object[] { voName, previousState, state });
+
+		for (Listener l : listeners) {
+			try {
+
+				l.stateChanged(voName, previousState, state);
+
+			} catch (RuntimeException e) {
+				log.error("Error notifying VO state change: {}", e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Records that a VO context has started. The VO becomes active right away,
+	 * or enters the warm-up stage when warm-up is enabled.
+	 */
+	public void contextStarted(String voName) {
+
+		setState(voName, warmupEnabled ? VOState.WARMING_UP : VOState.ACTIVE);
+	}
+
+	/**
+	 * Records that a VO context failed to start and moves the VO to the failed
+	 * state.
+	 */
+	public void contextFailed(String voName, Throwable cause) {
+
+		VOFailure previousFailure = failures.get(voName);
+
+		int attempts = (previousFailure == null) ? 1 : previousFailure
+			.getAttempts() + 1;
+		int maxAttempts = (previousFailure == null) ? 0 : previousFailure
+			.getMaxAttempts();
+
+		failures.put(voName, new VOFailure(cause.getMessage(), attempts,
+			maxAttempts, 0));
+
+		setState(voName, VOState.FAILED);
+	}
+
+	public VOFailure getFailure(String voName) {
+
+		return failures.get(voName);
+	}
+
+	public void setFailure(String voName, VOFailure failure) {
+
+		failures.put(voName, failure);
+	}
+
+	public void clearFailure(String voName) {
+
+		failures.remove(voName);
+	}
+
+	public Map<String, VOFailure> getFailures() {
+
+		return Collections.unmodifiableMap(new HashMap<String, VOFailure>(
+			failures));
+	}
+
+	public boolean isWarmupEnabled() {
+
+		return warmupEnabled;
+	}
+
+	public void setWarmupEnabled(boolean warmupEnabled) {
+
+		this.warmupEnabled = warmupEnabled;
+	}
+
+	public void addListener(Listener l) {
+
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+
+		listeners.remove(l);
+	}
+}
@@ -0,0 +1,319 @@
+package org.italiangrid.voms.status;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.italiangrid.voms.container.metrics.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams VO state transitions to subscribers as server-sent events.
+ * Subscribers are parked as async requests, so idle subscribers do not hold
+ * request threads. Events are queued to each subscriber in a bounded queue and
+ * written by a writer task of its own, run by at most
+ * {@link #MAX_WRITER_THREADS} threads, so slow subscribers never delay the VO
+ * lifecycle. Subscribers falling behind by more than
+ * {@link #MAX_PENDING_EVENTS} events are dropped.
+ * 
+ * A new subscriber is registered before the current state of the VOs is sent
+ * to it, with its events held back until then, so that no transition is
+ * missed in between.
+ */
+public class VOStatusStreamServlet extends HttpServlet implements
+	VOStatusRegistry.Listener {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final Logger log = LoggerFactory
+		.getLogger(VOStatusStreamServlet.class);
+
+	public static final String EVENT_NAME = "vo-state";
+
+	public static final long KEEPALIVE_INTERVAL_IN_SECONDS = 15;
+
+	public static final int MAX_PENDING_EVENTS = 64;
+
+	public static final int MAX_WRITER_THREADS = 8;
+
+	private class Subscriber implements Runnable {
+
+		private final AsyncContext ctxt;
+		private final BlockingQueue<String> pending = new ArrayBlockingQueue<String>(
+			MAX_PENDING_EVENTS);
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private volatile boolean held = true;
+		private volatile boolean dropped = false;
+
+		Subscriber(AsyncContext ctxt) {
+
+			this.ctxt = ctxt;
+		}
+
+		void send(String message) {
+
+			if (!pending.offer(message)) {
+				log.debug("Dropping status stream subscriber: {} events pending",
+					MAX_PENDING_EVENTS);
+				drop();
+				return;
+			}
+
+			schedule();
+		}
+
+		void drop() {
+
+			dropped = true;
+			subscribers.remove(this);
+			schedule();
+		}
+
+		/**
+		 * Starts writing the events queued while the subscriber was held back.
+		 */
+		void release() {
+
+			held = false;
+			schedule();
+		}
+
+		private void schedule() {
+
+			if (!held && scheduled.compareAndSet(false, true)) {
+				try {
+					writers.execute(this);
+				} catch (RejectedExecutionException e) {
+					// Shutting down
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+
+			do {
+
+				if (dropped) {
+					complete(ctxt);
+					return;
+				}
+
+				try {
+
+					PrintWriter w = ctxt.getResponse().getWriter();
+					String message;
+
+					while (!dropped && (message = pending.poll()) != null) {
+						w.write(message);
+						w.flush();
+
+						if (w.checkError())
+							throw new IOException("Error writing to subscriber");
+					}
+
+				} catch (Exception e) {
+					log.debug("Dropping status stream subscriber: {}", e.getMessage());
+					dropped = true;
+					subscribers.remove(this);
+					complete(ctxt);
+					return;
+				}
+
+				scheduled.set(false);
+
+				// Events queued after the last poll are written by this task again,
+				// unless a new one has already been scheduled
+			} while ((dropped || !pending.isEmpty())
+				&& scheduled.compareAndSet(false, true));
+		}
+	}
+
+	private final Queue<Subscriber> subscribers = new ConcurrentLinkedQueue<Subscriber>();
+
+	private ScheduledExecutorService publisher;
+
+	// At most one task per subscriber, a write blocked on a stuck client is
+	// ended by the connector idle timeout
+	private ThreadPoolExecutor writers;
+
+	@Override
+	public void init() throws ServletException {
+
+		publisher = Executors.newSingleThreadScheduledExecutor();
+		writers = new ThreadPoolExecutor(MAX_WRITER_THREADS, MAX_WRITER_THREADS,
+			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+
+					Thread t = new Thread(r, "vo-status-stream-"
+						+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+		writers.allowCoreThreadTimeOut(true);
+
+		publisher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+
+				broadcast(": keepalive\n\n");
+			}
+		}, KEEPALIVE_INTERVAL_IN_SECONDS, KEEPALIVE_INTERVAL_IN_SECONDS,
+			TimeUnit.SECONDS);
+
+		VOStatusRegistry.INSTANCE.addListener(this);
+	}
+
+	@Override
+	public void destroy() {
+
+		VOStatusRegistry.INSTANCE.removeListener(this);
+		publisher.shutdownNow();
+
+		Subscriber subscriber;
+		while ((subscriber = subscribers.poll()) != null)
+			subscriber.drop();
+
+		writers.shutdown();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException {
+
+		resp.setContentType("text/event-stream");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		final AsyncContext ctxt = req.startAsync();
+		final Subscriber subscriber = new Subscriber(ctxt);
+
+		ctxt.setTimeout(0);
+		ctxt.addListener(new AsyncListener() {
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+
+				subscribers.remove(subscriber);
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+
+				subscribers.remove(subscriber);
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+
+				subscribers.remove(subscriber);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+
+			}
+		});
+
+		// Transitions from now on are queued, and written after the snapshot
+		subscribers.add(subscriber);
+
+		try {
+
+			PrintWriter w = resp.getWriter();
+
+			// Start with the current state of every VO
+			for (Map.Entry<String, VOState> e : VOStatusRegistry.INSTANCE
+				.getStates().entrySet())
+				w.write(formatEvent(e.getKey(), null, e.getValue()));
+
+			w.flush();
+			resp.flushBuffer();
+
+		} catch (IOException e) {
+			log.debug("Dropping status stream subscriber: {}", e.getMessage());
+			subscriber.drop();
+		} finally {
+			subscriber.release();
+		}
+	}
+
+	@Override
+	public void stateChanged(String voName, VOState previousState,
+		VOState currentState) {
+
+		final String event = formatEvent(voName, previousState, currentState);
+
+		publisher.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				broadcast(event);
+			}
+		});
+	}
+
+	private String formatEvent(String voName, VOState previousState,
+		VOState state) {
+
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+
+		data.put("vo", voName);
+		data.put("previous", previousState);
+		data.put("state", state);
+		data.put("active", VOState.ACTIVE.equals(state));
+		data.put("timestamp", System.currentTimeMillis());
+
+		return String.format("event: %s\ndata: %s\n\n", EVENT_NAME,
+			JsonUtil.toJson(data));
+	}
+
+	private void broadcast(String message) {
+
+		for (Subscriber subscriber : subscribers)
+			subscriber.send(message);
+	}
+
+	private void complete(AsyncContext ctxt) {
+
+		try {
+
+			ctxt.complete();
+
+		} catch (IllegalStateException e) {
+			// Already completed
+		}
+	}
+}
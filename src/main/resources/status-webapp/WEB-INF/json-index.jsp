@@ -6,7 +6,8 @@
     <c:forEach var="vo" items="${voNames}">
       { "name" : "${vo}",
         "url" : "https://${host}:${port}/voms/${vo}",
-        "active" : "${statusMap[vo]}"
+        "active" : "${statusMap[vo]}"<c:if test="${not empty failureMap[vo]}">,
+        "failure" : ${failureMap[vo].json}</c:if>
       }
     </c:forEach>
   ]
@@ -1,5 +1,5 @@
 <%@ page trimDirectiveWhitespaces="true"  contentType="text/plain; charset=UTF-8" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
 <c:forEach var="vo" items="${voNames}">
-${vo} : ${ statusMap[vo] ? "active" : "down"}<% out.println(); %> 
+${vo} : ${ statusMap[vo] ? "active" : "down"}<c:if test="${not empty failureMap[vo]}"> (${failureMap[vo].summary})</c:if><% out.println(); %> 
 </c:forEach>
\ No newline at end of file
@@ -0,0 +1,133 @@
+package org.italiangrid.voms.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+import org.italiangrid.voms.container.ConnectionFilter.CidrBlock;
+import org.junit.Test;
+
+public class ConnectionFilterTest {
+
+	private static final List<CidrBlock> NONE = Collections.emptyList();
+
+	private static byte[] address(String literal) throws Exception {
+
+		return InetAddress.getByName(literal).getAddress();
+	}
+
+	@Test
+	public void testIPv4Block() throws Exception {
+
+		CidrBlock block = CidrBlock.parse("192.168.10.0/23");
+
+		assertTrue(block.matches(address("192.168.10.1")));
+		assertTrue(block.matches(address("192.168.11.254")));
+		assertFalse(block.matches(address("192.168.12.1")));
+		assertFalse(block.matches(address("10.0.0.1")));
+	}
+
+	@Test
+	public void testSingleAddress() throws Exception {
+
+		CidrBlock block = CidrBlock.parse("10.0.0.1");
+
+		assertTrue(block.matches(address("10.0.0.1")));
+		assertFalse(block.matches(address("10.0.0.2")));
+	}
+
+	@Test
+	public void testWholeAddressSpace() throws Exception {
+
+		assertTrue(CidrBlock.parse("0.0.0.0/0").matches(address("203.0.113.7")));
+	}
+
+	@Test
+	public void testIPv6Block() throws Exception {
+
+		CidrBlock block = CidrBlock.parse("2001:db8::/32");
+
+		assertTrue(block.matches(address("2001:db8:1::1")));
+		assertFalse(block.matches(address("2001:db9::1")));
+
+		// Families never match each other
+		assertFalse(block.matches(address("10.0.0.1")));
+		assertFalse(CidrBlock.parse("0.0.0.0/0").matches(address("::1")));
+	}
+
+	@Test
+	public void testParseList() {
+
+		assertEquals(2, CidrBlock.parseList("10.0.0.0/8, ,192.168.0.0/16").size());
+		assertTrue(CidrBlock.parseList("").isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHostNamesAreRejected() {
+
+		CidrBlock.parse("localhost/8");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPrefixLength() {
+
+		CidrBlock.parse("10.0.0.0/33");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPrefix() {
+
+		CidrBlock.parse("10.0.0.0/eight");
+	}
+
+	@Test
+	public void testAllowAndDenyLists() throws Exception {
+
+		ConnectionFilter filter = new ConnectionFilter(
+			CidrBlock.parseList("10.0.0.0/8"), CidrBlock.parseList("10.1.0.0/16"),
+			0, 0, 0);
+
+		assertTrue(filter.admit(InetAddress.getByName("10.2.0.1")));
+		assertFalse(filter.admit(InetAddress.getByName("10.1.0.1")));
+		assertFalse(filter.admit(InetAddress.getByName("192.168.0.1")));
+
+		assertEquals(1L, filter.getMetrics().get("rejected_denied"));
+		assertEquals(1L, filter.getMetrics().get("rejected_not_allowed"));
+	}
+
+	@Test
+	public void testConnectionCap() throws Exception {
+
+		ConnectionFilter filter = new ConnectionFilter(NONE, NONE, 2, 0, 0);
+		InetAddress source = InetAddress.getByName("10.0.0.1");
+
+		assertTrue(filter.admit(source));
+		assertTrue(filter.admit(source));
+		assertFalse(filter.admit(source));
+
+		// Other sources have their own cap
+		assertTrue(filter.admit(InetAddress.getByName("10.0.0.2")));
+
+		filter.connectionClosed(source.getHostAddress());
+		assertTrue(filter.admit(source));
+	}
+
+	@Test
+	public void testConnectionRate() throws Exception {
+
+		ConnectionFilter filter = new ConnectionFilter(NONE, NONE, 0, 3, 0);
+		InetAddress source = InetAddress.getByName("10.0.0.1");
+
+		// Assumes the connections fall in the same one second window
+		assertTrue(filter.admit(source));
+		assertTrue(filter.admit(source));
+		assertTrue(filter.admit(source));
+		assertFalse(filter.admit(source));
+
+		assertEquals(1L, filter.getMetrics().get("rejected_rate"));
+	}
+}
@@ -0,0 +1,121 @@
+package org.italiangrid.voms.container;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JspCacheTest {
+
+	private File baseDir;
+	private File war;
+	private JspCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+
+		baseDir = Files.createTempDirectory("jsp-cache-test").toFile();
+		war = new File(baseDir.getParentFile(), baseDir.getName() + ".war");
+		FileUtils.writeStringToFile(war, "version 1");
+
+		cache = new JspCache(baseDir, war);
+	}
+
+	@After
+	public void tearDown() {
+
+		FileUtils.deleteQuietly(baseDir);
+		FileUtils.deleteQuietly(war);
+	}
+
+	private File prepare(String voName) throws IOException {
+
+		File voTmpDir = new File(baseDir, voName);
+		voTmpDir.mkdirs();
+		cache.prepare(voName, voTmpDir);
+		return voTmpDir;
+	}
+
+	@Test
+	public void testUnconfiguredVODirIsRemoved() throws IOException {
+
+		File test = prepare("test");
+		File gone = prepare("gone");
+
+		cache.cleanup(Arrays.asList("test"), Arrays.asList(test));
+
+		assertTrue(test.isDirectory());
+		assertFalse(gone.exists());
+	}
+
+	@Test
+	public void testForeignDirsAreKept() throws IOException {
+
+		File test = prepare("test");
+
+		// Created by another container sharing the temp prefix
+		File foreign = new File(baseDir, "other");
+		File foreignUpgrade = new File(baseDir, "test"
+			+ JspCache.UPGRADE_TMP_DIR_SUFFIX);
+		foreign.mkdirs();
+		foreignUpgrade.mkdirs();
+
+		List<File> active = Collections.singletonList(test);
+		cache.cleanup(Arrays.asList("test"), active);
+
+		assertTrue(foreign.isDirectory());
+		assertTrue(foreignUpgrade.isDirectory());
+	}
+
+	@Test
+	public void testUnusedUpgradeDirIsRemoved() throws IOException {
+
+		File test = prepare("test");
+		File upgrade = prepare("test" + JspCache.UPGRADE_TMP_DIR_SUFFIX);
+
+		cache.cleanup(Arrays.asList("test"), Arrays.asList(test, upgrade));
+		assertTrue(upgrade.isDirectory());
+
+		cache.cleanup(Arrays.asList("test"), Arrays.asList(test));
+		assertFalse(upgrade.exists());
+	}
+
+	@Test
+	public void testCacheDoesNotCollideWithVODir() throws IOException {
+
+		File vo = prepare("jsp-cache");
+
+		cache.cleanup(Arrays.asList("jsp-cache"), Arrays.asList(vo));
+
+		assertTrue(new File(vo, JspCache.CHECKSUM_FILE_NAME).isFile());
+	}
+
+	@Test
+	public void testOnlyOwnStaleCachesAreRemoved() throws IOException {
+
+		File cacheRoot = new File(baseDir, JspCache.CACHE_DIR_NAME);
+		File oldCache = new File(cacheRoot, cache.getChecksum());
+		File foreignCache = new File(cacheRoot, "foreign");
+		oldCache.mkdirs();
+		foreignCache.mkdirs();
+
+		FileUtils.writeStringToFile(war, "version 2");
+		cache.setWar(war);
+
+		cache.cleanup(Collections.<String> emptyList(),
+			Collections.<File> emptyList());
+
+		assertFalse(oldCache.exists());
+		assertTrue(foreignCache.isDirectory());
+	}
+}
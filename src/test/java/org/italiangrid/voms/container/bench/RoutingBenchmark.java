@@ -0,0 +1,184 @@
+package org.italiangrid.voms.container.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.italiangrid.voms.container.handlers.VOPaths;
+import org.italiangrid.voms.container.handlers.VORouterHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the cost of dispatching a request to a VO context through the
+ * context collection, as the container did before, and through the
+ * {@link VORouterHandler}. For each fleet size, as many contexts as VOs are
+ * deployed under /voms/&lt;vo&gt; next to a root context, and requests for
+ * random VOs are dispatched in process, without any I/O. A share of the
+ * requests targets VOs that are not deployed, which both dispatchers hand to
+ * the root context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(2)
+public class RoutingBenchmark {
+
+	/**
+	 * One request in this many targets a VO that is not deployed.
+	 */
+	private static final int MISS_RATIO = 10;
+
+	private static final int TARGETS = 4096;
+
+	@Param({ "1", "10", "50", "200", "1000" })
+	public int voCount;
+
+	private Server server;
+	private ContextHandlerCollection contexts;
+	private VORouterHandler router;
+	private String[] targets;
+
+	/**
+	 * The request dispatched by a benchmark thread, reused across invocations.
+	 */
+	@State(Scope.Thread)
+	public static class Dispatch {
+
+		final Request request = new Request();
+		int next = 0;
+
+		String nextTarget(String[] targets) {
+
+			String target = targets[next];
+			next = (next + 1) % targets.length;
+			return target;
+		}
+	}
+
+	/**
+	 * Marks every request as handled, standing in for the webapps.
+	 */
+	private static class NoopHandler extends AbstractHandler {
+
+		@Override
+		public void handle(String target, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+
+			baseRequest.setHandled(true);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		server = new Server();
+		contexts = new ContextHandlerCollection();
+		router = new VORouterHandler();
+
+		List<Handler> contextList = new ArrayList<Handler>();
+		contextList.add(newContext("/"));
+
+		for (int i = 0; i < voCount; i++) {
+
+			String voName = "vo-" + i;
+			ContextHandler context = newContext(VOPaths.contextPathForVO(voName));
+
+			contextList.add(context);
+			router.addVO(voName, context);
+		}
+
+		contexts.setHandlers(contextList.toArray(new Handler[contextList.size()]));
+		router.setHandler(contexts);
+		server.setHandler(router);
+		server.start();
+
+		targets = targets(voCount);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+
+		server.stop();
+	}
+
+	private static ContextHandler newContext(String contextPath) {
+
+		ContextHandler context = new ContextHandler(contextPath);
+		context.setHandler(new NoopHandler());
+		return context;
+	}
+
+	private static String[] targets(int voCount) {
+
+		Random random = new Random(voCount);
+		String[] targets = new String[TARGETS];
+
+		for (int i = 0; i < TARGETS; i++) {
+
+			String voName = (i % MISS_RATIO == 0) ? "unknown-" + i : "vo-"
+				+ random.nextInt(voCount);
+
+			targets[i] = VOPaths.contextPathForVO(voName) + "/home/login.action";
+		}
+
+		return targets;
+	}
+
+	private void dispatch(Handler dispatcher, Dispatch d, Blackhole bh)
+		throws Exception {
+
+		Request request = d.request;
+		String target = d.nextTarget(targets);
+
+		request.setHandled(false);
+		request.setDispatcherType(DispatcherType.REQUEST);
+
+		dispatcher.handle(target, request, request, null);
+
+		if (!request.isHandled())
+			throw new IllegalStateException("Request not handled: " + target);
+
+		bh.consume(request.getContextPath());
+	}
+
+	@Benchmark
+	public void collection(Dispatch d, Blackhole bh) throws Exception {
+
+		dispatch(contexts, d, bh);
+	}
+
+	@Benchmark
+	public void router(Dispatch d, Blackhole bh) throws Exception {
+
+		dispatch(router, d, bh);
+	}
+}
@@ -0,0 +1,613 @@
+package org.italiangrid.voms.container.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.italiangrid.voms.container.Container;
+import org.italiangrid.voms.container.handlers.HealthHandler;
+import org.italiangrid.voms.container.metrics.JsonUtil;
+
+/**
+ * Measures how the container startup scales with the number of VOs. For each
+ * fleet size a {@link SyntheticInstallation} is generated and the container is
+ * booted in a child JVM a number of times, measuring:
+ * 
+ * <ul>
+ * <li>the time to the first successful response of each VO, from the JVM
+ * launch;
+ * <li>the time until the container reports itself ready;
+ * <li>the peak resident set size of the JVM, on Linux;
+ * <li>the metaspace used once all VOs are ready, with <code>jstat</code>.
+ * </ul>
+ * 
+ * Results are written as JSON, to be compared across builds. Everything runs
+ * on localhost, with a self signed credential.
+ */
+public class StartupBenchmark {
+
+	private static final String ARG_FLEETS = "fleets";
+	private static final String ARG_RUNS = "runs";
+	private static final String ARG_OUTPUT = "out";
+	private static final String ARG_TIMEOUT = "timeout";
+	private static final String ARG_JVM_ARGS = "jvmargs";
+	private static final String ARG_KEEP = "keep";
+
+	public static final String DEFAULT_FLEETS = "1,10,50,200";
+
+	private static final long POLL_PERIOD_IN_MSEC = 100;
+	private static final int PROBE_TIMEOUT_IN_MSEC = 2000;
+	private static final int PROBE_THREADS = 16;
+
+	private final List<Integer> fleets = new ArrayList<Integer>();
+	private int runs = 3;
+	private long timeoutInMsec = TimeUnit.MINUTES.toMillis(10);
+	private String output;
+	private List<String> jvmArgs = new ArrayList<String>();
+	private boolean keep = false;
+
+	private SSLSocketFactory trustAllSocketFactory;
+	private ExecutorService probeExecutor;
+
+	private StartupBenchmark(String[] args) {
+
+		Options options = new Options();
+
+		options.addOption(ARG_FLEETS, true,
+			"Comma separated VO fleet sizes, default " + DEFAULT_FLEETS + ".");
+		options.addOption(ARG_RUNS, true, "Boots per fleet size, default 3.");
+		options.addOption(ARG_OUTPUT, true,
+			"The JSON results file, default the standard output.");
+		options.addOption(ARG_TIMEOUT, true,
+			"Seconds to wait for all VOs to be ready, default 600.");
+		options.addOption(ARG_JVM_ARGS, true,
+			"Space separated arguments for the container JVM.");
+		options.addOption(ARG_KEEP, false,
+			"Keep the generated installations for inspection.");
+
+		CommandLineParser parser = new GnuParser();
+
+		try {
+
+			CommandLine cmdLine = parser.parse(options, args);
+
+			for (String f : cmdLine.getOptionValue(ARG_FLEETS, DEFAULT_FLEETS)
+				.split(","))
+				fleets.add(Integer.parseInt(f.trim()));
+
+			if (cmdLine.hasOption(ARG_RUNS))
+				runs = Integer.parseInt(cmdLine.getOptionValue(ARG_RUNS));
+
+			if (cmdLine.hasOption(ARG_TIMEOUT))
+				timeoutInMsec = TimeUnit.SECONDS.toMillis(Long.parseLong(cmdLine
+					.getOptionValue(ARG_TIMEOUT)));
+
+			if (cmdLine.hasOption(ARG_JVM_ARGS)) {
+				for (String a : cmdLine.getOptionValue(ARG_JVM_ARGS).trim()
+					.split("\\s+"))
+					jvmArgs.add(a);
+			}
+
+			output = cmdLine.getOptionValue(ARG_OUTPUT);
+			keep = cmdLine.hasOption(ARG_KEEP);
+
+		} catch (ParseException e) {
+			failAndExit("Error parsing command line arguments", e);
+		} catch (NumberFormatException e) {
+			failAndExit("Invalid number in command line arguments", e);
+		}
+	}
+
+	private static void failAndExit(String errorMessage, Throwable t) {
+
+		if (t != null)
+			System.err.format("%s: %s\n", errorMessage, t.getMessage());
+		else
+			System.err.println(errorMessage);
+
+		System.exit(1);
+	}
+
+	private void run() throws Exception {
+
+		File workDir = Files.createTempDirectory("voms-startup-bench").toFile();
+
+		System.err.println("Working directory: " + workDir);
+
+		SyntheticInstallation.generateCredentials(workDir);
+
+		File war = new File(workDir, "test.war");
+		SyntheticInstallation.writeTestWar(war);
+
+		initTrustAllSocketFactory();
+		probeExecutor = Executors.newFixedThreadPool(PROBE_THREADS);
+
+		Map<String, Object> results = new LinkedHashMap<String, Object>();
+
+		results.put("benchmark", "startup");
+		results.put("date", String.format("%tFT%<tTZ", new Date()));
+		results.put("java_version", System.getProperty("java.version"));
+		results.put("os", System.getProperty("os.name") + " "
+			+ System.getProperty("os.version"));
+		results.put("processors", Runtime.getRuntime().availableProcessors());
+		results.put("jvm_args", jvmArgs);
+		results.put("runs_per_fleet", runs);
+
+		List<Object> fleetResults = new ArrayList<Object>();
+
+		try {
+
+			for (int voCount : fleets) {
+
+				List<Map<String, Object>> runResults = new ArrayList<Map<String, Object>>();
+
+				for (int i = 0; i < runs; i++) {
+
+					System.err.format("Fleet of %d VOs, run %d of %d...\n", voCount,
+						i + 1, runs);
+
+					File prefix = new File(workDir, String.format("fleet-%d-run-%d",
+						voCount, i));
+
+					SyntheticInstallation installation = new SyntheticInstallation(
+						prefix, voCount, workDir, war, freePort(), freePort());
+
+					try {
+						runResults.add(boot(installation));
+					} finally {
+						if (!keep)
+							installation.delete();
+					}
+				}
+
+				Map<String, Object> fleet = new LinkedHashMap<String, Object>();
+
+				fleet.put("vos", voCount);
+				fleet.put("median_all_ready_msec", median(runResults, "all_ready_msec"));
+				fleet.put("median_ttfb_p95_msec", median(runResults, "ttfb_p95_msec"));
+				fleet.put("median_peak_rss_bytes", median(runResults, "peak_rss_bytes"));
+				fleet.put("median_metaspace_used_bytes",
+					median(runResults, "metaspace_used_bytes"));
+				fleet.put("runs", runResults);
+
+				fleetResults.add(fleet);
+			}
+
+		} finally {
+			probeExecutor.shutdownNow();
+
+			if (!keep)
+				SyntheticInstallation.delete(workDir);
+		}
+
+		results.put("fleets", fleetResults);
+
+		String json = JsonUtil.toJson(results);
+
+		if (output == null) {
+			System.out.println(json);
+		} else {
+			Writer w = new FileWriter(output);
+			try {
+				w.write(json);
+				w.write("\n");
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+	private Map<String, Object> boot(SyntheticInstallation installation)
+		throws Exception {
+
+		List<String> command = new ArrayList<String>();
+
+		command.add(new File(System.getProperty("java.home"), "bin/java")
+			.getAbsolutePath());
+		command.addAll(jvmArgs);
+		command.add("-cp");
+		command.add(installation.getClasspathDir().getAbsolutePath()
+			+ File.pathSeparator + System.getProperty("java.class.path"));
+		command.add(Container.class.getName());
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+		long launchTime = System.nanoTime();
+
+		Process container = new ProcessBuilder(command)
+			.redirectErrorStream(true)
+			.redirectOutput(new File(installation.getPrefix(), "server.log"))
+			.start();
+
+		long pid = pid(container);
+
+		try {
+
+			Map<String, Long> ttfb = new LinkedHashMap<String, Long>();
+			List<String> pending = new ArrayList<String>(installation.getVONames());
+			long allReady = -1;
+
+			long deadline = launchTime + TimeUnit.MILLISECONDS.toNanos(timeoutInMsec);
+
+			while ((!pending.isEmpty() || allReady < 0)
+				&& System.nanoTime() < deadline) {
+
+				if (hasExited(container)) {
+					result.put("error", "Container exited with status "
+						+ container.exitValue() + ", see "
+						+ new File(installation.getPrefix(), "server.log"));
+					return result;
+				}
+
+				probe(installation, pending, ttfb, launchTime);
+
+				if (allReady < 0
+					&& get(new URL("http", "localhost", installation.getStatusPort(),
+						HealthHandler.READY_PATH)) == HttpURLConnection.HTTP_OK)
+					allReady = elapsedMsec(launchTime);
+
+				if (!pending.isEmpty() || allReady < 0)
+					Thread.sleep(POLL_PERIOD_IN_MSEC);
+			}
+
+			if (!pending.isEmpty() || allReady < 0) {
+				result.put("error", "Timed out with " + pending.size()
+					+ " VOs not serving requests");
+				result.put("pending_vos", pending);
+			}
+
+			List<Long> times = new ArrayList<Long>(ttfb.values());
+			Collections.sort(times);
+
+			result.put("all_ready_msec", allReady);
+
+			if (!times.isEmpty()) {
+				result.put("ttfb_min_msec", times.get(0));
+				result.put("ttfb_median_msec", percentile(times, 50));
+				result.put("ttfb_p95_msec", percentile(times, 95));
+				result.put("ttfb_max_msec", times.get(times.size() - 1));
+			}
+
+			result.put("peak_rss_bytes", peakRss(pid));
+			result.put("metaspace_used_bytes", metaspaceUsed(pid));
+			result.put("ttfb_msec", ttfb);
+
+			return result;
+
+		} finally {
+
+			container.destroy();
+			container.waitFor();
+		}
+	}
+
+	/**
+	 * Probes in parallel the VOs not yet serving requests, removing from the
+	 * pending list the ones that answered.
+	 */
+	private void probe(SyntheticInstallation installation, List<String> pending,
+		Map<String, Long> ttfb, final long launchTime) throws Exception {
+
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+
+		for (String vo : pending) {
+
+			final URL url = new URL("https", "localhost", installation.getPort(),
+				"/voms/" + vo + "/");
+
+			results.add(probeExecutor.submit(new Callable<Long>() {
+
+				@Override
+				public Long call() throws Exception {
+
+					if (get(url) == HttpURLConnection.HTTP_OK)
+						return elapsedMsec(launchTime);
+
+					return -1L;
+				}
+			}));
+		}
+
+		List<String> served = new ArrayList<String>();
+
+		for (int i = 0; i < pending.size(); i++) {
+
+			long time = results.get(i).get();
+
+			if (time >= 0) {
+				ttfb.put(pending.get(i), time);
+				served.add(pending.get(i));
+			}
+		}
+
+		pending.removeAll(served);
+	}
+
+	/**
+	 * @return the response status, or -1 when the connection fails
+	 */
+	private int get(URL url) {
+
+		try {
+
+			HttpURLConnection c = (HttpURLConnection) url.openConnection();
+
+			if (c instanceof HttpsURLConnection) {
+				((HttpsURLConnection) c).setSSLSocketFactory(trustAllSocketFactory);
+				((HttpsURLConnection) c).setHostnameVerifier(new HostnameVerifier() {
+
+					@Override
+					public boolean verify(String hostname, SSLSession session) {
+
+						return true;
+					}
+				});
+			}
+
+			c.setConnectTimeout(PROBE_TIMEOUT_IN_MSEC);
+			c.setReadTimeout(PROBE_TIMEOUT_IN_MSEC);
+
+			try {
+
+				int status = c.getResponseCode();
+
+				InputStream is = status < 400 ? c.getInputStream() : c
+					.getErrorStream();
+
+				if (is != null)
+					SyntheticInstallation.drain(is);
+
+				return status;
+
+			} finally {
+				c.disconnect();
+			}
+
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private void initTrustAllSocketFactory() throws Exception {
+
+		// The benchmark container uses a throw away self signed credential
+		TrustManager trustAll = new X509TrustManager() {
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+
+				return new X509Certificate[0];
+			}
+		};
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { trustAll }, new SecureRandom());
+
+		trustAllSocketFactory = context.getSocketFactory();
+	}
+
+	private static long elapsedMsec(long startNanos) {
+
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	private static boolean hasExited(Process p) {
+
+		try {
+			p.exitValue();
+			return true;
+		} catch (IllegalThreadStateException e) {
+			return false;
+		}
+	}
+
+	private static int freePort() throws IOException {
+
+		ServerSocket s = new ServerSocket(0);
+
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * @return the process id, or -1 if it cannot be determined
+	 */
+	private static long pid(Process p) {
+
+		try {
+
+			// Java 9 and later
+			Method pid = Process.class.getMethod("pid");
+			return (Long) pid.invoke(p);
+
+		} catch (NoSuchMethodException e) {
+
+			try {
+				Field pid = p.getClass().getDeclaredField("pid");
+				pid.setAccessible(true);
+				return pid.getInt(p);
+			} catch (Exception e1) {
+				return -1;
+			}
+
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the peak resident set size in bytes, or -1 where /proc is not
+	 *         available
+	 */
+	private static long peakRss(long pid) {
+
+		File status = new File("/proc/" + pid + "/status");
+
+		if (pid < 0 || !status.canRead())
+			return -1;
+
+		try {
+
+			BufferedReader r = new BufferedReader(new FileReader(status));
+
+			try {
+				String line;
+
+				while ((line = r.readLine()) != null) {
+					// e.g. "VmHWM:    123456 kB"
+					if (line.startsWith("VmHWM:"))
+						return 1024 * Long.parseLong(line.substring(6).trim()
+							.split("\\s+")[0]);
+				}
+
+			} finally {
+				r.close();
+			}
+
+		} catch (IOException e) {
+			// Fall through
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the metaspace used in bytes, as reported by the MU column of
+	 *         <code>jstat -gc</code>, or -1 if it cannot be determined
+	 */
+	private static long metaspaceUsed(long pid) {
+
+		if (pid < 0)
+			return -1;
+
+		File javaHome = new File(System.getProperty("java.home"));
+		File jstat = new File(javaHome, "bin/jstat");
+
+		if (!jstat.exists())
+			jstat = new File(javaHome.getParentFile(), "bin/jstat");
+
+		if (!jstat.exists())
+			return -1;
+
+		try {
+
+			Process p = new ProcessBuilder(jstat.getAbsolutePath(), "-gc",
+				Long.toString(pid)).redirectErrorStream(true).start();
+
+			BufferedReader r = new BufferedReader(new InputStreamReader(
+				p.getInputStream()));
+
+			String header = r.readLine();
+			String values = r.readLine();
+			r.close();
+			p.waitFor();
+
+			if (header == null || values == null)
+				return -1;
+
+			String[] names = header.trim().split("\\s+");
+			String[] fields = values.trim().split("\\s+");
+
+			for (int i = 0; i < names.length && i < fields.length; i++) {
+				if (names[i].equals("MU"))
+					return (long) (Double.parseDouble(fields[i]) * 1024);
+			}
+
+		} catch (Exception e) {
+			// Fall through
+		}
+
+		return -1;
+	}
+
+	private static long percentile(List<Long> sorted, int percentile) {
+
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(index, 0));
+	}
+
+	private static Long median(List<Map<String, Object>> runs, String key) {
+
+		List<Long> values = new ArrayList<Long>();
+
+		for (Map<String, Object> r : runs) {
+			Object v = r.get(key);
+
+			if (!r.containsKey("error") && v instanceof Long && (Long) v >= 0)
+				values.add((Long) v);
+		}
+
+		if (values.isEmpty())
+			return null;
+
+		Collections.sort(values);
+		return percentile(values, 50);
+	}
+
+	public static void main(String[] args) {
+
+		try {
+
+			new StartupBenchmark(args).run();
+
+		} catch (Throwable t) {
+			System.err.println("Benchmark failed: " + t.getMessage());
+			t.printStackTrace(System.err);
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,339 @@
+package org.italiangrid.voms.container.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.italiangrid.voms.container.ConfigurationProperty;
+import org.italiangrid.voms.container.Container;
+import org.italiangrid.voms.container.SysconfigUtil;
+
+/**
+ * A throw away VOMS Admin installation prefix with a fleet of synthetic VOs,
+ * all served by a small test web archive, and a self signed service
+ * credential. The container finds the prefix through the
+ * <code>packaging.properties</code> found in {@link #getClasspathDir()}.
+ */
+public class SyntheticInstallation {
+
+	public static final String VO_NAME_PREFIX = "bench-vo-";
+
+	private static final String STORE_PASSWORD = "benchmark";
+
+	private final File prefix;
+	private final List<String> voNames = new ArrayList<String>();
+
+	private final int port;
+	private final int statusPort;
+
+	/**
+	 * Generates the self signed service credential shared by the installations,
+	 * using the JDK keytool.
+	 */
+	public static void generateCredentials(File dir) throws IOException,
+		InterruptedException {
+
+		File keyStoreFile = new File(dir, "hostcred.p12");
+
+		Process keytool = new ProcessBuilder(findKeytool(), "-genkeypair",
+			"-alias", "host", "-keyalg", "RSA", "-keysize", "2048", "-dname",
+			"CN=localhost", "-validity", "7", "-storetype", "PKCS12", "-keystore",
+			keyStoreFile.getAbsolutePath(), "-storepass", STORE_PASSWORD,
+			"-keypass", STORE_PASSWORD).redirectErrorStream(true).start();
+
+		drain(keytool.getInputStream());
+
+		if (keytool.waitFor() != 0)
+			throw new IOException("keytool failed generating the host credential");
+
+		KeyStore ks;
+
+		try {
+			ks = KeyStore.getInstance("PKCS12");
+
+			InputStream is = new FileInputStream(keyStoreFile);
+
+			try {
+				ks.load(is, STORE_PASSWORD.toCharArray());
+			} finally {
+				is.close();
+			}
+
+			Key key = ks.getKey("host", STORE_PASSWORD.toCharArray());
+			Certificate cert = ks.getCertificate("host");
+
+			writePEM(new File(dir, "hostcert.pem"), "CERTIFICATE", cert.getEncoded());
+
+			File keyFile = new File(dir, "hostkey.pem");
+			writePEM(keyFile, "PRIVATE KEY", key.getEncoded());
+
+			keyFile.setReadable(false, false);
+			keyFile.setReadable(true, true);
+
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Error converting the host credential: "
+				+ e.getMessage(), e);
+		}
+
+		new File(dir, "certificates").mkdirs();
+	}
+
+	private static String findKeytool() {
+
+		File javaHome = new File(System.getProperty("java.home"));
+
+		File keytool = new File(javaHome, "bin/keytool");
+
+		// On Java 8 java.home points to the JRE within the JDK
+		if (!keytool.exists())
+			keytool = new File(javaHome.getParentFile(), "bin/keytool");
+
+		return keytool.exists() ? keytool.getAbsolutePath() : "keytool";
+	}
+
+	static void drain(InputStream is) throws IOException {
+
+		byte[] buffer = new byte[4096];
+
+		try {
+			while (is.read(buffer) >= 0)
+				;
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void writePEM(File f, String type, byte[] der)
+		throws IOException {
+
+		String base64 = DatatypeConverter.printBase64Binary(der);
+
+		Writer w = new FileWriter(f);
+
+		try {
+			w.write("-----BEGIN " + type + "-----\n");
+
+			for (int i = 0; i < base64.length(); i += 64)
+				w.write(base64.substring(i, Math.min(base64.length(), i + 64)) + "\n");
+
+			w.write("-----END " + type + "-----\n");
+
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Writes the test web archive: a single static page, so that the measures
+	 * reflect the container and not the VOMS Admin application.
+	 */
+	public static void writeTestWar(File war) throws IOException {
+
+		JarOutputStream jar = new JarOutputStream(new FileOutputStream(war));
+
+		try {
+
+			jar.putNextEntry(new JarEntry("WEB-INF/web.xml"));
+			jar.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<web-app xmlns=\"http://java.sun.com/xml/ns/javaee\" version=\"2.5\">\n"
+				+ "  <display-name>voms-startup-benchmark</display-name>\n"
+				+ "  <welcome-file-list>\n"
+				+ "    <welcome-file>index.html</welcome-file>\n"
+				+ "  </welcome-file-list>\n" + "</web-app>\n").getBytes("UTF-8"));
+			jar.closeEntry();
+
+			jar.putNextEntry(new JarEntry("index.html"));
+			jar.write("<html><body>ok</body></html>\n".getBytes("UTF-8"));
+			jar.closeEntry();
+
+		} finally {
+			jar.close();
+		}
+	}
+
+	/**
+	 * @param credentialsDir
+	 *          the directory where {@link #generateCredentials(File)} put the
+	 *          service credential
+	 */
+	public SyntheticInstallation(File prefix, int voCount, File credentialsDir,
+		File war, int port, int statusPort) throws IOException {
+
+		this.prefix = prefix;
+		this.port = port;
+		this.statusPort = statusPort;
+
+		for (int i = 0; i < voCount; i++)
+			voNames.add(String.format("%s%03d", VO_NAME_PREFIX, i));
+
+		File confDir = mkdirs(new File(prefix, "etc/voms-admin"));
+		File deployDir = mkdirs(new File(prefix, Container.DEFAULT_DEPLOY_DIR));
+		File webappsDir = mkdirs(new File(prefix, Container.DEFAULT_WAR)
+			.getParentFile());
+
+		copy(war, new File(webappsDir, new File(Container.DEFAULT_WAR).getName()));
+
+		for (String vo : voNames) {
+			mkdirs(new File(confDir, vo));
+			new File(deployDir, vo).createNewFile();
+		}
+
+		Properties server = new Properties();
+
+		server.setProperty(ConfigurationProperty.HOST.getPropertyName(),
+			"localhost");
+		server.setProperty(ConfigurationProperty.PORT.getPropertyName(),
+			Integer.toString(port));
+		server.setProperty(ConfigurationProperty.CERT.getPropertyName(), new File(
+			credentialsDir, "hostcert.pem").getAbsolutePath());
+		server.setProperty(ConfigurationProperty.KEY.getPropertyName(), new File(
+			credentialsDir, "hostkey.pem").getAbsolutePath());
+		server.setProperty(
+			ConfigurationProperty.TRUST_ANCHORS_DIR.getPropertyName(), new File(
+				credentialsDir, "certificates").getAbsolutePath());
+
+		// Each run starts without the JSP cache and startup history of the
+		// previous ones, which are deleted with the installation
+		server.setProperty(ConfigurationProperty.TMP_DIR.getPropertyName(),
+			mkdirs(new File(prefix, "var/tmp")).getAbsolutePath());
+
+		store(server, new File(confDir, Container.CONF_FILE_NAME));
+
+		Properties sysconfig = new Properties();
+		sysconfig.setProperty(SysconfigUtil.SYSCONFIG_CONF_DIR,
+			confDir.getAbsolutePath());
+		sysconfig.setProperty(SysconfigUtil.SYSCONFIG_STATUS_PORT,
+			Integer.toString(statusPort));
+
+		store(sysconfig, new File(mkdirs(new File(prefix, "etc/sysconfig")),
+			"voms-admin"));
+
+		Writer w = new FileWriter(new File(confDir, "voms-admin-server.logback"));
+
+		try {
+			w.write("<configuration>\n"
+				+ "  <appender name=\"CONSOLE\" class=\"ch.qos.logback.core.ConsoleAppender\">\n"
+				+ "    <encoder><pattern>%date - %level [%logger{0}] - %msg%n</pattern></encoder>\n"
+				+ "  </appender>\n" + "  <root level=\"WARN\">\n"
+				+ "    <appender-ref ref=\"CONSOLE\" />\n" + "  </root>\n"
+				+ "</configuration>\n");
+		} finally {
+			w.close();
+		}
+
+		Properties packaging = new Properties();
+		packaging.setProperty(SysconfigUtil.PREFIX_PROP_NAME,
+			prefix.getAbsolutePath());
+
+		store(packaging, new File(mkdirs(getClasspathDir()),
+			"packaging.properties"));
+	}
+
+	private static File mkdirs(File dir) throws IOException {
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir);
+
+		return dir;
+	}
+
+	private static void store(Properties props, File f) throws IOException {
+
+		OutputStream os = new FileOutputStream(f);
+
+		try {
+			props.store(os, "Generated by the startup benchmark");
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void copy(File from, File to) throws IOException {
+
+		InputStream is = new FileInputStream(from);
+
+		try {
+
+			OutputStream os = new FileOutputStream(to);
+
+			try {
+				byte[] buffer = new byte[8192];
+				int n;
+
+				while ((n = is.read(buffer)) >= 0)
+					os.write(buffer, 0, n);
+
+			} finally {
+				os.close();
+			}
+
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Deletes the installation.
+	 */
+	public void delete() {
+
+		delete(prefix);
+	}
+
+	static void delete(File f) {
+
+		File[] children = f.listFiles();
+
+		if (children != null) {
+			for (File c : children)
+				delete(c);
+		}
+
+		f.delete();
+	}
+
+	/**
+	 * @return the directory to prepend to the container classpath
+	 */
+	public File getClasspathDir() {
+
+		return new File(prefix, "classpath");
+	}
+
+	public File getPrefix() {
+
+		return prefix;
+	}
+
+	public List<String> getVONames() {
+
+		return voNames;
+	}
+
+	public int getPort() {
+
+		return port;
+	}
+
+	public int getStatusPort() {
+
+		return statusPort;
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ * Offline benchmarks: container startup on synthetic VO fleets, and request
+ * dispatch to the VO contexts. They are kept with the test sources, so that
+ * they do not ship with the container, and are run from the test classpath:
+ * 
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test.classpath
+ * java -cp target/test-classes:target/classes:$(cat target/test.classpath) \
+ *   org.italiangrid.voms.container.bench.StartupBenchmark -fleets 1,10,50,200
+ * </pre>
+ * 
+ * The dispatch benchmark is a JMH benchmark, run with
+ * <code>org.openjdk.jmh.Main RoutingBenchmark</code> from the same
+ * classpath.
+ */
+package org.italiangrid.voms.container.bench;
@@ -0,0 +1,115 @@
+package org.italiangrid.voms.container.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureWriterTest {
+
+	private static final long MAX_SIZE_IN_BYTES = 1024 * 1024;
+
+	private Path baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+
+		baseDir = Files.createTempDirectory("capture-test");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		delete(baseDir.toFile());
+	}
+
+	private static void delete(File f) {
+
+		File[] children = f.listFiles();
+
+		if (children != null)
+			for (File c : children)
+				delete(c);
+
+		f.delete();
+	}
+
+	@Test
+	public void testDefaultFileIsInPrivateDirectory() throws IOException {
+
+		File file = CaptureWriter.getDefaultFile(baseDir.toFile());
+
+		assertEquals("rwx------", PosixFilePermissions.toString(Files
+			.getPosixFilePermissions(file.getParentFile().toPath())));
+	}
+
+	@Test
+	public void testSharedDirectoryIsRefused() throws IOException {
+
+		Path dir = baseDir.resolve(CaptureWriter.PRIVATE_DIR_NAME);
+		Files.createDirectory(dir);
+		Files.setPosixFilePermissions(dir, PosixFilePermissions
+			.fromString("rwxrwxrwx"));
+
+		try {
+			CaptureWriter.getDefaultFile(baseDir.toFile());
+			fail("Shared directory accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFileIsOwnerOnly() throws IOException {
+
+		File file = baseDir.resolve("capture.bin").toFile();
+
+		new CaptureWriter(file, MAX_SIZE_IN_BYTES).close();
+
+		assertEquals("rw-------", PosixFilePermissions.toString(Files
+			.getPosixFilePermissions(file.toPath())));
+	}
+
+	@Test
+	public void testExistingFileIsRestrictedAndTruncated() throws IOException {
+
+		Path file = baseDir.resolve("capture.bin");
+		Files.write(file, new byte[4096]);
+		Files.setPosixFilePermissions(file, PosixFilePermissions
+			.fromString("rw-rw-rw-"));
+
+		new CaptureWriter(file.toFile(), MAX_SIZE_IN_BYTES).close();
+
+		assertEquals("rw-------", PosixFilePermissions.toString(Files
+			.getPosixFilePermissions(file)));
+		assertTrue(Files.size(file) < 4096);
+	}
+
+	@Test
+	public void testLinkIsRefused() throws IOException {
+
+		Path target = baseDir.resolve("target");
+		Files.write(target, new byte[] { 1, 2, 3 });
+
+		Path link = baseDir.resolve("capture.bin");
+		Files.createSymbolicLink(link, target);
+
+		try {
+			new CaptureWriter(link.toFile(), MAX_SIZE_IN_BYTES).close();
+			fail("Link followed");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertEquals(3, Files.size(target));
+	}
+}
@@ -0,0 +1,67 @@
+package org.italiangrid.voms.container.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class MicroCacheRuleTest {
+
+	@Test
+	public void testParseRules() {
+
+		List<MicroCacheRule> rules = MicroCacheRule
+			.parseRules("* /configuration/.* 30 shared; test /home/.* 5;");
+
+		assertEquals(2, rules.size());
+
+		assertEquals(30000, rules.get(0).getTtlInMsec());
+		assertTrue(rules.get(0).isShared());
+
+		assertEquals(5000, rules.get(1).getTtlInMsec());
+		assertFalse(rules.get(1).isShared());
+	}
+
+	@Test
+	public void testMatching() {
+
+		MicroCacheRule any = MicroCacheRule.parseRules("* /configuration/.* 30")
+			.get(0);
+		MicroCacheRule one = MicroCacheRule.parseRules("test /home/.* 30").get(0);
+
+		assertTrue(any.matches("test", "/configuration/configuration.action"));
+		assertTrue(any.matches("other", "/configuration/configuration.action"));
+		assertFalse(any.matches("test", "/home/login.action"));
+
+		assertTrue(one.matches("test", "/home/login.action"));
+		assertFalse(one.matches("other", "/home/login.action"));
+		assertFalse(one.matches("test", "/admin/home/login.action"));
+	}
+
+	@Test
+	public void testEmptyRules() {
+
+		assertTrue(MicroCacheRule.parseRules(" ; ").isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownFlag() {
+
+		MicroCacheRule.parseRules("* /.* 30 private");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidTtl() {
+
+		MicroCacheRule.parseRules("* /.* soon");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPattern() {
+
+		MicroCacheRule.parseRules("* [ 30");
+	}
+}
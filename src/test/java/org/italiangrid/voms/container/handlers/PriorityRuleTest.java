@@ -0,0 +1,76 @@
+package org.italiangrid.voms.container.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class PriorityRuleTest {
+
+	private static final String DN = "/C=IT/O=IGI/CN=Test User";
+
+	@Test
+	public void testParseRules() {
+
+		List<PriorityRule> rules = PriorityRule
+			.parseRules(" high * /voms/.* ; ; admin test /admin/.* /C=IT/O=IGI/.*;");
+
+		assertEquals(2, rules.size());
+		assertEquals("high", rules.get(0).getClassName());
+		assertEquals("admin", rules.get(1).getClassName());
+	}
+
+	@Test
+	public void testDNWithSpaces() {
+
+		PriorityRule rule = PriorityRule.parseRules("admin * /.* " + DN).get(0);
+
+		assertTrue(rule.matches("test", "/home", DN));
+		assertFalse(rule.matches("test", "/home", "/C=IT/O=IGI/CN=Other User"));
+	}
+
+	@Test
+	public void testVOMatching() {
+
+		PriorityRule any = PriorityRule.parseRules("high * /.*").get(0);
+		PriorityRule one = PriorityRule.parseRules("high test /.*").get(0);
+
+		assertTrue(any.matches("test", "/home", null));
+		assertTrue(any.matches("other", "/home", null));
+		assertTrue(one.matches("test", "/home", null));
+		assertFalse(one.matches("other", "/home", null));
+	}
+
+	@Test
+	public void testPathMustMatchWholly() {
+
+		PriorityRule rule = PriorityRule.parseRules("high * /voms/.*").get(0);
+
+		assertTrue(rule.matches("test", "/voms/voms.wsdl", null));
+		assertFalse(rule.matches("test", "/services/voms/x", null));
+	}
+
+	@Test
+	public void testDNRuleRequiresAuthentication() {
+
+		PriorityRule rule = PriorityRule.parseRules("admin * /.* /C=IT/.*").get(0);
+
+		assertTrue(rule.matches("test", "/home", DN));
+		assertFalse(rule.matches("test", "/home", null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingFields() {
+
+		PriorityRule.parseRules("high *");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPattern() {
+
+		PriorityRule.parseRules("high * /voms/(");
+	}
+}
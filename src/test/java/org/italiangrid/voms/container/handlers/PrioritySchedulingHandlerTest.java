@@ -0,0 +1,169 @@
+package org.italiangrid.voms.container.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.italiangrid.voms.container.handlers.PrioritySchedulingHandler.Ticket;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrioritySchedulingHandlerTest {
+
+	private static final int MAX_QUEUE_SIZE = 100;
+
+	private PrioritySchedulingHandler scheduler;
+
+	private final List<String> resumed = new ArrayList<String>();
+	private final Map<String, Ticket> tickets = new LinkedHashMap<String, Ticket>();
+
+	@Before
+	public void setUp() {
+
+		scheduler = new PrioritySchedulingHandler(
+			PrioritySchedulingHandler.parseClasses("high:3,low:1"), "low",
+			Collections.<PriorityRule> emptyList(), 1, MAX_QUEUE_SIZE, 30000);
+	}
+
+	/**
+	 * @return a ticket recording its name in {@link #resumed} when granted
+	 */
+	private Ticket newTicket(final String name, String className) {
+
+		AsyncContinuation continuation = new AsyncContinuation() {
+
+			@Override
+			public void resume() {
+
+				resumed.add(name);
+			}
+		};
+
+		Ticket t = scheduler.newTicket(className, continuation);
+		tickets.put(name, t);
+		return t;
+	}
+
+	private void enqueue(String name, String className) {
+
+		Ticket t = newTicket(name, className);
+
+		assertFalse(scheduler.tryAdmit(t));
+		scheduler.enqueue(t);
+	}
+
+	/**
+	 * Completes the requests one at a time, each granting the slot to the next
+	 * waiting one.
+	 */
+	private void drain(Ticket first) {
+
+		scheduler.release(first);
+
+		for (int i = 0; i < resumed.size(); i++)
+			scheduler.release(tickets.get(resumed.get(i)));
+	}
+
+	@Test
+	public void testParseClasses() {
+
+		Map<String, Integer> classes = PrioritySchedulingHandler
+			.parseClasses(" high:3, ,low : 1");
+
+		assertEquals(2, classes.size());
+		assertEquals(Integer.valueOf(3), classes.get("high"));
+		assertEquals(Integer.valueOf(1), classes.get("low"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidClass() {
+
+		PrioritySchedulingHandler.parseClasses("high");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownDefaultClass() {
+
+		new PrioritySchedulingHandler(
+			PrioritySchedulingHandler.parseClasses("high:3,low:1"), "normal",
+			Collections.<PriorityRule> emptyList(), 1, MAX_QUEUE_SIZE, 30000);
+	}
+
+	@Test
+	public void testServiceIsSharedByWeight() {
+
+		Ticket first = newTicket("first", "low");
+		assertTrue(scheduler.tryAdmit(first));
+
+		for (int i = 0; i < 4; i++) {
+			enqueue("low" + i, "low");
+			enqueue("high" + i, "high");
+		}
+
+		drain(first);
+
+		// Three high requests for each low one while both classes wait
+		assertEquals(
+			Arrays.asList("high0", "high1", "high2", "low0", "high3",
+				"low1", "low2", "low3"), resumed);
+	}
+
+	@Test
+	public void testLowClassIsNotStarved() {
+
+		Ticket first = newTicket("first", "high");
+		assertTrue(scheduler.tryAdmit(first));
+
+		for (int i = 0; i < 20; i++)
+			enqueue("high" + i, "high");
+
+		enqueue("low", "low");
+
+		drain(first);
+
+		assertEquals(21, resumed.size());
+		assertEquals(3, resumed.indexOf("low"));
+	}
+
+	@Test
+	public void testReleaseGrantsTheSlotToAWaitingRequest() {
+
+		Ticket first = newTicket("first", "low");
+		assertTrue(scheduler.tryAdmit(first));
+
+		enqueue("low", "low");
+
+		scheduler.release(first);
+		assertEquals(Collections.singletonList("low"), resumed);
+
+		// The slot went to the waiting request, not to a new one
+		assertFalse(scheduler.tryAdmit(newTicket("late", "high")));
+
+		// Releasing twice does not free a second slot
+		scheduler.release(first);
+		assertFalse(scheduler.tryAdmit(newTicket("later", "high")));
+	}
+
+	@Test
+	public void testFullQueueIsRejected() {
+
+		assertTrue(scheduler.tryAdmit(newTicket("first", "low")));
+
+		for (int i = 0; i < MAX_QUEUE_SIZE; i++)
+			enqueue("low" + i, "low");
+
+		assertNull(scheduler.tryAdmit(newTicket("rejected", "low")));
+
+		// Other classes have their own queue
+		assertFalse(scheduler.tryAdmit(newTicket("high", "high")));
+	}
+}
@@ -0,0 +1,34 @@
+package org.italiangrid.voms.container.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class VOPathsTest {
+
+	@Test
+	public void testContextPath() {
+
+		assertEquals("/voms/test.vo", VOPaths.contextPathForVO("test.vo"));
+	}
+
+	@Test
+	public void testVONameFromPath() {
+
+		assertEquals("test", VOPaths.voNameFromPath("/voms/test"));
+		assertEquals("test", VOPaths.voNameFromPath("/voms/test/"));
+		assertEquals("test.vo", VOPaths.voNameFromPath("/voms/test.vo/home/login.action"));
+	}
+
+	@Test
+	public void testPathsNotTargetingAVO() {
+
+		assertNull(VOPaths.voNameFromPath(null));
+		assertNull(VOPaths.voNameFromPath("/"));
+		assertNull(VOPaths.voNameFromPath("/voms"));
+		assertNull(VOPaths.voNameFromPath("/voms/"));
+		assertNull(VOPaths.voNameFromPath("/vomses"));
+		assertNull(VOPaths.voNameFromPath("/status/voms/test"));
+	}
+}
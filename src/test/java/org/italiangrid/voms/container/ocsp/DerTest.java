@@ -0,0 +1,141 @@
+package org.italiangrid.voms.container.ocsp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DerTest {
+
+	private static void assertMalformed(byte[] encoding) {
+
+		try {
+			Der.parse(encoding);
+			fail("Malformed encoding parsed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testShortLength() throws IOException {
+
+		byte[] encoding = Der.encode(Der.OCTET_STRING, new byte[] { 1, 2, 3 });
+
+		assertArrayEquals(new byte[] { 0x04, 0x03, 1, 2, 3 }, encoding);
+
+		Der.Element e = Der.parse(encoding);
+
+		assertEquals(Der.OCTET_STRING, e.tag);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, e.getContent());
+		assertArrayEquals(encoding, e.getEncoded());
+	}
+
+	@Test
+	public void testLongLengths() throws IOException {
+
+		for (int length : new int[] { 0x7f, 0x80, 0xff, 0x100, 0x10000 }) {
+
+			byte[] content = new byte[length];
+			content[length - 1] = 42;
+
+			Der.Element e = Der.parse(Der.encode(Der.OCTET_STRING, content));
+
+			assertArrayEquals(content, e.getContent());
+		}
+	}
+
+	@Test
+	public void testChildren() throws IOException {
+
+		byte[] first = Der.encode(Der.INTEGER, new byte[] { 5 });
+		byte[] second = Der.encode(0xa0, Der.encode(Der.NULL));
+
+		Der.Element seq = Der.parse(Der.encode(Der.SEQUENCE, first, second));
+		List<Der.Element> children = seq.getChildren();
+
+		assertEquals(2, children.size());
+		assertArrayEquals(first, children.get(0).getEncoded());
+		assertTrue(children.get(1).isContextTag(0));
+		assertFalse(children.get(1).isContextTag(1));
+		assertFalse(children.get(0).isContextTag(2));
+
+		assertEquals(Der.NULL, seq.getChild(1).getChild(0).tag);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingChild() throws IOException {
+
+		Der.parse(Der.encode(Der.SEQUENCE, Der.encode(Der.NULL))).getChild(1);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnexpectedTag() throws IOException {
+
+		Der.parse(Der.encode(Der.NULL)).expect(Der.SEQUENCE);
+	}
+
+	@Test
+	public void testMalformedEncodings() {
+
+		// Truncated header
+		assertMalformed(new byte[] { 0x30 });
+
+		// Content longer than the buffer
+		assertMalformed(new byte[] { 0x04, 0x05, 1, 2 });
+
+		// Trailing data
+		assertMalformed(new byte[] { 0x05, 0x00, 0x00 });
+
+		// Indefinite length
+		assertMalformed(new byte[] { 0x30, (byte) 0x80, 0x00, 0x00 });
+
+		// Length overflowing an int
+		assertMalformed(new byte[] { 0x04, (byte) 0x84, (byte) 0xff, (byte) 0xff,
+			(byte) 0xff, (byte) 0xff });
+
+		// Multi byte tag
+		assertMalformed(new byte[] { 0x1f, 0x01, 0x00 });
+	}
+
+	@Test
+	public void testMalformedChildren() throws IOException {
+
+		// A child claiming more bytes than its parent holds
+		Der.Element seq = Der.parse(new byte[] { 0x30, 0x03, 0x04, 0x05, 0x00 });
+
+		try {
+			seq.getChildren();
+			fail("Malformed child parsed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOids() throws IOException {
+
+		for (String oid : new String[] { OcspResponse.BASIC_RESPONSE_OID,
+			OcspResponse.OCSP_SIGNING_OID, "2.5.29.19" }) {
+
+			Der.Element e = Der.parse(OcspTestSupport.oid(oid));
+			assertEquals(oid, Der.decodeOid(e.expect(Der.OID).getContent()));
+		}
+
+		// The first two arcs span two bytes: 2 * 40 + 999
+		assertEquals("2.999.3",
+			Der.decodeOid(new byte[] { (byte) 0x88, 0x37, 0x03 }));
+	}
+
+	@Test(expected = IOException.class)
+	public void testEmptyOid() throws IOException {
+
+		Der.decodeOid(new byte[0]);
+	}
+}
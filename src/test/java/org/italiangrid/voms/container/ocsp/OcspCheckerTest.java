@@ -0,0 +1,203 @@
+package org.italiangrid.voms.container.ocsp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.italiangrid.voms.container.ocsp.OcspChecker.Status;
+import org.italiangrid.voms.container.ocsp.OcspTestSupport.Credential;
+import org.italiangrid.voms.container.ocsp.OcspTestSupport.ResponseBuilder;
+import org.italiangrid.voms.container.ocsp.OcspTestSupport.StandInResponder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OcspCheckerTest {
+
+	private static final int TIMEOUT_IN_MSEC = 2000;
+
+	private StandInResponder responder;
+	private OcspChecker checker;
+
+	private Credential ca;
+	private Credential user;
+
+	@Before
+	public void setUp() throws Exception {
+
+		responder = new StandInResponder();
+
+		checker = new OcspChecker(responder.getUrl(), TIMEOUT_IN_MSEC,
+			TimeUnit.MINUTES.toMillis(5), TimeUnit.SECONDS.toMillis(30), 100);
+
+		ca = OcspTestSupport.newCA("CN=Test CA,O=IGI,C=IT");
+		user = OcspTestSupport.newEndEntity("CN=Test User,O=IGI,C=IT", ca, 42);
+	}
+
+	@After
+	public void tearDown() {
+
+		checker.shutdown();
+		responder.stop();
+	}
+
+	private Status check() {
+
+		return checker.check(user.certificate, ca.certificate);
+	}
+
+	@Test
+	public void testGood() throws Exception {
+
+		responder.respondWith(new ResponseBuilder(ca).good(user.certificate,
+			ca.certificate));
+
+		assertEquals(Status.GOOD, check());
+	}
+
+	@Test
+	public void testRevoked() throws Exception {
+
+		responder.respondWith(new ResponseBuilder(ca).revoked(user.certificate,
+			ca.certificate));
+
+		assertEquals(Status.REVOKED, check());
+	}
+
+	@Test
+	public void testUnknown() throws Exception {
+
+		responder.respondWith(new ResponseBuilder(ca).unknown(user.certificate,
+			ca.certificate));
+
+		assertEquals(Status.UNKNOWN, check());
+	}
+
+	@Test
+	public void testBadSignatureIsUnavailable() throws Exception {
+
+		responder.respondWith(new ResponseBuilder(ca).signedWith(
+			OcspTestSupport.newKeyPair().getPrivate()).revoked(user.certificate,
+			ca.certificate));
+
+		assertEquals(Status.UNAVAILABLE, check());
+	}
+
+	@Test
+	public void testResponseForAnotherCertificateIsUnavailable()
+		throws Exception {
+
+		Credential other = OcspTestSupport.newEndEntity(
+			"CN=Other User,O=IGI,C=IT", ca, 43);
+
+		responder.respondWith(new ResponseBuilder(ca).good(other.certificate,
+			ca.certificate));
+
+		assertEquals(Status.UNAVAILABLE, check());
+	}
+
+	@Test
+	public void testDelegatedResponder() throws Exception {
+
+		Credential delegate = OcspTestSupport.newDelegatedResponder(
+			"CN=Test OCSP Responder,O=IGI,C=IT", ca);
+
+		responder.respondWith(new ResponseBuilder(delegate).including(
+			delegate.certificate).revoked(user.certificate, ca.certificate));
+
+		assertEquals(Status.REVOKED, check());
+	}
+
+	@Test
+	public void testResponderWithoutOcspSigningUsageIsUnavailable()
+		throws Exception {
+
+		Credential notDelegated = OcspTestSupport.newEndEntity(
+			"CN=Test Impostor,O=IGI,C=IT", ca, 1001);
+
+		responder.respondWith(new ResponseBuilder(notDelegated).including(
+			notDelegated.certificate).good(user.certificate, ca.certificate));
+
+		assertEquals(Status.UNAVAILABLE, check());
+	}
+
+	@Test
+	public void testResponderIssuedByAnotherCAIsUnavailable() throws Exception {
+
+		Credential otherCA = OcspTestSupport.newCA("CN=Other CA,O=IGI,C=IT");
+		Credential delegate = OcspTestSupport.newDelegatedResponder(
+			"CN=Test OCSP Responder,O=IGI,C=IT", otherCA);
+
+		responder.respondWith(new ResponseBuilder(delegate).including(
+			delegate.certificate).good(user.certificate, ca.certificate));
+
+		assertEquals(Status.UNAVAILABLE, check());
+	}
+
+	@Test
+	public void testMalformedResponseIsUnavailable() throws Exception {
+
+		responder.respondWith(new byte[] { 0x30, (byte) 0x84, 0x7f, 0x00, 0x01 });
+
+		assertEquals(Status.UNAVAILABLE, check());
+	}
+
+	@Test
+	public void testTruncatedResponseIsUnavailable() throws Exception {
+
+		byte[] good = new ResponseBuilder(ca).good(user.certificate,
+			ca.certificate);
+		byte[] truncated = new byte[good.length / 2];
+		System.arraycopy(good, 0, truncated, 0, truncated.length);
+
+		responder.respondWith(truncated);
+
+		assertEquals(Status.UNAVAILABLE, check());
+	}
+
+	@Test
+	public void testUnsuccessfulResponseIsUnavailable() throws Exception {
+
+		// tryLater
+		responder.respondWith(Der.encode(Der.SEQUENCE, Der.encode(Der.ENUMERATED,
+			new byte[] { 3 })));
+
+		assertEquals(Status.UNAVAILABLE, check());
+	}
+
+	@Test
+	public void testResponsesAreCached() throws Exception {
+
+		responder.respondWith(new ResponseBuilder(ca).good(user.certificate,
+			ca.certificate));
+
+		assertEquals(Status.GOOD, check());
+		assertEquals(Status.GOOD, check());
+		assertEquals(1, responder.getRequestCount());
+	}
+
+	@Test
+	public void testResponderFromAuthorityInfoAccess() throws Exception {
+
+		OcspChecker aiaChecker = new OcspChecker(null, TIMEOUT_IN_MSEC,
+			TimeUnit.MINUTES.toMillis(5), TimeUnit.SECONDS.toMillis(30), 100);
+
+		try {
+
+			Credential aiaUser = OcspTestSupport.newEndEntity(
+				"CN=AIA User,O=IGI,C=IT", ca, 44,
+				OcspTestSupport.authorityInfoAccess(responder.getUrl()));
+
+			responder.respondWith(new ResponseBuilder(ca).revoked(
+				aiaUser.certificate, ca.certificate));
+
+			assertEquals(Status.REVOKED,
+				aiaChecker.check(aiaUser.certificate, ca.certificate));
+			assertEquals(Status.NOT_CHECKED,
+				aiaChecker.check(user.certificate, ca.certificate));
+
+		} finally {
+			aiaChecker.shutdown();
+		}
+	}
+}
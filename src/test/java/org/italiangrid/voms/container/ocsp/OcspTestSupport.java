@@ -0,0 +1,347 @@
+package org.italiangrid.voms.container.ocsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Builds the certificates and the OCSP responses used by the OCSP tests, and
+ * serves them from a stand-in responder.
+ */
+final class OcspTestSupport {
+
+	static final String SHA256_WITH_RSA_OID = "1.2.840.113549.1.1.11";
+
+	static final String BASIC_CONSTRAINTS_OID = "2.5.29.19";
+	static final String EXTENDED_KEY_USAGE_OID = "2.5.29.37";
+
+	static final long VALIDITY_IN_MSEC = TimeUnit.DAYS.toMillis(1);
+
+	private OcspTestSupport() {
+
+	}
+
+	/**
+	 * A certificate and its private key.
+	 */
+	static class Credential {
+
+		final X509Certificate certificate;
+		final PrivateKey key;
+
+		Credential(X509Certificate certificate, PrivateKey key) {
+
+			this.certificate = certificate;
+			this.key = key;
+		}
+	}
+
+	static KeyPair newKeyPair() throws GeneralSecurityException {
+
+		KeyPairGenerator g = KeyPairGenerator.getInstance("RSA");
+		g.initialize(1024);
+		return g.generateKeyPair();
+	}
+
+	static Credential newCA(String dn) throws Exception {
+
+		KeyPair kp = newKeyPair();
+
+		return new Credential(newCertificate(dn, kp, dn, kp.getPrivate(),
+			BigInteger.ONE, extension(BASIC_CONSTRAINTS_OID,
+				Der.encode(Der.SEQUENCE, new byte[] { 0x01, 0x01, (byte) 0xff }))),
+			kp.getPrivate());
+	}
+
+	static Credential newEndEntity(String dn, Credential ca, long serial,
+		byte[]... extensions) throws Exception {
+
+		KeyPair kp = newKeyPair();
+
+		return new Credential(newCertificate(dn, kp, ca.certificate
+			.getSubjectX500Principal().getName(), ca.key, BigInteger.valueOf(serial),
+			extensions), kp.getPrivate());
+	}
+
+	static Credential newDelegatedResponder(String dn, Credential ca)
+		throws Exception {
+
+		return newEndEntity(dn, ca, 1000, extension(EXTENDED_KEY_USAGE_OID,
+			Der.encode(Der.SEQUENCE, oid(OcspResponse.OCSP_SIGNING_OID))));
+	}
+
+	static byte[] authorityInfoAccess(String responderUrl) throws IOException {
+
+		return extension(OcspChecker.AUTHORITY_INFO_ACCESS_OID, Der.encode(
+			Der.SEQUENCE, Der.encode(Der.SEQUENCE,
+				oid(OcspChecker.OCSP_ACCESS_METHOD_OID),
+				Der.encode(0x86, responderUrl.getBytes("US-ASCII")))));
+	}
+
+	static byte[] extension(String oid, byte[] value) {
+
+		return Der.encode(Der.SEQUENCE, oid(oid),
+			Der.encode(Der.OCTET_STRING, value));
+	}
+
+	private static X509Certificate newCertificate(String subject, KeyPair kp,
+		String issuer, PrivateKey issuerKey, BigInteger serial,
+		byte[]... extensions) throws Exception {
+
+		long now = System.currentTimeMillis();
+
+		List<byte[]> tbs = new ArrayList<byte[]>();
+
+		// [0] EXPLICIT version v3
+		tbs.add(Der.encode(0xa0, Der.encode(Der.INTEGER, new byte[] { 2 })));
+		tbs.add(Der.encode(Der.INTEGER, serial.toByteArray()));
+		tbs.add(algorithm(SHA256_WITH_RSA_OID));
+		tbs.add(new X500Principal(issuer).getEncoded());
+		tbs.add(Der.encode(Der.SEQUENCE, utcTime(now - VALIDITY_IN_MSEC),
+			utcTime(now + VALIDITY_IN_MSEC)));
+		tbs.add(new X500Principal(subject).getEncoded());
+		tbs.add(kp.getPublic().getEncoded());
+
+		if (extensions.length > 0)
+			tbs.add(Der.encode(0xa3, Der.encode(Der.SEQUENCE, extensions)));
+
+		byte[] tbsCertificate = Der.encode(Der.SEQUENCE,
+			tbs.toArray(new byte[tbs.size()][]));
+
+		byte[] encoded = Der.encode(Der.SEQUENCE, tbsCertificate,
+			algorithm(SHA256_WITH_RSA_OID), bitString(sign(tbsCertificate,
+				issuerKey)));
+
+		return (X509Certificate) CertificateFactory.getInstance("X.509")
+			.generateCertificate(new ByteArrayInputStream(encoded));
+	}
+
+	/**
+	 * Builds the OCSP responses of a responder.
+	 */
+	static class ResponseBuilder {
+
+		private final X509Certificate signer;
+		private final PrivateKey signerKey;
+		private final List<X509Certificate> certs = new ArrayList<X509Certificate>();
+
+		ResponseBuilder(Credential signer) {
+
+			this.signer = signer.certificate;
+			this.signerKey = signer.key;
+		}
+
+		/**
+		 * Signs with a key other than the one of the signer certificate.
+		 */
+		ResponseBuilder signedWith(PrivateKey key) {
+
+			return new ResponseBuilder(new Credential(signer, key));
+		}
+
+		ResponseBuilder including(X509Certificate cert) {
+
+			certs.add(cert);
+			return this;
+		}
+
+		byte[] good(X509Certificate cert, X509Certificate issuer) throws Exception {
+
+			return build(cert, issuer, Der.encode(0x80));
+		}
+
+		byte[] revoked(X509Certificate cert, X509Certificate issuer)
+			throws Exception {
+
+			return build(cert, issuer, Der.encode(0xa1,
+				generalizedTime(System.currentTimeMillis() - VALIDITY_IN_MSEC)));
+		}
+
+		byte[] unknown(X509Certificate cert, X509Certificate issuer)
+			throws Exception {
+
+			return build(cert, issuer, Der.encode(0x82));
+		}
+
+		private byte[] build(X509Certificate cert, X509Certificate issuer,
+			byte[] certStatus) throws Exception {
+
+			long now = System.currentTimeMillis();
+
+			byte[] singleResponse = Der.encode(Der.SEQUENCE, OcspCertId.of(cert,
+				issuer).getEncoded(), certStatus, generalizedTime(now), Der.encode(
+				0xa0, generalizedTime(now + TimeUnit.HOURS.toMillis(1))));
+
+			// responderID byKey [2]
+			byte[] responseData = Der.encode(Der.SEQUENCE, Der.encode(0xa2,
+				Der.encode(Der.OCTET_STRING, OcspCertId.issuerKeyHash(signer))),
+				generalizedTime(now), Der.encode(Der.SEQUENCE, singleResponse));
+
+			List<byte[]> basic = new ArrayList<byte[]>();
+			basic.add(responseData);
+			basic.add(algorithm(SHA256_WITH_RSA_OID));
+			basic.add(bitString(sign(responseData, signerKey)));
+
+			if (!certs.isEmpty()) {
+
+				List<byte[]> encodedCerts = new ArrayList<byte[]>();
+
+				for (X509Certificate c : certs)
+					encodedCerts.add(c.getEncoded());
+
+				basic.add(Der.encode(0xa0, Der.encode(Der.SEQUENCE,
+					encodedCerts.toArray(new byte[encodedCerts.size()][]))));
+			}
+
+			byte[] basicResponse = Der.encode(Der.SEQUENCE,
+				basic.toArray(new byte[basic.size()][]));
+
+			return Der.encode(Der.SEQUENCE, Der.encode(Der.ENUMERATED,
+				new byte[] { 0 }), Der.encode(0xa0, Der.encode(Der.SEQUENCE,
+				oid(OcspResponse.BASIC_RESPONSE_OID),
+				Der.encode(Der.OCTET_STRING, basicResponse))));
+		}
+	}
+
+	static byte[] algorithm(String oid) {
+
+		return Der.encode(Der.SEQUENCE, oid(oid), Der.encode(Der.NULL));
+	}
+
+	static byte[] bitString(byte[] bits) {
+
+		byte[] content = new byte[bits.length + 1];
+		System.arraycopy(bits, 0, content, 1, bits.length);
+		return Der.encode(Der.BIT_STRING, content);
+	}
+
+	static byte[] sign(byte[] data, PrivateKey key)
+		throws GeneralSecurityException {
+
+		Signature s = Signature.getInstance("SHA256withRSA");
+		s.initSign(key);
+		s.update(data);
+		return s.sign();
+	}
+
+	static byte[] oid(String oid) {
+
+		String[] arcs = oid.split("\\.");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		out.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+
+		for (int i = 2; i < arcs.length; i++) {
+
+			long value = Long.parseLong(arcs[i]);
+			int groups = 1;
+
+			while ((value >> (7 * groups)) != 0)
+				groups++;
+
+			for (int g = groups - 1; g >= 0; g--)
+				out.write((int) ((value >> (7 * g)) & 0x7f) | (g > 0 ? 0x80 : 0));
+		}
+
+		return Der.encode(Der.OID, out.toByteArray());
+	}
+
+	private static byte[] utcTime(long time) throws IOException {
+
+		return Der.encode(0x17, format("yyMMddHHmmss'Z'", time));
+	}
+
+	private static byte[] generalizedTime(long time) throws IOException {
+
+		return Der.encode(Der.GENERALIZED_TIME, format("yyyyMMddHHmmss'Z'", time));
+	}
+
+	private static byte[] format(String pattern, long time) throws IOException {
+
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(time)).getBytes("US-ASCII");
+	}
+
+	/**
+	 * An OCSP responder answering every request with the same response.
+	 */
+	static class StandInResponder implements HttpHandler {
+
+		private final HttpServer server;
+		private final AtomicInteger requests = new AtomicInteger();
+		private volatile byte[] response = new byte[0];
+
+		StandInResponder() throws IOException {
+
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/", this);
+			server.start();
+		}
+
+		String getUrl() {
+
+			return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+		}
+
+		void respondWith(byte[] response) {
+
+			this.response = response;
+		}
+
+		int getRequestCount() {
+
+			return requests.get();
+		}
+
+		void stop() {
+
+			server.stop(0);
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+
+			requests.incrementAndGet();
+
+			InputStream is = exchange.getRequestBody();
+
+			while (is.read() >= 0)
+				;
+
+			byte[] body = response;
+
+			exchange.getResponseHeaders().set("Content-Type",
+				"application/ocsp-response");
+			exchange.sendResponseHeaders(200, body.length);
+
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package org.italiangrid.voms.container.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PooledDataSourceTest {
+
+	private static final String VO_NAME = "test";
+
+	private File configurationDir;
+	private ClassLoader contextClassLoader;
+
+	/**
+	 * Defines its own copy of the stand-in driver, like a webapp class loader
+	 * does for a driver shipped in the web archive.
+	 */
+	private static class WebAppClassLoader extends ClassLoader {
+
+		private final String name;
+
+		WebAppClassLoader(String name) {
+
+			super(PooledDataSourceTest.class.getClassLoader());
+			this.name = name;
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String className,
+			boolean resolve) throws ClassNotFoundException {
+
+			if (!className.startsWith(StandInDriver.class.getName()))
+				return super.loadClass(className, resolve);
+
+			Class<?> c = findLoadedClass(className);
+
+			if (c != null)
+				return c;
+
+			InputStream is = getParent().getResourceAsStream(
+				className.replace('.', '/') + ".class");
+
+			try {
+
+				byte[] bytes = IOUtils.toByteArray(is);
+				return defineClass(className, bytes, 0, bytes.length);
+
+			} catch (IOException e) {
+				throw new ClassNotFoundException(className, e);
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+		}
+
+		@Override
+		public String toString() {
+
+			return name;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+
+		contextClassLoader = Thread.currentThread().getContextClassLoader();
+		configurationDir = Files.createTempDirectory("pool-test").toFile();
+	}
+
+	@After
+	public void tearDown() {
+
+		Thread.currentThread().setContextClassLoader(contextClassLoader);
+		FileUtils.deleteQuietly(configurationDir);
+	}
+
+	private PooledDataSource newDataSource(String driverClass)
+		throws IOException {
+
+		File voDir = new File(configurationDir, VO_NAME);
+		voDir.mkdirs();
+
+		FileUtils.writeStringToFile(new File(voDir,
+			PoolConfiguration.DATABASE_PROPERTIES_FILE_NAME),
+			PoolConfiguration.POOL_ENABLED + "=true\n" + PoolConfiguration.URL
+				+ "=" + StandInDriver.URL_PREFIX + VO_NAME + "\n"
+				+ PoolConfiguration.DRIVER_CLASS + "=" + driverClass + "\n");
+
+		return new PooledDataSource(VO_NAME, PoolConfiguration.load(
+			configurationDir.getAbsolutePath(), VO_NAME));
+	}
+
+	private String getCatalog(PooledDataSource ds, ClassLoader loader)
+		throws SQLException {
+
+		Thread.currentThread().setContextClassLoader(loader);
+
+		Connection c = ds.getConnection();
+
+		try {
+			return c.getCatalog();
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void testDriverIsLoadedFromContainerClassPath() throws Exception {
+
+		PooledDataSource ds = newDataSource(StandInDriver.class.getName());
+
+		assertEquals(String.valueOf(PooledDataSource.class.getClassLoader()),
+			getCatalog(ds, new WebAppClassLoader("webapp")));
+	}
+
+	@Test
+	public void testConnectionsAreReused() throws Exception {
+
+		PooledDataSource ds = newDataSource(StandInDriver.class.getName());
+		ClassLoader loader = new WebAppClassLoader("webapp");
+
+		getCatalog(ds, loader);
+		getCatalog(ds, loader);
+
+		assertEquals(1L, ds.getMetrics().get("created"));
+	}
+
+	@Test
+	public void testIdleConnectionsSurviveContextRestart() throws Exception {
+
+		PooledDataSource ds = newDataSource(StandInDriver.class.getName());
+
+		getCatalog(ds, new WebAppClassLoader("before"));
+
+		// The restarted context comes with a class loader of its own
+		getCatalog(ds, new WebAppClassLoader("after"));
+
+		assertEquals(1L, ds.getMetrics().get("created"));
+		assertEquals(1, ds.getMetrics().get("idle"));
+	}
+
+	@Test
+	public void testMissingDriver() throws Exception {
+
+		PooledDataSource ds = newDataSource("org.example.NoSuchDriver");
+
+		try {
+			getCatalog(ds, new WebAppClassLoader("webapp"));
+			fail("Connection opened without a driver");
+		} catch (SQLException e) {
+			// expected
+		}
+
+		assertEquals(0, ds.getMetrics().get("active"));
+	}
+}
@@ -0,0 +1,100 @@
+package org.italiangrid.voms.container.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+
+/**
+ * A JDBC driver standing in for a database. Its connections report, as their
+ * catalog, the class loader the driver was loaded by.
+ */
+public class StandInDriver implements Driver {
+
+	public static final String URL_PREFIX = "jdbc:standin:";
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+
+		if (!acceptsURL(url))
+			return null;
+
+		InvocationHandler handler = new InvocationHandler() {
+
+			private boolean closed = false;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+
+				String methodName = method.getName();
+
+				if (methodName.equals("close")) {
+					closed = true;
+					return null;
+				}
+
+				if (methodName.equals("isClosed"))
+					return closed;
+
+				if (methodName.equals("isValid"))
+					return !closed;
+
+				if (methodName.equals("getAutoCommit"))
+					return true;
+
+				if (methodName.equals("getCatalog"))
+					return String.valueOf(StandInDriver.class.getClassLoader());
+
+				throw new SQLFeatureNotSupportedException(methodName);
+			}
+		};
+
+		return (Connection) Proxy.newProxyInstance(
+			StandInDriver.class.getClassLoader(),
+			new Class<?>[] { Connection.class }, handler);
+	}
+
+	@Override
+	public boolean acceptsURL(String url) throws SQLException {
+
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+		throws SQLException {
+
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+
+		return false;
+	}
+
+	// Not annotated with @Override as it appeared in JDBC 4.1
+	public java.util.logging.Logger getParentLogger()
+		throws SQLFeatureNotSupportedException {
+
+		throw new SQLFeatureNotSupportedException();
+	}
+}